@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2008-2012 Java Scene Graph
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Java Scene Graph' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package trb.jsg;
+
+/**
+ * A Shape with several levels of detail. Level 0 is the vertex data of the
+ * shape and the following levels should have fewer and fewer triangles. 
+ * The renderer selects a level each frame from the projected size of the 
+ * world bounding sphere of level 0.
+ * <p>
+ * The screen size is the projected diameter of the bounding sphere divided
+ * by the height of the viewport. Level i is used while the screen size is 
+ * at least screenSizes[i]. To avoid popping when the size is close to a 
+ * threshold the size must pass the threshold by the hysteresis fraction 
+ * before the level is changed.
+ * <p>
+ * All levels are registered with the renderer when the shape is added, so 
+ * switching level only changes what is drawn.
+ * 
+ * @author tombr
+ */
+public class LODShape extends Shape {
+
+	private static final long serialVersionUID = 0L;
+	
+	/** The levels of detail. Level 0 is always the vertex data of the shape. */
+	private VertexData[] levels = new VertexData[0];
+	
+	/** The smallest screen size where each level is used */
+	private float[] screenSizes = new float[0];
+	
+	/** How far past a threshold the screen size must be to change level */
+	private float hysteresis = 0.1f;
+
+	/**
+	 * Constructs a LODShape without levels.
+	 */
+	public LODShape() {
+		super();
+	}
+	
+	/**
+	 * Constructs a LODShape with levels.
+	 * @param levels the vertex data of each level
+	 * @param screenSizes the smallest screen size where each level is used
+	 */
+	public LODShape(VertexData[] levels, float[] screenSizes) {
+		super();
+		setLevels(levels, screenSizes);
+	}
+	
+	/**
+	 * Sets the levels of detail. Level 0 is set as the vertex data of the 
+	 * shape. The screen sizes must be decreasing and the last is usually 0
+	 * so the last level is used when the shape is far away.
+	 * @param levels the vertex data of each level
+	 * @param screenSizes the smallest screen size where each level is used
+	 */
+	public void setLevels(VertexData[] levels, float[] screenSizes) {
+		if (levels.length == 0 || levels.length != screenSizes.length) {
+			throw new RuntimeException("There must be one screen size for each level");
+		}
+		VertexData[] oldLevels = this.levels;
+		this.levels = levels.clone();
+		this.screenSizes = screenSizes.clone();
+		setVertexData(levels[0]);
+		if (nativePeer != null) {
+			nativePeer.levelsChanged(oldLevels, this.levels);
+		}
+	}
+	
+	/**
+	 * Gets the number of levels.
+	 * @return the number of levels
+	 */
+	public int getLevelCount() {
+		return levels.length;
+	}
+	
+	/**
+	 * Gets the vertex data of a level.
+	 * @param level the level
+	 * @return the vertex data
+	 */
+	public VertexData getLevel(int level) {
+		return level == 0 ? getVertexData() : levels[level];
+	}
+	
+	/**
+	 * Gets a copy of the levels.
+	 * @return the vertex data of each level
+	 */
+	public VertexData[] getLevels() {
+		return levels.clone();
+	}
+	
+	/**
+	 * Gets the smallest screen size where a level is used.
+	 * @param level the level
+	 * @return the screen size
+	 */
+	public float getScreenSize(int level) {
+		return screenSizes[level];
+	}
+	
+	/**
+	 * Sets how far past a threshold the screen size must be to change level.
+	 * @param hysteresis the fraction of the threshold, 0.1 is 10%
+	 */
+	public void setHysteresis(float hysteresis) {
+		this.hysteresis = hysteresis;
+	}
+	
+	/**
+	 * Gets the hysteresis.
+	 * @return the fraction of the threshold
+	 */
+	public float getHysteresis() {
+		return hysteresis;
+	}
+	
+	/**
+	 * Selects the level to draw.
+	 * @param currentLevel the level that is drawn now
+	 * @param screenSize the projected diameter divided by the viewport height
+	 * @return the level to draw
+	 */
+	public int selectLevel(int currentLevel, float screenSize) {
+		int level = Math.min(currentLevel, levels.length - 1);
+		while (level < levels.length - 1 && screenSize < screenSizes[level] * (1 - hysteresis)) {
+			level++;
+		}
+		while (level > 0 && screenSize > screenSizes[level - 1] * (1 + hysteresis)) {
+			level--;
+		}
+		return Math.max(level, 0);
+	}
+}
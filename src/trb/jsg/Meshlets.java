@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2008-2012 Java Scene Graph
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Java Scene Graph' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package trb.jsg;
+
+import java.io.Serializable;
+
+/**
+ * Splits the indices of a VertexData into small clusters of triangles, 
+ * called meshlets, that are culled individually. Each meshlet is a 
+ * contiguous range of the indices and has a bounding sphere and a normal
+ * cone in local space. The renderer culls the meshlets against the view 
+ * frustum, and with the cone when all triangles of the meshlet face away 
+ * from the camera, and only draws the index ranges of the rest.
+ * <p>
+ * Use MeshletBuilder to create the meshlets. VertexData.setIndices() 
+ * removes the meshlets, so they must be rebuilt after the indices are 
+ * changed.
+ * 
+ * @author tombr
+ */
+public class Meshlets implements Serializable {
+
+	private static final long serialVersionUID = 0L;
+	
+	/** The number of meshlets */
+	public final int count;
+	
+	/** The first index of each meshlet */
+	public final int[] firstIndex;
+	
+	/** The number of indices in each meshlet */
+	public final int[] indexCount;
+	
+	/** Center x, y, z and radius of the bounding sphere of each meshlet */
+	public final float[] spheres;
+	
+	/** Axis x, y, z and cutoff of the normal cone of each meshlet. The 
+	 * meshlet faces away from a camera at position p if 
+	 * dot(center - p, axis) >= cutoff * |center - p| + radius. A cutoff of 1
+	 * means the meshlet is never culled by the cone. */
+	public final float[] cones;
+
+	/**
+	 * Constructs meshlets with uninitialised data.
+	 * @param count the number of meshlets
+	 */
+	public Meshlets(int count) {
+		this.count = count;
+		firstIndex = new int[count];
+		indexCount = new int[count];
+		spheres = new float[count * 4];
+		cones = new float[count * 4];
+	}
+}
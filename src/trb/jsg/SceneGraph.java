@@ -55,6 +55,9 @@ public class SceneGraph implements Serializable {
 	/** The native peer */
 	transient public SceneGraphPeer nativePeer;
 
+	/** The number of open transactions. Changes are deferred while > 0. */
+	transient private int transactionDepth = 0;
+
     /**
      * Creates a SceneGraph with no render passes.
      */
@@ -121,6 +124,41 @@ public class SceneGraph implements Serializable {
 		return renderPasses.get(index);
 	}
 	
+	/**
+	 * Starts a transaction. Changes to shapes, states and textures in this
+	 * SceneGraph are coalesced per object until the matching
+	 * commitTransaction() and the renderer is then notified once for each
+	 * changed object. Transactions can be nested, only the outermost commit
+	 * applies the changes.
+	 */
+	public void beginTransaction() {
+		transactionDepth++;
+		if (transactionDepth == 1 && nativePeer != null) {
+			nativePeer.transactionBegin();
+		}
+	}
+
+	/**
+	 * Commits the transaction started by beginTransaction().
+	 */
+	public void commitTransaction() {
+		if (transactionDepth <= 0) {
+			throw new RuntimeException("commitTransaction called without beginTransaction");
+		}
+		transactionDepth--;
+		if (transactionDepth == 0 && nativePeer != null) {
+			nativePeer.transactionCommit();
+		}
+	}
+
+	/**
+	 * Checks if a transaction is open.
+	 * @return true if inside beginTransaction() / commitTransaction()
+	 */
+	public boolean isInTransaction() {
+		return transactionDepth > 0;
+	}
+	
 	/**
 	 * Don't call this directly, it is invoked by the Renderer. Will update all
 	 * renderpass tree nodes. 
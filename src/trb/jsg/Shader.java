@@ -35,11 +35,10 @@ package trb.jsg;
 import java.io.Serializable;
 import java.util.HashMap;
 
-import trb.jsg.renderer.Renderer;
-
 /**
  * A GLSL shader that consist of a ShaderProgram and a set of uniform. 
- * ShaderPrograms can be shared between shaders.
+ * ShaderPrograms can be shared between shaders. The program can also be a 
+ * variant of a ShaderVariants selected by a keyword mask.
  * 
  * @author tombr
  *
@@ -51,11 +50,18 @@ public class Shader implements Serializable {
 	/** The shader program */
 	private ShaderProgram shaderProgram;
 	
+	/** The base of the variant or null if the program is not a variant */
+	private ShaderVariants variants;
+	
+	/** The normalized keyword mask of the variant */
+	private int keywordMask = 0;
+	
 	/** The uniform variables*/
 	HashMap<String, Uniform> uniformSet = new HashMap<String, Uniform>();
 
-	/** When the uniforms was last changed */
-	public int changeFrameIdx = -1;
+	/** Incremented every time the uniforms change. Lets each renderer detect 
+	 * changes without depending on a global frame index. */
+	public int changeCnt = 0;
 	
 	/**
 	 * Constructs a Shader with the specified shader program.
@@ -65,6 +71,55 @@ public class Shader implements Serializable {
 		this.shaderProgram = shaderProgram;
 	}
 	
+	/**
+	 * Constructs a Shader that uses a variant.
+	 * @param variants the base of the variant
+	 * @param keywordMask the keywords to define
+	 */
+	public Shader(ShaderVariants variants, int keywordMask) {
+		this.variants = variants;
+		this.keywordMask = variants.normalize(keywordMask);
+		this.shaderProgram = variants.getProgram(keywordMask);
+	}
+	
+	/**
+	 * Creates a shader that uses another variant of the same base with a 
+	 * copy of the uniforms of this shader. Later changes to the uniforms of
+	 * one shader do not affect the other.
+	 * @param keywordMask the keywords to define
+	 * @return the new shader, or this if the mask selects the same variant
+	 */
+	public Shader withKeywordMask(int keywordMask) {
+		if (variants == null) {
+			throw new RuntimeException("Shader is not a variant");
+		}
+		if (variants.normalize(keywordMask) == this.keywordMask) {
+			return this;
+		}
+		Shader shader = new Shader(variants, keywordMask);
+		for (Uniform uniform : uniformSet.values()) {
+			shader.putUniform(new Uniform(uniform));
+		}
+		return shader;
+	}
+	
+	/**
+	 * Gets the base of the variant.
+	 * @return the variants or null if the program is not a variant
+	 */
+	public ShaderVariants getVariants() {
+		return variants;
+	}
+	
+	/**
+	 * Gets the keywords defined by the variant. Keywords that the sources 
+	 * does not use is removed.
+	 * @return the keyword mask
+	 */
+	public int getKeywordMask() {
+		return keywordMask;
+	}
+	
 	/**
 	 * Gets the shader program.
 	 * @return the shader program
@@ -82,7 +137,7 @@ public class Shader implements Serializable {
 	public void putUniform(Uniform uniform) {
         uniform.owners.add(this);
 		uniformSet.put(uniform.getName(), uniform);
-		changeFrameIdx = Renderer.frameIdx;
+		changeCnt++;
 	}
 	
 	/**
@@ -94,6 +149,7 @@ public class Shader implements Serializable {
 		Uniform uniform = uniformSet.remove(name);
         if (uniform != null) {
             uniform.owners.remove(this);
+            changeCnt++;
         }
 	}
 	
@@ -117,6 +173,6 @@ public class Shader implements Serializable {
 	}
 
     void uniformChanged(Uniform uniform) {
-        changeFrameIdx = Renderer.frameIdx;
+        changeCnt++;
     }
 }
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2008-2012 Java Scene Graph
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Java Scene Graph' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package trb.jsg;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * A base GLSL vertex and fragment source with a set of keywords that select
+ * permutations of the source. A variant is the base source with a #define 
+ * for each keyword in a bit mask, where bit i is keywords[i]. The define 
+ * lines are inserted after the #version line, or first if there is none.
+ * <p>
+ * Variants are created the first time they are asked for and are compiled
+ * by the renderer when they are used. Masks that select the same defines 
+ * give the same ShaderProgram, and keywords that the sources never mention
+ * are ignored, so variants that would compile to the same program are 
+ * shared.
+ * <p>
+ * Example:<br>
+ * ShaderVariants lit = new ShaderVariants(vs, fs, new String[] {"NORMAL_MAP", "SHADOWS"});<br>
+ * state.setShader(new Shader(lit, lit.getMask("SHADOWS")));
+ * 
+ * @author tombr
+ */
+public class ShaderVariants implements Serializable {
+
+	private static final long serialVersionUID = 0L;
+	
+	/** The maximum number of keywords, one per bit in the mask */
+	public static final int MAX_KEYWORDS = 32;
+	
+	/** Counter that increased every time a ShaderVariants is created */
+	private static int nextStateId = 1;
+	
+	/** Unique id that is not the opengl id */
+	private final int stateId = nextStateId++;
+	
+	private final CharSequence vertexShader;
+	private final CharSequence fragmentShader;
+	private final String[] attributeNames;
+	private final String[] keywords;
+	
+	/** The keywords used by the sources */
+	private final int usedMask;
+	
+	/** The created variants by normalized mask */
+	private final HashMap<Integer, ShaderProgram> programs = new HashMap<Integer, ShaderProgram>();
+	
+	/**
+	 * Constructs the base of a set of variants.
+	 * @param vertexShader the vertex program. Can be null.
+	 * @param fragmentShader the fragment program. Can be null.
+	 * @param keywords the keywords that can be defined, at most 32
+	 * @param attributeNames the attribute names, see ShaderProgram
+	 */
+	public ShaderVariants(CharSequence vertexShader, CharSequence fragmentShader
+			, String[] keywords, String... attributeNames) {
+		if (keywords.length > MAX_KEYWORDS) {
+			throw new RuntimeException("At most " + MAX_KEYWORDS + " keywords is supported, got " + keywords.length);
+		}
+		this.vertexShader = vertexShader;
+		this.fragmentShader = fragmentShader;
+		this.keywords = keywords.clone();
+		this.attributeNames = attributeNames;
+		int used = 0;
+		for (int i=0; i<keywords.length; i++) {
+			Pattern word = Pattern.compile("\\b" + Pattern.quote(keywords[i]) + "\\b");
+			if ((vertexShader != null && word.matcher(vertexShader).find())
+					|| (fragmentShader != null && word.matcher(fragmentShader).find())) {
+				used |= 1 << i;
+			}
+		}
+		this.usedMask = used;
+	}
+	
+	/**
+	 * Gets the mask of a set of keywords.
+	 * @param names the keywords to define
+	 * @return the mask
+	 */
+	public int getMask(String... names) {
+		int mask = 0;
+		for (String name : names) {
+			int idx = getKeywordIndex(name);
+			if (idx < 0) {
+				throw new RuntimeException("Unknown keyword " + name);
+			}
+			mask |= 1 << idx;
+		}
+		return mask;
+	}
+	
+	/**
+	 * Gets the bit of a keyword.
+	 * @return the index or -1 if it is not a keyword
+	 */
+	public int getKeywordIndex(String name) {
+		for (int i=0; i<keywords.length; i++) {
+			if (keywords[i].equals(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Removes the keywords from a mask that does not change the sources. 
+	 * Masks with the same normalized mask share the same program.
+	 */
+	public int normalize(int keywordMask) {
+		return keywordMask & usedMask;
+	}
+	
+	/**
+	 * Gets the program of a variant. The program is created the first time
+	 * and compiled by the renderer when it is used.
+	 * @param keywordMask the keywords to define
+	 * @return the shared program of the variant
+	 */
+	public synchronized ShaderProgram getProgram(int keywordMask) {
+		int mask = normalize(keywordMask);
+		ShaderProgram program = programs.get(mask);
+		if (program == null) {
+			program = new ShaderProgram(addDefines(vertexShader, mask)
+					, addDefines(fragmentShader, mask), attributeNames);
+			programs.put(mask, program);
+		}
+		return program;
+	}
+	
+	/**
+	 * Gets the variants that has been created. Can be passed to 
+	 * Renderer.prewarmShaders().
+	 */
+	public synchronized Collection<ShaderProgram> getPrograms() {
+		return new ArrayList<ShaderProgram>(programs.values());
+	}
+	
+	/**
+	 * Inserts a #define for each keyword in the mask after the #version 
+	 * line.
+	 */
+	private CharSequence addDefines(CharSequence source, int mask) {
+		if (source == null || mask == 0) {
+			return source;
+		}
+		String text = source.toString();
+		int insertAt = 0;
+		int versionIdx = text.indexOf("#version");
+		if (versionIdx >= 0 && text.substring(0, versionIdx).trim().length() == 0) {
+			int lineEnd = text.indexOf('\n', versionIdx);
+			insertAt = lineEnd < 0 ? text.length() : lineEnd + 1;
+		}
+		StringBuilder defines = new StringBuilder();
+		if (insertAt == text.length() && !text.endsWith("\n")) {
+			defines.append('\n');
+		}
+		for (int i=0; i<keywords.length; i++) {
+			if ((mask & (1 << i)) != 0) {
+				defines.append("#define ").append(keywords[i]).append('\n');
+			}
+		}
+		return text.substring(0, insertAt) + defines + text.substring(insertAt);
+	}
+	
+	/**
+	 * Gets the keywords of a mask.
+	 */
+	public List<String> getKeywords(int keywordMask) {
+		List<String> names = new ArrayList<String>();
+		for (int i=0; i<keywords.length; i++) {
+			if ((keywordMask & (1 << i)) != 0) {
+				names.add(keywords[i]);
+			}
+		}
+		return names;
+	}
+	
+	public String[] getKeywords() {
+		return keywords.clone();
+	}
+	
+	public CharSequence getVertexShader() {
+		return vertexShader;
+	}
+	
+	public CharSequence getFragmentShader() {
+		return fragmentShader;
+	}
+	
+	public String[] getAttributeNames() {
+		return attributeNames;
+	}
+	
+	/**
+	 * Gets an unique id for this object.
+	 * @return the stateId
+	 */
+	public int getStateId() {
+		return stateId;
+	}
+}
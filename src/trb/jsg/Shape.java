@@ -225,6 +225,16 @@ public class Shape implements Serializable {
 			if (false) {
 				return a.getHash() - b.getHash();
 			}
+			// variants of the same base next to each other, equal variants together
+			int aBaseId = a.getShader() != null && a.getShader().getVariants() != null ? a.getShader().getVariants().getStateId() : 0;
+			int bBaseId = b.getShader() != null && b.getShader().getVariants() != null ? b.getShader().getVariants().getStateId() : 0;
+			if (aBaseId != bBaseId) {
+				return aBaseId - bBaseId;
+			}
+			if (a.getKeywordMask() != b.getKeywordMask()) {
+				return a.getKeywordMask() < b.getKeywordMask() ? -1 : 1;
+			}
+			
 			int aShaderId = a.getShader() != null && a.getShader().getShaderProgram() != null ? a.getShader().getShaderProgram().getStateId() : 0;
 			int bShaderId = b.getShader() != null && b.getShader().getShaderProgram() != null ? b.getShader().getShaderProgram().getStateId() : 0;
 			if (aShaderId != bShaderId) {
@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2008-2012 Java Scene Graph
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Java Scene Graph' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package trb.jsg;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import trb.jsg.util.Mat4;
+
+/**
+ * Lets a simulation thread change the transform, visibility and state of a 
+ * fixed set of shapes while the render thread is rendering them.
+ * <p>
+ * The simulation thread writes to a private front copy using setMatrix(), 
+ * setVisible() and setState() and calls publish() when a consistent set of 
+ * changes is done. The render thread applies the most recently published 
+ * snapshot at the start of each frame. The snapshots are triple buffered and 
+ * swapped with one atomic operation, so neither thread ever waits for the 
+ * other and a snapshot is never changed while it is being applied.
+ * <p>
+ * Only one thread may write to a SnapshotBuffer. The shapes must not be 
+ * changed directly, or have their model matrix set by a TreeNode, while they
+ * are controlled by a SnapshotBuffer. States passed to setState() must not be
+ * modified by the simulation thread afterwards.
+ * 
+ * @author tombr
+ *
+ */
+public class SnapshotBuffer {
+
+	/** Bit set in the shared index when it holds a snapshot not yet applied */
+	private static final int FRESH = 4;
+
+	/** Bits of the shared index that holds the snapshot index */
+	private static final int INDEX_MASK = 3;
+	
+	/** The shapes controlled by this buffer, indexed on slot */
+	private final Shape[] shapes;
+	
+	/** The three snapshots */
+	private final Snapshot[] snapshots = new Snapshot[3];
+	
+	/** The snapshot written by the simulation thread */
+	private final Snapshot frontCopy;
+	
+	/** Index of the snapshot owned by the writer in publish() */
+	private int backIdx = 0;
+	
+	/** Index of the last published snapshot, or'ed with FRESH if it has not
+	 * been taken by the render thread. */
+	private final AtomicInteger sharedIdx = new AtomicInteger(1);
+	
+	/** Index of the snapshot owned by the render thread */
+	private int renderIdx = 2;
+
+	/** The versions last applied to the shapes. Only used by the render thread */
+	private final int[] appliedMatrixVersions;
+	private final int[] appliedVisibleVersions;
+	private final int[] appliedStateVersions;
+	
+	/** The model matrices handed to the shapes. Only used by the render thread */
+	private final Mat4[] matrices;
+
+	/**
+	 * Constructs a SnapshotBuffer that controls the specified shapes. The 
+	 * index of a shape in the array is its slot.
+	 * @param shapes the shapes to control
+	 */
+	public SnapshotBuffer(Shape... shapes) {
+		this.shapes = shapes.clone();
+		int n = shapes.length;
+		frontCopy = new Snapshot(n);
+		for (int i=0; i<snapshots.length; i++) {
+			snapshots[i] = new Snapshot(n);
+		}
+		appliedMatrixVersions = new int[n];
+		appliedVisibleVersions = new int[n];
+		appliedStateVersions = new int[n];
+		matrices = new Mat4[n];
+		for (int slot=0; slot<n; slot++) {
+			Shape shape = shapes[slot];
+			matrices[slot] = new Mat4(shape.getModelMatrix());
+			frontCopy.setMatrix(slot, shape.getModelMatrix());
+			frontCopy.visible[slot] = shape.isVisible();
+			frontCopy.states[slot] = shape.getState();
+		}
+		for (int i=0; i<snapshots.length; i++) {
+			snapshots[i].copy(frontCopy);
+		}
+	}
+	
+	/**
+	 * Gets the number of slots.
+	 * @return the number of shapes controlled by this buffer
+	 */
+	public int getSlotCount() {
+		return shapes.length;
+	}
+
+	/**
+	 * Sets the model matrix of the shape in the specified slot. Simulation
+	 * thread only.
+	 * @param slot the slot
+	 * @param modelMatrix the model matrix, copied
+	 */
+	public void setMatrix(int slot, Mat4 modelMatrix) {
+		frontCopy.setMatrix(slot, modelMatrix);
+		frontCopy.matrixVersions[slot]++;
+	}
+
+	/**
+	 * Sets the visibility of the shape in the specified slot. Simulation
+	 * thread only.
+	 * @param slot the slot
+	 * @param visible true to show, false to hide
+	 */
+	public void setVisible(int slot, boolean visible) {
+		if (frontCopy.visible[slot] != visible) {
+			frontCopy.visible[slot] = visible;
+			frontCopy.visibleVersions[slot]++;
+		}
+	}
+
+	/**
+	 * Sets the state of the shape in the specified slot. Simulation thread 
+	 * only.
+	 * @param slot the slot
+	 * @param state the state. Must not be changed after this call.
+	 */
+	public void setState(int slot, State state) {
+		if (frontCopy.states[slot] != state) {
+			frontCopy.states[slot] = state;
+			frontCopy.stateVersions[slot]++;
+		}
+	}
+	
+	/**
+	 * Makes the changes done since the last publish() visible to the render 
+	 * thread. Simulation thread only. Never blocks.
+	 */
+	public void publish() {
+		snapshots[backIdx].copy(frontCopy);
+		backIdx = sharedIdx.getAndSet(backIdx | FRESH) & INDEX_MASK;
+	}
+
+	/**
+	 * Applies the most recently published snapshot to the shapes. Is invoked
+	 * by the Renderer at the start of a frame. Never blocks.
+	 * @return true if a new snapshot was applied
+	 */
+	public boolean apply() {
+		if ((sharedIdx.get() & FRESH) == 0) {
+			return false;
+		}
+		renderIdx = sharedIdx.getAndSet(renderIdx) & INDEX_MASK;
+		Snapshot snapshot = snapshots[renderIdx];
+		for (int slot=0; slot<shapes.length; slot++) {
+			Shape shape = shapes[slot];
+			if (appliedMatrixVersions[slot] != snapshot.matrixVersions[slot]) {
+				appliedMatrixVersions[slot] = snapshot.matrixVersions[slot];
+				matrices[slot].set(snapshot.getMatrix(slot));
+				shape.setModelMatrix(matrices[slot]);
+			}
+			if (appliedVisibleVersions[slot] != snapshot.visibleVersions[slot]) {
+				appliedVisibleVersions[slot] = snapshot.visibleVersions[slot];
+				shape.setVisible(snapshot.visible[slot]);
+			}
+			if (appliedStateVersions[slot] != snapshot.stateVersions[slot]) {
+				appliedStateVersions[slot] = snapshot.stateVersions[slot];
+				shape.setState(snapshot.states[slot]);
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * The data of all slots at one point in time.
+	 */
+	private static class Snapshot {
+		final double[] matrices;
+		final boolean[] visible;
+		final State[] states;
+		
+		/** Increased every time the value in a slot changes */
+		final int[] matrixVersions;
+		final int[] visibleVersions;
+		final int[] stateVersions;
+		
+		/** Temp variable */
+		private final double[] temp = new double[16];
+		
+		Snapshot(int slotCount) {
+			matrices = new double[slotCount * 16];
+			visible = new boolean[slotCount];
+			states = new State[slotCount];
+			matrixVersions = new int[slotCount];
+			visibleVersions = new int[slotCount];
+			stateVersions = new int[slotCount];
+		}
+		
+		void setMatrix(int slot, Mat4 matrix) {
+			matrix.get(temp);
+			System.arraycopy(temp, 0, matrices, slot * 16, 16);
+		}
+		
+		double[] getMatrix(int slot) {
+			System.arraycopy(matrices, slot * 16, temp, 0, 16);
+			return temp;
+		}
+		
+		void copy(Snapshot src) {
+			System.arraycopy(src.matrices, 0, matrices, 0, matrices.length);
+			System.arraycopy(src.visible, 0, visible, 0, visible.length);
+			System.arraycopy(src.states, 0, states, 0, states.length);
+			System.arraycopy(src.matrixVersions, 0, matrixVersions, 0, matrixVersions.length);
+			System.arraycopy(src.visibleVersions, 0, visibleVersions, 0, visibleVersions.length);
+			System.arraycopy(src.stateVersions, 0, stateVersions, 0, stateVersions.length);
+		}
+	}
+}
@@ -209,6 +209,24 @@ public class State implements Serializable {
 		return hash.hash;
 	}
 	
+	/**
+	 * Gets the key the shapes are sorted by. The high bits are the base of 
+	 * the shader variant, or the program if the shader is not a variant, 
+	 * followed by the keyword mask, so variants of the same base are next to
+	 * each other and equal variants together. The low bits are the hash, so 
+	 * equal states are kept together within a variant.
+	 * @return the sort key
+	 */
+	public int getSortKey() {
+		int baseId = 0;
+		if (shader != null && shader.getVariants() != null) {
+			baseId = shader.getVariants().getStateId();
+		} else if (shader != null && shader.getShaderProgram() != null) {
+			baseId = shader.getShaderProgram().getStateId();
+		}
+		return ((baseId & 0x3ff) << 22) | ((getKeywordMask() & 0x3f) << 16) | (getHash() & 0xffff);
+	}
+	
 	/**
 	 * Notifies the owners the the state has changed. Also dirtys the hash.
 	 */
@@ -309,6 +327,29 @@ public class State implements Serializable {
 	public Shader getShader() {
 		return shader;
 	}
+	
+	/**
+	 * Selects another variant of the shader. The new shader shares the 
+	 * uniforms of the current shader.
+	 * @param keywordMask the keywords to define
+	 */
+	public void setKeywordMask(int keywordMask) {
+		if (shader == null) {
+			throw new RuntimeException("State has no shader");
+		}
+		Shader newShader = shader.withKeywordMask(keywordMask);
+		if (newShader != shader) {
+			setShader(newShader);
+		}
+	}
+	
+	/**
+	 * Gets the keywords defined by the shader variant.
+	 * @return the keyword mask or 0 if the shader is not a variant
+	 */
+	public int getKeywordMask() {
+		return shader != null ? shader.getKeywordMask() : 0;
+	}
 
 	/**
 	 * Enables or disables culling.
@@ -143,7 +143,7 @@ public class Texture implements Serializable {
 	/** The pixel data indexed on (side, level). Side is only by CUBE_MAP */
 	private ByteBuffer[][] pixels;
 	
-	/** True to automaticly generate mipmaps */
+	/** True to automaticly generate mipmaps. Client levels are refiltered in the changed regions */
 	private boolean generateMipMaps = false;
 
     /** True if the data uses a compressed format. */
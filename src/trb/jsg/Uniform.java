@@ -119,6 +119,32 @@ public class Uniform implements Serializable {
 		this.data = intData;
 	}
 	
+	/**
+	 * Constructs a copy of an Uniform. The data is copied and the copy has
+	 * no owners.
+	 * @param uniform the uniform to copy
+	 */
+	public Uniform(Uniform uniform) {
+		this.name = uniform.name;
+		this.type = uniform.type;
+		this.transpose = uniform.transpose;
+		if (uniform.data instanceof IntBuffer) {
+			IntBuffer src = ((IntBuffer) uniform.data).duplicate();
+			src.rewind();
+			IntBuffer intData = BufferUtils.createIntBuffer(src.limit());
+			intData.put(src).rewind();
+			this.data = intData;
+		} else if (uniform.data instanceof FloatBuffer) {
+			FloatBuffer src = ((FloatBuffer) uniform.data).duplicate();
+			src.rewind();
+			FloatBuffer floatData = BufferUtils.createFloatBuffer(src.limit());
+			floatData.put(src).rewind();
+			this.data = floatData;
+		} else {
+			this.data = uniform.data;
+		}
+	}
+	
 	/**
 	 * Constructs an Uniform from a list of matrices. 
 	 * @param name the uniform name
@@ -152,7 +152,7 @@ public class Unit implements Serializable {
 	 */
 	public void setTexture(Texture texture) {
 		if (this.texture != texture) {
-			Texture oldTexture = texture;
+			Texture oldTexture = this.texture;
 			this.texture = texture;
 			for (State stateOwner : owners) {
 				for (Shape shapeOwner : stateOwner.owners) {
@@ -33,12 +33,15 @@
 package trb.jsg;
 
 import java.io.IOException;
+import java.io.OptionalDataException;
 import java.io.Serializable;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
 import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
 import javax.vecmath.Color4f;
 
 import javax.vecmath.Point3f;
@@ -47,6 +50,7 @@ import org.lwjgl.BufferUtils;
 import org.lwjgl.opengl.GL11;
 
 import trb.jsg.peers.VertexDataPeer;
+import trb.jsg.util.BoundsUtils;
 import trb.jsg.util.ObjectArray;
 import trb.jsg.util.Vec3;
 
@@ -99,13 +103,47 @@ public class VertexData implements Serializable {
 	public FloatBuffer colors;
     /** Used if colors is null */
     public Color4f defaultColor = new Color4f(1, 1, 1, 1);
-	public final ObjectArray<TexCoordData> texCoords = new ObjectArray<TexCoordData>();
-	public final ObjectArray<AttributeData> attributes = new ObjectArray<AttributeData>();
-	public IntBuffer indices;
+	/** Not final so readObject() can create them */
+	public ObjectArray<TexCoordData> texCoords = new ObjectArray<TexCoordData>();
+	public ObjectArray<AttributeData> attributes = new ObjectArray<AttributeData>();
+	/** A ByteBuffer, ShortBuffer or IntBuffer of unsigned indices. Use 
+	 * getIndex() to read a index independent of the width. */
+	public Buffer indices;
 	
-//	transient private BoundingBox boundingBox;
+	/** The interleaved layout or null if the float streams are drawn */
+	public VertexFormat format;
+	
+	/** The vertices packed using format. Is repacked by changed(). */
+	public ByteBuffer interleaved;
+	
+	/** Clusters of the indices that are culled individually, or null */
+	public Meshlets meshlets;
+	
+	/** The bounding box of the coordinates. Also used to update the bounds 
+	 * incrementally. */
+	transient private BoundingBox boundingBox;
 	transient private BoundingSphere boundingSphere;
 	
+	/** The index of the vertex that defines the lower x, y, z and upper x, y,
+	 * z of the bounding box */
+	transient private int[] extremeVertices;
+	
+	/** The vertices referenced by the indices when the bounds were 
+	 * calculated, so updateBounds() skips the same vertices. Null if there
+	 * is no indices. */
+	transient private boolean[] referencedVertices;
+	
+	/** The bounds must be calculated before they are used */
+	transient private boolean boundsDirty = true;
+	
+	/** The range of vertices changed since the bounds were calculated. Only
+	 * used if boundsDirty is false. */
+	transient private int dirtyFirstVertex = Integer.MAX_VALUE;
+	transient private int dirtyEndVertex = 0;
+	
+	/** The bounds are set by the user and never calculated */
+	transient private boolean fixedBounds = false;
+	
 	transient public VertexDataPeer nativePeer;
 
     public VertexData() {
@@ -161,24 +199,165 @@ public class VertexData implements Serializable {
 			}
 		}
 
-        if (indices != null) {
-            if (this.indices == null || this.indices.capacity() < indices.length) {
-                this.indices = BufferUtils.createIntBuffer(indices.length);
-            }
-            this.indices.rewind();
-            this.indices.put(indices).flip();
-        } else {
-            this.indices = null;
-        }
+        setIndices(indices);
 
         changed();
 	}
 
+	/**
+	 * Sets the indices using the narrowest index type that can hold the 
+	 * largest index. Bytes are never selected automatically since 8 bit 
+	 * indices are emulated by many drivers, so 16 bit is the narrowest. The
+	 * current buffer is reused if it has the same width and is large enough.
+	 * The meshlets are ranges of the old indices and are removed. Does not 
+	 * call changed(), but the bounds are calculated again.
+	 * @param indices the indices or null
+	 */
+	public void setIndices(int[] indices) {
+		meshlets = null;
+		boundsDirty = true;
+		if (indices == null) {
+			this.indices = null;
+			return;
+		}
+		int maxIndex = 0;
+		for (int i=0; i<indices.length; i++) {
+			maxIndex = Math.max(maxIndex, indices[i]);
+		}
+		if (maxIndex <= 0xffff) {
+			ShortBuffer shorts = (this.indices instanceof ShortBuffer) ? (ShortBuffer) this.indices : null;
+			if (shorts == null || shorts.capacity() < indices.length) {
+				shorts = BufferUtils.createShortBuffer(indices.length);
+			}
+			shorts.clear();
+			for (int i=0; i<indices.length; i++) {
+				shorts.put(i, (short) indices[i]);
+			}
+			shorts.limit(indices.length);
+			this.indices = shorts;
+		} else {
+			IntBuffer ints = (this.indices instanceof IntBuffer) ? (IntBuffer) this.indices : null;
+			if (ints == null || ints.capacity() < indices.length) {
+				ints = BufferUtils.createIntBuffer(indices.length);
+			}
+			ints.clear();
+			ints.put(indices).flip();
+			this.indices = ints;
+		}
+	}
+
+	/**
+	 * Gets the number of indices.
+	 * @return the limit of indices or 0 if there is no indices
+	 */
+	public int getIndexCount() {
+		return indices != null ? indices.limit() : 0;
+	}
+
+	/**
+	 * Gets a index independent of the width of the index buffer.
+	 * @param i the absolute position in the index buffer
+	 * @return the unsigned index
+	 */
+	public int getIndex(int i) {
+		if (indices instanceof ShortBuffer) {
+			return ((ShortBuffer) indices).get(i) & 0xffff;
+		} else if (indices instanceof IntBuffer) {
+			return ((IntBuffer) indices).get(i);
+		} else if (indices instanceof ByteBuffer) {
+			return ((ByteBuffer) indices).get(i) & 0xff;
+		}
+		throw new RuntimeException("Unsupported index buffer " + indices);
+	}
+
+	/**
+	 * Gets the OpenGL type of the indices.
+	 * @return GL_UNSIGNED_BYTE, GL_UNSIGNED_SHORT or GL_UNSIGNED_INT
+	 */
+	public int getIndexType() {
+		if (indices instanceof ShortBuffer) {
+			return GL11.GL_UNSIGNED_SHORT;
+		} else if (indices instanceof ByteBuffer) {
+			return GL11.GL_UNSIGNED_BYTE;
+		}
+		return GL11.GL_UNSIGNED_INT;
+	}
+
     public void changed() {
+        if (format != null) {
+            interleaved = format.pack(this, interleaved);
+        }
         if (nativePeer != null) {
             nativePeer.vertexDataChanged();
         }
-        calculateBounds();
+        boundsDirty = true;
+    }
+
+    /**
+     * Notifies the peer that a range of vertices has changed. Only the range
+     * is repacked and uploaded. When the bounds are next used they are grown
+     * to include the changed vertices, and only recalculated from all 
+     * vertices if a vertex that defined the bounding box moved inwards. The
+     * number of vertices and the indices must be unchanged, use changed() 
+     * otherwise.
+     * @param firstVertex the first changed vertex
+     * @param count the number of changed vertices
+     */
+    public void changed(int firstVertex, int count) {
+        if (format != null) {
+            if (interleaved == null || interleaved.limit() != (coordinates.limit() / 3) * format.getStride()) {
+                changed();
+                return;
+            }
+            format.pack(this, interleaved, firstVertex, count);
+        }
+        if (nativePeer != null) {
+            nativePeer.vertexDataChanged(firstVertex, count);
+        }
+        dirtyFirstVertex = Math.min(dirtyFirstVertex, firstVertex);
+        dirtyEndVertex = Math.max(dirtyEndVertex, firstVertex + count);
+    }
+
+    /**
+     * Sets the interleaved format used to draw this vertex data. The float 
+     * streams are packed into the interleaved buffer and are kept until 
+     * releaseStreams() is called.
+     * @param format the format or null to draw the float streams
+     */
+    public void setFormat(VertexFormat format) {
+        this.format = format;
+        if (format == null) {
+            interleaved = null;
+        }
+        changed();
+    }
+
+    /**
+     * Releases the float normals, colors, texture coordinates and attributes
+     * that are stored in the interleaved buffer. The coordinates are kept 
+     * for the bounds. Changes to the released data must be made directly in
+     * the interleaved buffer.
+     */
+    public void releaseStreams() {
+        if (format == null) {
+            return;
+        }
+        if (format.getElement(VertexFormat.Usage.NORMALS, 0) != null) {
+            normals = null;
+        }
+        if (format.getElement(VertexFormat.Usage.COLORS, 0) != null) {
+            colors = null;
+        }
+        for (int i=0; i<texCoords.length(); i++) {
+            if (format.getElement(VertexFormat.Usage.TEX_COORDS, i) != null) {
+                texCoords.set(null, i);
+            }
+        }
+        for (int i=0; i<attributes.length(); i++) {
+            if (format.getElement(VertexFormat.Usage.ATTRIBUTE, i) != null) {
+                attributes.set(null, i);
+            }
+        }
     }
 	
 	public void setCoordinates(FloatBuffer coordinates) {
@@ -203,38 +382,215 @@ public class VertexData implements Serializable {
 	 * @return the bounding sphere
 	 */
 	public BoundingSphere getBoundingSphere() {
+		validateBounds();
 		return boundingSphere;
 	}
 	
 	/**
-	 * Calculates a bounding sphere and bounding box from the vertices.
+	 * Gets the axis aligned bounding box of the coordinates. The returned box
+	 * is owned by this object and is updated in place when the bounds are 
+	 * recalculated.
+	 * @return the bounding box
+	 */
+	public BoundingBox getBoundingBox() {
+		validateBounds();
+		return boundingBox;
+	}
+	
+	/**
+	 * Sets conservative bounds that are used instead of calculated bounds, 
+	 * for example the bounds of the bind pose plus a margin for an animated 
+	 * mesh. Fixed bounds are never recalculated, so changing the vertices 
+	 * costs nothing extra.
+	 * @param box the bounding box or null to calculate the bounds again
+	 * @param sphere the bounding sphere or null to calculate the bounds again
+	 */
+	public void setFixedBounds(BoundingBox box, BoundingSphere sphere) {
+		if (box == null || sphere == null) {
+			fixedBounds = false;
+			boundsDirty = true;
+			return;
+		}
+		fixedBounds = true;
+		boundsDirty = false;
+		boundingBox = new BoundingBox(box.lower, box.upper);
+		boundingSphere = new BoundingSphere(new Point3f(sphere.getCenter()), sphere.getRadius());
+		extremeVertices = null;
+	}
+	
+	/**
+	 * Checks if the bounds was set by setFixedBounds().
+	 * @return true if the bounds are fixed
+	 */
+	public boolean hasFixedBounds() {
+		return fixedBounds;
+	}
+	
+	/**
+	 * Calculates the bounds if the vertices changed since they were last
+	 * used.
+	 */
+	private void validateBounds() {
+		if (fixedBounds || coordinates == null) {
+			return;
+		}
+		if (boundsDirty || boundingSphere == null || boundingBox == null) {
+			calculateBounds();
+		} else if (dirtyFirstVertex < dirtyEndVertex) {
+			updateBounds(dirtyFirstVertex, dirtyEndVertex - dirtyFirstVertex);
+		}
+		boundsDirty = false;
+		dirtyFirstVertex = Integer.MAX_VALUE;
+		dirtyEndVertex = 0;
+	}
+	
+	/**
+	 * Calculates a bounding sphere and bounding box from the vertices that 
+	 * are referenced by the indices. The coordinates are copied to a float 
+	 * array and the box is found in a single pass. The sphere is Ritter's 
+	 * sphere seeded from the box extremes that are furthest apart. Does 
+	 * nothing if the bounds are fixed.
 	 */
 	public void calculateBounds() {
-		Point3f lower = new Point3f(Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE);
-		Point3f upper = new Point3f(Float.MIN_VALUE, Float.MIN_VALUE, Float.MIN_VALUE);
-		for (int vertexOff=0; vertexOff<coordinates.limit(); vertexOff+=3) {
-			lower.x = Math.min(lower.x, coordinates.get(vertexOff+0));
-			lower.y = Math.min(lower.y, coordinates.get(vertexOff+1));
-			lower.z = Math.min(lower.z, coordinates.get(vertexOff+2));
-			upper.x = Math.max(upper.x, coordinates.get(vertexOff+0));
-			upper.y = Math.max(upper.y, coordinates.get(vertexOff+1));
-			upper.z = Math.max(upper.z, coordinates.get(vertexOff+2));
+		if (fixedBounds) {
+			return;
+		}
+		int vertexCnt = coordinates.limit() / 3;
+		referencedVertices = findReferencedVertices(vertexCnt);
+		setBounds(BoundsUtils.computeBounds(copyCoordinates(vertexCnt), vertexCnt, referencedVertices));
+	}
+
+	/**
+	 * Same as calculateBounds() but large meshes are split between the 
+	 * threads of the executor.
+	 * @param executor the executor that runs the tasks
+	 */
+	public void calculateBounds(ExecutorService executor) {
+		if (fixedBounds) {
+			return;
+		}
+		int vertexCnt = coordinates.limit() / 3;
+		int taskCnt = Runtime.getRuntime().availableProcessors();
+		referencedVertices = findReferencedVertices(vertexCnt);
+		setBounds(BoundsUtils.computeBounds(copyCoordinates(vertexCnt), vertexCnt
+				, referencedVertices, executor, taskCnt));
+	}
+
+	/**
+	 * Copies the coordinates to a temporary float array for the bulk bounds
+	 * computation. The array is not kept, so the mesh is only stored once
+	 * in client memory.
+	 * @param vertexCnt the number of vertices
+	 * @return the coordinates
+	 */
+	private float[] copyCoordinates(int vertexCnt) {
+		float[] coordinateArray = new float[vertexCnt * 3];
+		int oldPosition = coordinates.position();
+		coordinates.position(0);
+		coordinates.get(coordinateArray, 0, vertexCnt * 3);
+		coordinates.position(oldPosition);
+		return coordinateArray;
+	}
+
+	/**
+	 * Marks the vertices that are referenced by the indices.
+	 * @param vertexCnt the number of vertices
+	 * @return the marks or null if there is no indices
+	 */
+	private boolean[] findReferencedVertices(int vertexCnt) {
+		if (indices == null) {
+			return null;
+		}
+		boolean[] referencedVertices = new boolean[vertexCnt];
+		int indexCnt = getIndexCount();
+		for (int i=0; i<indexCnt; i++) {
+			referencedVertices[getIndex(i)] = true;
+		}
+		return referencedVertices;
+	}
+
+	/**
+	 * Stores the computed bounds. Empty bounds gives a empty box and sphere 
+	 * at the origin.
+	 */
+	private void setBounds(BoundsUtils.Bounds bounds) {
+		float[] box = bounds.box;
+		float[] sphere = bounds.sphere;
+		if (bounds.isEmpty()) {
+			box = new float[6];
+		}
+		if (boundingBox == null) {
+			boundingBox = new BoundingBox();
+		}
+		boundingBox.setLower(box[0], box[1], box[2]);
+		boundingBox.setUpper(box[3], box[4], box[5]);
+		extremeVertices = bounds.extremes;
+		boundingSphere = new BoundingSphere(new Point3f(sphere[0], sphere[1], sphere[2]), sphere[3]);
+		boundsDirty = false;
+		dirtyFirstVertex = Integer.MAX_VALUE;
+		dirtyEndVertex = 0;
+	}
+
+	/**
+	 * Grows the bounding box to include a vertex.
+	 */
+	private void includeInBox(Point3f lower, Point3f upper, int[] extremes, int vertexIdx) {
+		float x = coordinates.get(vertexIdx*3+0);
+		float y = coordinates.get(vertexIdx*3+1);
+		float z = coordinates.get(vertexIdx*3+2);
+		if (x < lower.x) { lower.x = x; extremes[0] = vertexIdx; }
+		if (y < lower.y) { lower.y = y; extremes[1] = vertexIdx; }
+		if (z < lower.z) { lower.z = z; extremes[2] = vertexIdx; }
+		if (x > upper.x) { upper.x = x; extremes[3] = vertexIdx; }
+		if (y > upper.y) { upper.y = y; extremes[4] = vertexIdx; }
+		if (z > upper.z) { upper.z = z; extremes[5] = vertexIdx; }
+	}
+
+	/**
+	 * Updates the bounds after a range of vertices has changed. Falls back
+	 * to calculateBounds() if one of the vertices that defined the bounding
+	 * box is in the range and no longer reaches the old extreme. Vertices
+	 * that are not referenced by the indices are skipped, like in 
+	 * calculateBounds().
+	 * @param firstVertex the first changed vertex
+	 * @param count the number of changed vertices
+	 */
+	private void updateBounds(int firstVertex, int count) {
+		if (boundingSphere == null || extremeVertices == null || extremeVertices[0] < 0) {
+			calculateBounds();
+			return;
+		}
+		int endVertex = firstVertex + count;
+		for (int axis=0; axis<6; axis++) {
+			int vertexIdx = extremeVertices[axis];
+			if (vertexIdx >= firstVertex && vertexIdx < endVertex) {
+				float value = coordinates.get(vertexIdx*3 + (axis % 3));
+				float bound = axis < 3 ? get(boundingBox.lower, axis) : get(boundingBox.upper, axis - 3);
+				if (axis < 3 ? value > bound : value < bound) {
+					calculateBounds();
+					return;
+				}
+			}
 		}
 		
-//		boundingBox = new BoundingBox(new Point3d(lower), new Point3d(upper));
-
-		Point3f center = new Point3f();
-        center.interpolate(lower, upper, 0.5f);
-		boundingSphere = new BoundingSphere(center, 0.0000001f);
-		Point3f currentP3d = new Point3f();
-		for (int vertexOff=0; vertexOff<coordinates.limit(); vertexOff+=3) {
-			currentP3d.set(coordinates.get(vertexOff+0)
-					, coordinates.get(vertexOff+1)
-					, coordinates.get(vertexOff+2));
-			boundingSphere.combine(currentP3d);
+		Point3f p = new Point3f();
+		for (int vertexIdx=firstVertex; vertexIdx<endVertex; vertexIdx++) {
+			if (referencedVertices != null && !referencedVertices[vertexIdx]) {
+				continue;
+			}
+			includeInBox(boundingBox.lower, boundingBox.upper, extremeVertices, vertexIdx);
+			p.set(coordinates.get(vertexIdx*3), coordinates.get(vertexIdx*3+1), coordinates.get(vertexIdx*3+2));
+			boundingSphere.combine(p);
 		}
 	}
 
+	/**
+	 * Gets the x, y or z component of a tuple.
+	 */
+	private static float get(Point3f p, int axis) {
+		return axis == 0 ? p.x : (axis == 1 ? p.y : p.z);
+	}
+
     public Vec3 getCoordinate(int index, Vec3 out) {
         if (out == null) {
             out = new Vec3();
@@ -262,7 +618,7 @@ public class VertexData implements Serializable {
 		}
 		out.writeBoolean(indices != null);
 		if (indices != null) {
-			out.writeObject(toArray(indices));
+			out.writeObject(toArray(indices.duplicate()));
 		}
 		out.writeInt(texCoords.length());
 		for (int i=0; i<texCoords.length(); i++) {
@@ -285,11 +641,25 @@ public class VertexData implements Serializable {
 			}
 		}
 		
-		out.writeBoolean(boundingSphere != null);
-		if (boundingSphere != null) {
-			out.writeObject(boundingSphere.getCenter());
-			out.writeFloat(boundingSphere.getRadius());
+		BoundingSphere sphere = getBoundingSphere();
+		out.writeBoolean(sphere != null);
+		if (sphere != null) {
+			out.writeObject(sphere.getCenter());
+			out.writeFloat(sphere.getRadius());
+		}
+		
+		out.writeObject(format);
+		if (format != null) {
+			out.writeObject(toArray(interleaved.duplicate()));
 		}
+		
+		out.writeBoolean(fixedBounds);
+		if (fixedBounds) {
+			out.writeObject(boundingBox.lower);
+			out.writeObject(boundingBox.upper);
+		}
+		
+		out.writeObject(meshlets);
 	}
 	
 	public static Object toArray(Buffer buffer) {
@@ -303,6 +673,11 @@ public class VertexData implements Serializable {
 			int[] ints = new int[intBuffer.limit()-intBuffer.position()];
 			intBuffer.get(ints);
 			return ints;
+		} else if (buffer instanceof ShortBuffer) {
+			ShortBuffer shortBuffer = (ShortBuffer) buffer;
+			short[] shorts = new short[shortBuffer.limit()-shortBuffer.position()];
+			shortBuffer.get(shorts);
+			return shorts;
 		} else if (buffer instanceof ByteBuffer) {
 			ByteBuffer byteBuffer = (ByteBuffer) buffer;
 			byte[] bytes = new byte[byteBuffer.limit()-byteBuffer.position()];
@@ -339,11 +714,22 @@ public class VertexData implements Serializable {
 		}
 		boolean hasIndices = in.readBoolean();
 		if (hasIndices) {
-			int[] array = (int[]) in.readObject();
-			indices = BufferUtils.createIntBuffer(array.length);
-			indices.put(array).rewind();
+			Object array = in.readObject();
+			if (array instanceof short[]) {
+				short[] shorts = (short[]) array;
+				indices = BufferUtils.createShortBuffer(shorts.length).put(shorts).rewind();
+			} else if (array instanceof byte[]) {
+				byte[] bytes = (byte[]) array;
+				indices = BufferUtils.createByteBuffer(bytes.length).put(bytes).rewind();
+			} else {
+				int[] ints = (int[]) array;
+				indices = BufferUtils.createIntBuffer(ints.length).put(ints).rewind();
+			}
 		}
-		texCoords.clear();
+		// field initializers are not run for deserialized objects
+		mode = Mode.TRIANGLES;
+		defaultColor = new Color4f(1, 1, 1, 1);
+		texCoords = new ObjectArray<TexCoordData>();
 		int texCoordCnt = in.readInt();
 		for (int i=0; i<texCoordCnt; i++) {
 			boolean hasData = in.readBoolean();
@@ -356,7 +742,7 @@ public class VertexData implements Serializable {
 				texCoords.set(texData, i);
 			}
 		}		
-		attributes.clear();
+		attributes = new ObjectArray<AttributeData>();
 		int attributeCnt = in.readInt();
 		for (int i=0; i<attributeCnt; i++) {
 			boolean hasData = in.readBoolean();
@@ -375,6 +761,34 @@ public class VertexData implements Serializable {
 			float radius = in.readFloat();
 			boundingSphere = new BoundingSphere(center, radius);
 		}
+		
+		dirtyFirstVertex = Integer.MAX_VALUE;
+		boundsDirty = true;
+		try {
+			format = (VertexFormat) in.readObject();
+		} catch (OptionalDataException e) {
+			if (!e.eof) {
+				throw e;
+			}
+			// written before the interleaved format, fixed bounds and 
+			// meshlets was added
+			format = null;
+			meshlets = null;
+			return;
+		}
+		if (format != null) {
+			byte[] array = (byte[]) in.readObject();
+			interleaved = BufferUtils.createByteBuffer(array.length);
+			interleaved.put(array).rewind();
+		}
+		
+		fixedBounds = in.readBoolean();
+		if (fixedBounds) {
+			boundingBox = new BoundingBox((Point3f) in.readObject(), (Point3f) in.readObject());
+		}
+		boundsDirty = !fixedBounds;
+		
+		meshlets = (Meshlets) in.readObject();
 	}
 	
 	
@@ -0,0 +1,503 @@
+/*
+ * Copyright (c) 2008-2012 Java Scene Graph
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Java Scene Graph' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package trb.jsg;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL33;
+
+/**
+ * Describes an interleaved vertex layout with typed components. A VertexData
+ * with a format is packed into one ByteBuffer with a stride of getStride() 
+ * bytes, and is drawn with one set of pointers per format. Elements are 
+ * added in the order they should appear in the vertex. Example:
+ * <pre>
+ * VertexFormat format = new VertexFormat()
+ *         .addCoordinates(Type.FLOAT)
+ *         .addNormals(Type.INT_2_10_10_10_REV)
+ *         .addColors(Type.UNSIGNED_BYTE)
+ *         .addTexCoords(0, 2, Type.HALF_FLOAT);
+ * </pre>
+ * 
+ * @author tombr
+ */
+public class VertexFormat implements Serializable {
+
+	private static final long serialVersionUID = 0L;
+
+	/**
+	 * The data type of a component.
+	 */
+	public enum Type {
+		FLOAT(GL11.GL_FLOAT, 4),
+		HALF_FLOAT(GL30.GL_HALF_FLOAT, 2),
+		BYTE(GL11.GL_BYTE, 1),
+		UNSIGNED_BYTE(GL11.GL_UNSIGNED_BYTE, 1),
+		SHORT(GL11.GL_SHORT, 2),
+		UNSIGNED_SHORT(GL11.GL_UNSIGNED_SHORT, 2),
+		/** Four signed components packed in one int. Size must be 4. */
+		INT_2_10_10_10_REV(GL33.GL_INT_2_10_10_10_REV, 1);
+
+		int type;
+		int bytes;
+
+		Type(int type, int bytes) {
+			this.type = type;
+			this.bytes = bytes;
+		}
+
+		/**
+		 * Gets the OpenGL enum.
+		 * @return the OpenGL type enum
+		 */
+		public int get() {
+			return type;
+		}
+		
+		/**
+		 * Gets the number of bytes of size components.
+		 * @param size the number of components
+		 * @return the number of bytes
+		 */
+		public int getBytes(int size) {
+			return this == INT_2_10_10_10_REV ? 4 : bytes * size;
+		}
+	}
+
+	/**
+	 * What a element is used for.
+	 */
+	public enum Usage {
+		COORDINATES, NORMALS, COLORS, TEX_COORDS, ATTRIBUTE
+	}
+
+	/**
+	 * One element in the vertex.
+	 */
+	public static class Element implements Serializable {
+		
+		private static final long serialVersionUID = 0L;
+		
+		/** What the element is used for */
+		public final Usage usage;
+		
+		/** The texture unit or the attribute index */
+		public final int index;
+		
+		/** The number of components */
+		public final int size;
+		
+		/** The component type */
+		public final Type type;
+		
+		/** True if fixed-point values are normalized to [-1,1] or [0,1] */
+		public final boolean normalized;
+		
+		/** The byte offset from the start of the vertex */
+		public final int offset;
+
+		Element(Usage usage, int index, int size, Type type, boolean normalized, int offset) {
+			this.usage = usage;
+			this.index = index;
+			this.size = size;
+			this.type = type;
+			this.normalized = normalized;
+			this.offset = offset;
+		}
+	}
+
+	/** The elements in vertex order */
+	private ArrayList<Element> elements = new ArrayList<Element>();
+
+	/** The number of bytes between two vertices */
+	private int stride = 0;
+
+	/**
+	 * Adds the coordinates. Uses 3 components. Type must be FLOAT or 
+	 * HALF_FLOAT. Coordinate pointers can not be normalized, so fixed-point
+	 * types would snap the coordinates to whole units.
+	 * @param type the component type
+	 * @return this
+	 */
+	public VertexFormat addCoordinates(Type type) {
+		if (type != Type.FLOAT && type != Type.HALF_FLOAT) {
+			throw new RuntimeException("Coordinates does not support " + type);
+		}
+		return add(Usage.COORDINATES, 0, 3, type, false);
+	}
+
+	/**
+	 * Adds the normals. Integer types are normalized. Type can not be 
+	 * UNSIGNED_BYTE or UNSIGNED_SHORT.
+	 * @param type the component type
+	 * @return this
+	 */
+	public VertexFormat addNormals(Type type) {
+		if (type == Type.UNSIGNED_BYTE || type == Type.UNSIGNED_SHORT) {
+			throw new RuntimeException("Normals does not support " + type);
+		}
+		return add(Usage.NORMALS, 0, type == Type.INT_2_10_10_10_REV ? 4 : 3, type, true);
+	}
+
+	/**
+	 * Adds the colors. Integer types are normalized. Uses 4 components so
+	 * UNSIGNED_BYTE colors fit in one int. The alpha is taken from 
+	 * VertexData.defaultColor.
+	 * @param type the component type
+	 * @return this
+	 */
+	public VertexFormat addColors(Type type) {
+		if (type == Type.INT_2_10_10_10_REV) {
+			throw new RuntimeException("Colors does not support " + type);
+		}
+		return add(Usage.COLORS, 0, 4, type, true);
+	}
+
+	/**
+	 * Adds the texture coordinates of a texture unit. Type must be FLOAT or
+	 * HALF_FLOAT. Texture coordinate pointers can not be normalized, so 
+	 * fixed-point types would round the coordinates to 0 or 1.
+	 * @param unit the texture unit
+	 * @param size the number of components, 1 to 4
+	 * @param type the component type
+	 * @return this
+	 */
+	public VertexFormat addTexCoords(int unit, int size, Type type) {
+		if (type != Type.FLOAT && type != Type.HALF_FLOAT) {
+			throw new RuntimeException("Texture coordinates does not support " + type);
+		}
+		return add(Usage.TEX_COORDS, unit, size, type, false);
+	}
+
+	/**
+	 * Adds a generic vertex attribute.
+	 * @param attribIdx the index into VertexData.attributes
+	 * @param size the number of components, 1 to 4
+	 * @param type the component type
+	 * @param normalized true to normalize fixed-point values
+	 * @return this
+	 */
+	public VertexFormat addAttribute(int attribIdx, int size, Type type, boolean normalized) {
+		return add(Usage.ATTRIBUTE, attribIdx, size, type, normalized);
+	}
+
+	/**
+	 * Adds a element. Elements are aligned to 4 bytes.
+	 */
+	private VertexFormat add(Usage usage, int index, int size, Type type, boolean normalized) {
+		if (size < 1 || size > 4 || (type == Type.INT_2_10_10_10_REV && size != 4)) {
+			throw new RuntimeException("Illegal size " + size + " for " + type);
+		}
+		if (getElement(usage, index) != null) {
+			throw new RuntimeException(usage + " " + index + " is already added");
+		}
+		elements.add(new Element(usage, index, size, type, normalized, stride));
+		stride += (type.getBytes(size) + 3) & ~3;
+		return this;
+	}
+
+	/**
+	 * Gets the element with the specified usage.
+	 * @param usage what the element is used for
+	 * @param index the texture unit or attribute index
+	 * @return the element or null if not in the format
+	 */
+	public Element getElement(Usage usage, int index) {
+		for (int i=0; i<elements.size(); i++) {
+			Element element = elements.get(i);
+			if (element.usage == usage && element.index == index) {
+				return element;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the number of elements.
+	 * @return the number of elements
+	 */
+	public int getElementCount() {
+		return elements.size();
+	}
+
+	/**
+	 * Gets a element.
+	 * @param idx zero based index in vertex order
+	 * @return the element
+	 */
+	public Element getElement(int idx) {
+		return elements.get(idx);
+	}
+
+	/**
+	 * Gets the number of bytes between two vertices.
+	 * @return the stride
+	 */
+	public int getStride() {
+		return stride;
+	}
+
+	/**
+	 * Packs the float streams of the vertex data into a interleaved buffer.
+	 * Elements with no float stream in the vertex data is left untouched, so
+	 * a buffer where the streams has been released can be repacked after the
+	 * coordinates changed.
+	 * @param vertexData the vertex data to pack
+	 * @param buffer the buffer to pack into or null. A new buffer is created
+	 *               if it is too small, in which case released streams are 
+	 *               left as zeros.
+	 * @return the buffer
+	 */
+	public ByteBuffer pack(VertexData vertexData, ByteBuffer buffer) {
+		if (getElement(Usage.COORDINATES, 0) == null) {
+			throw new RuntimeException("The format has no coordinates");
+		}
+		int vertexCnt = vertexData.coordinates.limit() / 3;
+		int byteCnt = vertexCnt * stride;
+		if (buffer == null || buffer.capacity() < byteCnt) {
+			buffer = BufferUtils.createByteBuffer(byteCnt);
+		}
+		buffer.clear().limit(byteCnt);
+		pack(vertexData, buffer, 0, vertexCnt);
+		
+		return buffer;
+	}
+
+	/**
+	 * Packs a range of vertices into a buffer that already holds all the 
+	 * vertices.
+	 * @param vertexData the vertex data to pack
+	 * @param buffer the buffer to pack into
+	 * @param firstVertex the first vertex to pack
+	 * @param count the number of vertices to pack
+	 */
+	public void pack(VertexData vertexData, ByteBuffer buffer, int firstVertex, int count) {
+		for (int elementIdx=0; elementIdx<elements.size(); elementIdx++) {
+			Element element = elements.get(elementIdx);
+			FloatBuffer src = null;
+			int srcSize = 3;
+			float w = 1;
+			switch (element.usage) {
+			case COORDINATES:
+				src = vertexData.coordinates;
+				break;
+			case NORMALS:
+				src = vertexData.normals;
+				w = 0;
+				break;
+			case COLORS:
+				src = vertexData.colors;
+				w = vertexData.defaultColor.w;
+				break;
+			case TEX_COORDS:
+				VertexData.TexCoordData texCoord = vertexData.texCoords.get(element.index);
+				if (texCoord != null) {
+					src = texCoord.data;
+					srcSize = texCoord.size;
+				}
+				break;
+			case ATTRIBUTE:
+				VertexData.AttributeData attribute = vertexData.attributes.get(element.index);
+				if (attribute != null) {
+					src = attribute.data;
+					srcSize = attribute.size;
+				}
+				break;
+			}
+			if (src == null) {
+				continue;
+			}
+
+			float[] values = new float[4];
+			for (int vertexIdx=firstVertex; vertexIdx<firstVertex+count; vertexIdx++) {
+				int srcOff = vertexIdx * srcSize;
+				for (int c=0; c<4; c++) {
+					values[c] = c < srcSize ? src.get(srcOff + c) : (c == 3 ? w : 0);
+				}
+				put(buffer, vertexIdx * stride + element.offset, element, values);
+			}
+		}
+	}
+
+	/**
+	 * Writes the components of one element.
+	 */
+	private static void put(ByteBuffer buffer, int off, Element element, float[] values) {
+		if (element.type == Type.INT_2_10_10_10_REV) {
+			int x = toFixed(values[0], 511, -512, 511);
+			int y = toFixed(values[1], 511, -512, 511);
+			int z = toFixed(values[2], 511, -512, 511);
+			int w = toFixed(values[3], 1, -2, 1);
+			buffer.putInt(off, (x & 0x3ff) | ((y & 0x3ff) << 10) | ((z & 0x3ff) << 20) | ((w & 0x3) << 30));
+			return;
+		}
+		
+		boolean normalized = element.normalized;
+		for (int c=0; c<element.size; c++) {
+			float v = values[c];
+			switch (element.type) {
+			case FLOAT:
+				buffer.putFloat(off + c * 4, v);
+				break;
+			case HALF_FLOAT:
+				buffer.putShort(off + c * 2, toHalfFloat(v));
+				break;
+			case BYTE:
+				buffer.put(off + c, (byte) (normalized ? toFixed(v, 127, -127, 127) : toFixed(v, 1, -128, 127)));
+				break;
+			case UNSIGNED_BYTE:
+				buffer.put(off + c, (byte) (normalized ? toFixed(v, 255, 0, 255) : toFixed(v, 1, 0, 255)));
+				break;
+			case SHORT:
+				buffer.putShort(off + c * 2, (short) (normalized ? toFixed(v, 32767, -32767, 32767) : toFixed(v, 1, -32768, 32767)));
+				break;
+			case UNSIGNED_SHORT:
+				buffer.putShort(off + c * 2, (short) (normalized ? toFixed(v, 65535, 0, 65535) : toFixed(v, 1, 0, 65535)));
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Reads the components of one element of a packed vertex, the inverse 
+	 * of the packing. Fixed-point values are only as exact as the type.
+	 * @param buffer the interleaved buffer
+	 * @param off the byte offset of the element
+	 * @param element the element
+	 * @param values receives the size components of the element
+	 */
+	public static void unpack(ByteBuffer buffer, int off, Element element, float[] values) {
+		if (element.type == Type.INT_2_10_10_10_REV) {
+			int bits = buffer.getInt(off);
+			values[0] = Math.max(-1, ((bits << 22) >> 22) / 511f);
+			values[1] = Math.max(-1, ((bits << 12) >> 22) / 511f);
+			values[2] = Math.max(-1, ((bits << 2) >> 22) / 511f);
+			values[3] = bits >> 30;
+			return;
+		}
+		
+		boolean normalized = element.normalized;
+		for (int c=0; c<element.size; c++) {
+			switch (element.type) {
+			case FLOAT:
+				values[c] = buffer.getFloat(off + c * 4);
+				break;
+			case HALF_FLOAT:
+				values[c] = fromHalfFloat(buffer.getShort(off + c * 2));
+				break;
+			case BYTE:
+				int b = buffer.get(off + c);
+				values[c] = normalized ? Math.max(-1, b / 127f) : b;
+				break;
+			case UNSIGNED_BYTE:
+				int ub = buffer.get(off + c) & 0xff;
+				values[c] = normalized ? ub / 255f : ub;
+				break;
+			case SHORT:
+				int s = buffer.getShort(off + c * 2);
+				values[c] = normalized ? Math.max(-1, s / 32767f) : s;
+				break;
+			case UNSIGNED_SHORT:
+				int us = buffer.getShort(off + c * 2) & 0xffff;
+				values[c] = normalized ? us / 65535f : us;
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Scales, rounds and clamps a value to a fixed-point integer.
+	 */
+	private static int toFixed(float v, float scale, int min, int max) {
+		return Math.max(min, Math.min(max, Math.round(v * scale)));
+	}
+
+	/**
+	 * Converts a float to the bits of a IEEE 754 half-float. Rounds to 
+	 * nearest and handles denormals, infinity and NaN. Finite values that 
+	 * are too large are clamped to +-65504.
+	 * @param f the float to convert
+	 * @return the half-float bits
+	 */
+	public static short toHalfFloat(float f) {
+		int bits = Float.floatToIntBits(f);
+		int sign = (bits >>> 16) & 0x8000;
+		int abs = bits & 0x7fffffff;
+		if (abs >= 0x7f800000) {
+			if (abs == 0x7f800000) {
+				return (short) (sign | 0x7c00); // infinity
+			}
+			return (short) (sign | 0x7e00 | ((bits & 0x007fffff) >>> 13)); // NaN
+		}
+		int value = abs + 0x1000; // round
+		if (value >= 0x47800000) {
+			return (short) (sign | 0x7bff); // max value
+		}
+		if (value >= 0x38800000) {
+			return (short) (sign | ((value - 0x38000000) >>> 13)); // normal
+		}
+		if (value < 0x33000000) {
+			return (short) sign; // zero
+		}
+		value = (bits & 0x7fffffff) >>> 23;
+		return (short) (sign | ((((bits & 0x7fffff) | 0x800000) 
+				+ (0x800000 >>> (value - 102))) >>> (126 - value))); // denormal
+	}
+
+	/**
+	 * Converts the bits of a IEEE 754 half-float to a float. Exact for all 
+	 * values, including denormals, infinity and NaN.
+	 * @param half the half-float bits
+	 * @return the float
+	 */
+	public static float fromHalfFloat(short half) {
+		int bits = half & 0xffff;
+		int sign = (bits & 0x8000) << 16;
+		int exponent = (bits >>> 10) & 0x1f;
+		int mantissa = bits & 0x3ff;
+		if (exponent == 0) {
+			float value = mantissa * (1f / (1 << 24)); // zero or denormal
+			return sign != 0 ? -value : value;
+		}
+		if (exponent == 0x1f) {
+			return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13)); // infinity or NaN
+		}
+		return Float.intBitsToFloat(sign | ((exponent + 112) << 23) | (mantissa << 13));
+	}
+}
@@ -34,8 +34,11 @@ package trb.jsg;
 
 import java.io.Serializable;
 import javax.vecmath.Matrix4f;
+import javax.vecmath.Point3d;
 import javax.vecmath.Point3f;
+import javax.vecmath.Tuple3d;
 import javax.vecmath.Tuple3f;
+import javax.vecmath.Vector3d;
 
 import trb.jsg.util.Mat4;
 
@@ -60,6 +63,11 @@ public class View implements Serializable {
 	// defines the viewing volume
 	private Mat4 projectionMatrix = new Mat4();
 	
+	// the y scale of the projection and if it is perspective, used to
+	// calculate the screen size of a sphere
+	private float projectionScaleY = 1;
+	private boolean perspective = false;
+	
 	// the location of the view
 	private Mat4 cameraMatrix = new Mat4();
 	private Mat4 cameraMatrixInverted = new Mat4();
@@ -73,9 +81,26 @@ public class View implements Serializable {
 	// The planes in world space.
 	private Plane[] worldPlanes = new Plane[6];
 	
+	/** 
+	 * The world space position that is used as origin when rendering. Is set
+	 * to the camera position by updateWorldPlanes(). Model view matrices and
+	 * culling is computed relative to this point in double precision, so 
+	 * large world coordinates never pass through a float.
+	 */
+	private Point3d renderOrigin = new Point3d();
+	
+	// The planes in world space relative to the render origin.
+	private Plane[] relativePlanes = new Plane[6];
+	
+	// The camera matrix relative to the render origin.
+	private Mat4 relativeCameraMatrix = new Mat4();
+	private Mat4 relativeCameraMatrixInverted = new Mat4();
+	
 	// temp vars
 	private Point3f lower = new Point3f();
 	private Point3f upper = new Point3f();
+	private Point3f relativeCenter = new Point3f();
+	private Vector3d translation = new Vector3d();
 	
 	/**
 	 * Default constructor.
@@ -83,6 +108,7 @@ public class View implements Serializable {
 	public View() {
 		for (int i=0; i<worldPlanes.length; i++) {
 			worldPlanes[i] = new Plane();
+			relativePlanes[i] = new Plane();
 		}
 	}
 
@@ -92,10 +118,16 @@ public class View implements Serializable {
         cameraMatrixInverted.set(view.cameraMatrixInverted);
         near = view.near;
         far = view.far;
+        projectionScaleY = view.projectionScaleY;
+        perspective = view.perspective;
         for (int i=0; i<6; i++) {
             planes[i] = new Plane(view.planes[i].P, view.planes[i].N);
             worldPlanes[i] = new Plane(view.worldPlanes[i].P, view.worldPlanes[i].N);
+            relativePlanes[i] = new Plane(view.relativePlanes[i].P, view.relativePlanes[i].N);
         }
+        renderOrigin.set(view.renderOrigin);
+        relativeCameraMatrix.set(view.relativeCameraMatrix);
+        relativeCameraMatrixInverted.set(view.relativeCameraMatrixInverted);
     }
 
 	/**
@@ -141,6 +173,8 @@ public class View implements Serializable {
 		p.m32 = -1;
 		p.m33 = 0;
 		projectionMatrix = new Mat4(p);
+		projectionScaleY = Math.abs(p.m11);
+		perspective = true;
 		
 		// create the planes of the camera
 		Tuple3f origo = new Point3f();
@@ -189,6 +223,8 @@ public class View implements Serializable {
 		p.m32 = 0;
 		p.m33 = 1;
 		projectionMatrix = new Mat4(p);
+		projectionScaleY = Math.abs(p.m11);
+		perspective = false;
 		
 		// create the planes of the camera
 		planes[0] = new Plane(new Point3f(0,0,-n), new Point3f(0,0,-1));
@@ -256,6 +292,32 @@ public class View implements Serializable {
 
 		return true;
 	}
+
+	/**
+	 * Checks if the specified world space sphere is inside the view frustum. 
+	 * The center is made relative to the render origin in double precision
+	 * before it is tested against the planes, so the test is precise also
+	 * far away from the world origin.
+	 * @param center the center of the sphere in world space
+	 * @param radius the radius of the sphere
+	 * @return false if the sphere is completely outside the frustum
+	 */
+	public boolean isInsideFrustum(Tuple3d center, float radius) {
+        if (useFrustumCulling) {
+            relativeCenter.x = (float) (center.x - renderOrigin.x);
+            relativeCenter.y = (float) (center.y - renderOrigin.y);
+            relativeCenter.z = (float) (center.z - renderOrigin.z);
+            for (int planeIdx = 0; planeIdx < relativePlanes.length; planeIdx++) {
+                Plane plane = relativePlanes[planeIdx];
+                float distance = plane.getDistance(relativeCenter);
+                if (distance < -radius) {
+                    return false;
+                }
+            }
+        }
+
+		return true;
+	}
 	
 	/**
 	 * Checks if the specified bounding box is inside the view frustum.
@@ -344,9 +406,86 @@ public class View implements Serializable {
 			cameraMatrixInverted.transform(planes[i].N, worldPlanes[i].N);
 		}
 		
+		// move the render origin to the camera position
+		cameraMatrixInverted.get(translation);
+		renderOrigin.set(translation);
+		relativeCameraMatrixInverted.set(cameraMatrixInverted);
+		relativeCameraMatrixInverted.setTranslation(new Vector3d());
+		relativeCameraMatrix.invert(relativeCameraMatrixInverted);
+		for (int i=0; i<planes.length; i++) {
+			relativeCameraMatrixInverted.transform(planes[i].P, relativePlanes[i].P);
+			relativeCameraMatrixInverted.transform(planes[i].N, relativePlanes[i].N);
+		}
+		
 		return worldPlanes;
 	}
 	
+	/**
+	 * Checks if the projection is perspective.
+	 * @return true if perspective, false if ortho
+	 */
+	public boolean isPerspective() {
+		return perspective;
+	}
+	
+	/**
+	 * Calculates the projected diameter of a world space sphere divided by 
+	 * the height of the viewport. Uses the distance from the render origin, 
+	 * so updateWorldPlanes() must be called first.
+	 * @param center the world space center
+	 * @param radius the radius
+	 * @return the screen size, Float.MAX_VALUE if the camera is inside
+	 */
+	public float getScreenSize(Tuple3d center, float radius) {
+		if (!perspective) {
+			return radius * projectionScaleY;
+		}
+		double dx = center.x - renderOrigin.x;
+		double dy = center.y - renderOrigin.y;
+		double dz = center.z - renderOrigin.z;
+		double distance = Math.sqrt(dx * dx + dy * dy + dz * dz);
+		if (distance <= radius) {
+			return Float.MAX_VALUE;
+		}
+		return (float) (radius * projectionScaleY / distance);
+	}
+	
+	/**
+	 * Gets the world space position that model view matrices and culling is
+	 * relative to. Use updateWorldPlanes() to first update the origin.
+	 * @return the render origin
+	 */
+	public Point3d getRenderOrigin() {
+		return renderOrigin;
+	}
+	
+	/**
+	 * Gets the camera matrix of a world that is translated so the render
+	 * origin is at (0, 0, 0). Use updateWorldPlanes() to first update the 
+	 * matrix.
+	 * @return the relative camera matrix
+	 */
+	public Mat4 getRelativeCameraMatrix() {
+		return relativeCameraMatrix;
+	}
+	
+	/**
+	 * Calculates the model view matrix of a model matrix relative to the 
+	 * render origin. The translation is rebased in double precision before
+	 * the matrices are multiplied.
+	 * @param modelMatrix the local to world matrix
+	 * @param modelViewMatrix set to the local to view matrix
+	 * @return modelViewMatrix
+	 */
+	public Mat4 getRelativeModelViewMatrix(Mat4 modelMatrix, Mat4 modelViewMatrix) {
+		modelMatrix.get(translation);
+		translation.sub(renderOrigin);
+		modelViewMatrix.set(modelMatrix);
+		modelViewMatrix.setTranslation(translation);
+		modelViewMatrix.mul(relativeCameraMatrix, modelViewMatrix);
+		return modelViewMatrix;
+	}
+	
 	/**
 	 * Gets the local space view frustum planes.
 	 * @return the planes
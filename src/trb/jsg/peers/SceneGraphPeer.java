@@ -50,4 +50,15 @@ public interface SceneGraphPeer {
 	 * Implements ScenenGraphListener.
 	 */
 	public void passRemoved(RenderPass renderPass);
+
+	/**
+	 * The outermost transaction was started. Changes should be deferred.
+	 */
+	public void transactionBegin();
+
+	/**
+	 * The outermost transaction was committed. Deferred changes should be
+	 * applied.
+	 */
+	public void transactionCommit();
 }
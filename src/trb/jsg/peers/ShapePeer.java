@@ -71,6 +71,14 @@ public interface ShapePeer {
 	 */
 	public void vertexDataChanged(VertexData oldVertexData, VertexData newVertexData);
 
+	/**
+	 * Called when the levels of a LODShape is changed. Level 0 is reported
+	 * by vertexDataChanged().
+	 * @param oldLevels the old levels or null
+	 * @param newLevels the new levels or null
+	 */
+	public void levelsChanged(VertexData[] oldLevels, VertexData[] newLevels);
+
 	/**
 	 * Called when the any other state is changed.
 	 */
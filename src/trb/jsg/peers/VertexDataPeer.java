@@ -35,4 +35,12 @@ package trb.jsg.peers;
 public interface VertexDataPeer {
 
 	public void vertexDataChanged();
+	
+	/**
+	 * Called when a range of vertices has changed. The number of vertices
+	 * and the indices are unchanged.
+	 * @param firstVertex the first changed vertex
+	 * @param count the number of changed vertices
+	 */
+	public void vertexDataChanged(int firstVertex, int count);
 }
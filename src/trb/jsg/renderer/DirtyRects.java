@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2008-2012 Java Scene Graph
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Java Scene Graph' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package trb.jsg.renderer;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A small set of rectangles that covers the changed parts of an image. 
+ * Added rectangles are clipped to the image and merged with the rectangles
+ * they overlap or touch when the union wastes little area. When there is 
+ * more than MAX_RECTS rectangles, the pair with the least wasted union is 
+ * merged. When the rectangles cover FULL_COVERAGE of the image the set is 
+ * marked as full and the whole image should be updated.
+ * 
+ * @author tombr
+ */
+class DirtyRects {
+	
+	/** The maximum number of rectangles kept */
+	public static final int MAX_RECTS = 16;
+	
+	/** The part of the image covered before the whole image is updated */
+	public static final float FULL_COVERAGE = 0.5f;
+	
+	/** Unions that waste fewer pixels than this is always merged */
+	public static final int MIN_MERGE_WASTE = 256;
+	
+	/** The rectangles. Can overlap where merging would waste too much. */
+	private final ArrayList<Rectangle> rects = new ArrayList<Rectangle>();
+	
+	/** The image size */
+	private int width;
+	private int height;
+	
+	/** Set when the whole image is dirty */
+	private boolean full = false;
+	
+	/**
+	 * Adds a changed rectangle.
+	 * @param rect the rectangle in image coordinates
+	 * @param width the width of the image
+	 * @param height the height of the image
+	 */
+	public void add(Rectangle rect, int width, int height) {
+		if (width != this.width || height != this.height) {
+			this.width = width;
+			this.height = height;
+			if (!rects.isEmpty()) {
+				full = true;
+				rects.clear();
+			}
+		}
+		if (full) {
+			return;
+		}
+		Rectangle r = rect.intersection(new Rectangle(0, 0, width, height));
+		if (r.isEmpty()) {
+			return;
+		}
+		
+		// merge with the existing rectangles until nothing more is merged
+		boolean merged = true;
+		while (merged) {
+			merged = false;
+			for (int i=0; i<rects.size(); i++) {
+				Rectangle other = rects.get(i);
+				if (other.contains(r)) {
+					return;
+				}
+				if (shouldMerge(r, other)) {
+					r = r.union(other);
+					rects.remove(i);
+					merged = true;
+					break;
+				}
+			}
+		}
+		rects.add(r);
+		
+		while (rects.size() > MAX_RECTS) {
+			mergeCheapestPair();
+		}
+		
+		if (getCoveredArea() >= FULL_COVERAGE * width * height) {
+			full = true;
+			rects.clear();
+		}
+	}
+	
+	/**
+	 * Marks the whole image as dirty.
+	 */
+	public void setFull() {
+		full = true;
+		rects.clear();
+	}
+	
+	/**
+	 * Checks if the whole image is dirty.
+	 */
+	public boolean isFull() {
+		return full;
+	}
+	
+	/**
+	 * Removes all rectangles and the full flag.
+	 */
+	public void clear() {
+		full = false;
+		rects.clear();
+	}
+	
+	/**
+	 * Gets the number of rectangles. Is 0 when full.
+	 */
+	public int size() {
+		return rects.size();
+	}
+	
+	/**
+	 * Gets a rectangle.
+	 * @param idx the rectangle index
+	 * @return the rectangle
+	 */
+	public Rectangle get(int idx) {
+		return rects.get(idx);
+	}
+	
+	/**
+	 * Checks if two rectangles should be merged. Rectangles is merged when 
+	 * they overlap or touch and their union is not much larger than their
+	 * combined area.
+	 */
+	private static boolean shouldMerge(Rectangle a, Rectangle b) {
+		if (a.x > b.x + b.width || b.x > a.x + a.width 
+				|| a.y > b.y + b.height || b.y > a.y + a.height) {
+			return false;
+		}
+		long waste = getWaste(a, b);
+		return waste <= Math.max(MIN_MERGE_WASTE, (area(a) + area(b)) / 4);
+	}
+	
+	/**
+	 * Gets the area of the union that is not covered by a or b.
+	 */
+	private static long getWaste(Rectangle a, Rectangle b) {
+		Rectangle intersection = a.intersection(b);
+		long overlap = intersection.isEmpty() ? 0 : area(intersection);
+		return area(a.union(b)) - area(a) - area(b) + overlap;
+	}
+	
+	private void mergeCheapestPair() {
+		int bestI = 0;
+		int bestJ = 1;
+		long bestWaste = Long.MAX_VALUE;
+		for (int i=0; i<rects.size(); i++) {
+			for (int j=i+1; j<rects.size(); j++) {
+				long waste = getWaste(rects.get(i), rects.get(j));
+				if (waste < bestWaste) {
+					bestWaste = waste;
+					bestI = i;
+					bestJ = j;
+				}
+			}
+		}
+		Rectangle union = rects.get(bestI).union(rects.get(bestJ));
+		rects.remove(bestJ);
+		rects.remove(bestI);
+		
+		// the union can touch other rectangles, so add it through add()
+		add(union, width, height);
+	}
+	
+	/**
+	 * Gets the area of the union of the rectangles, so overlapping parts is
+	 * only counted once. Sums the covered height of each column between two
+	 * rectangle edges.
+	 */
+	long getCoveredArea() {
+		int n = rects.size();
+		int[] xs = new int[n * 2];
+		for (int i=0; i<n; i++) {
+			Rectangle r = rects.get(i);
+			xs[i * 2] = r.x;
+			xs[i * 2 + 1] = r.x + r.width;
+		}
+		Arrays.sort(xs);
+		int[] starts = new int[n];
+		int[] ends = new int[n];
+		long covered = 0;
+		for (int i=0; i+1<xs.length; i++) {
+			int x0 = xs[i];
+			int x1 = xs[i + 1];
+			if (x0 == x1) {
+				continue;
+			}
+			// the y intervals of the rectangles that span the column
+			int cnt = 0;
+			for (int j=0; j<n; j++) {
+				Rectangle r = rects.get(j);
+				if (r.x <= x0 && r.x + r.width >= x1) {
+					starts[cnt] = r.y;
+					ends[cnt] = r.y + r.height;
+					cnt++;
+				}
+			}
+			sortIntervals(starts, ends, cnt);
+			long height = 0;
+			int y = Integer.MIN_VALUE;
+			for (int j=0; j<cnt; j++) {
+				int y0 = Math.max(y, starts[j]);
+				if (ends[j] > y0) {
+					height += ends[j] - y0;
+					y = ends[j];
+				}
+			}
+			covered += height * (x1 - x0);
+		}
+		return covered;
+	}
+	
+	/**
+	 * Sorts the intervals on the start. Insertion sort since there is at
+	 * most MAX_RECTS + 1 intervals.
+	 */
+	private static void sortIntervals(int[] starts, int[] ends, int cnt) {
+		for (int i=1; i<cnt; i++) {
+			int start = starts[i];
+			int end = ends[i];
+			int j = i - 1;
+			while (j >= 0 && starts[j] > start) {
+				starts[j + 1] = starts[j];
+				ends[j + 1] = ends[j];
+				j--;
+			}
+			starts[j + 1] = start;
+			ends[j + 1] = end;
+		}
+	}
+	
+	private static long area(Rectangle r) {
+		return (long) r.width * r.height;
+	}
+}
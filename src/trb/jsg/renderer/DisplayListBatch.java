@@ -46,14 +46,14 @@ import org.lwjgl.BufferUtils;
  */
 class DisplayListBatch {
 	
-	private static IntBuffer lists = BufferUtils.createIntBuffer(4096);
-	private static int listElements = 0;
+	private IntBuffer lists = BufferUtils.createIntBuffer(4096);
+	private int listElements = 0;
 
 	/**
 	 * Queues the specified display list id to the batch.
 	 * @param listId the display list id
 	 */
-	public static void queueList(int listId) {
+	public void queueList(int listId) {
 		if (listElements >= lists.capacity()-1) {
 			flush();
 		}
@@ -63,7 +63,7 @@ class DisplayListBatch {
 	/**
 	 * Calls the batched display lists.
 	 */
-	public static void flush() {
+	public void flush() {
 		if (listElements > 0) {
 			lists.position(0).limit(listElements);
 			glCallLists(lists);
@@ -58,66 +58,67 @@ import trb.jsg.util.Mat4;
 
 /**
  * Wraps the OpenGL state. A diff can be used to only apply the state that has 
- * changed.
+ * changed. There is one GLState per OpenGL context, owned by the 
+ * RenderContext.
  * 
  * @author tombr
  *
  */
 class GLState {
 
-	public static Shape prevShape = null;
-	public static int currentProgram = 0;
-	public static int activeTexture = GL_TEXTURE0;
+	public Shape prevShape = null;
+	public int currentProgram = 0;
+	public int activeTexture = GL_TEXTURE0;
 	
 	// culling state
-	public static boolean cullEnabled = false;
-	public static Face cullFace = Face.BACK;
-	public static FrontFace frontFace = FrontFace.CCW;
-	public static boolean depthTestEnabled = true;
-	public static DepthFunc depthFunc = DepthFunc.LESS;
-	public static boolean depthWriteEnabled = true;
+	public boolean cullEnabled = false;
+	public Face cullFace = Face.BACK;
+	public FrontFace frontFace = FrontFace.CCW;
+	public boolean depthTestEnabled = true;
+	public DepthFunc depthFunc = DepthFunc.LESS;
+	public boolean depthWriteEnabled = true;
 	
-	public static boolean blendEnabled = false;
-	public static BlendSrcFunc blendSrcFunc = BlendSrcFunc.ONE;
-	public static BlendDstFunc blendDstFunc = BlendDstFunc.ZERO;
+	public boolean blendEnabled = false;
+	public BlendSrcFunc blendSrcFunc = BlendSrcFunc.ONE;
+	public BlendDstFunc blendDstFunc = BlendDstFunc.ZERO;
 	
-	public static long clientState = 0;
-	public static long textureUnitEnable = 0;
+	public long clientState = 0;
+	public long textureUnitEnable = 0;
 	
-	public static Mat4 modelWorldMatrix = new Mat4();
+	public Mat4 modelWorldMatrix = new Mat4();
 	
-	public static TextureUnitState[] glUnits;
+	public TextureUnitState[] glUnits;
 	
-	private static boolean stencilTestEnabled = false;
-    private static StencilFuncParams stencilFuncFront = State.DEFAULT_STENCIL_FUNC;
-    private static StencilOpParams stencilOpFront = State.DEFAULT_STENCIL_OP;
-    private static int stencilMaskFront = 0xff;
-
-    private static StencilFuncParams stencilFuncBack = State.DEFAULT_STENCIL_FUNC;
-    private static StencilOpParams stencilOpBack = State.DEFAULT_STENCIL_OP;
-    private static int stencilMaskBack = 0xff;
+	private boolean stencilTestEnabled = false;
+    private StencilFuncParams stencilFuncFront = State.DEFAULT_STENCIL_FUNC;
+    private StencilOpParams stencilOpFront = State.DEFAULT_STENCIL_OP;
+    private int stencilMaskFront = 0xff;
+
+    private StencilFuncParams stencilFuncBack = State.DEFAULT_STENCIL_FUNC;
+    private StencilOpParams stencilOpBack = State.DEFAULT_STENCIL_OP;
+    private int stencilMaskBack = 0xff;
 	
-	private static boolean alphaTestEnabled = false;
-	private static AlphaTestFunc alphaTestFunc = AlphaTestFunc.ALWAYS;
-	private static float alphaTestRef = 0;
+	private boolean alphaTestEnabled = false;
+	private AlphaTestFunc alphaTestFunc = AlphaTestFunc.ALWAYS;
+	private float alphaTestRef = 0;
 	
-	private static boolean polygonOffsetFillEnabled = false;
-	private static float polygonOffsetFactor = 0;
-	private static float polygonOffsetUnits = 0;
+	private boolean polygonOffsetFillEnabled = false;
+	private float polygonOffsetFactor = 0;
+	private float polygonOffsetUnits = 0;
 
-    private static PolygonMode polygonMode = PolygonMode.FILL;
-    private static float lineWidth = 1f;
-    private static boolean lineSmooth = false;
+    private PolygonMode polygonMode = PolygonMode.FILL;
+    private float lineWidth = 1f;
+    private boolean lineSmooth = false;
 	
 	private static final State.Material DEFAULT_MATERIAL = new State.Material();
-	private static boolean isMaterialSet = false;
-	private static State.Material material = new State.Material();
-	private static FloatBuffer colorBuffer = BufferUtils.createFloatBuffer(4);
+	private boolean isMaterialSet = false;
+	private State.Material material = new State.Material();
+	private FloatBuffer colorBuffer = BufferUtils.createFloatBuffer(4);
 
-	private static boolean[] lightEnabled;
+	private boolean[] lightEnabled;
 	
 	
-	public static void init() {
+	public void init() {
 		if (glUnits == null) {
 			modelWorldMatrix.setIdentity();
 
@@ -139,16 +140,17 @@ class GLState {
 	}
 
 	/**
-	 * Static class.
+	 * Constructs a GLState with the OpenGL default values. init() must be 
+	 * called with the OpenGL context current before it is used.
 	 */
-	private GLState() {
+	GLState() {
 	}
 	
 	/**
 	 * Apply the light state.
 	 * @param lightState the light state to apply
 	 */
-	public static void applyLights(LightState lightState) {
+	public void applyLights(LightState lightState) {
 		for (int i=0; i<lightEnabled.length; i++) {
 			if (lightEnabled[i] != (lightState.lights.get(i) != null)) {
 				lightEnabled[i] = (lightState.lights.get(i) != null);
@@ -179,7 +181,7 @@ class GLState {
 	 * @param z the third parameter
 	 * @param w the fourth parameter
 	 */
-	private static void setLightProperty(int lightIdx, int pname, float x, float y, float z, float w) {
+	private void setLightProperty(int lightIdx, int pname, float x, float y, float z, float w) {
 		colorBuffer.put(0, x);
 		colorBuffer.put(1, y);
 		colorBuffer.put(2, z);
@@ -193,7 +195,7 @@ class GLState {
 	 * @param shape the shape to test
 	 * @return true if shape is equal to the previously applied shape
 	 */
-	public static boolean isEqual(Shape shape) {
+	public boolean isEqual(Shape shape) {
 		if (!RetainedSceneGraph.SAFE_MODE && (prevShape != null) 
 				&& (prevShape.getState().getHash() == shape.getState().getHash())) {
 			return true;
@@ -206,9 +208,9 @@ class GLState {
 	 * Applies the shapes state. All state are set even if the do not change.
 	 * @param shape contains the state to set
 	 */
-	public static void apply(Shape shape) {
+	public void apply(Shape shape) {
 		State state = shape.getState();
-		currentProgram = (state.getShader() == null) ? 0 : ((RetainedShader) state.getShader().getShaderProgram().nativePeer).programId;
+		currentProgram = (state.getShader() == null) ? 0 : ((RetainedShader) state.getShader().getShaderProgram().nativePeer).getProgramId();
 		blendEnabled = state.isBlendEnabled();
 		blendSrcFunc = state.getBlendSrcFunc();
 		blendDstFunc = state.getBlendDstFunc();
@@ -290,7 +292,7 @@ class GLState {
 	/**
 	 * Sets the all the opengl states to match this class.
 	 */
-	private static void apply() {
+	private void apply() {
 		Util.checkGLError();
 		glUseProgram(currentProgram);
 		
@@ -372,7 +374,7 @@ class GLState {
 	 * @param pname name of the material property
 	 * @param color the color to set
 	 */
-	private static void setMaterialColor(int pname, Color3f color) {
+	private void setMaterialColor(int pname, Color3f color) {
 		colorBuffer.put(0, color.x);
 		colorBuffer.put(1, color.y);
 		colorBuffer.put(2, color.z);
@@ -385,7 +387,7 @@ class GLState {
 	 * @param pname name of the material property
 	 * @param color the color to set
 	 */
-	private static void setMaterialColor(int pname, Color4f color) {
+	private void setMaterialColor(int pname, Color4f color) {
 		colorBuffer.put(0, color.x);
 		colorBuffer.put(1, color.y);
 		colorBuffer.put(2, color.z);
@@ -398,7 +400,7 @@ class GLState {
 	 * @param flag the OpenGL id of the state (Example: GL_DEPTH_TEST, GL_ALPHA_TEST) 
 	 * @param value true to enable, false to disable
 	 */
-	private static void setEnable(int flag, boolean value) {
+	private void setEnable(int flag, boolean value) {
 		if (value) {
 			glEnable(flag);
 		} else {
@@ -410,7 +412,7 @@ class GLState {
 	 * Applies the shapes state by only setting the state that has changed. 
 	 * @param shape contains the shape to set
 	 */
-	public static void applyDif(Shape shape) {
+	public void applyDif(Shape shape) {
 		if (RetainedSceneGraph.SAFE_MODE) {
 			prevShape = shape;
 			apply(shape);
@@ -422,7 +424,7 @@ class GLState {
 		// shader program
         int shapeShaderId = 0;
         if (state.getShader() != null) {
-            shapeShaderId = ((RetainedShader) state.getShader().getShaderProgram().nativePeer).programId;
+            shapeShaderId = ((RetainedShader) state.getShader().getShaderProgram().nativePeer).getProgramId();
         }
         if (currentProgram != shapeShaderId) {
             currentProgram = shapeShaderId;
@@ -590,7 +592,7 @@ class GLState {
 		Util.checkGLError();
 	}
 
-    public static void applyDepthMaskDif(boolean b) {
+    public void applyDepthMaskDif(boolean b) {
         if (depthWriteEnabled != b) {
             depthWriteEnabled = b;
             glDepthMask(depthWriteEnabled);
@@ -608,7 +610,7 @@ class GLState {
 	 * @param shapeUnit the shape unit state to set
 	 * @param unitIdx the index of the unit
 	 */
-	private static void applyTextureUnitDif(TextureUnitState glUnit, Unit shapeUnit, int unitIdx) {
+	private void applyTextureUnitDif(TextureUnitState glUnit, Unit shapeUnit, int unitIdx) {
 		if (shapeUnit.isEnabled()) {
 			if (!glUnit.enabled) {
 				glActiveTextureWrapper(GL_TEXTURE0 + unitIdx);
@@ -746,15 +748,15 @@ class GLState {
 	 * Applies the shapes shader uniforms.
 	 * @param shape the shape containing the uniforms to set
 	 */
-	public static void applyUniforms(Shape shape) {
+	public void applyUniforms(Shape shape) {
 		Shader shader = shape.getState().getShader();
 		RetainedShader simpleShaderProgramPeer = (RetainedShader) shader.getShaderProgram().nativePeer;
 		if (currentProgram != 0 && shader != null && 
-			(simpleShaderProgramPeer.currentUniformSet != shader
-			|| shader.changeFrameIdx > simpleShaderProgramPeer.currentUniformSetFrameIdx)) {
-			// upload uniforms
-			simpleShaderProgramPeer.currentUniformSet = shader;
-			simpleShaderProgramPeer.currentUniformSetFrameIdx = Renderer.frameIdx;
+			(simpleShaderProgramPeer.program.currentUniformSet != shader
+			|| shader.changeCnt != simpleShaderProgramPeer.program.currentUniformSetChangeCnt)) {
+			// upload uniforms, the program may be shared with other shaders
+			simpleShaderProgramPeer.program.currentUniformSet = shader;
+			simpleShaderProgramPeer.program.currentUniformSetChangeCnt = shader.changeCnt;
 			Uniform[] uniforms = shader.getAllUniforms();
 			for (Uniform uniform : uniforms) {
 				simpleShaderProgramPeer.setUniform(uniform);
@@ -766,7 +768,7 @@ class GLState {
 	 * Lazy sets glActiveTexture to the texture unit with the specified id.
 	 * @param id the id of the texture unit to set
 	 */
-	public static void glActiveTextureWrapper(int id) {
+	public void glActiveTextureWrapper(int id) {
 		if (id != activeTexture) {
 			activeTexture = id;
 			glActiveTexture(id);
@@ -778,7 +780,7 @@ class GLState {
 	 * @param target the target (Example: GL_TEXTURE_2D)
 	 * @param id the texture id to bind
 	 */
-	public static void glBindTextureWrapper(int target, int id) {
+	public void glBindTextureWrapper(int target, int id) {
 		int unitIdx = activeTexture - GL_TEXTURE0;
 		TextureUnitState unit = glUnits[unitIdx];
 		if (unit.enabled && unit.enabledType != target) {
@@ -794,7 +796,7 @@ class GLState {
 	/**
 	 * Checks if the cached state matches the opengl state.
 	 */
-	public static void validateState() {
+	public void validateState() {
 		// TODO: check lights and material
 		Util.checkGLError(); 
 		checkInt(GL_CURRENT_PROGRAM, currentProgram, "GL_CURRENT_PROGRAM");
@@ -890,7 +892,7 @@ class GLState {
 	 * @param value the cached state
 	 * @param name name of capability. Is printed if state don't match.
 	 */
-	private static void checkEnabled(int cap, boolean value, String name) {
+	private void checkEnabled(int cap, boolean value, String name) {
 		if (glIsEnabled(cap) != value) {
 			System.out.println("GLState incorrectly cached "+name+" cached "+value+" correct "+!value);
 		}		
@@ -902,7 +904,7 @@ class GLState {
 	 * @param value the cached state
 	 * @param name name of capability. Is printed if state don't match.
 	 */
-	private static int checkInt(int cap, int value, String name) {
+	private int checkInt(int cap, int value, String name) {
 		int actual = GLUtils.getInteger(cap);
 		if (value != actual) {
 			System.out.println("GLState incorrectly cached "+name+" cached "+value+" correct "+actual);
@@ -917,7 +919,7 @@ class GLState {
 	 * @param value the cached state
 	 * @param name name of capability. Is printed if state don't match.
 	 */
-	private static float checkFloat(int cap, float value, String name) {
+	private float checkFloat(int cap, float value, String name) {
 		float actual = GLUtils.getFloat(cap);
 		if (value != actual) {
 			System.out.println("GLState incorrectly cached "+name+" cached "+value+" correct "+actual);
@@ -932,7 +934,7 @@ class GLState {
 	 * @param value the cached state
 	 * @param name name of capability. Is printed if state don't match.
 	 */
-	private static int checkTexEnv(int cap, int value, String name) {
+	private int checkTexEnv(int cap, int value, String name) {
 		int actual = GLUtils.getTexEnv(cap);
 		if (value != actual) {
 			System.out.println("GLState incorrectly cached "+name+" cached "+value+" correct "+actual);
@@ -942,7 +944,7 @@ class GLState {
 	}
 //
 //	
-//	private static int checkTexParameter(int id, int val, String name) {
+//	private int checkTexParameter(int id, int val, String name) {
 //		int actual = GLTools.getTexParameteri(GL11.GL_TEXTURE_2D, id);
 //		if (val != actual) {
 //			//System.out.println(name+" incorrectly cached actual:"+actual+" was:"+val);
@@ -954,7 +956,7 @@ class GLState {
 //	}
 //
 //	
-//	private static float checkTexParameter(int id, float val, String name) {
+//	private float checkTexParameter(int id, float val, String name) {
 //		float actual = GLTools.getTexParameterf(GL11.GL_TEXTURE_2D, id);
 //		if (val != actual) {
 //			System.out.println(name+" incorrectly cached actual:"+actual+" was:"+val);
@@ -34,7 +34,7 @@ package trb.jsg.renderer;
 
 interface NativeResource {
 
-	public void updateNativeResource();
+	public void updateNativeResource(RenderContext context);
 	
-	public void destroyNativeResource();
+	public void destroyNativeResource(RenderContext context);
 }
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2008-2012 Java Scene Graph
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Java Scene Graph' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package trb.jsg.renderer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.lwjgl.opengl.ContextCapabilities;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL21;
+import org.lwjgl.opengl.GLContext;
+
+/**
+ * The staging slots of an UploadScheduler backed by one pixel unpack buffer
+ * object per slot. A slot is orphaned with glBufferData before it is mapped
+ * so the driver never has to wait for an earlier copy from the same buffer.
+ * 
+ * @author tombr
+ */
+class PixelBufferRing implements UploadScheduler.Staging {
+	
+	/**
+	 * An upload that is copied from a bound pixel unpack buffer.
+	 */
+	static abstract class PixelUpload extends UploadScheduler.Upload {
+		
+		/**
+		 * Issues the copy from offset 0 of the bound pixel unpack buffer.
+		 * @param context the render context
+		 */
+		public abstract void copy(RenderContext context);
+	}
+	
+	/** Shared by all renderers, fills the slots */
+	private static ExecutorService sharedExecutor;
+	
+	/** Passes the fills to the shared executor, which is created by the 
+	 * first fill so renderers that never stream do not start the threads */
+	public static final Executor LAZY_SHARED_EXECUTOR = new Executor() {
+		public void execute(Runnable command) {
+			getSharedExecutor().execute(command);
+		}
+	};
+	
+	/** The render context that owns the buffers */
+	private final RenderContext context;
+	
+	/** The size of each buffer in bytes */
+	private final int slotSize;
+	
+	/** The buffer object ids, created on first use */
+	private final int[] bufferIds;
+	
+	/** The last mapping of each buffer, passed to glMapBuffer to be reused */
+	private final ByteBuffer[] mappings;
+	
+	/**
+	 * Constructs a PixelBufferRing.
+	 * @param context the render context that owns the buffers
+	 * @param slotCnt the number of buffers
+	 * @param slotSize the size of each buffer in bytes
+	 */
+	public PixelBufferRing(RenderContext context, int slotCnt, int slotSize) {
+		this.context = context;
+		this.slotSize = slotSize;
+		bufferIds = new int[slotCnt];
+		mappings = new ByteBuffer[slotCnt];
+	}
+	
+	/**
+	 * Checks if pixel buffer objects is supported by the current context.
+	 */
+	public static boolean isSupported() {
+		ContextCapabilities caps = GLContext.getCapabilities();
+		return caps.OpenGL21 || caps.GL_ARB_pixel_buffer_object;
+	}
+	
+	/**
+	 * Gets the executor shared by all renderers to fill the slots. Uses two
+	 * daemon threads.
+	 */
+	public static synchronized ExecutorService getSharedExecutor() {
+		if (sharedExecutor == null) {
+			sharedExecutor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "jsg-upload");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return sharedExecutor;
+	}
+
+	/**
+	 * Implements UploadScheduler.Staging.
+	 */
+	public ByteBuffer map(int slot) {
+		if (bufferIds[slot] == 0) {
+			bufferIds[slot] = GL15.glGenBuffers();
+		}
+		GL15.glBindBuffer(GL21.GL_PIXEL_UNPACK_BUFFER, bufferIds[slot]);
+		GL15.glBufferData(GL21.GL_PIXEL_UNPACK_BUFFER, slotSize, GL15.GL_STREAM_DRAW);
+		ByteBuffer mapping = GL15.glMapBuffer(GL21.GL_PIXEL_UNPACK_BUFFER, GL15.GL_WRITE_ONLY, slotSize, mappings[slot]);
+		GL15.glBindBuffer(GL21.GL_PIXEL_UNPACK_BUFFER, 0);
+		if (mapping == null) {
+			throw new RuntimeException("Failed to map pixel buffer "+bufferIds[slot]);
+		}
+		mappings[slot] = mapping;
+		mapping.clear();
+		return mapping;
+	}
+
+	/**
+	 * Implements UploadScheduler.Staging.
+	 */
+	public void unmap(int slot) {
+		GL15.glBindBuffer(GL21.GL_PIXEL_UNPACK_BUFFER, bufferIds[slot]);
+		GL15.glUnmapBuffer(GL21.GL_PIXEL_UNPACK_BUFFER);
+		GL15.glBindBuffer(GL21.GL_PIXEL_UNPACK_BUFFER, 0);
+	}
+
+	/**
+	 * Implements UploadScheduler.Staging.
+	 */
+	public void copy(UploadScheduler.Upload upload, int slot) {
+		GL15.glBindBuffer(GL21.GL_PIXEL_UNPACK_BUFFER, bufferIds[slot]);
+		((PixelUpload) upload).copy(context);
+		GL15.glBindBuffer(GL21.GL_PIXEL_UNPACK_BUFFER, 0);
+	}
+
+	/**
+	 * Implements UploadScheduler.Staging.
+	 */
+	public void destroy() {
+		for (int slot=0; slot<bufferIds.length; slot++) {
+			if (bufferIds[slot] != 0) {
+				GL15.glDeleteBuffers(bufferIds[slot]);
+				bufferIds[slot] = 0;
+				mappings[slot] = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,590 @@
+/*
+ * Copyright (c) 2008-2012 Java Scene Graph
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Java Scene Graph' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package trb.jsg.renderer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.ARBGetProgramBinary;
+import org.lwjgl.opengl.ContextCapabilities;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL41;
+import org.lwjgl.opengl.GLContext;
+import org.lwjgl.opengl.Util;
+
+import trb.jsg.Shader;
+import trb.jsg.ShaderProgram;
+import trb.jsg.util.SGUtil;
+
+/**
+ * The linked OpenGL programs of a renderer, shared by all ShaderPrograms 
+ * with the same vertex source, fragment source and attribute names. 
+ * <p>
+ * Programs are not compiled when they are acquired but queued, and update()
+ * starts compiling the queue within a time budget every frame. The compile 
+ * and link status is not read until the next frame, so drivers that compile
+ * on their own threads are not waited for. Shapes are not drawn until their
+ * program is ready. 
+ * <p>
+ * When a binary directory is set and the driver supports program binaries,
+ * linked programs are written to disk and later loaded without compiling.
+ * The files are keyed by the sources and the driver, so a driver update 
+ * compiles the programs again.
+ * 
+ * @author tombr
+ */
+class ProgramCache {
+	
+	public static final int MAGIC = 'J' | ('S' << 8) | ('G' << 16) | ('P' << 24);
+	public static final int VERSION = 1;
+	
+	private static final int HEADER_BYTES = 4 * 4;
+	
+	enum Status {QUEUED, LINKING, READY, FAILED};
+	
+	/** A program shared by all shaders with the same sources */
+	static class Program {
+		final String key;
+		final CharSequence vertexSource;
+		final CharSequence fragmentSource;
+		final String[] attributeNames;
+		Status status = Status.QUEUED;
+		int programId = 0;
+		int vertexId = 0;
+		int fragmentId = 0;
+		
+		/** The compile and link logs when the program failed, otherwise null */
+		String error = null;
+		
+		/** The number of RetainedShaders using the program */
+		int refCnt = 0;
+		
+		/** The shader with the uniforms that was last set on the program */
+		Shader currentUniformSet = null;
+		int currentUniformSetChangeCnt = -1;
+		
+		Program(String key, ShaderProgram shaderProgram) {
+			this.key = key;
+			this.vertexSource = shaderProgram.getVertexShader();
+			this.fragmentSource = shaderProgram.getFragmentShader();
+			this.attributeNames = shaderProgram.getAttributeNames();
+		}
+		
+		/**
+		 * Gets the program to use.
+		 * @return the OpenGL program or 0 if it is not ready or failed
+		 */
+		int getProgramId() {
+			return status == Status.READY ? programId : 0;
+		}
+		
+		/**
+		 * Checks if the program is done, successful or not.
+		 */
+		boolean isDone() {
+			return status == Status.READY || status == Status.FAILED;
+		}
+	}
+	
+	/** The programs by key */
+	private final HashMap<String, Program> programs = new HashMap<String, Program>();
+	
+	/** The programs waiting to be compiled */
+	private final ArrayDeque<Program> queue = new ArrayDeque<Program>();
+	
+	/** The programs that is compiled and linked but not checked */
+	private final ArrayList<Program> linking = new ArrayList<Program>();
+	
+	/** Programs to compile ahead of use, added from any thread */
+	private final ConcurrentLinkedQueue<ShaderProgram> prewarmQueue = new ConcurrentLinkedQueue<ShaderProgram>();
+	
+	/** The directory of the program binaries or null */
+	private File binaryDir = null;
+	
+	/** Identifies the driver in the binary keys, read on first use */
+	private String driver = null;
+	private boolean binariesSupported = false;
+	
+	/** Why the last program binary could not be written or null */
+	private IOException binaryError = null;
+	
+	/** The time update() spends starting compiles */
+	private long budgetNanos = 2 * 1000 * 1000;
+	
+	private int compiledCnt = 0;
+	private int binaryHitCnt = 0;
+	private int lastFrameCompileCnt = 0;
+	
+	private final IntBuffer intBuf = BufferUtils.createIntBuffer(1);
+	private final IntBuffer formatBuf = BufferUtils.createIntBuffer(1);
+	
+	/**
+	 * Gets the program of a ShaderProgram and increases its reference count.
+	 * The program is queued for compile if it is new.
+	 */
+	public Program acquire(ShaderProgram shaderProgram) {
+		Program program = getOrQueue(shaderProgram);
+		program.refCnt++;
+		return program;
+	}
+	
+	/**
+	 * Decreases the reference count and deletes the program when it is no 
+	 * longer used.
+	 */
+	public void release(Program program) {
+		program.refCnt--;
+		if (program.refCnt <= 0) {
+			programs.remove(program.key);
+			queue.remove(program);
+			linking.remove(program);
+			delete(program);
+		}
+	}
+	
+	/**
+	 * Queues a ShaderProgram for compile before it is used. Can be called 
+	 * from any thread. The program is kept until it has been acquired and 
+	 * released.
+	 */
+	public void prewarm(ShaderProgram shaderProgram) {
+		prewarmQueue.add(shaderProgram);
+	}
+	
+	private Program getOrQueue(ShaderProgram shaderProgram) {
+		String key = createKey(shaderProgram);
+		Program program = programs.get(key);
+		if (program == null) {
+			program = new Program(key, shaderProgram);
+			programs.put(key, program);
+			queue.add(program);
+		}
+		return program;
+	}
+	
+	/**
+	 * Checks the programs linked last frame and starts compiling queued 
+	 * programs until the time budget is used. At least one program is 
+	 * started every frame. Must be called on the render thread.
+	 */
+	public void update() {
+		lastFrameCompileCnt = 0;
+		ShaderProgram prewarmed;
+		while ((prewarmed = prewarmQueue.poll()) != null) {
+			getOrQueue(prewarmed);
+		}
+		if (queue.isEmpty() && linking.isEmpty()) {
+			return;
+		}
+		if (driver == null) {
+			initDriver();
+		}
+		long start = System.nanoTime();
+		for (int i=0; i<linking.size(); i++) {
+			finishLink(linking.get(i));
+		}
+		linking.clear();
+		while (!queue.isEmpty()) {
+			if (lastFrameCompileCnt > 0 && System.nanoTime() - start > budgetNanos) {
+				break;
+			}
+			Program program = queue.poll();
+			lastFrameCompileCnt++;
+			if (!loadBinary(program)) {
+				compileAndLink(program);
+				linking.add(program);
+			}
+		}
+		Util.checkGLError();
+	}
+	
+	/**
+	 * Compiles and links every queued program now.
+	 */
+	public void finish() {
+		long budget = budgetNanos;
+		budgetNanos = Long.MAX_VALUE;
+		update();
+		for (int i=0; i<linking.size(); i++) {
+			finishLink(linking.get(i));
+		}
+		linking.clear();
+		budgetNanos = budget;
+	}
+	
+	private void initDriver() {
+		driver = GL11.glGetString(GL11.GL_VENDOR) + " " + GL11.glGetString(GL11.GL_RENDERER) 
+				+ " " + GL11.glGetString(GL11.GL_VERSION);
+		ContextCapabilities caps = GLContext.getCapabilities();
+		if (caps.OpenGL41 || caps.GL_ARB_get_program_binary) {
+			binariesSupported = GL11.glGetInteger(GL41.GL_NUM_PROGRAM_BINARY_FORMATS) > 0;
+		}
+	}
+	
+	/**
+	 * Starts compiling and linking without reading the status.
+	 */
+	private void compileAndLink(Program program) {
+		program.programId = GL20.glCreateProgram();
+		if (program.vertexSource != null) {
+			program.vertexId = compile(GL20.GL_VERTEX_SHADER, program.vertexSource);
+			GL20.glAttachShader(program.programId, program.vertexId);
+		}
+		if (program.fragmentSource != null) {
+			program.fragmentId = compile(GL20.GL_FRAGMENT_SHADER, program.fragmentSource);
+			GL20.glAttachShader(program.programId, program.fragmentId);
+		}
+		for (int nameIdx=0; nameIdx<program.attributeNames.length; nameIdx++) {
+			if (program.attributeNames[nameIdx] != null) {
+				ByteBuffer name = SGUtil.nameToByteBuffer(program.attributeNames[nameIdx]);
+				GL20.glBindAttribLocation(program.programId, nameIdx+1, name);
+			}
+		}
+		if (isBinaryEnabled()) {
+			programParameteri(program.programId, GL41.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL11.GL_TRUE);
+		}
+		GL20.glLinkProgram(program.programId);
+		program.status = Status.LINKING;
+	}
+	
+	private static int compile(int type, CharSequence source) {
+		int id = GL20.glCreateShader(type);
+		GL20.glShaderSource(id, source);
+		GL20.glCompileShader(id);
+		return id;
+	}
+	
+	/**
+	 * Reads the link status and writes the binary. The info logs are kept 
+	 * as the error of a failed program.
+	 */
+	private void finishLink(Program program) {
+		compiledCnt++;
+		if (GL20.glGetProgram(program.programId, GL20.GL_LINK_STATUS) == GL11.GL_TRUE) {
+			program.status = Status.READY;
+			deleteShaders(program);
+			if (isBinaryEnabled()) {
+				writeBinary(program);
+			}
+			return;
+		}
+		program.status = Status.FAILED;
+		StringBuilder error = new StringBuilder();
+		appendShaderLog(error, program.vertexId, "vertex");
+		appendShaderLog(error, program.fragmentId, "fragment");
+		error.append("Failed to link program:\n");
+		error.append(GL20.glGetProgramInfoLog(program.programId
+				, Math.max(1, GL20.glGetProgram(program.programId, GL20.GL_INFO_LOG_LENGTH))));
+		program.error = error.toString();
+		delete(program);
+	}
+	
+	private static void appendShaderLog(StringBuilder error, int id, String type) {
+		if (id != 0 && GL20.glGetShader(id, GL20.GL_COMPILE_STATUS) != GL11.GL_TRUE) {
+			error.append("Failed to compile " + type + " shader:\n");
+			error.append(GL20.glGetShaderInfoLog(id, Math.max(1, GL20.glGetShader(id, GL20.GL_INFO_LOG_LENGTH))));
+			error.append('\n');
+		}
+	}
+	
+	private void deleteShaders(Program program) {
+		if (program.vertexId != 0) {
+			GL20.glDetachShader(program.programId, program.vertexId);
+			GL20.glDeleteShader(program.vertexId);
+			program.vertexId = 0;
+		}
+		if (program.fragmentId != 0) {
+			GL20.glDetachShader(program.programId, program.fragmentId);
+			GL20.glDeleteShader(program.fragmentId);
+			program.fragmentId = 0;
+		}
+	}
+	
+	private void delete(Program program) {
+		if (program.programId != 0) {
+			deleteShaders(program);
+			GL20.glDeleteProgram(program.programId);
+			program.programId = 0;
+		}
+	}
+	
+	private boolean isBinaryEnabled() {
+		return binaryDir != null && binariesSupported;
+	}
+	
+	/**
+	 * Creates the program from the binary file if there is one.
+	 * @return true if the program is ready
+	 */
+	private boolean loadBinary(Program program) {
+		if (!isBinaryEnabled()) {
+			return false;
+		}
+		File file = getBinaryFile(program);
+		if (!file.isFile()) {
+			return false;
+		}
+		try {
+			RandomAccessFile in = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = in.getChannel();
+				ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+				channel.read(header, 0);
+				header.flip();
+				if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC || header.getInt() != VERSION) {
+					throw new IOException("Not a program binary " + file);
+				}
+				int format = header.getInt();
+				int length = header.getInt();
+				ByteBuffer binary = BufferUtils.createByteBuffer(length);
+				long offset = HEADER_BYTES;
+				while (binary.hasRemaining()) {
+					int n = channel.read(binary, offset);
+					if (n < 0) {
+						throw new IOException("Program binary is truncated " + file);
+					}
+					offset += n;
+				}
+				binary.flip();
+				program.programId = GL20.glCreateProgram();
+				programBinary(program.programId, format, binary);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			file.delete();
+			return false;
+		}
+		if (GL20.glGetProgram(program.programId, GL20.GL_LINK_STATUS) != GL11.GL_TRUE) {
+			// the driver rejects binaries from other versions
+			delete(program);
+			file.delete();
+			return false;
+		}
+		program.status = Status.READY;
+		binaryHitCnt++;
+		return true;
+	}
+	
+	/**
+	 * Writes the binary of a linked program. The file is written to a 
+	 * temporary file first and renamed, so readers never see a partial file.
+	 */
+	private void writeBinary(Program program) {
+		int length = GL20.glGetProgram(program.programId, GL41.GL_PROGRAM_BINARY_LENGTH);
+		if (length <= 0) {
+			return;
+		}
+		ByteBuffer binary = BufferUtils.createByteBuffer(length);
+		intBuf.clear();
+		formatBuf.clear();
+		getProgramBinary(program.programId, intBuf, formatBuf, binary);
+		binary.limit(intBuf.get(0));
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC).putInt(VERSION).putInt(formatBuf.get(0)).putInt(binary.remaining());
+		header.flip();
+		File file = getBinaryFile(program);
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+			try {
+				FileChannel channel = out.getChannel();
+				channel.truncate(0);
+				long offset = 0;
+				while (header.hasRemaining()) {
+					offset += channel.write(header, offset);
+				}
+				while (binary.hasRemaining()) {
+					offset += channel.write(binary, offset);
+				}
+			} finally {
+				out.close();
+			}
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				tmp.delete();
+				throw new IOException("Failed to rename " + tmp + " to " + file);
+			}
+			binaryError = null;
+		} catch (IOException e) {
+			// the cache is optional, the program is still used
+			tmp.delete();
+			binaryError = e;
+		}
+	}
+	
+	private static void programBinary(int programId, int format, ByteBuffer binary) {
+		if (GLContext.getCapabilities().OpenGL41) {
+			GL41.glProgramBinary(programId, format, binary);
+		} else {
+			ARBGetProgramBinary.glProgramBinary(programId, format, binary);
+		}
+	}
+	
+	private static void getProgramBinary(int programId, IntBuffer length, IntBuffer format, ByteBuffer binary) {
+		if (GLContext.getCapabilities().OpenGL41) {
+			GL41.glGetProgramBinary(programId, length, format, binary);
+		} else {
+			ARBGetProgramBinary.glGetProgramBinary(programId, length, format, binary);
+		}
+	}
+	
+	private static void programParameteri(int programId, int name, int value) {
+		if (GLContext.getCapabilities().OpenGL41) {
+			GL41.glProgramParameteri(programId, name, value);
+		} else {
+			ARBGetProgramBinary.glProgramParameteri(programId, name, value);
+		}
+	}
+	
+	private File getBinaryFile(Program program) {
+		return new File(binaryDir, hash(driver + "\0" + program.key) + ".bin");
+	}
+	
+	/**
+	 * Creates the key of a program from its sources and attribute names.
+	 * @return a SHA-1 hash in hex
+	 */
+	static String createKey(ShaderProgram shaderProgram) {
+		StringBuilder text = new StringBuilder();
+		text.append(shaderProgram.getVertexShader()).append('\0');
+		text.append(shaderProgram.getFragmentShader()).append('\0');
+		for (String name : shaderProgram.getAttributeNames()) {
+			text.append(name).append('\0');
+		}
+		return hash(text.toString());
+	}
+	
+	private static String hash(String text) {
+		byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1").digest(text.getBytes("UTF-8"));
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+			hex.append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+	
+	/**
+	 * Sets the directory the program binaries are stored in.
+	 * @param dir the directory or null to not store binaries
+	 */
+	public void setBinaryDirectory(File dir) {
+		if (dir != null) {
+			dir.mkdirs();
+		}
+		this.binaryDir = dir;
+	}
+	
+	public File getBinaryDirectory() {
+		return binaryDir;
+	}
+	
+	/**
+	 * Sets the time update() can spend starting compiles each frame.
+	 */
+	public void setBudgetNanos(long budgetNanos) {
+		this.budgetNanos = budgetNanos;
+	}
+	
+	public long getBudgetNanos() {
+		return budgetNanos;
+	}
+	
+	/**
+	 * Gets why a program failed to compile or link.
+	 * @return the info logs, or null if the program is not known, not done 
+	 *         or linked
+	 */
+	public String getError(ShaderProgram shaderProgram) {
+		Program program = programs.get(createKey(shaderProgram));
+		return program != null ? program.error : null;
+	}
+	
+	/**
+	 * Gets why the last program binary could not be written. Cleared when a
+	 * binary is written.
+	 */
+	public IOException getBinaryError() {
+		return binaryError;
+	}
+	
+	/**
+	 * Gets the number of programs that is queued or linking.
+	 */
+	public int getPendingCount() {
+		return queue.size() + linking.size() + prewarmQueue.size();
+	}
+	
+	/**
+	 * Gets the number of programs started by the last update().
+	 */
+	public int getLastFrameCompileCount() {
+		return lastFrameCompileCnt;
+	}
+	
+	/**
+	 * Gets the total number of programs that has been compiled.
+	 */
+	public int getCompileCount() {
+		return compiledCnt;
+	}
+	
+	/**
+	 * Gets the total number of programs loaded from binaries.
+	 */
+	public int getBinaryHitCount() {
+		return binaryHitCnt;
+	}
+}
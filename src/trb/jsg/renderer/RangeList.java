@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2008-2012 Java Scene Graph
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Java Scene Graph' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package trb.jsg.renderer;
+
+/**
+ * A sorted list of non overlapping [start, end) ranges. Ranges that overlap
+ * or touch are merged when added.
+ * 
+ * @author tombr
+ */
+class RangeList {
+	
+	/** Start and end of each range packed as pairs */
+	private int[] ranges = new int[16];
+	
+	/** The number of ranges */
+	private int rangeCnt = 0;
+	
+	/**
+	 * Adds a range and merges it with the ranges it overlaps or touches.
+	 * @param start the first element in the range
+	 * @param end one past the last element in the range
+	 */
+	public void add(int start, int end) {
+		if (end <= start) {
+			return;
+		}
+		
+		// find the first range that ends at or after start
+		int first = 0;
+		while (first < rangeCnt && ranges[first*2+1] < start) {
+			first++;
+		}
+		
+		// find the ranges that is touched by the new range
+		int last = first;
+		while (last < rangeCnt && ranges[last*2] <= end) {
+			start = Math.min(start, ranges[last*2]);
+			end = Math.max(end, ranges[last*2+1]);
+			last++;
+		}
+		
+		// replace ranges first to last-1 with the merged range
+		int removed = last - first;
+		if (removed == 0) {
+			if ((rangeCnt + 1) * 2 > ranges.length) {
+				int[] newRanges = new int[ranges.length * 2];
+				System.arraycopy(ranges, 0, newRanges, 0, rangeCnt * 2);
+				ranges = newRanges;
+			}
+			System.arraycopy(ranges, first*2, ranges, first*2+2, (rangeCnt - first) * 2);
+			rangeCnt++;
+		} else if (removed > 1) {
+			System.arraycopy(ranges, last*2, ranges, first*2+2, (rangeCnt - last) * 2);
+			rangeCnt -= removed - 1;
+		}
+		ranges[first*2] = start;
+		ranges[first*2+1] = end;
+	}
+	
+	/**
+	 * Removes all ranges.
+	 */
+	public void clear() {
+		rangeCnt = 0;
+	}
+	
+	/**
+	 * Gets the number of ranges.
+	 * @return the number of ranges
+	 */
+	public int size() {
+		return rangeCnt;
+	}
+	
+	/**
+	 * Gets the start of a range.
+	 * @param idx the range index
+	 * @return the first element in the range
+	 */
+	public int getStart(int idx) {
+		return ranges[idx*2];
+	}
+	
+	/**
+	 * Gets the end of a range.
+	 * @param idx the range index
+	 * @return one past the last element in the range
+	 */
+	public int getEnd(int idx) {
+		return ranges[idx*2+1];
+	}
+	
+	/**
+	 * Gets the total number of elements covered by the ranges.
+	 * @return the sum of the length of the ranges
+	 */
+	public int getCoverage() {
+		int sum = 0;
+		for (int i=0; i<rangeCnt; i++) {
+			sum += ranges[i*2+1] - ranges[i*2];
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2008-2012 Java Scene Graph
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Java Scene Graph' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package trb.jsg.renderer;
+
+/**
+ * The state owned by a single Renderer. Replaces what used to be static 
+ * fields so that several renderers, each with its own OpenGL context, can 
+ * live in the same JVM. The context is threaded from the RetainedSceneGraph 
+ * down to the render passes, the state sort renderers and the native 
+ * resources.
+ * 
+ * @author tombr
+ */
+class RenderContext {
+
+	/** The cached OpenGL state of this renderers OpenGL context */
+	public final GLState glState = new GLState();
+
+	/** Statistics from the current frame */
+	public final RenderInfo renderInfo = new RenderInfo();
+
+	/** Display lists waiting to be called */
+	public final DisplayListBatch displayListBatch = new DisplayListBatch();
+
+	/** Tasks run on the render thread at the start of render() */
+	public final TaskScheduler taskScheduler = new TaskScheduler(4096, 4 * 1000 * 1000);
+
+	/** The current frame index */
+	public int frameIdx = 0;
+
+	/** The number of available color attachments. Is set when the 
+	 * RetainedSceneGraph is constructed. */
+	public int maxColorAttachments = -1;
+
+	/** How many draw buffers we can render to at the same time. */
+	public int maxDrawBuffers = -1;
+	
+	/** Streams texture data through a ring of pixel buffer objects */
+	public final UploadScheduler uploadScheduler = new UploadScheduler(
+			new StagingRing(8, 4 << 20, 2), new PixelBufferRing(this, 8, 4 << 20)
+			, 8 << 20, PixelBufferRing.LAZY_SHARED_EXECUTOR);
+	
+	/** Textures with at least this many bytes is streamed through the 
+	 * uploadScheduler instead of uploaded directly. */
+	public int streamingThreshold = 256 << 10;
+	
+	/** The linked programs, compiled within a frame budget */
+	public final ProgramCache programCache = new ProgramCache();
+	
+	/**
+	 * Deletes the OpenGL objects owned by the context itself. The resources
+	 * of the scene graph is deleted through the destroy list.
+	 */
+	public void destroy() {
+		uploadScheduler.destroy();
+	}
+}
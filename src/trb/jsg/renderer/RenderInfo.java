@@ -34,19 +34,28 @@ package trb.jsg.renderer;
 
 public class RenderInfo {
 
-	public static int shapesIterated = 0;
+	public int shapesIterated = 0;
 	
-	public static int visibleShapes = 0;
+	public int visibleShapes = 0;
 	
-	public static int shapesInFrustum = 0;
-	public static int shapesInFrustum2 = 0;
+	public int shapesInFrustum = 0;
+	public int shapesInFrustum2 = 0;
 	
-	public static int depthSortedShapes = 0;
-	public static int dynamicStateShapes = 0;
-	public static int staticStateShapes = 0;
-	public static int vboShapes = 0;
+	public int depthSortedShapes = 0;
+	public int dynamicStateShapes = 0;
+	public int staticStateShapes = 0;
+	public int vboShapes = 0;
 	
-	public static void clear() {
+	public int meshletsDrawn = 0;
+	public int meshletsCulled = 0;
+	
+	public int streamedBytes = 0;
+	public int streamedUploads = 0;
+	public int failedUploads = 0;
+	
+	public int compiledPrograms = 0;
+	
+	public void clear() {
 		shapesInFrustum = 0;
 		shapesInFrustum2 = 0;
 		shapesIterated = 0;
@@ -55,5 +64,11 @@ public class RenderInfo {
 		dynamicStateShapes = 0;
 		staticStateShapes = 0;
 		vboShapes = 0;
+		meshletsDrawn = 0;
+		meshletsCulled = 0;
+		streamedBytes = 0;
+		streamedUploads = 0;
+		failedUploads = 0;
+		compiledPrograms = 0;
 	}
 }
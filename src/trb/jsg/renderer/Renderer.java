@@ -32,7 +32,11 @@
 
 package trb.jsg.renderer;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import trb.jsg.*;
 
 /**
@@ -43,35 +47,315 @@ import trb.jsg.*;
  */
 public class Renderer {
 	
-	/** The current frame index */
-	public static int frameIdx = 0;
-    private static ConcurrentLinkedQueue<Runnable> runnables = new ConcurrentLinkedQueue();
-
-    public static void invokeLater(Runnable runnable) {
-        runnables.add(runnable);
-    }
+	/** The renderer that runs the tasks of the static invokeLater */
+	private static Renderer defaultRenderer = null;
+	
+	/** Tasks from the static invokeLater queued before there was a renderer */
+	private static ConcurrentLinkedQueue<Runnable> defaultTasks = new ConcurrentLinkedQueue<Runnable>();
+	
+	/** The state of this renderer. Is not shared with other renderers. */
+	private RenderContext context = new RenderContext();
 	
 	private RetainedSceneGraph retainedSceneGraph = null;
+	
+	/** Snapshots from simulation threads applied at the start of every frame */
+	private CopyOnWriteArrayList<SnapshotBuffer> snapshotBuffers = new CopyOnWriteArrayList<SnapshotBuffer>();
 
 	/**
-	 * Constructs a Renderer that will render the specified scenegraph.
+	 * Constructs a Renderer that will render the specified scenegraph. The
+	 * constructing thread is taken as the render thread until render() is 
+	 * called.
 	 * @param sceneGraph the scenegraph to render
 	 */
 	public Renderer(SceneGraph sceneGraph) {
-		retainedSceneGraph = new RetainedSceneGraph(sceneGraph);
+		retainedSceneGraph = new RetainedSceneGraph(sceneGraph, context);
+		context.taskScheduler.setRenderThread(Thread.currentThread());
+		synchronized (Renderer.class) {
+			if (defaultRenderer == null) {
+				defaultRenderer = this;
+				Runnable runnable;
+				while ((runnable = defaultTasks.poll()) != null) {
+					invokeLater(runnable, TaskScheduler.Priority.NORMAL);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs the runnable on the render thread of the first renderer that is
+	 * not destroyed. Tasks queued before there is a renderer is run by the
+	 * next renderer that is constructed.
+	 * @param runnable the task to run
+	 * @deprecated each renderer has its own tasks, use 
+	 *             {@link #invokeLater(Runnable, TaskScheduler.Priority)}
+	 */
+	@Deprecated
+    public static void invokeLater(Runnable runnable) {
+        Renderer renderer;
+        synchronized (Renderer.class) {
+            renderer = defaultRenderer;
+            if (renderer == null) {
+                defaultTasks.add(runnable);
+                return;
+            }
+        }
+        renderer.invokeLater(runnable, TaskScheduler.Priority.NORMAL);
+    }
+
+	/**
+	 * Runs the runnable on the render thread of this renderer at the start
+	 * of a frame. Blocks if the task queue is full.
+	 * @param runnable the task to run
+	 * @param priority the priority of the task
+	 */
+    public void invokeLater(Runnable runnable, TaskScheduler.Priority priority) {
+        try {
+            context.taskScheduler.invokeLater(runnable, priority);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for room in the task queue", e);
+        }
+    }
+
+	/**
+	 * Gets the scheduler used by invokeLater. Can be used to change the frame
+	 * budget and to read the queue metrics.
+	 * @return the task scheduler
+	 */
+    public TaskScheduler getTaskScheduler() {
+        return context.taskScheduler;
+    }
+	
+	/**
+	 * Gets the index of the current frame.
+	 * @return the number of frames rendered by this renderer
+	 */
+	public int getFrameIdx() {
+		return context.frameIdx;
+	}
+	
+	/**
+	 * Gets the statistics from the last rendered frame.
+	 * @return the render info of this renderer
+	 */
+	public RenderInfo getRenderInfo() {
+		return context.renderInfo;
+	}
+	
+	/**
+	 * Sets how many bytes of streamed texture data that can be copied to 
+	 * OpenGL each frame. At least one part of a texture is copied every frame.
+	 * @param bytesPerFrame the byte budget
+	 */
+	public void setUploadBudget(int bytesPerFrame) {
+		context.uploadScheduler.setBytesPerFrame(bytesPerFrame);
+	}
+	
+	/**
+	 * Gets how many bytes of streamed texture data that can be copied to 
+	 * OpenGL each frame.
+	 * @return the byte budget
+	 */
+	public int getUploadBudget() {
+		return context.uploadScheduler.getBytesPerFrame();
+	}
+	
+	/**
+	 * Sets the size a texture must have to be streamed through pixel buffer
+	 * objects instead of uploaded when it is changed.
+	 * @param bytes the threshold in bytes, Integer.MAX_VALUE disables streaming
+	 */
+	public void setStreamingThreshold(int bytes) {
+		context.streamingThreshold = bytes;
+	}
+	
+	/**
+	 * Sets the executor that copies the streamed texture data to the mapped
+	 * pixel buffers.
+	 * @param executor the executor or null to copy on the render thread
+	 */
+	public void setUploadExecutor(Executor executor) {
+		context.uploadScheduler.setExecutor(executor);
+	}
+	
+	/**
+	 * Gets the number of streamed texture parts that is not copied to OpenGL
+	 * yet.
+	 * @return the number of pending uploads
+	 */
+	public int getPendingUploadCount() {
+		return context.uploadScheduler.getPendingCount();
+	}
+	
+	/**
+	 * Gets why the last streamed upload of a texture failed. The rest of the
+	 * frame is rendered when an upload fails, only the failed part of the 
+	 * texture is not updated. The error is cleared when the texture is 
+	 * streamed again.
+	 * @param texture the texture
+	 * @return the exception or error thrown while the data was copied, or 
+	 *         null
+	 */
+	public Throwable getUploadError(Texture texture) {
+		if (!(texture.nativePeer instanceof RetainedTexture)) {
+			return null;
+		}
+		return ((RetainedTexture) texture.nativePeer).uploadError;
+	}
+	
+	/**
+	 * Sets the estimated bytes the textures of the shapes can use. The least
+	 * recently used textures first have their top mip levels dropped and is
+	 * then evicted when over budget. They are reloaded from the client pixels
+	 * the next time they are drawn.
+	 * @param bytes the budget, Long.MAX_VALUE to never evict
+	 */
+	public void setTextureBudget(long bytes) {
+		retainedSceneGraph.textureResidency.setBudget(bytes);
+	}
+	
+	/**
+	 * Gets the estimated bytes the textures of the shapes can use.
+	 * @return the budget
+	 */
+	public long getTextureBudget() {
+		return retainedSceneGraph.textureResidency.getBudget();
+	}
+	
+	/**
+	 * Gets the estimated bytes used by the resident textures of the shapes.
+	 * @return the resident bytes
+	 */
+	public long getResidentTextureBytes() {
+		return retainedSceneGraph.textureResidency.getResidentBytes();
+	}
+	
+	/**
+	 * Queues shader programs to be compiled before they are used, for 
+	 * example while a level is loading. Programs with the same sources as a
+	 * queued program are not compiled again. Can be called from any thread.
+	 * @param programs the programs to compile
+	 */
+	public void prewarmShaders(ShaderProgram... programs) {
+		for (ShaderProgram program : programs) {
+			context.programCache.prewarm(program);
+		}
+	}
+	
+	/**
+	 * Compiles all queued shader programs now instead of within the frame 
+	 * budget. Must be called on the render thread.
+	 */
+	public void finishShaders() {
+		context.programCache.finish();
+	}
+	
+	/**
+	 * Sets the time spent starting shader program compiles each frame. At 
+	 * least one program is started every frame. Shapes are not drawn until
+	 * their program is compiled.
+	 * @param nanos the time budget in nanoseconds
+	 */
+	public void setShaderCompileBudget(long nanos) {
+		context.programCache.setBudgetNanos(nanos);
+	}
+	
+	/**
+	 * Gets the time spent starting shader program compiles each frame.
+	 * @return the time budget in nanoseconds
+	 */
+	public long getShaderCompileBudget() {
+		return context.programCache.getBudgetNanos();
+	}
+	
+	/**
+	 * Sets the directory linked programs are stored in as program binaries,
+	 * if the driver supports it. Stored programs are loaded instead of 
+	 * compiled.
+	 * @param dir the directory or null to not store programs
+	 */
+	public void setShaderBinaryDirectory(File dir) {
+		context.programCache.setBinaryDirectory(dir);
+	}
+	
+	/**
+	 * Gets why a shader program failed to compile or link. Works for 
+	 * programs in use and prewarmed programs. Must be called on the render
+	 * thread.
+	 * @param program the program
+	 * @return the compile and link info logs, or null if the program is 
+	 *         not compiled yet or linked successfully
+	 */
+	public String getShaderError(ShaderProgram program) {
+		return context.programCache.getError(program);
+	}
+	
+	/**
+	 * Gets why the last shader program binary could not be written. The 
+	 * program is still used, it is only compiled again next time.
+	 * @return the exception or null
+	 */
+	public IOException getShaderBinaryError() {
+		return context.programCache.getBinaryError();
+	}
+	
+	/**
+	 * Gets the number of shader programs waiting to be compiled.
+	 * @return the number of pending programs
+	 */
+	public int getPendingShaderCount() {
+		return context.programCache.getPendingCount();
+	}
+	
+	/**
+	 * Adds a SnapshotBuffer that is applied at the start of every frame. Can
+	 * be called from any thread.
+	 * @param snapshotBuffer the buffer to add
+	 */
+	public void addSnapshotBuffer(SnapshotBuffer snapshotBuffer) {
+		snapshotBuffers.add(snapshotBuffer);
+	}
+
+	/**
+	 * Removes a SnapshotBuffer. Can be called from any thread.
+	 * @param snapshotBuffer the buffer to remove
+	 */
+	public void removeSnapshotBuffer(SnapshotBuffer snapshotBuffer) {
+		snapshotBuffers.remove(snapshotBuffer);
+	}
+	
+	/**
+	 * Deletes the OpenGL objects owned by the renderer, such as the pixel
+	 * buffers used to stream textures. Must be called on the render thread 
+	 * with the OpenGL context current, before the context is destroyed. The
+	 * renderer can not be used afterwards.
+	 */
+	public void destroy() {
+		synchronized (Renderer.class) {
+			if (defaultRenderer == this) {
+				defaultRenderer = null;
+			}
+		}
+		context.destroy();
 	}
 	
 	/**
 	 * Renders the scenegraph.
 	 */
 	public void render() {
-        Runnable runnable = null;
-        while ((runnable = runnables.poll()) != null) {
-            runnable.run();
-        }
+		SceneGraph sceneGraph = retainedSceneGraph.sceneGraph;
+		context.taskScheduler.runTasks(sceneGraph);
+
+		if (!snapshotBuffers.isEmpty()) {
+			sceneGraph.beginTransaction();
+			for (SnapshotBuffer snapshotBuffer : snapshotBuffers) {
+				snapshotBuffer.apply();
+			}
+			sceneGraph.commitTransaction();
+		}
 
 		retainedSceneGraph.sceneGraph.updateTrees();
 		retainedSceneGraph.render();
-		frameIdx++;
+		context.frameIdx++;
 	}
 }
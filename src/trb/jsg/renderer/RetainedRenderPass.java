@@ -60,7 +60,7 @@ class RetainedRenderPass implements RenderPassPeer {
 	//private SlowRenderer slowRenderer = new SlowRenderer(this);
 	
 	/** The StateSortRenderer is used if there shapes can be state sorted */
-	private StateSortRenderer renderer = new StateSortRenderer(this);
+	private StateSortRenderer renderer;
 	
 
 	/**
@@ -71,6 +71,7 @@ class RetainedRenderPass implements RenderPassPeer {
 	public RetainedRenderPass(RenderPass renderPass, RetainedSceneGraph renderer) {
 		this.renderPass = renderPass;
 		this.sceneGraphPeer = renderer;
+		this.renderer = new StateSortRenderer(this);
 	}
 	
 	/**
@@ -82,12 +83,10 @@ class RetainedRenderPass implements RenderPassPeer {
 		}
 		RetainedShape peer = new RetainedShape(shape);
 		shape.nativePeer = peer;
-		peer.shaderChanged(null, shape.getState().getShader());
-		peer.vertexDataChanged(null, shape.getVertexData());
-		int[] activeUnits = shape.getState().getActiveUnits();
-		for (int i=0; i<activeUnits.length; i++) {
-			peer.textureChanged(null, shape.getState().getUnit(activeUnits[i]).getTexture());
-		}		
+		peer.attach();
+		if (shape instanceof LODShape) {
+			peer.levelsChanged(null, ((LODShape) shape).getLevels());
+		}
 		
 		peer.renderer = renderer;
 		renderer.add(peer);
@@ -105,11 +104,9 @@ class RetainedRenderPass implements RenderPassPeer {
 			renderer.remove(peer);
 		}
 		
-		peer.shaderChanged(shape.getState().getShader(), null);
-		peer.vertexDataChanged(shape.getVertexData(), null);
-		int[] activeUnits = shape.getState().getActiveUnits();
-		for (int i=0; i<activeUnits.length; i++) {
-			peer.textureChanged(shape.getState().getUnit(activeUnits[i]).getTexture(), null);
+		peer.detach();
+		if (shape instanceof LODShape) {
+			peer.levelsChanged(((LODShape) shape).getLevels(), null);
 		}
 		shape.nativePeer = null;
 	}
@@ -129,7 +126,7 @@ class RetainedRenderPass implements RenderPassPeer {
 				throw new RuntimeException("RenderTarget has a NativePeer");
 			}
 			
-			newTarget.nativePeer = new RetainedRenderTarget(newTarget);
+			newTarget.nativePeer = new RetainedRenderTarget(newTarget, sceneGraphPeer.context);
 			sceneGraphPeer.updateList.add((NativeResource) newTarget.nativePeer);
 		}
 	}
@@ -160,7 +157,7 @@ class RetainedRenderPass implements RenderPassPeer {
 			glClearColor(clearColor.x, clearColor.y, clearColor.z, clearColor.w);
 		}
 		if ((clearMask & GL_DEPTH_BUFFER_BIT) != 0) {
-            GLState.applyDepthMaskDif(true);
+            sceneGraphPeer.context.glState.applyDepthMaskDif(true);
 			glClearDepth(renderPass.getClearDepth());
 		}
 		if ((clearMask & GL_STENCIL_BUFFER_BIT) != 0) {
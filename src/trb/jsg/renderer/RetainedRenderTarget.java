@@ -57,13 +57,13 @@ class RetainedRenderTarget implements RenderTargetPeer, NativeResource {
 	/** The peers render target */
 	public RenderTarget renderTarget;
 	
-	public RetainedRenderTarget(RenderTarget renderTarget) {
+	public RetainedRenderTarget(RenderTarget renderTarget, RenderContext context) {
 		this.renderTarget = renderTarget;
-        if (renderTarget.getColorAttachments().length > RetainedSceneGraph.maxDrawBuffers) {
+        if (renderTarget.getColorAttachments().length > context.maxDrawBuffers) {
             System.err.println(renderTarget.getColorAttachments().length
-                    + " is more color attachments than are supported: " + RetainedSceneGraph.maxDrawBuffers);
+                    + " is more color attachments than are supported: " + context.maxDrawBuffers);
         }
-		drawBuffers = BufferUtils.createIntBuffer(Math.min(RetainedSceneGraph.maxDrawBuffers, renderTarget.getColorAttachments().length));
+		drawBuffers = BufferUtils.createIntBuffer(Math.min(context.maxDrawBuffers, renderTarget.getColorAttachments().length));
 		for (int i=0; i<drawBuffers.limit(); i++) {
 			int id = renderTarget.getColorAttachments()[i] == null ? GL_NONE : (GL_COLOR_ATTACHMENT0 + i);
 			drawBuffers.put(i, id);
@@ -73,7 +73,7 @@ class RetainedRenderTarget implements RenderTargetPeer, NativeResource {
 	/**
 	 * Implements NativeResource
 	 */
-	public void destroyNativeResource() {
+	public void destroyNativeResource(RenderContext context) {
 		//System.out.println(getClass().getSimpleName()+".destroyNativeResource()");
         DepthBuffer depthBuffer = renderTarget.getDepthBuffer();
         if (depthBuffer != null && depthBuffer.nativePeer instanceof RetainedDepthBuffer) {
@@ -103,7 +103,7 @@ class RetainedRenderTarget implements RenderTargetPeer, NativeResource {
 	/**
 	 * Implements NativeResource
 	 */
-	public void updateNativeResource() {
+	public void updateNativeResource(RenderContext context) {
 		//System.err.println(this+".updateNativeResource()");
 		if (fboId.get(0) <= 0) {
 			glGenFramebuffers(fboId);
@@ -143,19 +143,19 @@ class RetainedRenderTarget implements RenderTargetPeer, NativeResource {
 						//System.out.println("texture netivePeer is null");
 						// first time texture is added
 						peer = new RetainedTexture(colorAttachment);
-						peer.updateNativeResource();
+						peer.updateNativeResource(context);
 						colorAttachment.nativePeer = peer;
 					} else {
 						//System.out.println("texture netivePeer texture id is "+peer.getTextureId());
 						if (peer.getTextureId() <= 0) {
-							peer.updateNativeResource();
+							peer.updateNativeResource(context);
 							//System.out.println("After updateNativeResource() texture netivePeer texture id is "+peer.getTextureId());
 						}
 					}
 					peer.parents.add(renderTarget);
 					if (renderTarget.isGenerateMipMap()) {
-						GLState.glActiveTextureWrapper(GL13.GL_TEXTURE0);
-						GLState.glBindTextureWrapper(GL_TEXTURE_2D, peer.getTextureId());
+						context.glState.glActiveTextureWrapper(GL13.GL_TEXTURE0);
+						context.glState.glBindTextureWrapper(GL_TEXTURE_2D, peer.getTextureId());
 						glGenerateMipmap(GL_TEXTURE_2D);
 					}
 					
@@ -37,6 +37,7 @@ import static org.lwjgl.opengl.GL11.glGetInteger;
 
 import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 
 import org.lwjgl.BufferUtils;
 import org.lwjgl.opengl.GL20;
@@ -51,44 +52,50 @@ import trb.jsg.peers.*;
  * 
  * @author tombr
  */
-class RetainedSceneGraph implements SceneGraphPeer {
+class RetainedSceneGraph implements SceneGraphPeer, TextureResidency.Clock, TextureResidency.Backend {
 	
 	public static final boolean SAFE_MODE = false; 
 	
-	/** List of native resource that needs to be updated at the next render. */
-	public ArrayList<NativeResource> updateList = new ArrayList<NativeResource>();
+	/** Native resources that needs to be updated at the next render. A set so
+	 * a resource that is changed many times is only updated once. */
+	public LinkedHashSet<NativeResource> updateList = new LinkedHashSet<NativeResource>();
 	
-	/** List of native resource that needs to be destroyed at the next render. */
-	public ArrayList<NativeResource> destroyList = new ArrayList<NativeResource>();
+	/** Native resources that needs to be destroyed at the next render. */
+	public LinkedHashSet<NativeResource> destroyList = new LinkedHashSet<NativeResource>();
+	
+	/** True between transactionBegin() and transactionCommit() */
+	private boolean inTransaction = false;
+	
+	/** Shapes with changes that is deferred until the transaction is committed */
+	private ArrayList<RetainedShape> deferredShapes = new ArrayList<RetainedShape>();
 	
 	/** The wrapped scene graph */
 	public SceneGraph sceneGraph;
 	
-	/** The number of available color attachments. Is set after constructing a 
-	 * SimpleSceneGraphPeer. */
-	public static int maxColorAttachments = -1;
+	/** The state of the renderer that owns this peer */
+	public RenderContext context;
 	
-	/**
-	 * How many draw buffers we can render to at the same time.
-	 */
-	public static int maxDrawBuffers = -1;
+	/** Keeps the textures of the shapes within the texture memory budget */
+	public final TextureResidency textureResidency = new TextureResidency(this, this, Long.MAX_VALUE);
 
 	/**
 	 * Constructs a SimpleSceneGraph that is the native peer of the specified
 	 * scenegraph. Adds all passes in the specified scenegraph to this peer.
 	 * @param sceneGraph the scenegraph to wrap
+	 * @param context the state of the renderer that owns the peer
 	 */
-	public RetainedSceneGraph(SceneGraph sceneGraph) {
+	public RetainedSceneGraph(SceneGraph sceneGraph, RenderContext context) {
 		this.sceneGraph = sceneGraph;
+		this.context = context;
 		sceneGraph.nativePeer = this;
 		
-		GLState.init();
+		context.glState.init();
 		
 		IntBuffer intBuffer = BufferUtils.createIntBuffer(16);
 		glGetInteger(GL_MAX_COLOR_ATTACHMENTS_EXT, intBuffer);
-		maxColorAttachments = intBuffer.get(0);
+		context.maxColorAttachments = intBuffer.get(0);
 		glGetInteger(GL20.GL_MAX_DRAW_BUFFERS, intBuffer);
-		maxDrawBuffers = intBuffer.get(0);
+		context.maxDrawBuffers = intBuffer.get(0);
 		
 //		http://www.gamedev.net/reference/programming/features/fbo2/page5.asp
 //		GLenum buffers[] = { GL_COLOR_ATTACHMENT0_EXT, GL_COLOR_ATTACHMENT1_EXT };
@@ -99,6 +106,8 @@ class RetainedSceneGraph implements SceneGraphPeer {
 			RenderPass pass = sceneGraph.getRenderPass(passIdx);
 			passAdded(pass);
 		}
+		
+		inTransaction = sceneGraph.isInTransaction();
 	}
 	/**
 	 * Implements ScenenGraphListener.
@@ -131,21 +140,67 @@ class RetainedSceneGraph implements SceneGraphPeer {
 		renderPass.nativePeer = null;
 	}
 
+	/**
+	 * Implements SceneGraphPeer.
+	 */
+	public void transactionBegin() {
+		inTransaction = true;
+	}
+
+	/**
+	 * Implements SceneGraphPeer. Applies the deferred changes once per shape.
+	 */
+	public void transactionCommit() {
+		inTransaction = false;
+		for (int i=0; i<deferredShapes.size(); i++) {
+			deferredShapes.get(i).applyDeferredChanges();
+		}
+		deferredShapes.clear();
+	}
+
+	/**
+	 * Checks if changes should be deferred.
+	 * @return true if inside a transaction
+	 */
+	public boolean isInTransaction() {
+		return inTransaction;
+	}
+
+	/**
+	 * Defers the changes of the specified shape until the transaction is 
+	 * committed. The shape is only added once.
+	 * @param shapePeer the shape with deferred changes
+	 */
+	public void deferShape(RetainedShape shapePeer) {
+		deferredShapes.add(shapePeer);
+	}
+
 	/**
 	 * Renders the SceneGraph.
 	 */
 	public void render() {
-		GLState.validateState();
+		context.glState.validateState();
+		context.renderInfo.clear();
 		
 		// update native resources that has been added or changed the last frame
 		for (NativeResource resource : updateList) {
-			resource.updateNativeResource();
+			resource.updateNativeResource(context);
 		}
 		updateList.clear();
 		
+		// copy the streamed uploads that is ready within the frame budget
+		context.uploadScheduler.update(context.frameIdx);
+		context.renderInfo.streamedBytes = context.uploadScheduler.getLastFrameBytes();
+		context.renderInfo.streamedUploads = context.uploadScheduler.getLastFrameUploadCount();
+		context.renderInfo.failedUploads = context.uploadScheduler.getLastFrameFailedCount();
+		
+		// compile the queued shader programs within the frame budget
+		context.programCache.update();
+		context.renderInfo.compiledPrograms = context.programCache.getLastFrameCompileCount();
+		
 		// destroy native resource that has been removed or deleted the last frame
 		for (NativeResource resource : destroyList) {
-			resource.destroyNativeResource();
+			resource.destroyNativeResource(context);
 		}
 		destroyList.clear();
 		
@@ -153,5 +208,32 @@ class RetainedSceneGraph implements SceneGraphPeer {
 		for (int passIdx=0; passIdx<sceneGraph.getRenderPassCount(); passIdx++) {
 			((RetainedRenderPass) sceneGraph.getRenderPass(passIdx).nativePeer).render();
 		}
+		
+		// reduce the textures that was not used this frame if over budget
+		textureResidency.update();
+	}
+
+	/**
+	 * Implements TextureResidency.Clock.
+	 */
+	public int getFrameIdx() {
+		return context.frameIdx;
+	}
+
+	/**
+	 * Implements TextureResidency.Backend.
+	 */
+	public boolean isEvictable(TextureResidency.Entry entry) {
+		return ((RetainedTexture) entry.resource).isEvictable();
+	}
+
+	/**
+	 * Implements TextureResidency.Backend. Reduced and reloaded textures is
+	 * uploaded, and evicted textures deleted, in the next render.
+	 */
+	public void setBaseLevel(TextureResidency.Entry entry, int baseLevel) {
+		RetainedTexture texturePeer = (RetainedTexture) entry.resource;
+		texturePeer.setBaseLevel(baseLevel);
+		updateList.add(texturePeer);
 	}
 }
@@ -32,7 +32,6 @@
 
 package trb.jsg.renderer;
 
-import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.util.ArrayList;
@@ -42,12 +41,9 @@ import org.lwjgl.opengl.GL21;
 import org.lwjgl.opengl.Util;
 
 import trb.jsg.Shader;
-import trb.jsg.ShaderProgram;
 import trb.jsg.Shape;
 import trb.jsg.Uniform;
 import trb.jsg.peers.*;
-import trb.jsg.util.GLUtils;
-import trb.jsg.util.SGUtil;
 
 /**
  * The SimpleRenderer shaders native peer.
@@ -70,29 +66,12 @@ class RetainedShader implements ShaderPeer, NativeResource {
 	/** This peers shader */
 	public Shader shader;
 	
-	/** Set to true when shader progam changed and cleared when program is compiled */
+	/** Set to true when shader progam changed and cleared when program is acquired */
 	public boolean isShaderProgramDirty = true;
 	
-	/** The vertex shader id */
-	private int vertexId = 0; 
-
-	/** The fragment shader id */
-	private int fragmentId = 0;
-	
-	/** The shader program id */
-	public int programId = 0;
+	/** The program shared with other shaders with the same sources */
+	public ProgramCache.Program program = null;
 	
-	/**
-	 * TODO: to lazy set uniforms we need the to keep track of the current 
-	 * ShaderUniformSet here.
-	 */
-	public Shader currentUniformSet = null;
-	public int currentUniformSetFrameIdx = -10;
-	
-	
-	/** List of uniforms that has changed */
-//	public ArrayList<Uniform> dirtyUniforms = new ArrayList<Uniform>();
-
 	/**
 	 * Constructs a SimpleShaderPeer that backs the specified shader.
 	 * @param shader the shader to back
@@ -102,125 +81,53 @@ class RetainedShader implements ShaderPeer, NativeResource {
 	}
 
 	/**
-	 * Implements ShaderPeer.
-	 */
-//	public void programChanged() {
-//		isShaderProgramDirty = true;
-//		for (Shape parent : parents) {
-//			SimpleShapePeer shapePeer = (SimpleShapePeer) parent.nativePeer;
-//			shapePeer.shaderProgramChanged();
-//		}
-//
-//		SimpleSceneGraphPeer renderer = ((SimpleRenderPassPeer) parents.get(0).parent.nativePeer).sceneGraphPeer;
-//		renderer.updateList.add(this);
-//	}
-
-	/**
-	 * Implements ShaderPeer.
+	 * Implements SimpleNativeResource. Releases the program, which is deleted
+	 * when no other shader uses it.
 	 */
-//	public void uniformChanged(Uniform uniform) {
-//		if (!dirtyUniforms.contains(uniform)) {
-//			dirtyUniforms.add(uniform);
-//		}
-//
-//		SimpleSceneGraphPeer renderer = ((SimpleRenderPassPeer) parents.get(0).parent.nativePeer).sceneGraphPeer;
-//		renderer.updateList.add(this);
-//	}
-
-	/**
-	 * Implements SimpleNativeResource. Deletes the vertex, fragment and program.
-	 */
-	public void destroyNativeResource() {
-		Util.checkGLError(); 
-		if (programId != 0) {
-			System.err.println("Delete program "+programId);
-			GL20.glDeleteProgram(programId);
-			programId = 0;
+	public void destroyNativeResource(RenderContext context) {
+		if (program != null) {
+			context.programCache.release(program);
+			program = null;
 		}
-		
-		if (fragmentId != 0) {
-			GL20.glDeleteShader(fragmentId);
-			fragmentId = 0;
-		}
-
-		if (vertexId != 0) {
-			GL20.glDeleteShader(vertexId);
-			vertexId = 0;
-		}
-		Util.checkGLError(); 
 	}
 
 	/**
-	 * Implements SimpleNativeResource. Recompiles the shader.
+	 * Implements SimpleNativeResource. Acquires the program from the cache. 
+	 * The program is compiled by the cache within its frame budget.
 	 */
-	public void updateNativeResource() {
-		ShaderProgram program = shader.getShaderProgram();
+	public void updateNativeResource(RenderContext context) {
 		if (isShaderProgramDirty) {
-			Util.checkGLError(); 
 			isShaderProgramDirty = false;
-			if (program.getVertexShader() != null) {
-				if (vertexId == 0) {
-					vertexId = GL20.glCreateShader(GL20.GL_VERTEX_SHADER);
-				}
-				GL20.glShaderSource(vertexId, program.getVertexShader());
-				GL20.glCompileShader(vertexId);
-				if (!GLUtils.isCompileOk(vertexId)) {
-					System.out.println("Failed to compile vertex shader:");
-					System.out.println(program.getVertexShader());
-					GLUtils.printLogInfo(vertexId);
-				}
+			ProgramCache.Program oldProgram = program;
+			program = context.programCache.acquire(shader.getShaderProgram());
+			if (oldProgram != null) {
+				context.programCache.release(oldProgram);
 			}
-
-			if (program.getFragmentShader() != null) {
-				if (fragmentId == 0) {
-					fragmentId = GL20.glCreateShader(GL20.GL_FRAGMENT_SHADER);
-				}
-				GL20.glShaderSource(fragmentId, program.getFragmentShader());
-				GL20.glCompileShader(fragmentId);
-				if (!GLUtils.isCompileOk(fragmentId)) {
-					System.out.println("Failed to compile fragment shader:");
-					System.out.println(program.getFragmentShader());
-					GLUtils.printLogInfo(fragmentId);
-				}
-			}
-
-			if (vertexId != 0 || fragmentId != 0) {
-				if (programId == 0) {
-					programId = GL20.glCreateProgram();
-				}
-				
-				for (int nameIdx=0; nameIdx<program.getAttributeNames().length; nameIdx++) {
-					ByteBuffer name = SGUtil.nameToByteBuffer(program.getAttributeNames()[nameIdx]);
-					GL20.glBindAttribLocation(programId, nameIdx+1, name);
-				}
-
-				if (vertexId > 0) {
-					GL20.glAttachShader(programId, vertexId);
-				}
-				if (fragmentId > 0) {
-					GL20.glAttachShader(programId, fragmentId);
-				}
-				GL20.glLinkProgram(programId);
-				if (!GLUtils.isLinkOk(programId)) {
-					System.out.println("Failed to link program:");
-					GLUtils.printLogInfo(programId);
-				}
-				GL20.glUseProgram(programId);
-				
-//				for (Uniform uniform : shader.getAllUniforms()) {
-//					setUniform(uniform);
-//				}
-//				dirtyUniforms.clear();
-			}
-			Util.checkGLError(); 
 		}
-		
-//		if (dirtyUniforms.size() > 0) {
-//			GL20.glUseProgram(programId);
-//			for (Uniform uniform : dirtyUniforms) {
-//				setUniform(uniform);
-//			}
-//		}
+	}
+	
+	/**
+	 * Gets the OpenGL program.
+	 * @return the program id or 0 if it is not ready or failed
+	 */
+	public int getProgramId() {
+		return program != null ? program.getProgramId() : 0;
+	}
+	
+	/**
+	 * Checks if the program has been compiled, successfully or not. Shapes 
+	 * are not drawn until it is.
+	 */
+	public boolean isReady() {
+		return program != null && program.isDone();
+	}
+	
+	/**
+	 * Gets why the program failed to compile or link.
+	 * @return the info logs or null
+	 */
+	public String getError() {
+		return program != null ? program.error : null;
 	}
 
 	/**
@@ -229,7 +136,7 @@ class RetainedShader implements ShaderPeer, NativeResource {
 	 */
 	protected void setUniform(Uniform uniform) {
 		Util.checkGLError(); 
-		int loc = GL20.glGetUniformLocation(programId, uniform.getName());
+		int loc = GL20.glGetUniformLocation(getProgramId(), uniform.getName());
 //		System.out.println("setUniform "+uniform.getName()+" "+loc);
 		if (loc == -1) {
 			System.err.println(getClass().getSimpleName()+" shader do not contain uniform named: "+uniform.getName());
@@ -32,25 +32,33 @@
 
 package trb.jsg.renderer;
 
+import java.util.ArrayList;
 import java.util.Comparator;
 
-import javax.vecmath.Point3f;
+import javax.vecmath.Point3d;
+import javax.vecmath.Vector3d;
 
 import org.lwjgl.opengl.GL11;
 
 import trb.jsg.BoundingBox;
 import trb.jsg.BoundingSphere;
+import trb.jsg.LODShape;
+import trb.jsg.Meshlets;
 import trb.jsg.Shader;
 import trb.jsg.Shape;
+import trb.jsg.State;
 import trb.jsg.Texture;
 import trb.jsg.VertexData;
+import trb.jsg.View;
+import trb.jsg.enums.Face;
+import trb.jsg.enums.FrontFace;
 import trb.jsg.peers.*;
 import trb.jsg.util.Mat4;
 
 class RetainedShape implements ShapePeer {
 	
-	/** Identity matrix returned by getModelMatrix if renderType is DISPLAY_LIST_WORLD */
-	private static Mat4 IDENTITY_MATRIX = new Mat4();
+	/** The size of the grid cells that world display lists are stored relative to */
+	private static final double WORLD_LIST_CELL_SIZE = 1024;
 	
 	public static SimpleShapePeerComparator simpleShapePeerComparator = new SimpleShapePeerComparator();
 
@@ -82,7 +90,7 @@ class RetainedShape implements ShapePeer {
 	 * IMMEDIATE - immediate mode
 	 * VERTEX_ARRAY - vertex array
 	 * DISPLAY_LIST - display list
-	 * DISPLAY_LIST_WORLD - display list where coordinates is stored in world space relative to this shape.
+	 * DISPLAY_LIST_WORLD - display list where coordinates is stored in world space relative to a grid cell.
 	 * SHARED_VBO - vertex data from all shapes in one big vbo 
 	 * @author tombr
 	 *
@@ -95,14 +103,72 @@ class RetainedShape implements ShapePeer {
 	/** The id of the world coordinates display list */
 	private int worldDisplayListId = 0;
 	
-	/** The center of the bounding sphere in world space */
-	public Point3f worldBoundsCenter = new Point3f();
+	/** False if the world display list must be compiled before it is called */
+	private boolean worldDisplayListValid = false;
+	
+	/** Translation to the corner of the grid cell the world display list is
+	 * stored relative to. Shapes in the same cell share the model matrix, 
+	 * and the list never holds large world coordinates in float. */
+	private Mat4 worldListMatrix = new Mat4();
+	
+	/** The center of the bounding sphere in world space. Double precision so
+	 * it can be made relative to the render origin without losing precision. */
+	public Point3d worldBoundsCenter = new Point3d();
 	
 	/** The radius of the bounding sphere in world space. This includes scale. */
 	public float worldBoundsRadius = 0;
 	
+	/** The world bounds must be updated before they are used by the culler */
+	public boolean worldBoundsDirty = true;
+	
+	/** The vertex data peers of the levels of a LODShape, or null. Level 0
+	 * is the peer of the shapes vertex data and is not stored. */
+	private RetainedVertexData[] levelPeers = null;
+	
+	/** The level of detail that is drawn */
+	public int level = 0;
+	
+	/** First index and index count of the visible meshlets. Adjacent 
+	 * meshlets are merged into one range. */
+	private int[] visibleRanges = new int[0];
+	
+	/** The number of visible ranges or -1 to draw all indices */
+	private int visibleRangeCnt = -1;
+	
+	// temp vars
+	private Point3d tempCenter = new Point3d();
+	private Vector3d tempAxis = new Vector3d();
+	
 	public BoundingBox worldBBox = null;
 	
+	/** Flag in deferredChanges. The state changed inside a transaction. */
+	static final int DEFERRED_STATE = 1;
+	
+	/** Flag in deferredChanges. The matrix changed inside a transaction. */
+	static final int DEFERRED_MATRIX = 2;
+	
+	/** Flag in deferredChanges. The shader or a texture changed inside a transaction. */
+	static final int DEFERRED_ATTACHMENTS = 4;
+	
+	/** Flag in deferredChanges. The vertex data instance changed inside a transaction. */
+	static final int DEFERRED_VERTEX_DATA = 8;
+	
+	/** Flag in deferredChanges. The vertices changed inside a transaction. */
+	static final int DEFERRED_VERTICES = 16;
+	
+	/** Changes that is waiting for the transaction to be committed */
+	private int deferredChanges = 0;
+	
+	/** The shader the shape is a parent of. Differs from the state while a
+	 * shader change is deferred. */
+	private Shader attachedShader = null;
+	
+	/** The textures the shape is a parent of, one entry per unit */
+	private ArrayList<Texture> attachedTextures = new ArrayList<Texture>();
+	
+	/** The vertex data the shape is a parent of */
+	private VertexData attachedVertexData = null;
+	
 
 	/**
 	 * Constructs a SimpleShapePeer that is the peer of the specified shape.
@@ -110,9 +176,20 @@ class RetainedShape implements ShapePeer {
 	 */
 	public RetainedShape(Shape shape) {
 		this.shape = shape;
-		updateWorldBoundsCenter();
 	}	
 	
+	/**
+	 * Updates the world bounds if the matrix or vertices changed since they 
+	 * were last used. The bounds of the vertex data are calculated here, the
+	 * first time they are needed after a change.
+	 */
+	public void validateWorldBounds() {
+		if (worldBoundsDirty) {
+			updateWorldBoundsCenter();
+			worldBoundsDirty = false;
+		}
+	}
+	
 	/**
 	 * Updates the worldBoundsCenter member.
 	 */
@@ -188,6 +265,19 @@ class RetainedShape implements ShapePeer {
 	 * @param newShader the new shader
 	 */
 	public void shaderChanged(Shader oldShader, Shader newShader) {
+		if (defer(DEFERRED_ATTACHMENTS)) {
+			return;
+		}
+		attachShader(oldShader, newShader);
+		stateChanged();
+	}
+	
+	/**
+	 * Moves the shape from the old to the new shader peer.
+	 * @param oldShader the old shader or null
+	 * @param newShader the new shader or null
+	 */
+	private void attachShader(Shader oldShader, Shader newShader) {
 		RetainedSceneGraph renderPassPeer = ((RetainedRenderPass)shape.parent.nativePeer).sceneGraphPeer;
 		if (oldShader != null) {
 			RetainedShader simpleShaderPeer = (RetainedShader) oldShader.getShaderProgram().nativePeer;
@@ -210,8 +300,7 @@ class RetainedShape implements ShapePeer {
 			RetainedShader simpleShaderPeer = (RetainedShader) newShader.getShaderProgram().nativePeer;
 			simpleShaderPeer.parents.add(shape);
 		}
-		
-		stateChanged();
+		attachedShader = newShader;
 	}
 	
 	/**
@@ -230,6 +319,19 @@ class RetainedShape implements ShapePeer {
 	 */
 	public void textureChanged(Texture oldTexture, Texture newTexture) {
 		//System.out.println("textureChanged "+oldTexture+" "+newTexture);
+		if (defer(DEFERRED_ATTACHMENTS)) {
+			return;
+		}
+		attachTexture(oldTexture, newTexture);
+		stateChanged();
+	}
+	
+	/**
+	 * Moves the shape from the old to the new texture peer.
+	 * @param oldTexture the old texture or null
+	 * @param newTexture the new texture or null
+	 */
+	private void attachTexture(Texture oldTexture, Texture newTexture) {
 		RetainedSceneGraph renderer = ((RetainedRenderPass)shape.parent.nativePeer).sceneGraphPeer;
 		if (oldTexture != null && oldTexture.nativePeer != null) {
 			RetainedTexture simpleTexturePeer = (RetainedTexture) oldTexture.nativePeer;
@@ -238,6 +340,7 @@ class RetainedShape implements ShapePeer {
 			}
 			if (simpleTexturePeer.parents.isEmpty()) {
 				// destroy texture in render
+				simpleTexturePeer.removeResidency();
 				renderer.destroyList.add(simpleTexturePeer);
 				oldTexture.nativePeer = null;
 			}
@@ -246,6 +349,7 @@ class RetainedShape implements ShapePeer {
 			if (newTexture.nativePeer == null) {
 				// first time texture is added
 				newTexture.nativePeer = new RetainedTexture(newTexture);
+				((RetainedTexture) newTexture.nativePeer).addResidency(renderer.textureResidency);
 
 				// compile texture in render
 				renderer.updateList.add((NativeResource) newTexture.nativePeer);
@@ -253,14 +357,21 @@ class RetainedShape implements ShapePeer {
 			RetainedTexture tPeer = (RetainedTexture) newTexture.nativePeer;
 			tPeer.parents.add(shape);
 		}
-		
-		stateChanged();
+		if (oldTexture != null) {
+			attachedTextures.remove(oldTexture);
+		}
+		if (newTexture != null) {
+			attachedTextures.add(newTexture);
+		}
 	}
 	
 	/**
 	 * Implements ShapePeer. Called when the matrix is changed.
 	 */
 	public void matrixChanged() {
+		if (defer(DEFERRED_MATRIX)) {
+			return;
+		}
 		if (renderType == RenderType.DISPLAY_LIST_WORLD) {
 			renderType = RenderType.VERTEX_ARRAY;
 		}
@@ -269,7 +380,7 @@ class RetainedShape implements ShapePeer {
 			changeInfo.lastChange = renderer.renderPassPeer.frameIdx;
 			changeInfo.changeCnt++;
 		}
-		updateWorldBoundsCenter();
+		worldBoundsDirty = true;
 	}
 	
 	
@@ -279,26 +390,306 @@ class RetainedShape implements ShapePeer {
 	 * @param newVertexData the new VertexData
 	 */
 	public void vertexDataChanged(VertexData oldVertexData, VertexData newVertexData) {
+		if (defer(DEFERRED_VERTEX_DATA)) {
+			return;
+		}
+		attachVertexData(oldVertexData, newVertexData);
+	}
+	
+	/**
+	 * Moves the shape from the old to the new vertex data peer.
+	 * @param oldVertexData the old VertexData or null
+	 * @param newVertexData the new VertexData or null
+	 */
+	private void attachVertexData(VertexData oldVertexData, VertexData newVertexData) {
 		if (oldVertexData != null) {
+			if (renderType == RenderType.DISPLAY_LIST) {
+				removeLevelListUsers();
+			}
 			RetainedVertexData peer = (RetainedVertexData) oldVertexData.nativePeer;
 			peer.removeListUser(this);
-			peer.parents.remove(shape);
-			if (peer.parents.isEmpty()) {
-				oldVertexData.nativePeer = null;
-			}
+			removeParent(oldVertexData);
 		}
 		
 		if (newVertexData != null) {
-			if (newVertexData.nativePeer == null) {
-				// first time vertex data is added
-				newVertexData.nativePeer = new RetainedVertexData(newVertexData);
-			}
-			RetainedVertexData simpleVertexDataPeer = (RetainedVertexData) newVertexData.nativePeer;
-			simpleVertexDataPeer.parents.add(shape);
+			addParent(newVertexData);
 			renderType = RenderType.VERTEX_ARRAY;
 		}
+		attachedVertexData = newVertexData;
 		
-		updateWorldBoundsCenter();
+		worldBoundsDirty = true;
+	}
+	
+	/**
+	 * Makes the shape a parent of its shader, textures and vertex data. 
+	 * Invoked when the shape is added to a render pass.
+	 */
+	void attach() {
+		State state = shape.getState();
+		attachShader(null, state.getShader());
+		attachVertexData(null, shape.getVertexData());
+		int[] activeUnits = state.getActiveUnits();
+		for (int i=0; i<activeUnits.length; i++) {
+			attachTexture(null, state.getUnit(activeUnits[i]).getTexture());
+		}
+	}
+	
+	/**
+	 * Removes the shape from the shader, textures and vertex data it is a
+	 * parent of. Invoked when the shape is removed from its render pass, 
+	 * also if changes to the shape is deferred by a transaction.
+	 */
+	void detach() {
+		attachShader(attachedShader, null);
+		attachVertexData(attachedVertexData, null);
+		while (!attachedTextures.isEmpty()) {
+			attachTexture(attachedTextures.get(attachedTextures.size() - 1), null);
+		}
+	}
+	
+	/**
+	 * Moves the shape to the shader, textures and vertex data that is
+	 * currently set on the shape. Applies the deferred instance changes.
+	 */
+	private void reattach() {
+		State state = shape.getState();
+		if (attachedShader != state.getShader()) {
+			attachShader(attachedShader, state.getShader());
+		}
+		if (attachedVertexData != shape.getVertexData()) {
+			attachVertexData(attachedVertexData, shape.getVertexData());
+		}
+		ArrayList<Texture> removed = new ArrayList<Texture>(attachedTextures);
+		ArrayList<Texture> added = new ArrayList<Texture>();
+		int[] activeUnits = state.getActiveUnits();
+		for (int i=0; i<activeUnits.length; i++) {
+			Texture texture = state.getUnit(activeUnits[i]).getTexture();
+			if (texture != null && !removed.remove(texture)) {
+				added.add(texture);
+			}
+		}
+		for (int i=0; i<removed.size(); i++) {
+			attachTexture(removed.get(i), null);
+		}
+		for (int i=0; i<added.size(); i++) {
+			attachTexture(null, added.get(i));
+		}
+	}
+	
+	/**
+	 * Implements ShapePeer. Called when the levels of a LODShape is changed.
+	 * Level 0 is handled by vertexDataChanged().
+	 * @param oldLevels the old levels or null
+	 * @param newLevels the new levels or null
+	 */
+	public void levelsChanged(VertexData[] oldLevels, VertexData[] newLevels) {
+		if (renderType == RenderType.DISPLAY_LIST || renderType == RenderType.DISPLAY_LIST_WORLD) {
+			changeRenderType(RenderType.VERTEX_ARRAY);
+		}
+		if (oldLevels != null) {
+			for (int i=1; i<oldLevels.length; i++) {
+				removeParent(oldLevels[i]);
+			}
+		}
+		levelPeers = null;
+		if (newLevels != null && newLevels.length > 1) {
+			levelPeers = new RetainedVertexData[newLevels.length];
+			for (int i=1; i<newLevels.length; i++) {
+				levelPeers[i] = addParent(newLevels[i]);
+			}
+		}
+		level = levelPeers != null ? Math.min(level, levelPeers.length - 1) : 0;
+		worldBoundsDirty = true;
+	}
+	
+	/**
+	 * Selects the level of detail of a LODShape from the screen size of the
+	 * world bounds. The world bounds must be valid.
+	 * @param view the view that is rendered
+	 */
+	public void selectLevel(View view) {
+		if (levelPeers == null) {
+			return;
+		}
+		float screenSize = view.getScreenSize(worldBoundsCenter, worldBoundsRadius);
+		int newLevel = ((LODShape) shape).selectLevel(level, screenSize);
+		if (newLevel != level) {
+			level = newLevel;
+			if (renderType == RenderType.DISPLAY_LIST_WORLD) {
+				// the world list holds the old level, use the per level lists
+				changeRenderType(RenderType.DISPLAY_LIST);
+			}
+		}
+	}
+	
+	/**
+	 * Checks if the shader program of the shape is compiled. Shapes are not
+	 * drawn while the program is compiled.
+	 * @return true if the shape has no shader or the program is done
+	 */
+	public boolean isShaderReady() {
+		Shader shader = shape.getState().getShader();
+		if (shader == null || shader.getShaderProgram() == null) {
+			return true;
+		}
+		RetainedShader shaderPeer = (RetainedShader) shader.getShaderProgram().nativePeer;
+		return shaderPeer == null || shaderPeer.isReady();
+	}
+	
+	/**
+	 * Marks the textures of the shape as used in the current frame.
+	 */
+	public void touchTextures() {
+		State state = shape.getState();
+		int[] activeUnits = state.getActiveUnits();
+		for (int i=0; i<activeUnits.length; i++) {
+			Texture texture = state.getUnit(activeUnits[i]).getTexture();
+			if (texture != null && texture.nativePeer != null) {
+				((RetainedTexture) texture.nativePeer).touch();
+			}
+		}
+	}
+	
+	/**
+	 * Checks if the vertex data of any level has meshlets.
+	 * @return true if there is meshlets
+	 */
+	public boolean hasMeshlets() {
+		if (shape.getVertexData() != null && shape.getVertexData().meshlets != null) {
+			return true;
+		}
+		if (levelPeers != null) {
+			for (int i=1; i<levelPeers.length; i++) {
+				if (levelPeers[i].vertexData.meshlets != null) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Culls the meshlets of the drawn vertex data against the view frustum,
+	 * and with the normal cones if back or front faces are culled in a 
+	 * perspective view. The index ranges of the remaining meshlets are 
+	 * drawn by the next draw(). The world bounds must be valid.
+	 * @param view the view that is rendered
+	 * @param renderInfo receives the number of drawn and culled meshlets
+	 */
+	public void cullMeshlets(View view, RenderInfo renderInfo) {
+		visibleRangeCnt = -1;
+		Meshlets meshlets = getVertexDataPeer().vertexData.meshlets;
+		if (meshlets == null) {
+			return;
+		}
+		Mat4 modelMatrix = shape.getModelMatrix();
+		float scale = (float) modelMatrix.getScale();
+		State state = shape.getState();
+		int coneSign = 0;
+		if (view.isPerspective() && state.isCullEnabled() && state.getCullFace() != Face.FRONT_AND_BACK) {
+			// the cones are computed from counter clockwise back faces
+			coneSign = (state.getCullFace() == Face.BACK) == (state.getFrontFace() == FrontFace.CCW) ? 1 : -1;
+		}
+		Point3d eye = view.getRenderOrigin();
+		if (visibleRanges.length < meshlets.count * 2) {
+			visibleRanges = new int[meshlets.count * 2];
+		}
+		int rangeCnt = 0;
+		for (int i=0; i<meshlets.count; i++) {
+			float[] spheres = meshlets.spheres;
+			tempCenter.set(spheres[i*4], spheres[i*4+1], spheres[i*4+2]);
+			modelMatrix.transform(tempCenter);
+			float radius = spheres[i*4+3] * scale;
+			boolean visible = view.isInsideFrustum(tempCenter, radius);
+			float cutoff = meshlets.cones[i*4+3];
+			if (visible && coneSign != 0 && cutoff < 1) {
+				tempAxis.set(meshlets.cones[i*4], meshlets.cones[i*4+1], meshlets.cones[i*4+2]);
+				modelMatrix.transform(tempAxis);
+				tempAxis.normalize();
+				double dx = tempCenter.x - eye.x;
+				double dy = tempCenter.y - eye.y;
+				double dz = tempCenter.z - eye.z;
+				double dot = (dx * tempAxis.x + dy * tempAxis.y + dz * tempAxis.z) * coneSign;
+				visible = dot < cutoff * Math.sqrt(dx * dx + dy * dy + dz * dz) + radius;
+			}
+			if (!visible) {
+				renderInfo.meshletsCulled++;
+				continue;
+			}
+			renderInfo.meshletsDrawn++;
+			int first = meshlets.firstIndex[i];
+			int count = meshlets.indexCount[i];
+			if (rangeCnt > 0 && visibleRanges[rangeCnt*2-2] + visibleRanges[rangeCnt*2-1] == first) {
+				visibleRanges[rangeCnt*2-1] += count;
+			} else {
+				visibleRanges[rangeCnt*2] = first;
+				visibleRanges[rangeCnt*2+1] = count;
+				rangeCnt++;
+			}
+		}
+		visibleRangeCnt = rangeCnt;
+	}
+	
+	/**
+	 * Gets the peer of the vertex data that is drawn.
+	 * @return the vertex data peer of the current level
+	 */
+	public RetainedVertexData getVertexDataPeer() {
+		if (levelPeers != null && level > 0) {
+			return levelPeers[level];
+		}
+		return (RetainedVertexData) shape.getVertexData().nativePeer;
+	}
+	
+	/**
+	 * Adds the shape as a parent of the vertex data, and creates the peer
+	 * the first time the vertex data is used.
+	 */
+	private RetainedVertexData addParent(VertexData vertexData) {
+		if (vertexData.nativePeer == null) {
+			// first time vertex data is added
+			vertexData.nativePeer = new RetainedVertexData(vertexData);
+		}
+		RetainedVertexData peer = (RetainedVertexData) vertexData.nativePeer;
+		peer.parents.add(shape);
+		return peer;
+	}
+	
+	/**
+	 * Removes the shape as a parent of the vertex data. The peer is 
+	 * destroyed when the last parent is removed.
+	 */
+	private void removeParent(VertexData vertexData) {
+		RetainedVertexData peer = (RetainedVertexData) vertexData.nativePeer;
+		peer.parents.remove(shape);
+		if (peer.parents.isEmpty()) {
+			// delete the display list and vertex buffer in render
+			RetainedSceneGraph sceneGraphPeer = ((RetainedRenderPass) shape.parent.nativePeer).sceneGraphPeer;
+			sceneGraphPeer.destroyList.add(peer);
+			vertexData.nativePeer = null;
+		}
+	}
+	
+	/**
+	 * Adds the shape as display list user of all levels except level 0.
+	 */
+	private void addLevelListUsers() {
+		if (levelPeers != null) {
+			for (int i=1; i<levelPeers.length; i++) {
+				levelPeers[i].addListUser(this);
+			}
+		}
+	}
+	
+	/**
+	 * Removes the shape as display list user of all levels except level 0.
+	 */
+	private void removeLevelListUsers() {
+		if (levelPeers != null) {
+			for (int i=1; i<levelPeers.length; i++) {
+				levelPeers[i].removeListUser(this);
+			}
+		}
 	}
 	
 	/**
@@ -306,9 +697,13 @@ class RetainedShape implements ShapePeer {
 	 * @param vertexDataPeer the VertexDataPeer that changed.
 	 */
 	public void vertexDataChanged(RetainedVertexData vertexDataPeer) {
+		if (defer(DEFERRED_VERTICES)) {
+			return;
+		}
 		switch (renderType) {
 		case DISPLAY_LIST:
-			vertexDataPeer.removeListUser(this);
+			((RetainedVertexData) shape.getVertexData().nativePeer).removeListUser(this);
+			removeLevelListUsers();
 			renderType = RenderType.VERTEX_ARRAY;
 			break;
 		case DISPLAY_LIST_WORLD:
@@ -327,27 +722,73 @@ class RetainedShape implements ShapePeer {
 			changeInfo.changeCnt++;
 		}
 		
-		updateWorldBoundsCenter();
+		worldBoundsDirty = true;
 	}
 
 	/**
 	 * Implements ShapePeer. Called when the any other state is changed.
 	 */
 	public void stateChanged() {
-		if (renderer != null) {
+		if (renderer != null && !defer(DEFERRED_STATE)) {
 			renderer.shapeStateChanged(this);
 		}
 	}
 	
+	/**
+	 * Defers the change if the scene graph is inside a transaction.
+	 * @param change one of the DEFERRED_ flags
+	 * @return true if the change was deferred
+	 */
+	private boolean defer(int change) {
+		if (shape.parent == null || shape.parent.nativePeer == null) {
+			return false;
+		}
+		RetainedSceneGraph sceneGraphPeer = ((RetainedRenderPass) shape.parent.nativePeer).sceneGraphPeer;
+		if (!sceneGraphPeer.isInTransaction()) {
+			return false;
+		}
+		if (deferredChanges == 0) {
+			sceneGraphPeer.deferShape(this);
+		}
+		deferredChanges |= change;
+		return true;
+	}
+	
+	/**
+	 * Applies the changes that was deferred by a transaction. Invoked by
+	 * RetainedSceneGraph when the transaction is committed.
+	 */
+	void applyDeferredChanges() {
+		int changes = deferredChanges;
+		deferredChanges = 0;
+		if (shape.nativePeer != this) {
+			// shape was removed inside the transaction
+			return;
+		}
+		if ((changes & (DEFERRED_ATTACHMENTS | DEFERRED_VERTEX_DATA)) != 0) {
+			reattach();
+		}
+		if ((changes & DEFERRED_VERTICES) != 0 && (changes & DEFERRED_VERTEX_DATA) == 0) {
+			vertexDataChanged(getVertexDataPeer());
+		}
+		if ((changes & DEFERRED_MATRIX) != 0) {
+			matrixChanged();
+		}
+		if ((changes & (DEFERRED_STATE | DEFERRED_ATTACHMENTS)) != 0) {
+			stateChanged();
+		}
+	}
+	
 	/**
 	 * Draws the geometry.
+	 * @param glState the state of the current OpenGL context
 	 */
-	public void draw() {
+	public void draw(GLState glState) {
 		if (shape.getState().getShader() != null) {
-			GLState.applyUniforms(shape);
+			glState.applyUniforms(shape);
 		}
 
-        RetainedVertexData vertexData = (RetainedVertexData) shape.getVertexData().nativePeer;
+        RetainedVertexData vertexData = getVertexDataPeer();
 		switch (renderType) {
 		case IMMEDIATE:
 			vertexData.drawImmediate(null);
@@ -358,7 +799,7 @@ class RetainedShape implements ShapePeer {
 			}
 			break;
 		case VERTEX_ARRAY:
-			GLState.clientState = vertexData.drawVertexArray(GLState.clientState);
+			glState.clientState = vertexData.drawVertexArray(glState.clientState, visibleRanges, visibleRangeCnt);
 			if (worldDisplayListId > 0) {
 				worldBBox = null;
 				GL11.glDeleteLists(worldDisplayListId, 1);
@@ -369,7 +810,7 @@ class RetainedShape implements ShapePeer {
             if (vertexData.listId > 0) {
                 vertexData.drawList();
             } else {
-                GLState.clientState = vertexData.drawVertexArray(GLState.clientState);
+                glState.clientState = vertexData.drawVertexArray(glState.clientState);
             }
 			if (worldDisplayListId > 0) {
 				worldBBox = null;
@@ -378,12 +819,19 @@ class RetainedShape implements ShapePeer {
 			}
 			break;
 		case DISPLAY_LIST_WORLD:
-			if (worldDisplayListId <= 0) {
-				worldDisplayListId = GL11.glGenLists(1);
+			if (worldDisplayListId <= 0 || !worldDisplayListValid) {
+				if (worldDisplayListId <= 0) {
+					worldDisplayListId = GL11.glGenLists(1);
+				}
+				// cell relative coordinates, the translation is done in double
+				Mat4 cellMatrix = new Mat4();
+				cellMatrix.invert(worldListMatrix);
+				cellMatrix.mul(shape.getModelMatrix());
 				GL11.glNewList(worldDisplayListId, GL11.GL_COMPILE);
-				vertexData.drawImmediate(shape.getModelMatrix());
+				vertexData.drawImmediate(cellMatrix);
 				worldBBox = vertexData.calculateBoundingBox(shape.getModelMatrix()); 
 				GL11.glEndList();
+				worldDisplayListValid = true;
 			}
 			// TODO: we can no longer batch lists because shader uniforms can change between shapes
 			GL11.glCallList(worldDisplayListId);
@@ -404,14 +852,36 @@ class RetainedShape implements ShapePeer {
 	 * @param newRenderType
 	 */
 	public void changeRenderType(RenderType newRenderType) {
+		if (newRenderType == RenderType.DISPLAY_LIST_WORLD && getVertexDataPeer().vertexData.format != null) {
+			// interleaved data can not be transformed to world space
+			newRenderType = RenderType.DISPLAY_LIST;
+		}
+		if ((newRenderType == RenderType.DISPLAY_LIST || newRenderType == RenderType.DISPLAY_LIST_WORLD) 
+				&& hasMeshlets()) {
+			// display lists can not draw only the visible meshlets
+			newRenderType = RenderType.VERTEX_ARRAY;
+		}
 		if (newRenderType != renderType) {
+			if (newRenderType == RenderType.DISPLAY_LIST_WORLD) {
+				// the matrix may have changed since the list was compiled
+				Vector3d translation = new Vector3d();
+				shape.getModelMatrix().get(translation);
+				translation.x = Math.floor(translation.x / WORLD_LIST_CELL_SIZE) * WORLD_LIST_CELL_SIZE;
+				translation.y = Math.floor(translation.y / WORLD_LIST_CELL_SIZE) * WORLD_LIST_CELL_SIZE;
+				translation.z = Math.floor(translation.z / WORLD_LIST_CELL_SIZE) * WORLD_LIST_CELL_SIZE;
+				worldListMatrix = new Mat4();
+				worldListMatrix.setTranslation(translation);
+				worldDisplayListValid = false;
+			}
 			if (renderType == RenderType.DISPLAY_LIST) {
 				RetainedVertexData vertexDataPeer = (RetainedVertexData) shape.getVertexData().nativePeer;
 				vertexDataPeer.removeListUser(this);
+				removeLevelListUsers();
 			}
 			if (newRenderType == RenderType.DISPLAY_LIST) {
 				RetainedVertexData vertexDataPeer = (RetainedVertexData) shape.getVertexData().nativePeer;
 				vertexDataPeer.addListUser(this);
+				addLevelListUsers();
 			}
 
 			renderType = newRenderType;
@@ -419,13 +889,14 @@ class RetainedShape implements ShapePeer {
 	}
 	
 	/**
-	 * Gets the model matrix used to draw. Returns always identity if
-	 * renderType is DISPLAY_LIST_WORLD.
+	 * Gets the model matrix used to draw. Returns the translation of the
+	 * grid cell of the world display list if renderType is 
+	 * DISPLAY_LIST_WORLD.
 	 * @return the transform matrix
 	 */
 	public Mat4 getModelMatrix() {
 		if (renderType == RenderType.DISPLAY_LIST_WORLD) {
-			return IDENTITY_MATRIX;
+			return worldListMatrix;
 		}
 		return shape.getModelMatrix();
 	}
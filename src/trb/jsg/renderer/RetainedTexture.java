@@ -49,10 +49,14 @@ import static org.lwjgl.opengl.GL12.*;
 import static org.lwjgl.opengl.GL13.*;
 import static org.lwjgl.opengl.GL14.*;
 
+import trb.jsg.RenderTarget;
 import trb.jsg.Shape;
 import trb.jsg.Texture;
+import trb.jsg.enums.Format;
+import trb.jsg.enums.TextureType;
 import trb.jsg.peers.*;
 import trb.jsg.util.SGUtil;
+import trb.jsg.util.TextureLoader;
 
 /**
  * Texture peer.
@@ -68,12 +72,40 @@ class RetainedTexture implements TexturePeer, NativeResource {
 	/** Set to true when texture data is changed and cleared when texture is uploaded */
 	private boolean isAllDataDirty = true;
 
-    /** Cleared when texture is uploaded */
-    private ArrayList<Rectangle> dirtyRects = new ArrayList();
+    /** The changed regions, merged when added. Cleared when texture is uploaded */
+    private DirtyRects dirtyRects = new DirtyRects();
 
     /** Use texImage the first time and texSubImage when updating, even if all the image is updated */
     private boolean dataCreated = false;
 	
+	/** Increased every time the texture storage is allocated, so streamed
+	 * uploads queued for the old storage is skipped */
+	private int storageGeneration = 0;
+	
+	/** The exception or error from the last streamed upload that failed, 
+	 * or null. Cleared when the texture is streamed again. */
+	Throwable uploadError = null;
+	
+	/** The residency manager the texture is added to, or null */
+	private TextureResidency residency;
+	
+	/** The residency of the texture */
+	final TextureResidency.Entry residencyEntry = new TextureResidency.Entry(this);
+	
+	/** Set when the size of the texture is changed */
+	private boolean isSizeDirty = false;
+	
+	/** The first client level that is uploaded as level 0. Is set by the 
+	 * residency manager to drop the top levels. */
+	private int baseLevel = 0;
+	
+	/** The base level set by the residency manager. Is applied in the next
+	 * update, since the texture can be in use by the current frame. */
+	private int requestedBaseLevel = 0;
+	
+	/** Set when requestedBaseLevel is changed */
+	private boolean isBaseLevelDirty = false;
+	
 	/** Set to true when texture state is changed and cleared when texture state is set */
 	private boolean isStateDirty = true;
 
@@ -94,14 +126,47 @@ class RetainedTexture implements TexturePeer, NativeResource {
 	/**
 	 * Implements SimpleNativeResource.
 	 */
-	public void updateNativeResource() {
-		if (isDataDirty() || isStateDirty) {
-			for (int i=0; i<parents.size(); i++) {
-				Object obj = parents.get(i);
-				if (obj instanceof Shape) {
-					((RetainedShape) ((Shape)obj).nativePeer).textureStateHash = -1;
-				}
+	public void updateNativeResource(RenderContext context) {
+		if (residency != null && isSizeDirty) {
+			isSizeDirty = false;
+			baseLevel = 0;
+			requestedBaseLevel = 0;
+			isBaseLevelDirty = false;
+			updateResidencySize();
+			residency.sizeChanged(residencyEntry);
+		}
+		if (residencyEntry.isEvicted()) {
+			// reloaded when touched by the renderer
+			if (isBaseLevelDirty) {
+				isBaseLevelDirty = false;
+				destroyNativeResource(context);
+				baseLevel = requestedBaseLevel;
+				isAllDataDirty = true;
+				dirtyRects.clear();
+				isStateDirty = true;
+				invalidateParents();
+			}
+			return;
+		}
+		
+		// the levels are uploaded to a new texture, the old texture is 
+		// deleted when the new is complete
+		int oldTextureId = 0;
+		if (isBaseLevelDirty) {
+			isBaseLevelDirty = false;
+			if (requestedBaseLevel != baseLevel && textureId.get(0) > 0) {
+				oldTextureId = textureId.get(0);
+				textureId.put(0, 0);
+				dataCreated = false;
+				isAllDataDirty = true;
+				dirtyRects.clear();
+				isStateDirty = true;
 			}
+			baseLevel = requestedBaseLevel;
+		}
+		
+		if (isDataDirty() || isStateDirty) {
+			invalidateParents();
 		}
 		
 		if (isDataDirty()) {
@@ -112,8 +177,8 @@ class RetainedTexture implements TexturePeer, NativeResource {
 			}
 			int id = textureId.get(0);
 			int target = texture.getType().get();
-			GLState.glActiveTextureWrapper(GL13.GL_TEXTURE0);
-			GLState.glBindTextureWrapper(target, id);
+			context.glState.glActiveTextureWrapper(GL13.GL_TEXTURE0);
+			context.glState.glBindTextureWrapper(target, id);
 
             int w = texture.getWidth();
             int h = texture.getHeight();
@@ -136,8 +201,38 @@ class RetainedTexture implements TexturePeer, NativeResource {
 					if (texture.getLevelCount(0) <= 1) {
 						int mipmapVal = texture.getGenerateMipMaps() ? GL_TRUE : GL_FALSE;
 						glTexParameteri(GL_TEXTURE_2D, GL_GENERATE_MIPMAP, mipmapVal);
+					} else {
+						// a partial mip chain, like the levels of an atlas, is 
+						// complete when the missing levels are not sampled
+						glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAX_LEVEL, texture.getLevelCount(0) - 1 - baseLevel);
 					}
-                    if (dirtyRects.size() > 0) {
+                    if (isRegeneratingMipmaps()) {
+                        if (dirtyRects.size() > 0) {
+                            for (int i=0; i<dirtyRects.size(); i++) {
+                                TextureLoader.generateMipmaps(texture.getPixels()[0], w, h, texture.getFormat(), dirtyRects.get(i));
+                            }
+                        } else {
+                            TextureLoader.generateMipmaps(texture.getPixels()[0], w, h, texture.getFormat(), new Rectangle(0, 0, w, h));
+                        }
+                    }
+                    if (baseLevel > 0 || texture.isCompressed() || oldTextureId > 0) {
+                        // compressed images is always replaced as a whole, 
+                        // and a replacement texture must be complete before
+                        // the old is deleted
+                        create2D(w, h);
+                    } else if (isStreamed(context)) {
+                        if (!dataCreated) {
+                            allocate2D(w, h);
+                        }
+                        if (dirtyRects.size() > 0) {
+                            for (int i=0; i<dirtyRects.size(); i++) {
+                                Rectangle rect = dirtyRects.get(i);
+                                stream2D(context, rect.x, rect.y, rect.width, rect.height);
+                            }
+                        } else {
+                            stream2D(context, 0, 0, w, h);
+                        }
+                    } else if (dirtyRects.size() > 0) {
                         for (int i=0; i<dirtyRects.size(); i++) {
                             Rectangle rect = dirtyRects.get(i);
                             update2D(rect.x, rect.y, rect.width, rect.height);
@@ -167,7 +262,10 @@ class RetainedTexture implements TexturePeer, NativeResource {
 						pixels.rewind();
 						int sideTarget = GL_TEXTURE_CUBE_MAP_POSITIVE_X+sideIdx;
 						Util.checkGLError();
-                        if (!dataCreated) {
+                        if (texture.isCompressed()) {
+                            glCompressedTexImage2D(sideTarget, levelIdx, texture.getInternalFormat()
+                                    , cubew, cubeh, 0, pixels);
+                        } else if (!dataCreated) {
                             glTexImage2D(sideTarget, levelIdx, texture.getInternalFormat()
                                     , cubew, cubeh
                                     , 0, texture.getFormat().get(), GL_UNSIGNED_BYTE, pixels);
@@ -211,8 +309,8 @@ class RetainedTexture implements TexturePeer, NativeResource {
 			}
 			int target = texture.getType().get();
 			int id = textureId.get(0);
-			GLState.glActiveTextureWrapper(GL13.GL_TEXTURE0);
-			GLState.glBindTextureWrapper(target, id);
+			context.glState.glActiveTextureWrapper(GL13.GL_TEXTURE0);
+			context.glState.glBindTextureWrapper(target, id);
 			glTexParameteri(target, GL_TEXTURE_MAG_FILTER, texture.getMagFilter().get());
 			glTexParameteri(target, GL_TEXTURE_MIN_FILTER, texture.getMinFilter().get());
 			glTexParameterf(target, GL_TEXTURE_MAX_ANISOTROPY_EXT, texture.getMaxAnisotropy());
@@ -220,22 +318,116 @@ class RetainedTexture implements TexturePeer, NativeResource {
             glTexParameteri(target, GL_TEXTURE_WRAP_T, texture.getWrapT().get());
             glTexParameteri(target, GL_TEXTURE_WRAP_R, texture.getWrapT().get());
 		}
+		
+		if (oldTextureId > 0) {
+			glDeleteTextures(oldTextureId);
+		}
 	}
 
     private void create2D(int w, int h) {
-        if (texture.isCompressed()) {
-            // TODO: use glCompressedTexImage2D
-        }
-
-        for (int levelIdx = 0; levelIdx < texture.getLevelCount(0); levelIdx++) {
+        w = Math.max(1, w >> baseLevel);
+        h = Math.max(1, h >> baseLevel);
+        for (int levelIdx = baseLevel; levelIdx < texture.getLevelCount(0); levelIdx++) {
             ByteBuffer pixels = texture.getPixels(0, levelIdx);
             pixels.rewind();
             //System.out.println("glTexImage2D "+levelIdx+" w="+w+" h="+h);
-            glTexImage2D(GL_TEXTURE_2D, levelIdx, texture.getInternalFormat(), w, h, 0, texture.getFormat().get(), GL_UNSIGNED_BYTE, pixels);
+            if (texture.isCompressed()) {
+                glCompressedTexImage2D(GL_TEXTURE_2D, levelIdx - baseLevel, texture.getInternalFormat(), w, h, 0, pixels);
+            } else {
+                glTexImage2D(GL_TEXTURE_2D, levelIdx - baseLevel, texture.getInternalFormat(), w, h, 0, texture.getFormat().get(), GL_UNSIGNED_BYTE, pixels);
+            }
+            w = Math.max(1, w >> 1);
+            h = Math.max(1, h >> 1);
+        }
+        dataCreated = true;
+        storageGeneration++;
+    }
+
+    /**
+     * Checks if the texture data should be streamed through the upload 
+     * scheduler instead of uploaded directly.
+     */
+    private boolean isStreamed(RenderContext context) {
+        if (texture.isCompressed() || !PixelBufferRing.isSupported()) {
+            return false;
+        }
+        long rowBytes = (long) texture.getWidth() * getBytesPerPixel();
+        return rowBytes * texture.getHeight() >= context.streamingThreshold
+                && rowBytes <= context.uploadScheduler.getSlotSize();
+    }
+
+    /**
+     * Allocates the storage of all levels without data.
+     */
+    private void allocate2D(int w, int h) {
+        for (int levelIdx = 0; levelIdx < texture.getLevelCount(0); levelIdx++) {
+            glTexImage2D(GL_TEXTURE_2D, levelIdx, texture.getInternalFormat(), w, h, 0, texture.getFormat().get(), GL_UNSIGNED_BYTE, (ByteBuffer) null);
             w = Math.max(1, w >> 1);
             h = Math.max(1, h >> 1);
         }
         dataCreated = true;
+        storageGeneration++;
+    }
+
+    /**
+     * Queues the region of all levels on the upload scheduler, split into 
+     * bands of rows that fits in a staging slot.
+     */
+    private void stream2D(RenderContext context, int rx, int ry, int rw, int rh) {
+        int x = Math.max(0, rx);
+        int y = Math.max(0, ry);
+        int x2 = Math.min(texture.getWidth(), rx + rw);
+        int y2 = Math.min(texture.getHeight(), ry + rh);
+        int w = Math.max(0, x2 - x);
+        int h = Math.max(0, y2 - y);
+        if (w == 0 || h == 0) {
+            return;
+        }
+        uploadError = null;
+        int bpp = getBytesPerPixel();
+        int mipw = texture.getWidth();
+        for (int levelIdx = 0; levelIdx < texture.getLevelCount(0); levelIdx++) {
+            ByteBuffer pixels = texture.getPixels(0, levelIdx);
+            int rowsPerUpload = Math.max(1, context.uploadScheduler.getSlotSize() / (w * bpp));
+            for (int row = y; row < y + h; row += rowsPerUpload) {
+                int rowCnt = Math.min(rowsPerUpload, y + h - row);
+                context.uploadScheduler.add(new RowUpload(pixels, levelIdx, x, row, w, rowCnt, mipw, bpp));
+            }
+            mipw = Math.max(1, mipw >> 1);
+            int miph = Math.max(1, texture.getHeight() >> (levelIdx + 1));
+            w = Math.min(mipw, ((x + w - 1) >> 1) + 1) - (x >> 1);
+            h = Math.min(miph, ((y + h - 1) >> 1) + 1) - (y >> 1);
+            x = x >> 1;
+            y = y >> 1;
+        }
+    }
+
+    /**
+     * Checks if the client levels below level 0 should be filtered from 
+     * level 0 in the changed regions before they are uploaded.
+     */
+    private boolean isRegeneratingMipmaps() {
+        return texture.getGenerateMipMaps() && !texture.isCompressed()
+                && texture.getPixels() != null && texture.getLevelCount(0) > 1;
+    }
+
+    /**
+     * Gets the size of a pixel in the client data.
+     */
+    private int getBytesPerPixel() {
+        Format format = texture.getFormat();
+        switch (format) {
+        case RGB:
+        case BGR:
+            return 3;
+        case RGBA:
+        case BGRA:
+            return 4;
+        case LUMINANCE_ALPHA:
+            return 2;
+        default:
+            return 1;
+        }
     }
 
     private void update2D(int rx, int ry, int rw, int rh) {
@@ -245,20 +437,25 @@ class RetainedTexture implements TexturePeer, NativeResource {
         int y2 = Math.min(texture.getHeight(), ry + rh);
         int w = Math.max(0, x2 - x);
         int h = Math.max(0, y2 - y);
+        if (w == 0 || h == 0) {
+            return;
+        }
+        int bpp = getBytesPerPixel();
         int mipw = texture.getWidth();
         int miph = texture.getHeight();
         for (int levelIdx = 0; levelIdx < texture.getLevelCount(0); levelIdx++) {
             GL11.glPixelStorei(GL_UNPACK_ROW_LENGTH, mipw);
             ByteBuffer pixels = texture.getPixels(0, levelIdx);
             pixels.rewind();
-            pixels.position((y*mipw+x)*texture.getInternalFormat());
+            pixels.position((y*mipw+x)*bpp);
             glTexSubImage2D(GL_TEXTURE_2D, levelIdx, x, y, w, h, texture.getFormat().get(), GL_UNSIGNED_BYTE, pixels);
-            x = x >> 1;
-            y = y >> 1;
-            w = Math.max(1, w >> 1);
-            h = Math.max(1, h >> 1);
+            // texel x of the next level is filtered from texel 2x and 2x+1
             mipw = Math.max(1, mipw >> 1);
             miph = Math.max(1, miph >> 1);
+            w = Math.min(mipw, ((x + w - 1) >> 1) + 1) - (x >> 1);
+            h = Math.min(miph, ((y + h - 1) >> 1) + 1) - (y >> 1);
+            x = x >> 1;
+            y = y >> 1;
         }
         GL11.glPixelStorei(GL_UNPACK_ROW_LENGTH, 0);
     }
@@ -266,11 +463,13 @@ class RetainedTexture implements TexturePeer, NativeResource {
 	/**
 	 * Implements SimpleNativeResource.
 	 */
-	public void destroyNativeResource() {
+	public void destroyNativeResource(RenderContext context) {
 		if (textureId.get(0) > 0) {
 			textureId.rewind();
 			glDeleteTextures(textureId);
 			System.out.println(this+" SimpleTexturePeer destroy opengl texture id="+textureId.get(0));
+			textureId.put(0, 0);
+			dataCreated = false;
 		}
 	}
 
@@ -286,12 +485,21 @@ class RetainedTexture implements TexturePeer, NativeResource {
 	 * Implements TexturePeer.
 	 */
 	public void textureDataChanged(Texture texture, Rectangle[] dirtyRects) {
-        if (isAllDataDirty || dirtyRects.length == 0) {
+        if (dirtyRects == null) {
+            // called from setTextureData
+            isSizeDirty = true;
+        }
+        if (isAllDataDirty || dirtyRects == null || dirtyRects.length == 0) {
             isAllDataDirty = true;
             this.dirtyRects.clear();
         } else {
             for (int i = 0; i < dirtyRects.length; i++) {
-                this.dirtyRects.add(dirtyRects[i]);
+                this.dirtyRects.add(dirtyRects[i], texture.getWidth(), texture.getHeight());
+            }
+            if (this.dirtyRects.isFull()) {
+                // cheaper to upload everything
+                isAllDataDirty = true;
+                this.dirtyRects.clear();
             }
         }
 		for (Object parent : parents) {
@@ -318,6 +526,142 @@ class RetainedTexture implements TexturePeer, NativeResource {
     private boolean isDataDirty() {
         return isAllDataDirty || (dirtyRects.size() > 0);
     }
+
+    private void invalidateParents() {
+        for (int i=0; i<parents.size(); i++) {
+            Object obj = parents.get(i);
+            if (obj instanceof Shape) {
+                ((RetainedShape) ((Shape)obj).nativePeer).textureStateHash = -1;
+            }
+        }
+    }
+
+    /**
+     * Adds the texture to a residency manager.
+     * @param residency the residency manager
+     */
+    void addResidency(TextureResidency residency) {
+        this.residency = residency;
+        updateResidencySize();
+        residency.add(residencyEntry);
+    }
+
+    /**
+     * Removes the texture from its residency manager.
+     */
+    void removeResidency() {
+        if (residency != null) {
+            residency.remove(residencyEntry);
+            residency = null;
+        }
+    }
+
+    /**
+     * Marks the texture as used in the current frame.
+     */
+    void touch() {
+        if (residency != null) {
+            residency.touch(residencyEntry);
+        }
+    }
+
+    /**
+     * Checks if the texture content can be reloaded from the client pixels.
+     */
+    boolean isEvictable() {
+        if (texture.getPixels() == null) {
+            return false;
+        }
+        for (int i=0; i<parents.size(); i++) {
+            if (parents.get(i) instanceof RenderTarget) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sets the first level that is resident. Can be called while the frame
+     * is rendered, so the current texture is kept until the next update. It
+     * then uploads the levels to a new texture before the old is deleted, or
+     * deletes the texture if evicted.
+     * @param baseLevel the first level, or the level count to evict
+     */
+    void setBaseLevel(int baseLevel) {
+        requestedBaseLevel = Math.min(baseLevel, Math.max(0, texture.getLevelCount(0) - 1));
+        isBaseLevelDirty = true;
+    }
+
+    private void updateResidencySize() {
+        int clientLevelCnt = texture.getPixels() == null ? 1 : texture.getLevelCount(0);
+        int levelCnt = clientLevelCnt;
+        if (clientLevelCnt <= 1 && texture.getGenerateMipMaps()) {
+            levelCnt = TextureResidency.getFullLevelCount(texture.getWidth(), texture.getHeight(), texture.getDepth());
+        }
+        int faceCnt = texture.getType() == TextureType.TEXTURE_CUBE_MAP ? 6 : 1;
+        boolean droppable = texture.getType() == TextureType.TEXTURE_2D && clientLevelCnt > 1;
+        residencyEntry.setSize(texture.getWidth(), texture.getHeight(), texture.getDepth()
+                , faceCnt, levelCnt, texture.getInternalFormat(), droppable);
+    }
+
+    /**
+     * A band of rows of one level that is streamed through a pixel buffer.
+     */
+    private class RowUpload extends PixelBufferRing.PixelUpload {
+
+        private final ByteBuffer pixels;
+        private final int level;
+        private final int x;
+        private final int y;
+        private final int w;
+        private final int h;
+        private final int rowLength;
+        private final int bpp;
+        private final int generation = storageGeneration;
+
+        RowUpload(ByteBuffer pixels, int level, int x, int y, int w, int h, int rowLength, int bpp) {
+            this.pixels = pixels;
+            this.level = level;
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+            this.rowLength = rowLength;
+            this.bpp = bpp;
+        }
+
+        public int getSize() {
+            return w * h * bpp;
+        }
+
+        public void fill(ByteBuffer dst) {
+            ByteBuffer src = pixels.duplicate();
+            for (int row = 0; row < h; row++) {
+                int offset = ((y + row) * rowLength + x) * bpp;
+                src.clear();
+                src.position(offset);
+                src.limit(offset + w * bpp);
+                dst.put(src);
+            }
+        }
+
+        public void copy(RenderContext context) {
+            if (generation != storageGeneration || textureId.get(0) <= 0) {
+                return;
+            }
+            context.glState.glActiveTextureWrapper(GL13.GL_TEXTURE0);
+            context.glState.glBindTextureWrapper(GL_TEXTURE_2D, textureId.get(0));
+            glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+            glTexSubImage2D(GL_TEXTURE_2D, level, x, y, w, h, texture.getFormat().get(), GL_UNSIGNED_BYTE, 0L);
+            glPixelStorei(GL_UNPACK_ALIGNMENT, 4);
+        }
+
+        public void failed(Throwable e) {
+            if (generation == storageGeneration) {
+                uploadError = e;
+            }
+        }
+    }
 //	
 //	/**
 //	 * Scales the texture to the specified size.
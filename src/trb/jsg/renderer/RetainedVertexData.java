@@ -32,8 +32,11 @@
 
 package trb.jsg.renderer;
 
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
 import java.util.ArrayList;
 import javax.vecmath.Color4f;
 
@@ -41,6 +44,7 @@ import javax.vecmath.Point3f;
 
 import org.lwjgl.opengl.GL11;
 import org.lwjgl.opengl.GL13;
+import org.lwjgl.opengl.GL15;
 import org.lwjgl.opengl.GL20;
 
 import trb.jsg.*;
@@ -73,6 +77,15 @@ class RetainedVertexData implements VertexDataPeer, NativeResource {
 	
 	/** The vertex array client state */
 	private long clientState = 0;
+	
+	/** The vertex buffer object holding the interleaved buffer */
+	private int vboId = 0;
+	
+	/** True from data is changed until the interleaved buffer is uploaded */
+	private boolean isVboDirty = true;
+	
+	/** The vertex ranges that must be uploaded if isVboDirty is false */
+	private RangeList dirtyRanges = new RangeList();
 
 	/** Info about how often the transform has changed */
 	public ChangeInfo geometryChangeInfo = new ChangeInfo();
@@ -133,6 +146,28 @@ class RetainedVertexData implements VertexDataPeer, NativeResource {
 	 * Implements VertexDataPeer
 	 */
 	public void vertexDataChanged() {
+		isVboDirty = true;
+		dirtyRanges.clear();
+		clientState = 0;
+		notifyShapes();
+	}
+
+	/**
+	 * Implements VertexDataPeer. Only the changed range is uploaded to the 
+	 * vertex buffer object.
+	 */
+	public void vertexDataChanged(int firstVertex, int count) {
+		if (!isVboDirty) {
+			dirtyRanges.add(firstVertex, firstVertex + count);
+		}
+		notifyShapes();
+	}
+
+	/**
+	 * Marks the display list as dirty and tells the shapes that the content
+	 * has changed.
+	 */
+	private void notifyShapes() {
 		isListDirty = true;
 		geometryChangeInfo.changeCnt++;
 		
@@ -145,17 +180,21 @@ class RetainedVertexData implements VertexDataPeer, NativeResource {
 	/**
 	 * Implements SimpleNativeResource.
 	 */
-	public void destroyNativeResource() {
+	public void destroyNativeResource(RenderContext context) {
 		if (listId > 0) {
 			GL11.glDeleteLists(listId, 1);
 			listId = 0;
 		}
+		if (vboId > 0 && parents.isEmpty()) {
+			GL15.glDeleteBuffers(vboId);
+			vboId = 0;
+		}
 	}
 
 	/**
 	 * Implements SimpleNativeResource.
 	 */
-	public void updateNativeResource() {
+	public void updateNativeResource(RenderContext context) {
 		if (isListDirty && listUsers.size() > 0) {
 			isListDirty = false;
 			if (listId > 0) {
@@ -163,10 +202,19 @@ class RetainedVertexData implements VertexDataPeer, NativeResource {
 				listId = 0;
 			}
 	
-			listId = GL11.glGenLists(1);
-			GL11.glNewList(listId, GL11.GL_COMPILE);
-			drawImmediate(null);
-			GL11.glEndList();
+			if (vertexData.format != null) {
+				// vertex arrays are dereferenced when the list is compiled
+				updateBuffer();
+				listId = GL11.glGenLists(1);
+				GL11.glNewList(listId, GL11.GL_COMPILE);
+				context.glState.clientState = drawVertexArray(context.glState.clientState);
+				GL11.glEndList();
+			} else {
+				listId = GL11.glGenLists(1);
+				GL11.glNewList(listId, GL11.GL_COMPILE);
+				drawImmediate(null);
+				GL11.glEndList();
+			}
 		}
 	}
 	
@@ -188,7 +236,7 @@ class RetainedVertexData implements VertexDataPeer, NativeResource {
 		FloatBuffer normals = vertexData.normals;
 		ObjectArray<VertexData.TexCoordData> texCoords = vertexData.texCoords;
 		ObjectArray<VertexData.AttributeData> attributes = vertexData.attributes;
-		IntBuffer indices = vertexData.indices;
+		Buffer indices = vertexData.indices;
 		GL11.glBegin(vertexData.mode.get());
         if (colors == null) {
             Color4f c = vertexData.defaultColor;
@@ -196,7 +244,7 @@ class RetainedVertexData implements VertexDataPeer, NativeResource {
         }
         int cnt = indices != null ? indices.limit() : coords.limit()/3;
 		for (int index=0; index<cnt; index++) {
-			int vertexIndex = indices != null ? indices.get(index) : index;
+			int vertexIndex = indices != null ? vertexData.getIndex(index) : index;
 			int coordOff = vertexIndex * 3;
 			if (colors != null) {
 				GL11.glColor3f(colors.get(coordOff+0), colors.get(coordOff+1), colors.get(coordOff+2));
@@ -264,12 +312,12 @@ class RetainedVertexData implements VertexDataPeer, NativeResource {
 	 */
 	public BoundingBox calculateBoundingBox(Mat4 localToWorldMatrix) {
 		Point3f lower = new Point3f(Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE);
-		Point3f upper = new Point3f(Float.MIN_VALUE, Float.MIN_VALUE, Float.MIN_VALUE);
+		Point3f upper = new Point3f(-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE);
 		FloatBuffer coords = vertexData.coordinates;
-		IntBuffer indices = vertexData.indices;
+		Buffer indices = vertexData.indices;
         int cnt = indices != null ? indices.limit() : coords.limit() / 3;
 		for (int index=0; index<cnt; index++) {
-			int vertexIndex = indices != null ? indices.get(index) : index;
+			int vertexIndex = indices != null ? vertexData.getIndex(index) : index;
 			int coordOff = vertexIndex * 3;
 			tempCoord.set(coords.get(coordOff+0), coords.get(coordOff+1), coords.get(coordOff+2));
 			localToWorldMatrix.transform(tempCoord);
@@ -327,6 +375,28 @@ class RetainedVertexData implements VertexDataPeer, NativeResource {
 	 * @return
 	 */
 	private long getClientState() {
+		if (vertexData.format != null) {
+			VertexFormat format = vertexData.format;
+			long state = 0;
+			for (int i=0; i<format.getElementCount(); i++) {
+				VertexFormat.Element element = format.getElement(i);
+				switch (element.usage) {
+				case COORDINATES:
+					state |= 1;
+					break;
+				case NORMALS:
+					state |= (1 << 1);
+					break;
+				case COLORS:
+					state |= (1 << 2);
+					break;
+				case TEX_COORDS:
+					state |= (1 << (3 + element.index));
+					break;
+				}
+			}
+			return state;
+		}
 		FloatBuffer colors = vertexData.colors;
 		FloatBuffer normals = vertexData.normals;
 		ObjectArray<VertexData.TexCoordData> texCoords = vertexData.texCoords;
@@ -350,12 +420,26 @@ class RetainedVertexData implements VertexDataPeer, NativeResource {
 	 * @return
 	 */
 	public long drawVertexArray(long currentClientState) {
+		return drawVertexArray(currentClientState, null, -1);
+	}
+	
+	/**
+	 * Draws ranges of the indices using vertex arrays.
+	 * @param currentClientState the current client state
+	 * @param ranges first index and index count pairs
+	 * @param rangeCnt the number of ranges or -1 to draw all indices
+	 * @return the new client state
+	 */
+	public long drawVertexArray(long currentClientState, int[] ranges, int rangeCnt) {
+		if (vertexData.format != null) {
+			return drawInterleaved(currentClientState, ranges, rangeCnt);
+		}
 		FloatBuffer coords = vertexData.coordinates;
 		FloatBuffer colors = vertexData.colors;
 		FloatBuffer normals = vertexData.normals;
 		ObjectArray<VertexData.TexCoordData> texCoords = vertexData.texCoords;
 		ObjectArray<VertexData.AttributeData> attributes = vertexData.attributes;
-		IntBuffer indices = vertexData.indices;
+		Buffer indices = vertexData.indices;
 		
 		if (clientState == 0) {
 			clientState = getClientState();
@@ -405,8 +489,7 @@ class RetainedVertexData implements VertexDataPeer, NativeResource {
 		GL11.glVertexPointer(3, 0, coords);
 
         if (indices != null) {
-            indices.rewind();
-            GL11.glDrawElements(vertexData.mode.get(), indices);
+            drawElements(vertexData.mode.get(), indices, ranges, rangeCnt);
         } else {
             GL11.glDrawArrays(vertexData.mode.get(), 0, coords.limit()/3);
         }
@@ -420,6 +503,108 @@ class RetainedVertexData implements VertexDataPeer, NativeResource {
 		return clientState;
 	}
 	
+	/**
+	 * Draws the interleaved buffer from the vertex buffer object. All 
+	 * pointers are set up from the format with a single buffer bind.
+	 * @param currentClientState the current client state
+	 * @param ranges first index and index count pairs
+	 * @param rangeCnt the number of ranges or -1 to draw all indices
+	 * @return the new client state
+	 */
+	private long drawInterleaved(long currentClientState, int[] ranges, int rangeCnt) {
+		VertexFormat format = vertexData.format;
+		Buffer indices = vertexData.indices;
+		int stride = format.getStride();
+		
+		updateBuffer();
+		
+		if (clientState == 0) {
+			clientState = getClientState();
+		}
+		
+		applyClientState(currentClientState, clientState);
+		
+		GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, vboId);
+		for (int i=0; i<format.getElementCount(); i++) {
+			VertexFormat.Element element = format.getElement(i);
+			int type = element.type.get();
+			switch (element.usage) {
+			case COORDINATES:
+				GL11.glVertexPointer(element.size, type, stride, element.offset);
+				break;
+			case NORMALS:
+				GL11.glNormalPointer(type, stride, element.offset);
+				break;
+			case COLORS:
+				GL11.glColorPointer(element.size, type, stride, element.offset);
+				break;
+			case TEX_COORDS:
+				GL13.glClientActiveTexture(GL13.GL_TEXTURE0 + element.index);
+				GL11.glTexCoordPointer(element.size, type, stride, element.offset);
+				break;
+			case ATTRIBUTE:
+				GL20.glEnableVertexAttribArray(element.index+1);
+				GL20.glVertexAttribPointer(element.index+1, element.size, type, element.normalized, stride, element.offset);
+				break;
+			}
+		}
+		if (format.getElement(VertexFormat.Usage.COLORS, 0) == null) {
+            Color4f c = vertexData.defaultColor;
+            GL11.glColor4f(c.x, c.y, c.z, c.w);
+		}
+		
+        if (indices != null) {
+            drawElements(vertexData.mode.get(), indices, ranges, rangeCnt);
+        } else {
+            GL11.glDrawArrays(vertexData.mode.get(), 0, vertexData.interleaved.limit() / stride);
+        }
+		
+		for (int i=0; i<format.getElementCount(); i++) {
+			VertexFormat.Element element = format.getElement(i);
+			if (element.usage == VertexFormat.Usage.ATTRIBUTE) {
+				GL20.glDisableVertexAttribArray(element.index+1);
+			}
+		}
+		GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+		
+		return clientState;
+	}
+	
+	/**
+	 * Uploads the interleaved buffer if it has changed. Creates the vertex
+	 * buffer object the first time.
+	 */
+	private void updateBuffer() {
+		if (vboId <= 0) {
+			vboId = GL15.glGenBuffers();
+			isVboDirty = true;
+		}
+		ByteBuffer data = vertexData.interleaved;
+		int stride = vertexData.format.getStride();
+		if (!isVboDirty && dirtyRanges.getCoverage() * stride > data.limit() / 2) {
+			// cheaper to replace the whole buffer
+			isVboDirty = true;
+		}
+		if (isVboDirty) {
+			isVboDirty = false;
+			dirtyRanges.clear();
+			data.rewind();
+			GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, vboId);
+			GL15.glBufferData(GL15.GL_ARRAY_BUFFER, data, GL15.GL_STATIC_DRAW);
+			GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+		} else if (dirtyRanges.size() > 0) {
+			GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, vboId);
+			ByteBuffer range = data.duplicate();
+			for (int i=0; i<dirtyRanges.size(); i++) {
+				int start = dirtyRanges.getStart(i) * stride;
+				range.limit(dirtyRanges.getEnd(i) * stride).position(start);
+				GL15.glBufferSubData(GL15.GL_ARRAY_BUFFER, start, range);
+			}
+			dirtyRanges.clear();
+			GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+		}
+	}
+	
 	/**
 	 * Disables all client states.
 	 */
@@ -433,16 +618,61 @@ class RetainedVertexData implements VertexDataPeer, NativeResource {
 		}		
 	}
 	
+	/**
+	 * Draws the indices with the index type matching the buffer.
+	 * @param mode the primitive mode
+	 * @param indices a ByteBuffer, ShortBuffer or IntBuffer
+	 */
+	static void drawElements(int mode, Buffer indices) {
+		indices.rewind();
+		if (indices instanceof ShortBuffer) {
+			GL11.glDrawElements(mode, (ShortBuffer) indices);
+		} else if (indices instanceof IntBuffer) {
+			GL11.glDrawElements(mode, (IntBuffer) indices);
+		} else {
+			GL11.glDrawElements(mode, (ByteBuffer) indices);
+		}
+	}
+	
+	/**
+	 * Draws ranges of the indices with one draw call per range.
+	 * @param mode the primitive mode
+	 * @param indices a ByteBuffer, ShortBuffer or IntBuffer
+	 * @param ranges first index and index count pairs
+	 * @param rangeCnt the number of ranges or -1 to draw all indices
+	 */
+	static void drawElements(int mode, Buffer indices, int[] ranges, int rangeCnt) {
+		if (rangeCnt < 0) {
+			drawElements(mode, indices);
+			return;
+		}
+		int limit = indices.limit();
+		for (int i=0; i<rangeCnt; i++) {
+			indices.position(0);
+			indices.limit(ranges[i*2] + ranges[i*2+1]);
+			indices.position(ranges[i*2]);
+			if (indices instanceof ShortBuffer) {
+				GL11.glDrawElements(mode, (ShortBuffer) indices);
+			} else if (indices instanceof IntBuffer) {
+				GL11.glDrawElements(mode, (IntBuffer) indices);
+			} else {
+				GL11.glDrawElements(mode, (ByteBuffer) indices);
+			}
+		}
+		indices.limit(limit);
+		indices.rewind();
+	}
+	
 	/**
 	 * Gets the minimum and maximum values in the indices array.
 	 * @return array of 2 elements with minimum and maximum values
 	 */
 	public int[] getMinMaxIndex() {
-		IntBuffer indices = vertexData.indices;
+		Buffer indices = vertexData.indices;
 		int min = Integer.MAX_VALUE;
 		int max = Integer.MIN_VALUE;
 		for (int i=indices.position(); i<indices.limit(); i++) {
-			int index = indices.get(i);
+			int index = vertexData.getIndex(i);
 			min = Math.min(min, index);
 			max = Math.max(max, index);
 		}
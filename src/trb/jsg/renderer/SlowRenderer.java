@@ -83,7 +83,7 @@ class SlowRenderer {
 				GLUtils.loadMatrix(new Mat4(modelViewMatrix));
 			}
 			
-			GLState.applyDif(shape);
+			renderPassPeer.sceneGraphPeer.context.glState.applyDif(shape);
 	
 			((RetainedVertexData) shape.getVertexData().nativePeer).drawImmediate(null);
 		}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2008-2012 Java Scene Graph
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Java Scene Graph' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package trb.jsg.renderer;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A ring of fixed size staging slots used to stream data to OpenGL. Does not
+ * call OpenGL itself so it can be used and tested without a context.
+ * <p>
+ * A slot goes through the states FREE, FILLING, READY and IN_FLIGHT. It is
+ * acquired by the render thread, filled by a worker thread, submitted by the
+ * render thread and is free again when the frame it was submitted in is 
+ * framesInFlight frames old. Slots are acquired in ring order so the oldest
+ * slot is reused first.
+ * 
+ * @author tombr
+ */
+class StagingRing {
+	
+	public static final int FREE = 0;
+	public static final int FILLING = 1;
+	public static final int READY = 2;
+	public static final int IN_FLIGHT = 3;
+	
+	/** The size of each slot in bytes */
+	private final int slotSize;
+	
+	/** The number of frames a submitted slot is kept before it is reused */
+	private final int framesInFlight;
+	
+	/** The state of each slot. Atomic since the READY state is set by the 
+	 * worker threads. */
+	private final AtomicIntegerArray states;
+	
+	/** The frame each in flight slot was submitted in */
+	private final int[] submitFrames;
+	
+	/** The next slot to try to acquire */
+	private int next = 0;
+
+	/**
+	 * Constructs a StagingRing.
+	 * @param slotCnt the number of slots
+	 * @param slotSize the size of each slot in bytes
+	 * @param framesInFlight the number of frames before a submitted slot can be reused
+	 */
+	public StagingRing(int slotCnt, int slotSize, int framesInFlight) {
+		if (slotCnt < 1 || slotSize < 1 || framesInFlight < 0) {
+			throw new IllegalArgumentException("Invalid staging ring slotCnt="+slotCnt
+					+" slotSize="+slotSize+" framesInFlight="+framesInFlight);
+		}
+		this.slotSize = slotSize;
+		this.framesInFlight = framesInFlight;
+		states = new AtomicIntegerArray(slotCnt);
+		submitFrames = new int[slotCnt];
+	}
+	
+	/**
+	 * Gets the number of slots.
+	 */
+	public int getSlotCount() {
+		return submitFrames.length;
+	}
+	
+	/**
+	 * Gets the size of each slot in bytes.
+	 */
+	public int getSlotSize() {
+		return slotSize;
+	}
+	
+	/**
+	 * Gets the state of a slot.
+	 * @param slot the slot index
+	 * @return FREE, FILLING, READY or IN_FLIGHT
+	 */
+	public int getState(int slot) {
+		return states.get(slot);
+	}
+	
+	/**
+	 * Acquires the next free slot in ring order and sets it to FILLING.
+	 * @return the slot index or -1 if no slot is free
+	 */
+	public int acquire() {
+		int slotCnt = submitFrames.length;
+		for (int i=0; i<slotCnt; i++) {
+			int slot = (next + i) % slotCnt;
+			if (states.get(slot) == FREE) {
+				states.set(slot, FILLING);
+				next = (slot + 1) % slotCnt;
+				return slot;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Marks a slot as filled. Can be called from any thread.
+	 * @param slot the slot index
+	 */
+	public void ready(int slot) {
+		if (!states.compareAndSet(slot, FILLING, READY)) {
+			throw new IllegalStateException("Slot "+slot+" is not being filled");
+		}
+	}
+	
+	/**
+	 * Marks a slot as submitted to OpenGL.
+	 * @param slot the slot index
+	 * @param frameIdx the current frame
+	 */
+	public void submit(int slot, int frameIdx) {
+		if (states.get(slot) != READY) {
+			throw new IllegalStateException("Slot "+slot+" is not ready");
+		}
+		submitFrames[slot] = frameIdx;
+		states.set(slot, IN_FLIGHT);
+	}
+	
+	/**
+	 * Frees the in flight slots that was submitted framesInFlight or more 
+	 * frames ago.
+	 * @param frameIdx the current frame
+	 * @return the number of slots freed
+	 */
+	public int retire(int frameIdx) {
+		int freedCnt = 0;
+		for (int slot=0; slot<submitFrames.length; slot++) {
+			if (states.get(slot) == IN_FLIGHT && frameIdx - submitFrames[slot] >= framesInFlight) {
+				states.set(slot, FREE);
+				freedCnt++;
+			}
+		}
+		return freedCnt;
+	}
+}
@@ -35,6 +35,7 @@ package trb.jsg.renderer;
 import java.util.Arrays;
 import java.util.Comparator;
 
+import javax.vecmath.Point3d;
 import javax.vecmath.Point3f;
 
 import org.lwjgl.opengl.GL11;
@@ -60,6 +61,9 @@ class StateSortRenderer {
 	/** Contains information needed to render the shapes (like the view) */
 	public RetainedRenderPass renderPassPeer;
 	
+	/** The state of the renderer that owns the render pass */
+	private RenderContext context;
+	
 	/** Shapes to render back to front */
 	private ShapeList backToFrontList = new ShapeList();
 	
@@ -101,6 +105,7 @@ class StateSortRenderer {
 	
 	public StateSortRenderer(RetainedRenderPass renderPassPeer) {
 		this.renderPassPeer = renderPassPeer;
+		this.context = renderPassPeer.sceneGraphPeer.context;
 	}
 	
 	/**
@@ -151,14 +156,12 @@ class StateSortRenderer {
 
 		// init transform
 		View view = renderPassPeer.renderPass.getView();
-		GLState.modelWorldMatrix = new Mat4();
-		
-		// lights must be transformed by the view transform
-        GLUtils.loadMatrix(view.getCameraMatrix());
-		GLState.applyLights(renderPassPeer.renderPass.getLightState());
+		context.glState.modelWorldMatrix = new Mat4();
 		
-		modelViewMatrix.set(view.getCameraMatrix());
-		GLUtils.loadMatrix(modelViewMatrix);		
+		// lights must be transformed by the view transform, relative to the
+		// render origin like the shapes
+		GLUtils.loadMatrix(view.getRelativeModelViewMatrix(context.glState.modelWorldMatrix, modelViewMatrix));
+		context.glState.applyLights(renderPassPeer.renderPass.getLightState());
 		
 		optimizeLists();
 		renderDepthSorted(frontToBackList, false);
@@ -222,7 +225,7 @@ class StateSortRenderer {
 				for (int shapeIdx=0; shapeIdx<renderPassPeer.renderPass.getShapeCount(); shapeIdx++) {
 					Shape shape = renderPassPeer.renderPass.getShape(shapeIdx);
 					RetainedShape peer = (RetainedShape) shape.nativePeer;
-					if (peer.renderType != RetainedShape.RenderType.DISPLAY_LIST_WORLD) {
+					if (peer.renderType != RetainedShape.RenderType.DISPLAY_LIST_WORLD && !peer.hasMeshlets()) {
 						int framesSinceVertexChange = frameIdx - peer.vertexDataChangeInfo.lastChange;
 						int framesSinceMatrixChange = frameIdx - peer.matrixChangeInfo.lastChange;
 						// 134 / 100
@@ -261,28 +264,34 @@ class StateSortRenderer {
 		
 		// populate sort list with the visible shapes
 		View view = renderPassPeer.renderPass.getView();
-		RenderInfo.shapesIterated += shapeList.elementCnt;
-		RenderInfo.depthSortedShapes += shapeList.elementCnt;
+		context.renderInfo.shapesIterated += shapeList.elementCnt;
+		context.renderInfo.depthSortedShapes += shapeList.elementCnt;
 		for (int shapeIdx=0; shapeIdx<shapeList.elementCnt; shapeIdx++) {
 			RetainedShape peer = shapeList.list[shapeIdx];
 			Shape shape = peer.shape;
-			if (!shape.isVisible()) {
+			if (!shape.isVisible() || !peer.isShaderReady()) {
 				continue;
 			}
-			RenderInfo.visibleShapes++;
+			context.renderInfo.visibleShapes++;
 
+			peer.validateWorldBounds();
 			if (!view.isInsideFrustum(peer.worldBoundsCenter, peer.worldBoundsRadius)) {
 				continue;
 			}
-			RenderInfo.shapesInFrustum++;
+			context.renderInfo.shapesInFrustum++;
+			peer.selectLevel(view);
+			peer.cullMeshlets(view, context.renderInfo);
+			peer.touchTextures();
 			
-			Point3f boundsCenterInViewSpace = peer.worldBoundsCenter;
+			Point3d renderOrigin = view.getRenderOrigin();
+			Point3d center = peer.worldBoundsCenter;
 
 			sortList[sortListLength] = peer;
 			
-			float distance = boundsCenterInViewSpace.x * boundsCenterInViewSpace.x 
-					+ boundsCenterInViewSpace.y * boundsCenterInViewSpace.y
-					+ boundsCenterInViewSpace.z * boundsCenterInViewSpace.z;
+			float dx = (float) (center.x - renderOrigin.x);
+			float dy = (float) (center.y - renderOrigin.y);
+			float dz = (float) (center.z - renderOrigin.z);
+			float distance = dx * dx + dy * dy + dz * dz;
 			
 			radixSortInts[sortListLength] = Float.floatToIntBits(distance);
 			sortListLength++;
@@ -311,26 +320,24 @@ class StateSortRenderer {
 			// apply shape transform it has changed
 			boolean matrixChanged = false;
 			Mat4 modelMatrix = peer.getModelMatrix();
-			if (!GLState.modelWorldMatrix.equals(modelMatrix)) {
-				GLState.modelWorldMatrix = modelMatrix;
-				modelViewMatrix.set(view.getCameraMatrix());
-				modelViewMatrix.mul(new Mat4(modelMatrix));
-				GLUtils.loadMatrix(modelViewMatrix);
+			if (!context.glState.modelWorldMatrix.equals(modelMatrix)) {
+				context.glState.modelWorldMatrix = modelMatrix;
+				GLUtils.loadMatrix(view.getRelativeModelViewMatrix(modelMatrix, modelViewMatrix));
 				matrixChanged = true;
 			}
 
-			if (!GLState.isEqual(shape)) {
-				DisplayListBatch.flush();
-				GLState.applyDif(shape);
+			if (!context.glState.isEqual(shape)) {
+				context.displayListBatch.flush();
+				context.glState.applyDif(shape);
 			} else if (matrixChanged) {
-				DisplayListBatch.flush();
+				context.displayListBatch.flush();
 			}
 
-			peer.draw();
+			peer.draw(context.glState);
 //			((SimpleVertexDataPeer) shape.vertexData.nativePeer).drawList();
 		}
 		
-		DisplayListBatch.flush();
+		context.displayListBatch.flush();
 	}
 
 	/**
@@ -348,25 +355,29 @@ class StateSortRenderer {
 		
 		// populate sort list with the visible shapes
 		View view = renderPassPeer.renderPass.getView();
-		RenderInfo.shapesIterated += shapeList.elementCnt;
-		RenderInfo.dynamicStateShapes += shapeList.elementCnt;
+		context.renderInfo.shapesIterated += shapeList.elementCnt;
+		context.renderInfo.dynamicStateShapes += shapeList.elementCnt;
 		for (int shapeIdx=0; shapeIdx<shapeList.elementCnt; shapeIdx++) {
 			RetainedShape peer = shapeList.list[shapeIdx];
 			Shape shape = peer.shape;
-			if (!shape.isVisible()) {
+			if (!shape.isVisible() || !peer.isShaderReady()) {
 				continue;
 			}
-			RenderInfo.visibleShapes++;
+			context.renderInfo.visibleShapes++;
 
 			// frustum culling
+			peer.validateWorldBounds();
 			if (!view.isInsideFrustum(peer.worldBoundsCenter, peer.worldBoundsRadius)) {
 				continue;
 			}
-			RenderInfo.shapesInFrustum++;
+			context.renderInfo.shapesInFrustum++;
+			peer.selectLevel(view);
+			peer.cullMeshlets(view, context.renderInfo);
+			peer.touchTextures();
 
 			sortList[sortListLength] = peer;
 			
-			radixSortInts[sortListLength] = shape.getState().getHash();
+			radixSortInts[sortListLength] = shape.getState().getSortKey();
 			sortListLength++;
 		}
 		
@@ -383,22 +394,20 @@ class StateSortRenderer {
 			// apply shape transform it has changed
 			boolean matrixChanged = false;
 			Mat4 modelMatrix = peer.getModelMatrix();
-			if (!GLState.modelWorldMatrix.equals(modelMatrix)) {
-				GLState.modelWorldMatrix = modelMatrix;
-				modelViewMatrix.set(view.getCameraMatrix());
-				modelViewMatrix.mul(new Mat4(modelMatrix));
-				GLUtils.loadMatrix(modelViewMatrix);
+			if (!context.glState.modelWorldMatrix.equals(modelMatrix)) {
+				context.glState.modelWorldMatrix = modelMatrix;
+				GLUtils.loadMatrix(view.getRelativeModelViewMatrix(modelMatrix, modelViewMatrix));
 				matrixChanged = true;
 			}
 
-			if (!GLState.isEqual(shape)) {
-				DisplayListBatch.flush();
-				GLState.applyDif(shape);
+			if (!context.glState.isEqual(shape)) {
+				context.displayListBatch.flush();
+				context.glState.applyDif(shape);
 			} else if (matrixChanged) {
-				DisplayListBatch.flush();
+				context.displayListBatch.flush();
 			}
 
-			peer.draw();
+			peer.draw(context.glState);
 			// 155 fps (data is in buffers)
 //			((SimpleVertexDataPeer) shape.vertexData.nativePeer).drawImmediate();
 			// 264 fps
@@ -418,7 +427,7 @@ class StateSortRenderer {
 			// 164 (JME without lockBranch())
 		}
 
-		DisplayListBatch.flush();
+		context.displayListBatch.flush();
 	}
 
 	/**
@@ -439,51 +448,52 @@ class StateSortRenderer {
 		View view = renderPassPeer.renderPass.getView();
 
 		// init transform
-		modelViewMatrix.set(view.getCameraMatrix());
-		GLUtils.loadMatrix(modelViewMatrix);
+		GLUtils.loadMatrix(view.getRelativeModelViewMatrix(context.glState.modelWorldMatrix, modelViewMatrix));
 		
 		// iterate sorted shapes
-		RenderInfo.shapesIterated += shapeList.elementCnt;
-		RenderInfo.staticStateShapes += shapeList.elementCnt;
+		context.renderInfo.shapesIterated += shapeList.elementCnt;
+		context.renderInfo.staticStateShapes += shapeList.elementCnt;
 		for (int shapeIdx=0; shapeIdx<shapeList.elementCnt; shapeIdx++) {
 			RetainedShape peer = shapeList.list[shapeIdx];
 			Shape shape = peer.shape;
-			if (!shape.isVisible()) {
+			if (!shape.isVisible() || !peer.isShaderReady()) {
 				continue;
 			}
-			RenderInfo.visibleShapes++;
+			context.renderInfo.visibleShapes++;
 
+			peer.validateWorldBounds();
 			if (!view.isInsideFrustum(peer.worldBoundsCenter, peer.worldBoundsRadius)) {
 				continue;
 			}
-			RenderInfo.shapesInFrustum++;
+			context.renderInfo.shapesInFrustum++;
+			peer.selectLevel(view);
+			peer.cullMeshlets(view, context.renderInfo);
+			peer.touchTextures();
 //			if (peer.worldBBox != null && !view.isInsideFrustum(peer.worldBBox)) {
 //				continue;
 //			}
-			RenderInfo.shapesInFrustum2++;
+			context.renderInfo.shapesInFrustum2++;
 
 			// apply shape transform it has changed
 			boolean matrixChanged = false;
 			Mat4 modelMatrix = peer.getModelMatrix();
-			if (!GLState.modelWorldMatrix.equals(modelMatrix)) {
-				GLState.modelWorldMatrix = modelMatrix;
-				modelViewMatrix.set(view.getCameraMatrix());
-				modelViewMatrix.mul(new Mat4(modelMatrix));
-				GLUtils.loadMatrix(modelViewMatrix);
+			if (!context.glState.modelWorldMatrix.equals(modelMatrix)) {
+				context.glState.modelWorldMatrix = modelMatrix;
+				GLUtils.loadMatrix(view.getRelativeModelViewMatrix(modelMatrix, modelViewMatrix));
 				matrixChanged = true;
 			}
 
-			if (!GLState.isEqual(shape)) {
-				DisplayListBatch.flush();
-				GLState.applyDif(shape);
+			if (!context.glState.isEqual(shape)) {
+				context.displayListBatch.flush();
+				context.glState.applyDif(shape);
 			} else if (matrixChanged) {
-				DisplayListBatch.flush();
+				context.displayListBatch.flush();
 			}
 
-			peer.draw();
+			peer.draw(context.glState);
 		}
 
-		DisplayListBatch.flush();
+		context.displayListBatch.flush();
 	}
 
 	/**
@@ -504,41 +514,42 @@ class StateSortRenderer {
 		View view = renderPassPeer.renderPass.getView();
 
 		// init transform
-		modelViewMatrix.set(view.getCameraMatrix());
-		GLUtils.loadMatrix(modelViewMatrix);
+		GLUtils.loadMatrix(view.getRelativeModelViewMatrix(context.glState.modelWorldMatrix, modelViewMatrix));
 		
 //		vboList.begin(currentState);
 		
 		// iterate sorted shapes
-		RenderInfo.shapesIterated += shapeList.elementCnt;
-		RenderInfo.vboShapes += shapeList.elementCnt;
+		context.renderInfo.shapesIterated += shapeList.elementCnt;
+		context.renderInfo.vboShapes += shapeList.elementCnt;
 		for (int shapeIdx=0; shapeIdx<shapeList.elementCnt; shapeIdx++) {
 			RetainedShape peer = shapeList.list[shapeIdx];
 			Shape shape = peer.shape;
-			if (!shape.isVisible()) {
+			if (!shape.isVisible() || !peer.isShaderReady()) {
 				continue;
 			}
-			RenderInfo.visibleShapes++;
+			context.renderInfo.visibleShapes++;
 
+			peer.validateWorldBounds();
 			if (!view.isInsideFrustum(peer.worldBoundsCenter, peer.worldBoundsRadius)) {
 				continue;
 			}
-			RenderInfo.shapesInFrustum++;
+			context.renderInfo.shapesInFrustum++;
+			peer.selectLevel(view);
+			peer.cullMeshlets(view, context.renderInfo);
+			peer.touchTextures();
 
 			// apply shape transform it has changed
 			boolean matrixChanged = false;
 			Mat4 modelMatrix = peer.getModelMatrix();
-			if (!GLState.modelWorldMatrix.equals(modelMatrix)) {
-				GLState.modelWorldMatrix = modelMatrix;
-				modelViewMatrix.set(view.getCameraMatrix());
-				modelViewMatrix.mul(new Mat4(modelMatrix));
-				GLUtils.loadMatrix(modelViewMatrix);
+			if (!context.glState.modelWorldMatrix.equals(modelMatrix)) {
+				context.glState.modelWorldMatrix = modelMatrix;
+				GLUtils.loadMatrix(view.getRelativeModelViewMatrix(modelMatrix, modelViewMatrix));
 				matrixChanged = true;
 			}
 
-			if (!GLState.isEqual(shape)) {
+			if (!context.glState.isEqual(shape)) {
 				vboList.flush();
-				GLState.applyDif(shape);
+				context.glState.applyDif(shape);
 			} else if (matrixChanged) {
 				vboList.flush();
 			}
@@ -547,7 +558,7 @@ class StateSortRenderer {
 		}
 
 		vboList.flush();
-		vboList.end();
+		vboList.end(context.glState);
 	}
 	
 	/** Invoked by the SimpleShapePeer when the state changes */
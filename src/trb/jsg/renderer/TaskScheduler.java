@@ -0,0 +1,363 @@
+/*
+ * Copyright (c) 2008-2012 Java Scene Graph
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Java Scene Graph' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package trb.jsg.renderer;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import trb.jsg.SceneGraph;
+
+/**
+ * A bounded queue of tasks that is run on the render thread at the start of
+ * a frame.
+ * <p>
+ * Tasks are run in priority order, and tasks with the same priority are run 
+ * as one batch. Scene edits are batched inside a SceneGraph transaction. The
+ * tasks are run until the frame budget is used up, the rest is left for the
+ * next frame. At least one task is run every frame so the queue always 
+ * progresses.
+ * <p>
+ * Producers are slowed down when the queue is full: invokeLater() blocks and
+ * offer() returns false. Tasks queued from the render thread itself are 
+ * never blocked.
+ * 
+ * @author tombr
+ *
+ */
+public class TaskScheduler {
+
+	/**
+	 * The priority of a task. Tasks are run in the order of the constants.
+	 */
+	public enum Priority {
+		/** Upload of textures, vertex data and shaders */
+		RESOURCE_UPLOAD,
+		/** Changes to the scene graph */
+		SCENE_EDIT,
+		/** Everything else */
+		NORMAL
+	};
+	
+	/** One queue per priority */
+	private final ArrayList<ConcurrentLinkedQueue<Task>> queues;
+	
+	/** Permits for the tasks that can be queued before producers are blocked */
+	private final Semaphore permits;
+	
+	/** The maximum number of queued tasks */
+	private final int capacity;
+	
+	/** Nanoseconds runTasks is allowed to use each frame */
+	private volatile long frameBudgetNanos;
+	
+	/** 
+	 * The thread that runs the tasks, set by setRenderThread and by 
+	 * runTasks. Null until then.
+	 */
+	private volatile Thread renderThread;
+	
+	// metrics
+	private final AtomicInteger queueDepth = new AtomicInteger();
+	private final AtomicInteger maxQueueDepth = new AtomicInteger();
+	private final AtomicLong rejectedCnt = new AtomicLong();
+	private long completedCnt = 0;
+	private long totalLatencyNanos = 0;
+	private long maxLatencyNanos = 0;
+	private int lastFrameTaskCnt = 0;
+	private long lastFrameNanos = 0;
+
+	/**
+	 * Constructs a TaskScheduler.
+	 * @param capacity the maximum number of queued tasks
+	 * @param frameBudgetNanos the nanoseconds that can be used each frame
+	 */
+	public TaskScheduler(int capacity, long frameBudgetNanos) {
+		this.capacity = capacity;
+		this.frameBudgetNanos = frameBudgetNanos;
+		permits = new Semaphore(capacity);
+		queues = new ArrayList<ConcurrentLinkedQueue<Task>>();
+		for (int i=0; i<Priority.values().length; i++) {
+			queues.add(new ConcurrentLinkedQueue<Task>());
+		}
+	}
+	
+	/**
+	 * Queues the task. Blocks until there is room in the queue, unless called
+	 * from the render thread or before the render thread is known, since 
+	 * the caller could be the thread that empties the queue.
+	 * @param task the task to run on the render thread
+	 * @param priority the priority
+	 * @throws InterruptedException if interrupted while waiting for room
+	 */
+	public void invokeLater(Runnable task, Priority priority) throws InterruptedException {
+		Thread thread = renderThread;
+		if (thread == null || Thread.currentThread() == thread) {
+			enqueue(task, priority, false);
+		} else {
+			permits.acquire();
+			enqueue(task, priority, true);
+		}
+	}
+
+	/**
+	 * Queues the task if there is room in the queue.
+	 * @param task the task to run on the render thread
+	 * @param priority the priority
+	 * @param timeoutNanos how long to wait for room
+	 * @return true if queued, false if the queue was full
+	 * @throws InterruptedException if interrupted while waiting for room
+	 */
+	public boolean offer(Runnable task, Priority priority, long timeoutNanos) throws InterruptedException {
+		if (!permits.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS)) {
+			rejectedCnt.incrementAndGet();
+			return false;
+		}
+		enqueue(task, priority, true);
+		return true;
+	}
+
+	/**
+	 * Queues the task if there is room in the queue. Never blocks.
+	 * @param task the task to run on the render thread
+	 * @param priority the priority
+	 * @return true if queued, false if the queue was full
+	 */
+	public boolean offer(Runnable task, Priority priority) {
+		if (!permits.tryAcquire()) {
+			rejectedCnt.incrementAndGet();
+			return false;
+		}
+		enqueue(task, priority, true);
+		return true;
+	}
+	
+	/**
+	 * Adds the task to the queue of its priority.
+	 */
+	private void enqueue(Runnable runnable, Priority priority, boolean hasPermit) {
+		queues.get(priority.ordinal()).add(new Task(runnable, System.nanoTime(), hasPermit));
+		int depth = queueDepth.incrementAndGet();
+		int max = maxQueueDepth.get();
+		while (depth > max && !maxQueueDepth.compareAndSet(max, depth)) {
+			max = maxQueueDepth.get();
+		}
+	}
+
+	/**
+	 * Runs queued tasks until the frame budget is used. Render thread only.
+	 * @param sceneGraph scene edits is batched in a transaction on this
+	 *        SceneGraph. Can be null.
+	 * @return the number of tasks that was run
+	 */
+	public int runTasks(SceneGraph sceneGraph) {
+		renderThread = Thread.currentThread();
+		long startTime = System.nanoTime();
+		long endTime = startTime + frameBudgetNanos;
+		int taskCnt = 0;
+		for (int queueIdx=0; queueIdx<queues.size(); queueIdx++) {
+			ConcurrentLinkedQueue<Task> queue = queues.get(queueIdx);
+			if (queue.isEmpty()) {
+				continue;
+			}
+			boolean transaction = (sceneGraph != null && queueIdx == Priority.SCENE_EDIT.ordinal());
+			if (transaction) {
+				sceneGraph.beginTransaction();
+			}
+			try {
+				Task task;
+				while ((taskCnt == 0 || System.nanoTime() < endTime) && (task = queue.poll()) != null) {
+					queueDepth.decrementAndGet();
+					if (task.hasPermit) {
+						permits.release();
+					}
+					long latency = System.nanoTime() - task.queueTime;
+					totalLatencyNanos += latency;
+					maxLatencyNanos = Math.max(maxLatencyNanos, latency);
+					completedCnt++;
+					taskCnt++;
+					task.runnable.run();
+				}
+			} finally {
+				if (transaction) {
+					sceneGraph.commitTransaction();
+				}
+			}
+			if (taskCnt > 0 && System.nanoTime() >= endTime) {
+				break;
+			}
+		}
+		lastFrameTaskCnt = taskCnt;
+		lastFrameNanos = System.nanoTime() - startTime;
+		return taskCnt;
+	}
+
+	/**
+	 * Sets the thread that will call runTasks, so it is never blocked by 
+	 * invokeLater before its first frame. runTasks also sets it.
+	 * @param renderThread the render thread
+	 */
+	public void setRenderThread(Thread renderThread) {
+		this.renderThread = renderThread;
+	}
+
+	/**
+	 * Sets the nanoseconds runTasks is allowed to use each frame.
+	 * @param frameBudgetNanos the budget in nanoseconds
+	 */
+	public void setFrameBudgetNanos(long frameBudgetNanos) {
+		this.frameBudgetNanos = frameBudgetNanos;
+	}
+
+	/**
+	 * Gets the nanoseconds runTasks is allowed to use each frame.
+	 * @return the budget in nanoseconds
+	 */
+	public long getFrameBudgetNanos() {
+		return frameBudgetNanos;
+	}
+
+	/**
+	 * Gets the maximum number of queued tasks.
+	 * @return the capacity
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Gets the number of queued tasks.
+	 * @return the queue depth
+	 */
+	public int getQueueDepth() {
+		return queueDepth.get();
+	}
+
+	/**
+	 * Gets the number of queued tasks with the specified priority.
+	 * @param priority the priority
+	 * @return the queue depth of the priority
+	 */
+	public int getQueueDepth(Priority priority) {
+		return queues.get(priority.ordinal()).size();
+	}
+
+	/**
+	 * Gets the largest queue depth seen since the last resetMetrics().
+	 * @return the maximum queue depth
+	 */
+	public int getMaxQueueDepth() {
+		return maxQueueDepth.get();
+	}
+
+	/**
+	 * Gets the number of tasks rejected by offer() since the last 
+	 * resetMetrics().
+	 * @return the rejected task count
+	 */
+	public long getRejectedCount() {
+		return rejectedCnt.get();
+	}
+
+	/**
+	 * Gets the number of tasks run since the last resetMetrics(). Render 
+	 * thread only.
+	 * @return the completed task count
+	 */
+	public long getCompletedCount() {
+		return completedCnt;
+	}
+
+	/**
+	 * Gets the average time from a task was queued until it was run. Render
+	 * thread only.
+	 * @return the average latency in nanoseconds
+	 */
+	public long getAverageLatencyNanos() {
+		return completedCnt == 0 ? 0 : totalLatencyNanos / completedCnt;
+	}
+
+	/**
+	 * Gets the longest time from a task was queued until it was run. Render
+	 * thread only.
+	 * @return the maximum latency in nanoseconds
+	 */
+	public long getMaxLatencyNanos() {
+		return maxLatencyNanos;
+	}
+
+	/**
+	 * Gets the number of tasks run in the last frame. Render thread only.
+	 * @return the task count
+	 */
+	public int getLastFrameTaskCount() {
+		return lastFrameTaskCnt;
+	}
+
+	/**
+	 * Gets the time spent running tasks the last frame. Render thread only.
+	 * @return the time in nanoseconds
+	 */
+	public long getLastFrameNanos() {
+		return lastFrameNanos;
+	}
+	
+	/**
+	 * Resets the counters. Render thread only.
+	 */
+	public void resetMetrics() {
+		maxQueueDepth.set(queueDepth.get());
+		rejectedCnt.set(0);
+		completedCnt = 0;
+		totalLatencyNanos = 0;
+		maxLatencyNanos = 0;
+	}
+
+	/**
+	 * A queued task.
+	 */
+	private static class Task {
+		final Runnable runnable;
+		final long queueTime;
+		final boolean hasPermit;
+		
+		Task(Runnable runnable, long queueTime, boolean hasPermit) {
+			this.runnable = runnable;
+			this.queueTime = queueTime;
+			this.hasPermit = hasPermit;
+		}
+	}
+}
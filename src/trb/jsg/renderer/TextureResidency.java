@@ -0,0 +1,452 @@
+/*
+ * Copyright (c) 2008-2012 Java Scene Graph
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Java Scene Graph' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package trb.jsg.renderer;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL14.*;
+import static org.lwjgl.opengl.GL21.*;
+import static org.lwjgl.opengl.ARBTextureFloat.*;
+
+import trb.jsg.util.TextureCompression;
+
+/**
+ * Keeps the estimated texture memory within a budget. Does not call OpenGL
+ * itself, the textures is reduced and reloaded by the Backend, so the policy
+ * can be used and tested without a context.
+ * <p>
+ * Textures are kept in least recently used order. The renderer calls touch()
+ * for every texture it draws with, and update() at the end of the frame. When
+ * over budget, update() first drops the top mip levels of the least recently 
+ * used textures, and then evicts them. Textures used in the current frame are
+ * never reduced. A reduced texture is reloaded by touch() the next time it is
+ * drawn with.
+ * 
+ * @author tombr
+ */
+class TextureResidency {
+	
+	/** Levels is not dropped below this size */
+	public static final int MIN_LEVEL_SIZE = 64;
+
+	/**
+	 * The current frame.
+	 */
+	interface Clock {
+		public int getFrameIdx();
+	}
+	
+	/**
+	 * Reduces and reloads the textures.
+	 */
+	interface Backend {
+		
+		/**
+		 * Checks if the content of the texture can be reloaded after it has
+		 * been reduced.
+		 * @param entry the texture
+		 * @return true if the texture can be reduced
+		 */
+		public boolean isEvictable(Entry entry);
+		
+		/**
+		 * Sets the first level of the texture that should be resident. 
+		 * @param entry the texture
+		 * @param baseLevel 0 to load all levels, entry.levelCnt to evict the texture
+		 */
+		public void setBaseLevel(Entry entry, int baseLevel);
+	}
+	
+	/**
+	 * The residency of a texture.
+	 */
+	static class Entry {
+		
+		/** The texture the entry belongs to */
+		public final Object resource;
+		
+		// the size of the full texture
+		int width = 1;
+		int height = 1;
+		int depth = 1;
+		int faceCnt = 1;
+		int levelCnt = 1;
+		int internalFormat = GL_RGBA8;
+		
+		/** The highest base level the texture can be reduced to without 
+		 * being evicted */
+		int maxDropLevel = 0;
+		
+		/** The first resident level, levelCnt if evicted */
+		int baseLevel = 0;
+		
+		/** The frame the texture was last drawn with */
+		int lastUsedFrame = -1;
+		
+		/** The estimated bytes of the resident levels */
+		long bytes = 0;
+		
+		/** True while the entry is added to a TextureResidency */
+		boolean added = false;
+		
+		public Entry(Object resource) {
+			this.resource = resource;
+		}
+		
+		/**
+		 * Sets the size of the full texture.
+		 * @param width the width of level 0
+		 * @param height the height of level 0
+		 * @param depth the depth of level 0
+		 * @param faceCnt 6 for cube maps, otherwise 1
+		 * @param levelCnt the number of mip levels including generated levels
+		 * @param internalFormat the OpenGL internal format
+		 * @param droppable true if the top levels can be dropped separately
+		 */
+		public void setSize(int width, int height, int depth, int faceCnt
+				, int levelCnt, int internalFormat, boolean droppable) {
+			this.width = width;
+			this.height = height;
+			this.depth = depth;
+			this.faceCnt = faceCnt;
+			this.levelCnt = levelCnt;
+			this.internalFormat = internalFormat;
+			maxDropLevel = 0;
+			if (droppable) {
+				while (maxDropLevel + 1 < levelCnt 
+						&& Math.max(width, height) >> (maxDropLevel + 1) >= MIN_LEVEL_SIZE) {
+					maxDropLevel++;
+				}
+			}
+		}
+		
+		/**
+		 * Checks if the texture is evicted.
+		 */
+		public boolean isEvicted() {
+			return baseLevel >= levelCnt;
+		}
+		
+		/**
+		 * Gets the estimated bytes of the levels from baseLevel.
+		 */
+		public long estimateBytes(int baseLevel) {
+			return TextureResidency.estimateBytes(width, height, depth, faceCnt
+					, levelCnt, baseLevel, internalFormat);
+		}
+	}
+	
+	/** The current frame */
+	private final Clock clock;
+	
+	/** Reduces and reloads the textures */
+	private final Backend backend;
+	
+	/** The resident textures in least recently used order. The order must 
+	 * match lastUsedFrame, since update() stops at the first texture used 
+	 * in the current frame. */
+	private final LinkedHashMap<Entry, Entry> lru = new LinkedHashMap<Entry, Entry>(16, 0.75f, true);
+	
+	/** The estimated bytes the resident textures can use */
+	private long budget;
+	
+	/** The estimated bytes used by the resident textures */
+	private long residentBytes = 0;
+	
+	// metrics
+	private int droppedCnt = 0;
+	private int evictedCnt = 0;
+	private int reloadedCnt = 0;
+	
+	/**
+	 * Constructs a TextureResidency.
+	 * @param clock the current frame
+	 * @param backend reduces and reloads the textures
+	 * @param budget the estimated bytes the textures can use
+	 */
+	public TextureResidency(Clock clock, Backend backend, long budget) {
+		this.clock = clock;
+		this.backend = backend;
+		this.budget = budget;
+	}
+	
+	/**
+	 * Adds a texture with all levels resident.
+	 * @param entry the texture
+	 */
+	public void add(Entry entry) {
+		if (entry.added) {
+			throw new IllegalStateException("Texture already added "+entry.resource);
+		}
+		entry.added = true;
+		entry.baseLevel = 0;
+		entry.lastUsedFrame = clock.getFrameIdx();
+		entry.bytes = entry.estimateBytes(0);
+		residentBytes += entry.bytes;
+		lru.put(entry, entry);
+	}
+	
+	/**
+	 * Removes a texture.
+	 * @param entry the texture
+	 */
+	public void remove(Entry entry) {
+		if (!entry.added) {
+			return;
+		}
+		entry.added = false;
+		lru.remove(entry);
+		residentBytes -= entry.bytes;
+		entry.bytes = 0;
+	}
+	
+	/**
+	 * Updates the estimate after the size of a texture is changed. All 
+	 * levels is resident after the change, so the texture counts as used in
+	 * the current frame, like a texture that is added.
+	 * @param entry the texture
+	 */
+	public void sizeChanged(Entry entry) {
+		if (!entry.added) {
+			return;
+		}
+		residentBytes -= entry.bytes;
+		entry.baseLevel = 0;
+		entry.lastUsedFrame = clock.getFrameIdx();
+		entry.bytes = entry.estimateBytes(0);
+		residentBytes += entry.bytes;
+		lru.put(entry, entry);
+	}
+	
+	/**
+	 * Marks the texture as used in the current frame. Reloads the texture if 
+	 * it has been reduced.
+	 * @param entry the texture
+	 */
+	public void touch(Entry entry) {
+		int frameIdx = clock.getFrameIdx();
+		if (entry.lastUsedFrame == frameIdx || !entry.added) {
+			return;
+		}
+		entry.lastUsedFrame = frameIdx;
+		if (entry.baseLevel > 0) {
+			setBaseLevel(entry, 0);
+			lru.put(entry, entry);
+			reloadedCnt++;
+		} else {
+			lru.get(entry);
+		}
+	}
+	
+	/**
+	 * Reduces the least recently used textures until the estimated bytes is
+	 * within the budget. Should be called at the end of the frame.
+	 */
+	public void update() {
+		if (residentBytes <= budget) {
+			return;
+		}
+		int frameIdx = clock.getFrameIdx();
+		
+		// drop the top levels
+		for (Entry entry : lru.keySet()) {
+			if (residentBytes <= budget || entry.lastUsedFrame >= frameIdx) {
+				break;
+			}
+			if (entry.baseLevel >= entry.maxDropLevel || !backend.isEvictable(entry)) {
+				continue;
+			}
+			int baseLevel = entry.baseLevel;
+			long bytes = entry.bytes;
+			while (baseLevel < entry.maxDropLevel && residentBytes - bytes + entry.estimateBytes(baseLevel) > budget) {
+				baseLevel++;
+			}
+			setBaseLevel(entry, baseLevel);
+			droppedCnt++;
+		}
+		
+		// evict
+		Iterator<Entry> it = lru.keySet().iterator();
+		while (residentBytes > budget && it.hasNext()) {
+			Entry entry = it.next();
+			if (entry.lastUsedFrame >= frameIdx) {
+				break;
+			}
+			if (entry.isEvicted() || !backend.isEvictable(entry)) {
+				continue;
+			}
+			setBaseLevel(entry, entry.levelCnt);
+			evictedCnt++;
+		}
+	}
+	
+	private void setBaseLevel(Entry entry, int baseLevel) {
+		residentBytes -= entry.bytes;
+		entry.baseLevel = baseLevel;
+		entry.bytes = entry.estimateBytes(baseLevel);
+		residentBytes += entry.bytes;
+		backend.setBaseLevel(entry, baseLevel);
+	}
+	
+	/**
+	 * Sets the estimated bytes the textures can use.
+	 */
+	public void setBudget(long budget) {
+		this.budget = budget;
+	}
+	
+	/**
+	 * Gets the estimated bytes the textures can use.
+	 */
+	public long getBudget() {
+		return budget;
+	}
+	
+	/**
+	 * Gets the estimated bytes used by the resident textures.
+	 */
+	public long getResidentBytes() {
+		return residentBytes;
+	}
+	
+	/**
+	 * Gets the number of times textures has had levels dropped.
+	 */
+	public int getDroppedCount() {
+		return droppedCnt;
+	}
+	
+	/**
+	 * Gets the number of times textures has been evicted.
+	 */
+	public int getEvictedCount() {
+		return evictedCnt;
+	}
+	
+	/**
+	 * Gets the number of times reduced textures has been reloaded.
+	 */
+	public int getReloadedCount() {
+		return reloadedCnt;
+	}
+	
+	/**
+	 * Gets the number of levels in a full mip chain.
+	 * @param width the width of level 0
+	 * @param height the height of level 0
+	 * @param depth the depth of level 0
+	 * @return the number of levels down to 1x1x1
+	 */
+	public static int getFullLevelCount(int width, int height, int depth) {
+		int size = Math.max(width, Math.max(height, depth));
+		int levelCnt = 1;
+		while (size > 1) {
+			size >>= 1;
+			levelCnt++;
+		}
+		return levelCnt;
+	}
+	
+	/**
+	 * Estimates the bytes used by a texture.
+	 * @param width the width of level 0
+	 * @param height the height of level 0
+	 * @param depth the depth of level 0
+	 * @param faceCnt 6 for cube maps, otherwise 1
+	 * @param levelCnt the number of mip levels
+	 * @param baseLevel the first resident level
+	 * @param internalFormat the OpenGL internal format
+	 * @return the estimated bytes of the levels from baseLevel
+	 */
+	public static long estimateBytes(int width, int height, int depth, int faceCnt
+			, int levelCnt, int baseLevel, int internalFormat) {
+		int bits = getBitsPerTexel(internalFormat);
+		boolean blocks = TextureCompression.isCompressed(internalFormat);
+		long texels = 0;
+		for (int level = baseLevel; level < levelCnt; level++) {
+			long w = Math.max(1, width >> level);
+			long h = Math.max(1, height >> level);
+			long d = Math.max(1, depth >> level);
+			if (blocks) {
+				// compressed formats store 4x4 blocks
+				w = (w + 3) & ~3;
+				h = (h + 3) & ~3;
+			}
+			texels += w * h * d;
+		}
+		return texels * faceCnt * bits / 8;
+	}
+	
+	/**
+	 * Gets the bits per texel the driver is assumed to use for an internal 
+	 * format. Three component formats is assumed to be padded to four.
+	 * @param internalFormat the OpenGL internal format or number of components
+	 * @return the bits per texel
+	 */
+	public static int getBitsPerTexel(int internalFormat) {
+		int blockBytes = TextureCompression.getBlockBytes(internalFormat);
+		if (blockBytes > 0) {
+			// 16 texels per block
+			return blockBytes / 2;
+		}
+		switch (internalFormat) {
+		case 1:
+		case GL_ALPHA:
+		case GL_ALPHA8:
+		case GL_LUMINANCE:
+		case GL_LUMINANCE8:
+		case GL_INTENSITY:
+		case GL_INTENSITY8:
+		case GL_SLUMINANCE:
+		case GL_SLUMINANCE8:
+			return 8;
+		case 2:
+		case GL_LUMINANCE_ALPHA:
+		case GL_LUMINANCE8_ALPHA8:
+		case GL_DEPTH_COMPONENT16:
+			return 16;
+		case GL_RGBA16:
+		case GL_RGBA16F_ARB:
+		case GL_RGB16F_ARB:
+			return 64;
+		case GL_RGBA32F_ARB:
+		case GL_RGB32F_ARB:
+			return 128;
+		default:
+			// 3, 4, GL_RGB8, GL_RGBA8, GL_SRGB8_ALPHA8, GL_DEPTH_COMPONENT24 ...
+			return 32;
+		}
+	}
+}
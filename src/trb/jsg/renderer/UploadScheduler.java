@@ -0,0 +1,318 @@
+/*
+ * Copyright (c) 2008-2012 Java Scene Graph
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Java Scene Graph' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package trb.jsg.renderer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Schedules uploads through a StagingRing with a byte budget per frame. Does
+ * not call OpenGL itself, the mapping of slots and the copy commands is done
+ * by the Staging implementation, so it can be used and tested without a 
+ * context.
+ * <p>
+ * Every frame update() frees the slots that are no longer used by OpenGL, 
+ * submits the filled uploads in the order they was queued until the budget 
+ * is used up, and then maps free slots for the next queued uploads and let 
+ * the executor fill them. At least one upload is submitted every frame so 
+ * uploads that are larger than the budget still progresses.
+ * 
+ * @author tombr
+ */
+class UploadScheduler {
+	
+	/**
+	 * The GPU side of the staging slots.
+	 */
+	interface Staging {
+		
+		/**
+		 * Maps a slot for writing. Called on the render thread.
+		 * @param slot the slot index
+		 * @return the mapped memory of the slot
+		 */
+		public ByteBuffer map(int slot);
+		
+		/**
+		 * Unmaps a slot after it has been filled. Called on the render thread.
+		 * @param slot the slot index
+		 */
+		public void unmap(int slot);
+		
+		/**
+		 * Issues the copy from the unmapped slot to the destination of the 
+		 * upload. Called on the render thread.
+		 * @param upload the upload
+		 * @param slot the slot that holds the data
+		 */
+		public void copy(Upload upload, int slot);
+		
+		/**
+		 * Deletes the GPU side of all slots. No slot is mapped. Called on 
+		 * the render thread.
+		 */
+		public void destroy();
+	}
+	
+	/**
+	 * Data that should be uploaded. Must fit in one slot.
+	 */
+	static abstract class Upload {
+		
+		/** The slot the upload is staged in or -1 */
+		int slot = -1;
+		
+		/** Set if the fill failed so the upload is skipped */
+		volatile Throwable error = null;
+		
+		/**
+		 * Gets the size of the data in bytes.
+		 */
+		public abstract int getSize();
+		
+		/**
+		 * Writes the data to the mapped slot. Called on a worker thread.
+		 * @param dst the mapped memory positioned at the start of the slot
+		 */
+		public abstract void fill(ByteBuffer dst);
+		
+		/**
+		 * Called on the render thread instead of the copy if fill() threw
+		 * an exception or error. Does nothing by default.
+		 * @param e the throwable thrown by fill()
+		 */
+		public void failed(Throwable e) {
+		}
+	}
+	
+	/** The slots to stage the uploads in */
+	private final StagingRing ring;
+	
+	/** The GPU side of the slots */
+	private final Staging staging;
+	
+	/** Runs the fill of the slots. Runs on the render thread if null. */
+	private Executor executor;
+	
+	/** Bytes that can be submitted each frame */
+	private int bytesPerFrame;
+	
+	/** Uploads waiting for a free slot */
+	private final ArrayDeque<Upload> queued = new ArrayDeque<Upload>();
+	
+	/** Uploads that are being filled or is ready, in queue order */
+	private final ArrayDeque<Upload> staged = new ArrayDeque<Upload>();
+	
+	// metrics from the last update
+	private int lastFrameBytes = 0;
+	private int lastFrameUploadCnt = 0;
+	private int lastFrameFailedCnt = 0;
+
+	/**
+	 * Constructs an UploadScheduler.
+	 * @param ring the slots to stage the uploads in
+	 * @param staging the GPU side of the slots
+	 * @param bytesPerFrame bytes that can be submitted each frame
+	 * @param executor runs the fill of the slots, or null to fill on the render thread
+	 */
+	public UploadScheduler(StagingRing ring, Staging staging, int bytesPerFrame, Executor executor) {
+		this.ring = ring;
+		this.staging = staging;
+		this.bytesPerFrame = bytesPerFrame;
+		this.executor = executor;
+	}
+	
+	/**
+	 * Queues an upload. Called on the render thread.
+	 * @param upload the upload
+	 */
+	public void add(Upload upload) {
+		if (upload.getSize() > ring.getSlotSize()) {
+			throw new IllegalArgumentException("Upload of "+upload.getSize()
+					+" bytes does not fit in a slot of "+ring.getSlotSize()+" bytes");
+		}
+		queued.add(upload);
+	}
+	
+	/**
+	 * Submits the ready uploads within the budget and starts filling the 
+	 * next uploads. Called on the render thread once every frame.
+	 * @param frameIdx the current frame
+	 */
+	public void update(int frameIdx) {
+		ring.retire(frameIdx);
+		
+		lastFrameBytes = 0;
+		lastFrameUploadCnt = 0;
+		lastFrameFailedCnt = 0;
+		while (!staged.isEmpty()) {
+			Upload upload = staged.peek();
+			if (ring.getState(upload.slot) != StagingRing.READY) {
+				break;
+			}
+			if (lastFrameUploadCnt > 0 && lastFrameBytes + upload.getSize() > bytesPerFrame) {
+				break;
+			}
+			staged.poll();
+			staging.unmap(upload.slot);
+			if (upload.error == null) {
+				staging.copy(upload, upload.slot);
+			} else {
+				// only the upload is skipped, the frame goes on
+				upload.failed(upload.error);
+				lastFrameFailedCnt++;
+			}
+			ring.submit(upload.slot, frameIdx);
+			lastFrameBytes += upload.getSize();
+			lastFrameUploadCnt++;
+			upload.slot = -1;
+		}
+		
+		while (!queued.isEmpty()) {
+			int slot = ring.acquire();
+			if (slot < 0) {
+				break;
+			}
+			final Upload upload = queued.poll();
+			upload.slot = slot;
+			staged.add(upload);
+			final ByteBuffer dst = staging.map(slot);
+			Runnable fill = new Runnable() {
+				public void run() {
+					try {
+						upload.fill(dst);
+					} catch (Throwable e) {
+						// errors are recorded too, the slot must always
+						// leave FILLING or destroy() waits forever
+						upload.error = e;
+					} finally {
+						ring.ready(upload.slot);
+					}
+				}
+			};
+			if (executor != null) {
+				try {
+					executor.execute(fill);
+				} catch (RejectedExecutionException e) {
+					fill.run();
+				}
+			} else {
+				fill.run();
+			}
+		}
+	}
+	
+	/**
+	 * Drops the pending uploads and deletes the GPU side of the slots. Waits
+	 * for the slots that are being filled. Called on the render thread.
+	 */
+	public void destroy() {
+		queued.clear();
+		while (!staged.isEmpty()) {
+			Upload upload = staged.poll();
+			while (ring.getState(upload.slot) == StagingRing.FILLING) {
+				Thread.yield();
+			}
+			staging.unmap(upload.slot);
+			upload.slot = -1;
+		}
+		staging.destroy();
+	}
+	
+	/**
+	 * Checks if there are uploads that are not submitted yet.
+	 */
+	public boolean isBusy() {
+		return !queued.isEmpty() || !staged.isEmpty();
+	}
+	
+	/**
+	 * Gets the number of uploads that are not submitted yet.
+	 */
+	public int getPendingCount() {
+		return queued.size() + staged.size();
+	}
+	
+	/**
+	 * Gets the largest upload that can be added.
+	 */
+	public int getSlotSize() {
+		return ring.getSlotSize();
+	}
+	
+	/**
+	 * Sets the number of bytes that can be submitted each frame.
+	 */
+	public void setBytesPerFrame(int bytesPerFrame) {
+		this.bytesPerFrame = bytesPerFrame;
+	}
+	
+	/**
+	 * Gets the number of bytes that can be submitted each frame.
+	 */
+	public int getBytesPerFrame() {
+		return bytesPerFrame;
+	}
+	
+	/**
+	 * Sets the executor that fills the slots.
+	 * @param executor the executor or null to fill on the render thread
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+	
+	/**
+	 * Gets the number of bytes submitted in the last update.
+	 */
+	public int getLastFrameBytes() {
+		return lastFrameBytes;
+	}
+	
+	/**
+	 * Gets the number of uploads submitted in the last update.
+	 */
+	public int getLastFrameUploadCount() {
+		return lastFrameUploadCnt;
+	}
+	
+	/**
+	 * Gets the number of uploads that was skipped in the last update 
+	 * because the fill failed.
+	 */
+	public int getLastFrameFailedCount() {
+		return lastFrameFailedCnt;
+	}
+}
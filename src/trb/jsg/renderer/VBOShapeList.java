@@ -191,7 +191,7 @@ class VBOShapeList {
 	/**
 	 * End rendering using vbo.
 	 */
-	public void end() {
+	public void end(GLState currentState) {
 		if (DEBUG) {
 			System.out.println("end");
 		}
@@ -205,7 +205,7 @@ class VBOShapeList {
 		GL11.glDisableClientState(GL11.GL_TEXTURE_COORD_ARRAY);
 		GL13.glClientActiveTexture(GL13.GL_TEXTURE1);
 		GL11.glDisableClientState(GL11.GL_TEXTURE_COORD_ARRAY);
-		GLState.clientState = 0;
+		currentState.clientState = 0;
 //		Util.checkGLError();
 	}
 	
@@ -371,12 +371,9 @@ class VBOShapeList {
 			ARBVertexBufferObject.glBindBufferARB(ARBVertexBufferObject.GL_ARRAY_BUFFER_ARB, 0);
 
 			VertexData vertexData = shapePeer.shape.getVertexData();
-			IntBuffer indices = vertexData.indices;
-			indices.position(0).limit(indices.capacity());
-			this.indices = new int[indices.capacity()];
-			indices.get(this.indices);
+			this.indices = new int[vertexData.getIndexCount()];
 			for (int i=0; i<this.indices.length; i++) {
-				this.indices[i] += startIdx-minIndex;
+				this.indices[i] = vertexData.getIndex(i) + startIdx-minIndex;
 			}
 			Util.checkGLError();
 		}
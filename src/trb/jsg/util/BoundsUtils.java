@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2008-2012 Java Scene Graph
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Java Scene Graph' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package trb.jsg.util;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Computes the bounding box and bounding sphere of packed x, y, z 
+ * coordinates. The box is found in one pass that also records the vertices
+ * on the six sides of the box. Those are used to seed Ritter's bounding 
+ * sphere, that is grown in a second pass.
+ * 
+ * @author tombr
+ */
+public class BoundsUtils {
+
+	/** Meshes with fewer vertices than this are never split between threads */
+	public static final int MIN_VERTICES_PER_TASK = 64 * 1024;
+
+	/**
+	 * The bounds of a set of vertices.
+	 */
+	public static class Bounds {
+		/** Lower x, y, z followed by upper x, y, z */
+		public final float[] box = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE
+				, -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+		
+		/** The vertex on each of the six sides of the box, in the same order 
+		 * as box. -1 if there is no vertices. */
+		public final int[] extremes = {-1, -1, -1, -1, -1, -1};
+		
+		/** Center x, y, z and radius of the sphere */
+		public final float[] sphere = new float[4];
+		
+		/**
+		 * Checks if no vertices was included.
+		 * @return true if the bounds are empty
+		 */
+		public boolean isEmpty() {
+			return extremes[0] < 0;
+		}
+	}
+
+	/**
+	 * Computes the bounds of the vertices.
+	 * @param coords packed x, y, z coordinates
+	 * @param vertexCnt the number of vertices in coords
+	 * @param referenced the vertices to include or null to include all
+	 * @return the bounds
+	 */
+	public static Bounds computeBounds(float[] coords, int vertexCnt, boolean[] referenced) {
+		Bounds bounds = new Bounds();
+		includeInBox(coords, referenced, 0, vertexCnt, bounds);
+		if (!bounds.isEmpty()) {
+			seedSphere(coords, bounds);
+			growSphere(coords, referenced, 0, vertexCnt, bounds.sphere);
+			padSphere(bounds.sphere);
+		}
+		return bounds;
+	}
+
+	/**
+	 * Computes the bounds of the vertices using the threads of a executor.
+	 * Both passes are split into ranges of vertices. The spheres grown from 
+	 * the same seed in each range are merged into one sphere.
+	 * @param coords packed x, y, z coordinates
+	 * @param vertexCnt the number of vertices in coords
+	 * @param referenced the vertices to include or null to include all
+	 * @param executor the executor that runs the tasks
+	 * @param taskCnt the number of ranges to split the vertices into
+	 * @return the bounds
+	 */
+	public static Bounds computeBounds(final float[] coords, int vertexCnt, final boolean[] referenced
+			, ExecutorService executor, int taskCnt) {
+		taskCnt = Math.min(taskCnt, vertexCnt / MIN_VERTICES_PER_TASK);
+		if (taskCnt <= 1) {
+			return computeBounds(coords, vertexCnt, referenced);
+		}
+		
+		// the box and extremes of each range
+		ArrayList<Future<Bounds>> boxFutures = new ArrayList<Future<Bounds>>();
+		for (int i=0; i<taskCnt; i++) {
+			final int start = (int) ((long) vertexCnt * i / taskCnt);
+			final int end = (int) ((long) vertexCnt * (i + 1) / taskCnt);
+			boxFutures.add(executor.submit(new Callable<Bounds>() {
+				public Bounds call() {
+					Bounds bounds = new Bounds();
+					includeInBox(coords, referenced, start, end, bounds);
+					return bounds;
+				}
+			}));
+		}
+		Bounds bounds = new Bounds();
+		for (int i=0; i<taskCnt; i++) {
+			Bounds rangeBounds = get(boxFutures.get(i));
+			for (int side=0; side<6; side++) {
+				if (rangeBounds.extremes[side] >= 0 && (side < 3 
+						? rangeBounds.box[side] < bounds.box[side] 
+						: rangeBounds.box[side] > bounds.box[side])) {
+					bounds.box[side] = rangeBounds.box[side];
+					bounds.extremes[side] = rangeBounds.extremes[side];
+				}
+			}
+		}
+		if (bounds.isEmpty()) {
+			return bounds;
+		}
+		
+		// grow a sphere from the same seed in each range
+		seedSphere(coords, bounds);
+		final float[] seed = bounds.sphere;
+		ArrayList<Future<float[]>> sphereFutures = new ArrayList<Future<float[]>>();
+		for (int i=0; i<taskCnt; i++) {
+			final int start = (int) ((long) vertexCnt * i / taskCnt);
+			final int end = (int) ((long) vertexCnt * (i + 1) / taskCnt);
+			sphereFutures.add(executor.submit(new Callable<float[]>() {
+				public float[] call() {
+					float[] sphere = seed.clone();
+					growSphere(coords, referenced, start, end, sphere);
+					return sphere;
+				}
+			}));
+		}
+		float[] sphere = seed.clone();
+		for (int i=0; i<taskCnt; i++) {
+			mergeSphere(sphere, get(sphereFutures.get(i)));
+		}
+		padSphere(sphere);
+		System.arraycopy(sphere, 0, bounds.sphere, 0, 4);
+		return bounds;
+	}
+
+	/**
+	 * Grows the box of the bounds to include a range of vertices.
+	 * @param coords packed x, y, z coordinates
+	 * @param referenced the vertices to include or null to include all
+	 * @param start the first vertex
+	 * @param end one past the last vertex
+	 * @param bounds the bounds to grow
+	 */
+	public static void includeInBox(float[] coords, boolean[] referenced, int start, int end, Bounds bounds) {
+		float[] box = bounds.box;
+		int[] extremes = bounds.extremes;
+		float minX = box[0], minY = box[1], minZ = box[2];
+		float maxX = box[3], maxY = box[4], maxZ = box[5];
+		for (int vertexIdx=start; vertexIdx<end; vertexIdx++) {
+			if (referenced != null && !referenced[vertexIdx]) {
+				continue;
+			}
+			int off = vertexIdx * 3;
+			float x = coords[off];
+			float y = coords[off+1];
+			float z = coords[off+2];
+			if (x < minX) { minX = x; extremes[0] = vertexIdx; }
+			if (y < minY) { minY = y; extremes[1] = vertexIdx; }
+			if (z < minZ) { minZ = z; extremes[2] = vertexIdx; }
+			if (x > maxX) { maxX = x; extremes[3] = vertexIdx; }
+			if (y > maxY) { maxY = y; extremes[4] = vertexIdx; }
+			if (z > maxZ) { maxZ = z; extremes[5] = vertexIdx; }
+		}
+		box[0] = minX; box[1] = minY; box[2] = minZ;
+		box[3] = maxX; box[4] = maxY; box[5] = maxZ;
+	}
+
+	/**
+	 * Sets the sphere of the bounds to the sphere through the pair of 
+	 * extreme vertices that are furthest apart.
+	 */
+	private static void seedSphere(float[] coords, Bounds bounds) {
+		int bestA = bounds.extremes[0];
+		int bestB = bounds.extremes[3];
+		float bestDist = -1;
+		for (int axis=0; axis<3; axis++) {
+			int a = bounds.extremes[axis] * 3;
+			int b = bounds.extremes[axis+3] * 3;
+			float dx = coords[b] - coords[a];
+			float dy = coords[b+1] - coords[a+1];
+			float dz = coords[b+2] - coords[a+2];
+			float dist = dx * dx + dy * dy + dz * dz;
+			if (dist > bestDist) {
+				bestDist = dist;
+				bestA = a;
+				bestB = b;
+			}
+		}
+		float[] sphere = bounds.sphere;
+		sphere[0] = (coords[bestA] + coords[bestB]) * 0.5f;
+		sphere[1] = (coords[bestA+1] + coords[bestB+1]) * 0.5f;
+		sphere[2] = (coords[bestA+2] + coords[bestB+2]) * 0.5f;
+		sphere[3] = (float) Math.sqrt(bestDist) * 0.5f;
+	}
+
+	/**
+	 * Grows the sphere to include a range of vertices. When a vertex is 
+	 * outside, the sphere is replaced by the smallest sphere containing both
+	 * the old sphere and the vertex.
+	 * @param coords packed x, y, z coordinates
+	 * @param referenced the vertices to include or null to include all
+	 * @param start the first vertex
+	 * @param end one past the last vertex
+	 * @param sphere center x, y, z and radius
+	 */
+	public static void growSphere(float[] coords, boolean[] referenced, int start, int end, float[] sphere) {
+		float cx = sphere[0], cy = sphere[1], cz = sphere[2], r = sphere[3];
+		float r2 = r * r;
+		for (int vertexIdx=start; vertexIdx<end; vertexIdx++) {
+			if (referenced != null && !referenced[vertexIdx]) {
+				continue;
+			}
+			int off = vertexIdx * 3;
+			float dx = coords[off] - cx;
+			float dy = coords[off+1] - cy;
+			float dz = coords[off+2] - cz;
+			float dist2 = dx * dx + dy * dy + dz * dz;
+			if (dist2 > r2) {
+				float dist = (float) Math.sqrt(dist2);
+				float newR = (r + dist) * 0.5f;
+				float k = (newR - r) / dist;
+				cx += dx * k;
+				cy += dy * k;
+				cz += dz * k;
+				r = newR;
+				r2 = r * r;
+			}
+		}
+		sphere[0] = cx; sphere[1] = cy; sphere[2] = cz; sphere[3] = r;
+	}
+
+	/**
+	 * Grows sphere a to also contain sphere b.
+	 */
+	private static void mergeSphere(float[] a, float[] b) {
+		float dx = b[0] - a[0];
+		float dy = b[1] - a[1];
+		float dz = b[2] - a[2];
+		float dist = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+		if (dist + b[3] <= a[3]) {
+			return;
+		}
+		if (dist + a[3] <= b[3]) {
+			System.arraycopy(b, 0, a, 0, 4);
+			return;
+		}
+		float newR = (dist + a[3] + b[3]) * 0.5f;
+		float k = (newR - a[3]) / dist;
+		a[0] += dx * k;
+		a[1] += dy * k;
+		a[2] += dz * k;
+		a[3] = newR;
+	}
+
+	/**
+	 * Grows the radius slightly to cover float rounding errors.
+	 */
+	private static void padSphere(float[] sphere) {
+		sphere[3] = sphere[3] * 1.00001f + Float.MIN_NORMAL;
+	}
+
+	/**
+	 * Waits for a future and converts checked exceptions.
+	 */
+	private static <T> T get(Future<T> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while computing bounds", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+}
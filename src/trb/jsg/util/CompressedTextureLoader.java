@@ -0,0 +1,326 @@
+/*
+ * Copyright (c) 2008-2012 Java Scene Graph
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Java Scene Graph' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package trb.jsg.util;
+
+import static org.lwjgl.opengl.EXTTextureCompressionS3TC.*;
+import static org.lwjgl.opengl.EXTTextureSRGB.*;
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL42.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import trb.jsg.Texture;
+import trb.jsg.enums.Format;
+import trb.jsg.enums.TextureType;
+
+/**
+ * Loads DDS and KTX files into a Texture. The file is memory mapped and the
+ * pixels of the texture are slices of the mapping, so the data is not 
+ * copied before it is uploaded.
+ * <p>
+ * Supports 2D textures and cube maps with mip chains. DDS supports DXT1, 
+ * DXT3, DXT5 and the DX10 header with BC1 to BC5 and BC7, and uncompressed
+ * 24 and 32 bit RGB(A) and BGR(A). KTX passes the OpenGL internal format in
+ * the file through, so ETC1 and ETC2 is supported if the driver supports it.
+ * 
+ * @author tombr
+ */
+public class CompressedTextureLoader {
+	
+	private static final int DDS_MAGIC = 0x20534444;
+	private static final int DDSD_MIPMAPCOUNT = 0x20000;
+	private static final int DDPF_ALPHAPIXELS = 0x1;
+	private static final int DDPF_FOURCC = 0x4;
+	private static final int DDSCAPS2_CUBEMAP = 0x200;
+	private static final int DDSCAPS2_VOLUME = 0x200000;
+	
+	private static final byte[] KTX_IDENTIFIER = {(byte) 0xAB, 'K', 'T', 'X', ' ', '1', '1'
+			, (byte) 0xBB, '\r', '\n', 0x1A, '\n'};
+
+	/**
+	 * Loads a DDS or KTX file. The type is found from the start of the file.
+	 * @param file the file to load
+	 * @return the texture
+	 * @throws IOException if the file could not be read
+	 */
+	public static Texture load(File file) throws IOException {
+		return load(map(file));
+	}
+	
+	/**
+	 * Loads a DDS or KTX image from a buffer. The texture pixels will be 
+	 * slices of the buffer.
+	 * @param buffer the content of a DDS or KTX file
+	 * @return the texture
+	 */
+	public static Texture load(ByteBuffer buffer) {
+		buffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		if (buffer.remaining() >= 4 && buffer.getInt(buffer.position()) == DDS_MAGIC) {
+			return loadDDS(buffer);
+		}
+		if (isKTX(buffer)) {
+			return loadKTX(buffer);
+		}
+		throw new RuntimeException("Not a DDS or KTX file");
+	}
+
+	/**
+	 * Memory maps a file.
+	 * @param file the file to map
+	 * @return the read only mapping
+	 * @throws IOException if the file could not be mapped
+	 */
+	public static ByteBuffer map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			raf.close();
+		}
+	}
+	
+	/**
+	 * Loads a DDS image.
+	 * @param buffer the content of a DDS file
+	 * @return the texture
+	 */
+	public static Texture loadDDS(ByteBuffer buffer) {
+		buffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		int start = buffer.position();
+		if (buffer.getInt(start) != DDS_MAGIC || buffer.getInt(start + 4) != 124) {
+			throw new RuntimeException("Not a DDS file");
+		}
+		int flags = buffer.getInt(start + 8);
+		int height = buffer.getInt(start + 12);
+		int width = buffer.getInt(start + 16);
+		int mipMapCount = buffer.getInt(start + 28);
+		int pfFlags = buffer.getInt(start + 80);
+		int fourCC = buffer.getInt(start + 84);
+		int rgbBitCount = buffer.getInt(start + 88);
+		int rMask = buffer.getInt(start + 92);
+		int caps2 = buffer.getInt(start + 112);
+		int dataOffset = start + 4 + 124;
+		
+		if ((caps2 & DDSCAPS2_VOLUME) != 0) {
+			throw new RuntimeException("Volume DDS textures is not supported");
+		}
+		int levelCnt = (flags & DDSD_MIPMAPCOUNT) != 0 ? Math.max(1, mipMapCount) : 1;
+		int faceCnt = (caps2 & DDSCAPS2_CUBEMAP) != 0 ? 6 : 1;
+		
+		int internalFormat;
+		Format format = Format.RGBA;
+		int bpp = 0;
+		if ((pfFlags & DDPF_FOURCC) != 0) {
+			if (fourCC == fourCC("DXT1")) {
+				internalFormat = (pfFlags & DDPF_ALPHAPIXELS) != 0 
+						? GL_COMPRESSED_RGBA_S3TC_DXT1_EXT : GL_COMPRESSED_RGB_S3TC_DXT1_EXT;
+			} else if (fourCC == fourCC("DXT3")) {
+				internalFormat = GL_COMPRESSED_RGBA_S3TC_DXT3_EXT;
+			} else if (fourCC == fourCC("DXT5")) {
+				internalFormat = GL_COMPRESSED_RGBA_S3TC_DXT5_EXT;
+			} else if (fourCC == fourCC("ATI1") || fourCC == fourCC("BC4U")) {
+				internalFormat = GL_COMPRESSED_RED_RGTC1;
+			} else if (fourCC == fourCC("ATI2") || fourCC == fourCC("BC5U")) {
+				internalFormat = GL_COMPRESSED_RED_GREEN_RGTC2;
+			} else if (fourCC == fourCC("DX10")) {
+				internalFormat = getDXGIFormat(buffer.getInt(dataOffset));
+				if ((buffer.getInt(dataOffset + 8) & 0x4) != 0) {
+					// DDS_RESOURCE_MISC_TEXTURECUBE
+					faceCnt = 6;
+				}
+				dataOffset += 20;
+			} else {
+				throw new RuntimeException("Unsupported DDS format "+fourCCToString(fourCC));
+			}
+		} else if (rgbBitCount == 32) {
+			internalFormat = GL_RGBA8;
+			format = rMask == 0xff ? Format.RGBA : Format.BGRA;
+			bpp = 4;
+		} else if (rgbBitCount == 24) {
+			internalFormat = GL_RGB8;
+			format = rMask == 0xff ? Format.RGB : Format.BGR;
+			bpp = 3;
+		} else {
+			throw new RuntimeException("Unsupported DDS pixel format with "+rgbBitCount+" bits");
+		}
+		
+		// all levels of a face are stored before the next face
+		ByteBuffer[][] pixels = new ByteBuffer[faceCnt][levelCnt];
+		int offset = dataOffset;
+		for (int face=0; face<faceCnt; face++) {
+			int w = width;
+			int h = height;
+			for (int level=0; level<levelCnt; level++) {
+				int size = bpp > 0 ? w * h * bpp : TextureCompression.getLevelSize(internalFormat, w, h);
+				pixels[face][level] = slice(buffer, offset, size);
+				offset += size;
+				w = Math.max(1, w >> 1);
+				h = Math.max(1, h >> 1);
+			}
+		}
+		
+		TextureType type = faceCnt == 6 ? TextureType.TEXTURE_CUBE_MAP : TextureType.TEXTURE_2D;
+		return new Texture(type, internalFormat, width, height, 0, format, pixels
+				, false, bpp == 0);
+	}
+	
+	/**
+	 * Loads a KTX image.
+	 * @param buffer the content of a KTX file
+	 * @return the texture
+	 */
+	public static Texture loadKTX(ByteBuffer buffer) {
+		buffer = buffer.duplicate();
+		if (!isKTX(buffer)) {
+			throw new RuntimeException("Not a KTX file");
+		}
+		int start = buffer.position();
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		if (buffer.getInt(start + 12) != 0x04030201) {
+			buffer.order(ByteOrder.BIG_ENDIAN);
+		}
+		int glType = buffer.getInt(start + 16);
+		int glFormat = buffer.getInt(start + 24);
+		int glInternalFormat = buffer.getInt(start + 28);
+		int width = buffer.getInt(start + 36);
+		int height = Math.max(1, buffer.getInt(start + 40));
+		int depth = buffer.getInt(start + 44);
+		int arrayElementCnt = buffer.getInt(start + 48);
+		int faceCnt = buffer.getInt(start + 52);
+		int levelCnt = Math.max(1, buffer.getInt(start + 56));
+		int keyValueBytes = buffer.getInt(start + 60);
+		
+		if (depth > 1 || arrayElementCnt > 0) {
+			throw new RuntimeException("3D and array KTX textures is not supported");
+		}
+		if (faceCnt != 1 && faceCnt != 6) {
+			throw new RuntimeException("Invalid KTX face count "+faceCnt);
+		}
+		boolean compressed = glType == 0;
+		Format format = Format.RGBA;
+		if (!compressed) {
+			if (glType != GL_UNSIGNED_BYTE) {
+				throw new RuntimeException("Unsupported KTX type 0x"+Integer.toHexString(glType));
+			}
+			format = getFormat(glFormat);
+		}
+		
+		// each level has its size followed by the faces, padded to 4 bytes
+		ByteBuffer[][] pixels = new ByteBuffer[faceCnt][levelCnt];
+		int offset = start + 64 + keyValueBytes;
+		for (int level=0; level<levelCnt; level++) {
+			int imageSize = buffer.getInt(offset);
+			offset += 4;
+			for (int face=0; face<faceCnt; face++) {
+				pixels[face][level] = slice(buffer, offset, imageSize);
+				offset += (imageSize + 3) & ~3;
+			}
+		}
+		
+		TextureType type = faceCnt == 6 ? TextureType.TEXTURE_CUBE_MAP : TextureType.TEXTURE_2D;
+		return new Texture(type, glInternalFormat, width, height, 0, format, pixels
+				, false, compressed);
+	}
+	
+	private static boolean isKTX(ByteBuffer buffer) {
+		if (buffer.remaining() < 64) {
+			return false;
+		}
+		for (int i=0; i<KTX_IDENTIFIER.length; i++) {
+			if (buffer.get(buffer.position() + i) != KTX_IDENTIFIER[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static ByteBuffer slice(ByteBuffer buffer, int offset, int size) {
+		if (offset + size > buffer.limit()) {
+			throw new RuntimeException("Image data ends at "+(offset + size)
+					+" after the end of the file at "+buffer.limit());
+		}
+		ByteBuffer dup = buffer.duplicate();
+		dup.limit(offset + size);
+		dup.position(offset);
+		return dup.slice();
+	}
+	
+	private static Format getFormat(int glFormat) {
+		for (Format format : Format.values()) {
+			if (format.get() == glFormat) {
+				return format;
+			}
+		}
+		throw new RuntimeException("Unsupported KTX format 0x"+Integer.toHexString(glFormat));
+	}
+	
+	private static int getDXGIFormat(int dxgiFormat) {
+		switch (dxgiFormat) {
+		case 71: return GL_COMPRESSED_RGBA_S3TC_DXT1_EXT;
+		case 72: return GL_COMPRESSED_SRGB_ALPHA_S3TC_DXT1_EXT;
+		case 74: return GL_COMPRESSED_RGBA_S3TC_DXT3_EXT;
+		case 75: return GL_COMPRESSED_SRGB_ALPHA_S3TC_DXT3_EXT;
+		case 77: return GL_COMPRESSED_RGBA_S3TC_DXT5_EXT;
+		case 78: return GL_COMPRESSED_SRGB_ALPHA_S3TC_DXT5_EXT;
+		case 80: return GL_COMPRESSED_RED_RGTC1;
+		case 81: return GL_COMPRESSED_SIGNED_RED_RGTC1;
+		case 83: return GL_COMPRESSED_RED_GREEN_RGTC2;
+		case 84: return GL_COMPRESSED_SIGNED_RED_GREEN_RGTC2;
+		case 95: return GL_COMPRESSED_RGB_BPTC_UNSIGNED_FLOAT;
+		case 96: return GL_COMPRESSED_RGB_BPTC_SIGNED_FLOAT;
+		case 98: return GL_COMPRESSED_RGBA_BPTC_UNORM;
+		case 99: return GL_COMPRESSED_SRGB_ALPHA_BPTC_UNORM;
+		default:
+			throw new RuntimeException("Unsupported DXGI format "+dxgiFormat);
+		}
+	}
+	
+	private static int fourCC(String s) {
+		return s.charAt(0) | (s.charAt(1) << 8) | (s.charAt(2) << 16) | (s.charAt(3) << 24);
+	}
+	
+	private static String fourCCToString(int fourCC) {
+		char[] chars = new char[4];
+		for (int i=0; i<4; i++) {
+			chars[i] = (char) ((fourCC >> (8 * i)) & 0xff);
+		}
+		return new String(chars);
+	}
+}
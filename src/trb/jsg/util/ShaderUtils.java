@@ -90,10 +90,10 @@ public class ShaderUtils {
         float[] texCoords = toArray(texCoordBuffer.data);
         Vec3[] tan1 = createArray(Vec3.class, coords.length);
         Vec3[] tan2 = createArray(Vec3.class, coords.length);
-        for (int idx = 0; idx < vertexData.indices.limit(); idx+=3) {
-            int i1 = vertexData.indices.get(idx);
-            int i2 = vertexData.indices.get(idx + 1);
-            int i3 = vertexData.indices.get(idx + 2);
+        for (int idx = 0; idx < vertexData.getIndexCount(); idx+=3) {
+            int i1 = vertexData.getIndex(idx);
+            int i2 = vertexData.getIndex(idx + 1);
+            int i3 = vertexData.getIndex(idx + 2);
 
             Vec3 v1 = coords[i1];
             Vec3 v2 = coords[i2];
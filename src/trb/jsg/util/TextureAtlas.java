@@ -0,0 +1,595 @@
+/*
+ * Copyright (c) 2008-2012 Java Scene Graph
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Java Scene Graph' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package trb.jsg.util;
+
+import java.awt.Rectangle;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.lwjgl.BufferUtils;
+
+import trb.jsg.Shape;
+import trb.jsg.Texture;
+import trb.jsg.Unit;
+import trb.jsg.VertexData;
+import trb.jsg.enums.Format;
+import trb.jsg.enums.MinFilter;
+import trb.jsg.enums.TextureCoordinate;
+import trb.jsg.enums.TextureType;
+import trb.jsg.enums.Wrap;
+
+/**
+ * Packs small 2D textures into a shared texture, so shapes that only differ
+ * by texture end up with equal state and are rendered without texture binds
+ * in between. The texture coordinates of the shapes are remapped into the
+ * region of their texture.
+ * <p>
+ * Regions are placed with a skyline bottom-left packer. Each region has a 
+ * gutter of padding texels that repeats the edge texels, so linear filtering
+ * does not bleed between neighbours. 
+ * <p>
+ * Only level 0 of the sources is packed. When the sources use a mipmap min
+ * filter the atlas levels are filtered from the atlas level 0, and the 
+ * regions are aligned to the largest power of two 2^n that fits in the 
+ * padding. Level k then has a gutter of padding/2^k texels, so the atlas 
+ * only has the levels 0 to n, which are filtered without bleeding between 
+ * neighbours.
+ * <p>
+ * Only the pixels are touched, no OpenGL calls are made, so atlases can be
+ * built before the shapes are added to a scene graph.
+ * 
+ * @author tombr
+ */
+public class TextureAtlas {
+
+	/** The part of the atlas used by a source texture */
+	public static class Region {
+		
+		/** The texture that was packed */
+		public final Texture source;
+		
+		/** The texels of the source in the atlas, without the gutter */
+		public final int x;
+		public final int y;
+		public final int width;
+		public final int height;
+		
+		/** Maps source texture coordinates to atlas texture coordinates */
+		public final float scaleU;
+		public final float scaleV;
+		public final float offsetU;
+		public final float offsetV;
+		
+		Region(Texture source, int x, int y, int atlasWidth, int atlasHeight) {
+			this.source = source;
+			this.x = x;
+			this.y = y;
+			this.width = source.getWidth();
+			this.height = source.getHeight();
+			this.scaleU = width / (float) atlasWidth;
+			this.scaleV = height / (float) atlasHeight;
+			this.offsetU = x / (float) atlasWidth;
+			this.offsetV = y / (float) atlasHeight;
+		}
+	}
+	
+	/**
+	 * Skyline bottom-left rectangle packer. The skyline is a list of 
+	 * horizontal segments covering the width of the bin. A rectangle is 
+	 * placed on the segment where its top ends lowest.
+	 */
+	public static class SkylinePacker {
+		
+		private final int width;
+		private final int height;
+		
+		/** The segments from left to right as {x, y, width} */
+		private final ArrayList<int[]> skyline = new ArrayList<int[]>();
+		
+		/** The area of the placed rectangles */
+		private long usedArea = 0;
+		
+		public SkylinePacker(int width, int height) {
+			this.width = width;
+			this.height = height;
+			skyline.add(new int[] {0, 0, width});
+		}
+		
+		/**
+		 * Places a rectangle.
+		 * @param w the width
+		 * @param h the height
+		 * @return the lower left corner as {x, y}, or null if it does not fit
+		 */
+		public int[] insert(int w, int h) {
+			int bestIdx = -1;
+			int bestTop = Integer.MAX_VALUE;
+			int bestSegmentWidth = Integer.MAX_VALUE;
+			int bestY = 0;
+			for (int i=0; i<skyline.size(); i++) {
+				int y = fit(i, w, h);
+				if (y < 0) {
+					continue;
+				}
+				int segmentWidth = skyline.get(i)[2];
+				if (y + h < bestTop || (y + h == bestTop && segmentWidth < bestSegmentWidth)) {
+					bestIdx = i;
+					bestTop = y + h;
+					bestSegmentWidth = segmentWidth;
+					bestY = y;
+				}
+			}
+			if (bestIdx < 0) {
+				return null;
+			}
+			int x = skyline.get(bestIdx)[0];
+			skyline.add(bestIdx, new int[] {x, bestY + h, w});
+			
+			// shrink or remove the segments now below the new segment
+			for (int i=bestIdx+1; i<skyline.size(); i++) {
+				int[] segment = skyline.get(i);
+				int overlap = x + w - segment[0];
+				if (overlap <= 0) {
+					break;
+				}
+				if (overlap < segment[2]) {
+					segment[0] += overlap;
+					segment[2] -= overlap;
+					break;
+				}
+				skyline.remove(i--);
+			}
+			
+			// merge neighbours of equal height
+			for (int i=0; i<skyline.size()-1; i++) {
+				int[] a = skyline.get(i);
+				int[] b = skyline.get(i + 1);
+				if (a[1] == b[1]) {
+					a[2] += b[2];
+					skyline.remove(i-- + 1);
+				}
+			}
+			usedArea += (long) w * h;
+			return new int[] {x, bestY};
+		}
+		
+		/**
+		 * Gets the lowest y a rectangle can be placed at with its left edge
+		 * at the start of a segment.
+		 * @return the y or -1 if it does not fit
+		 */
+		private int fit(int segmentIdx, int w, int h) {
+			int x = skyline.get(segmentIdx)[0];
+			if (x + w > width) {
+				return -1;
+			}
+			int y = 0;
+			int remaining = w;
+			for (int i=segmentIdx; remaining > 0; i++) {
+				int[] segment = skyline.get(i);
+				y = Math.max(y, segment[1]);
+				if (y + h > height) {
+					return -1;
+				}
+				remaining -= segment[2];
+			}
+			return y;
+		}
+		
+		/**
+		 * Gets the fraction of the bin covered by placed rectangles.
+		 */
+		public float getOccupancy() {
+			return usedArea / (float) ((long) width * height);
+		}
+	}
+	
+	private final int width;
+	private final int height;
+	private final int padding;
+	private final Format format;
+	private final MinFilter minFilter;
+	
+	/** The slots start at multiples of this, 2^(levelCnt-1) */
+	private final int alignment;
+	private final int bytesPerPixel;
+	private final SkylinePacker packer;
+	
+	/** The regions in the order they were added */
+	private final Map<Texture, Region> regions = new LinkedHashMap<Texture, Region>();
+	
+	/** The vertex data that has been remapped, so shared data is remapped once */
+	private final Map<VertexData, Region> remapped = new IdentityHashMap<VertexData, Region>();
+	
+	/** The packed texture */
+	private final Texture texture;
+	
+	/**
+	 * Creates an empty atlas.
+	 * @param width the width of the atlas texture
+	 * @param height the height of the atlas texture
+	 * @param padding the gutter around each region, preferably a power of 
+	 *                two, which also limits the number of mipmap levels
+	 * @param template a packable texture, the format, internal format and 
+	 *                 filters are copied from this
+	 */
+	public TextureAtlas(int width, int height, int padding, Texture template) {
+		this.width = width;
+		this.height = height;
+		this.padding = Math.max(0, padding);
+		this.format = template.getFormat();
+		this.minFilter = template.getMinFilter();
+		this.bytesPerPixel = TextureLoader.getBytesPerPixel(format);
+		this.packer = new SkylinePacker(width, height);
+		int levelCnt = 1;
+		if (isMipmapFilter(minFilter)) {
+			while ((2 << (levelCnt - 1)) <= this.padding 
+					&& (width >> levelCnt) > 0 && (height >> levelCnt) > 0) {
+				levelCnt++;
+			}
+		}
+		this.alignment = 1 << (levelCnt - 1);
+		ByteBuffer[] levels = new ByteBuffer[levelCnt];
+		for (int i=0; i<levelCnt; i++) {
+			levels[i] = BufferUtils.createByteBuffer(Math.max(1, width >> i) * Math.max(1, height >> i) * bytesPerPixel);
+		}
+		texture = new Texture(TextureType.TEXTURE_2D, template.getInternalFormat(), width, height
+				, 0, format, new ByteBuffer[][] {levels}, false, false);
+		texture.setMinFilter(levelCnt > 1 ? minFilter : getBaseFilter(minFilter));
+		texture.setMagFilter(template.getMagFilter());
+		texture.setMaxAnisotropy(template.getMaxAnisotropy());
+		texture.setWrapS(Wrap.CLAMP_TO_EDGE);
+		texture.setWrapT(Wrap.CLAMP_TO_EDGE);
+	}
+	
+	/**
+	 * Checks if a texture can be packed into an atlas.
+	 * @param texture the texture
+	 * @param maxSize the largest width and height to pack
+	 * @return true if it is an uncompressed 2D texture with client pixels
+	 */
+	public static boolean isPackable(Texture texture, int maxSize) {
+		return texture != null 
+				&& texture.getType() == TextureType.TEXTURE_2D
+				&& !texture.isCompressed()
+				&& texture.getPixels() != null
+				&& texture.getPixels(0, 0) != null
+				&& texture.getWidth() <= maxSize
+				&& texture.getHeight() <= maxSize;
+	}
+	
+	/**
+	 * Checks if a min filter samples from the mipmap levels.
+	 */
+	private static boolean isMipmapFilter(MinFilter filter) {
+		return filter != MinFilter.NEAREST && filter != MinFilter.LINEAR;
+	}
+	
+	/**
+	 * Gets the filter that samples level 0 the way a mipmap filter samples
+	 * each level, used when the padding leaves no room for mipmaps.
+	 */
+	private static MinFilter getBaseFilter(MinFilter filter) {
+		switch (filter) {
+		case NEAREST_MIPMAP_NEAREST:
+		case NEAREST_MIPMAP_LINEAR:
+			return MinFilter.NEAREST;
+		case LINEAR_MIPMAP_NEAREST:
+		case LINEAR_MIPMAP_LINEAR:
+			return MinFilter.LINEAR;
+		default:
+			return filter;
+		}
+	}
+	
+	/**
+	 * Checks if a texture can share this atlas. The textures must have the
+	 * same formats and filters, since they end up as the same texture. The
+	 * mipmaps of the sources are not used, the atlas has its own.
+	 */
+	public boolean isCompatible(Texture t) {
+		return t.getFormat() == format
+				&& t.getInternalFormat() == texture.getInternalFormat()
+				&& t.getMinFilter() == minFilter
+				&& t.getMagFilter() == texture.getMagFilter()
+				&& t.getMaxAnisotropy() == texture.getMaxAnisotropy();
+	}
+	
+	/**
+	 * Copies a texture into the atlas. Adding a texture twice returns the
+	 * existing region.
+	 * @param source a packable and compatible texture
+	 * @return the region or null if there is no room left
+	 */
+	public Region add(Texture source) {
+		Region region = regions.get(source);
+		if (region != null) {
+			return region;
+		}
+		if (!isCompatible(source)) {
+			throw new RuntimeException("Texture is not compatible with atlas " + source);
+		}
+		int slotW = align(source.getWidth() + 2 * padding);
+		int slotH = align(source.getHeight() + 2 * padding);
+		int[] pos = packer.insert(slotW, slotH);
+		if (pos == null) {
+			return null;
+		}
+		region = new Region(source, pos[0] + padding, pos[1] + padding, width, height);
+		regions.put(source, region);
+		copy(source.getPixels(0, 0), region, slotW, slotH);
+		Rectangle slot = new Rectangle(pos[0], pos[1], slotW, slotH);
+		TextureLoader.generateMipmaps(texture.getPixels()[0], width, height, format, slot);
+		texture.pixelsChanged(slot);
+		return region;
+	}
+	
+	/**
+	 * Rounds a slot size up to the alignment, so all slots start at a 
+	 * multiple of the alignment and the texels of the mipmap levels are 
+	 * never filtered from two slots.
+	 */
+	private int align(int size) {
+		return ((size + alignment - 1) / alignment) * alignment;
+	}
+	
+	/**
+	 * Gets the number of mipmap levels of the atlas texture.
+	 */
+	public int getLevelCount() {
+		return texture.getLevelCount(0);
+	}
+	
+	/**
+	 * Copies the source rows into the region and repeats the edge texels 
+	 * into the rest of the slot, so the alignment is part of the gutter.
+	 */
+	private void copy(ByteBuffer src, Region region, int slotW, int slotH) {
+		ByteBuffer dst = texture.getPixels(0, 0);
+		int rowBytes = region.width * bytesPerPixel;
+		byte[] row = new byte[slotW * bytesPerPixel];
+		int x0 = region.x - padding;
+		int y0 = region.y - padding;
+		for (int y=0; y<slotH; y++) {
+			int srcY = Math.min(region.height - 1, Math.max(0, y - padding));
+			src.position(srcY * rowBytes);
+			src.get(row, padding * bytesPerPixel, rowBytes);
+			for (int x=0; x<padding; x++) {
+				System.arraycopy(row, padding * bytesPerPixel, row, x * bytesPerPixel, bytesPerPixel);
+			}
+			for (int x=padding + region.width; x<slotW; x++) {
+				System.arraycopy(row, (padding + region.width - 1) * bytesPerPixel
+						, row, x * bytesPerPixel, bytesPerPixel);
+			}
+			dst.position(((y0 + y) * width + x0) * bytesPerPixel);
+			dst.put(row);
+		}
+		src.rewind();
+		dst.rewind();
+	}
+	
+	/**
+	 * Remaps the texture coordinates of a shape into the region of its 
+	 * texture and replaces the texture of the unit with the atlas. Vertex 
+	 * data shared by several shapes is only remapped once, and the unit is
+	 * changed for every shape that shares it.
+	 * @param shape the shape
+	 * @param unitIdx the texture unit and texture coordinate set
+	 * @return false if the texture is not in the atlas or the shape cannot 
+	 *         be remapped
+	 */
+	public boolean remap(Shape shape, int unitIdx) {
+		Unit unit = shape.getState().getUnit(unitIdx);
+		if (unit == null || !regions.containsKey(unit.getTexture())) {
+			return false;
+		}
+		VertexData vertexData = shape.getVertexData();
+		if (!canRemap(vertexData, unit, unitIdx) 
+				|| !remapTexCoords(vertexData, unitIdx, regions.get(unit.getTexture()))) {
+			return false;
+		}
+		unit.setTexture(texture);
+		return true;
+	}
+	
+	/**
+	 * Transforms the texture coordinates into a region.
+	 * @return false if the vertex data was already remapped into another region
+	 */
+	private boolean remapTexCoords(VertexData vertexData, int unitIdx, Region region) {
+		Region remappedRegion = remapped.get(vertexData);
+		if (remappedRegion != null) {
+			return remappedRegion == region;
+		}
+		VertexData.TexCoordData texCoords = vertexData.texCoords.get(unitIdx);
+		for (int i=0; i+1<texCoords.data.limit(); i+=texCoords.size) {
+			texCoords.data.put(i, region.offsetU + texCoords.data.get(i) * region.scaleU);
+			texCoords.data.put(i + 1, region.offsetV + texCoords.data.get(i + 1) * region.scaleV);
+		}
+		remapped.put(vertexData, region);
+		vertexData.changed();
+		return true;
+	}
+	
+	/**
+	 * Checks that the texture coordinates can be remapped. Texture 
+	 * coordinates outside 0 to 1 would sample the neighbours, and generated
+	 * texture coordinates can not be remapped.
+	 */
+	static boolean canRemap(VertexData vertexData, Unit unit, int unitIdx) {
+		if (vertexData == null || unit.isTexGenEnabled(TextureCoordinate.S) 
+				|| unit.isTexGenEnabled(TextureCoordinate.T)) {
+			return false;
+		}
+		VertexData.TexCoordData texCoords = vertexData.texCoords.get(unitIdx);
+		if (texCoords == null || texCoords.data == null || texCoords.size < 2) {
+			return false;
+		}
+		for (int i=0; i+1<texCoords.data.limit(); i+=texCoords.size) {
+			float u = texCoords.data.get(i);
+			float v = texCoords.data.get(i + 1);
+			if (u < 0 || u > 1 || v < 0 || v > 1) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Packs the textures of a unit of the shapes into atlases and remaps the
+	 * shapes. Textures that are too large, have no client pixels, are used 
+	 * with texture coordinates outside 0 to 1 or share vertex data with 
+	 * another texture are left alone. Atlases that would only hold one 
+	 * texture are discarded.
+	 * @param shapes the shapes
+	 * @param unitIdx the texture unit
+	 * @param size the width and height of the atlases
+	 * @param padding the gutter around each region
+	 * @param maxTextureSize the largest texture width and height to pack
+	 * @return the atlases that are used by the shapes
+	 */
+	public static List<TextureAtlas> pack(List<Shape> shapes, int unitIdx, int size
+			, int padding, int maxTextureSize) {
+		Map<Texture, List<Shape>> users = new LinkedHashMap<Texture, List<Shape>>();
+		Map<VertexData, Texture> vertexDataTextures = new IdentityHashMap<VertexData, Texture>();
+		Map<Texture, Boolean> rejected = new IdentityHashMap<Texture, Boolean>();
+		for (Shape shape : shapes) {
+			Unit unit = shape.getState().getUnit(unitIdx);
+			Texture t = unit != null ? unit.getTexture() : null;
+			if (t == null) {
+				continue;
+			}
+			if (!isPackable(t, maxTextureSize) || !canRemap(shape.getVertexData(), unit, unitIdx)) {
+				rejected.put(t, Boolean.TRUE);
+			}
+			Texture other = vertexDataTextures.put(shape.getVertexData(), t);
+			if (other != null && other != t) {
+				rejected.put(t, Boolean.TRUE);
+				rejected.put(other, Boolean.TRUE);
+			}
+			List<Shape> list = users.get(t);
+			if (list == null) {
+				list = new ArrayList<Shape>();
+				users.put(t, list);
+			}
+			list.add(shape);
+		}
+		
+		// place the tall textures first
+		List<Texture> textures = new ArrayList<Texture>();
+		for (Texture t : users.keySet()) {
+			if (!rejected.containsKey(t)) {
+				textures.add(t);
+			}
+		}
+		Collections.sort(textures, new Comparator<Texture>() {
+			public int compare(Texture a, Texture b) {
+				if (a.getHeight() != b.getHeight()) {
+					return b.getHeight() - a.getHeight();
+				}
+				return b.getWidth() - a.getWidth();
+			}
+		});
+		
+		List<TextureAtlas> atlases = new ArrayList<TextureAtlas>();
+		for (Texture t : textures) {
+			Region region = null;
+			for (int i=0; i<atlases.size() && region == null; i++) {
+				if (atlases.get(i).isCompatible(t)) {
+					region = atlases.get(i).add(t);
+				}
+			}
+			if (region == null) {
+				TextureAtlas atlas = new TextureAtlas(size, size, padding, t);
+				if (atlas.add(t) != null) {
+					atlases.add(atlas);
+				}
+			}
+		}
+		
+		List<TextureAtlas> used = new ArrayList<TextureAtlas>();
+		for (TextureAtlas atlas : atlases) {
+			if (atlas.regions.size() < 2) {
+				continue;
+			}
+			// remap all coordinates first, the units may be shared
+			for (Region region : atlas.regions.values()) {
+				for (Shape shape : users.get(region.source)) {
+					atlas.remapTexCoords(shape.getVertexData(), unitIdx, region);
+				}
+			}
+			for (Texture t : atlas.regions.keySet()) {
+				for (Shape shape : users.get(t)) {
+					shape.getState().getUnit(unitIdx).setTexture(atlas.texture);
+				}
+			}
+			used.add(atlas);
+		}
+		return used;
+	}
+	
+	/**
+	 * Gets the region of a texture.
+	 * @return the region or null if the texture is not in the atlas
+	 */
+	public Region getRegion(Texture source) {
+		return regions.get(source);
+	}
+	
+	/**
+	 * Gets the number of packed textures.
+	 */
+	public int getRegionCount() {
+		return regions.size();
+	}
+	
+	/**
+	 * Gets the fraction of the atlas covered by regions and their gutters.
+	 */
+	public float getOccupancy() {
+		return packer.getOccupancy();
+	}
+	
+	/**
+	 * Gets the packed texture.
+	 */
+	public Texture getTexture() {
+		return texture;
+	}
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright (c) 2008-2012 Java Scene Graph
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Java Scene Graph' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package trb.jsg.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import trb.jsg.Texture;
+import trb.jsg.enums.Format;
+import trb.jsg.enums.TextureType;
+
+/**
+ * An on disk cache of decoded textures. Each entry is a file with a header 
+ * followed by the raw or compressed levels of every cube side, and is named
+ * after a SHA-1 hash of the source file content and the load parameters. 
+ * Cached textures are memory mapped, so the pixels of the texture are slices
+ * of the mapping and nothing is decoded or copied.
+ * <p>
+ * The file layout is little endian:
+ * <pre>
+ * int magic 'JSGT', int version, byte[20] key
+ * int type, int internalFormat, int width, int height, int depth, int format
+ * int flags (1 compressed, 2 generate mipmaps), int sideCnt, int levelCnt
+ * sideCnt * levelCnt * {long offset, int size, int reserved}
+ * level data, each level aligned to 16 bytes
+ * </pre>
+ * 
+ * @author tombr
+ */
+public class TextureCache {
+	
+	public static final int MAGIC = 'J' | ('S' << 8) | ('G' << 16) | ('T' << 24);
+	public static final int VERSION = 1;
+	
+	private static final int KEY_BYTES = 20;
+	private static final int HEADER_BYTES = 8 + KEY_BYTES + 9 * 4;
+	private static final int LEVEL_ENTRY_BYTES = 16;
+	private static final int ALIGNMENT = 16;
+	private static final int FLAG_COMPRESSED = 1;
+	private static final int FLAG_GENERATE_MIPMAPS = 2;
+	
+	/** The directory of the cache files */
+	private final File dir;
+	
+	// metrics
+	private int hitCnt = 0;
+	private int missCnt = 0;
+
+	/**
+	 * Constructs a TextureCache that stores the entries in a directory.
+	 * @param dir the directory, created if it does not exist
+	 */
+	public TextureCache(File dir) {
+		this.dir = dir;
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new RuntimeException("Failed to create texture cache directory "+dir);
+		}
+	}
+	
+	/**
+	 * Loads an image through the cache. On a miss the image is decoded by 
+	 * TextureLoader, optionally compressed, and written to the cache.
+	 * @param source a PNG, JPEG or TGA file
+	 * @param format the format of the texture data
+	 * @param mipmaps true to generate mipmaps on the CPU
+	 * @param compress true to store BC1 or BC3 compressed levels, BC3 if the format has alpha
+	 * @return the texture
+	 * @throws IOException if the source or cache could not be read
+	 */
+	public Texture load(File source, Format format, boolean mipmaps, boolean compress) throws IOException {
+		byte[] key = createKey(source, format+" "+mipmaps+" "+compress);
+		File file = getFile(key);
+		if (file.isFile()) {
+			try {
+				Texture texture = read(file, key);
+				hitCnt++;
+				return texture;
+			} catch (RuntimeException e) {
+				// stale or corrupt entry, rebuild it
+				file.delete();
+			}
+		}
+		missCnt++;
+		Texture texture = TextureLoader.loadTexture(source, format, mipmaps, null);
+		if (compress) {
+			boolean alpha = format == Format.RGBA || format == Format.BGRA;
+			texture = TextureCompression.compress(texture, alpha);
+		}
+		write(texture, key, file);
+		return texture;
+	}
+	
+	/**
+	 * Gets the cache file of a key.
+	 * @param key the hash
+	 * @return the file in the cache directory
+	 */
+	public File getFile(byte[] key) {
+		StringBuilder name = new StringBuilder();
+		for (byte b : key) {
+			name.append(Character.forDigit((b >> 4) & 0xf, 16));
+			name.append(Character.forDigit(b & 0xf, 16));
+		}
+		return new File(dir, name.append(".jsgt").toString());
+	}
+	
+	/**
+	 * Gets the number of loads that was found in the cache.
+	 */
+	public int getHitCount() {
+		return hitCnt;
+	}
+	
+	/**
+	 * Gets the number of loads that was decoded and added to the cache.
+	 */
+	public int getMissCount() {
+		return missCnt;
+	}
+	
+	/**
+	 * Creates the key of a source file. Hashes the content of the file and 
+	 * the parameters, so the key changes when either changes.
+	 * @param source the source file
+	 * @param params the load parameters
+	 * @return the 20 byte SHA-1 hash
+	 * @throws IOException if the source could not be read
+	 */
+	public static byte[] createKey(File source, String params) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		digest.update(CompressedTextureLoader.map(source));
+		digest.update(params.getBytes("UTF-8"));
+		return digest.digest();
+	}
+	
+	/**
+	 * Writes a texture to a cache file. The file is written to a temporary
+	 * file first and renamed, so readers never see a partial file.
+	 * @param texture the texture to write
+	 * @param key the key stored in the header
+	 * @param file the file to write
+	 * @throws IOException if the file could not be written
+	 */
+	public static void write(Texture texture, byte[] key, File file) throws IOException {
+		if (key.length != KEY_BYTES) {
+			throw new IllegalArgumentException("Key must be "+KEY_BYTES+" bytes");
+		}
+		ByteBuffer[][] pixels = texture.getPixels();
+		int sideCnt = pixels.length;
+		int levelCnt = pixels[0].length;
+		int tableBytes = sideCnt * levelCnt * LEVEL_ENTRY_BYTES;
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES + tableBytes).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.put(key);
+		header.putInt(texture.getType().get());
+		header.putInt(texture.getInternalFormat());
+		header.putInt(texture.getWidth());
+		header.putInt(texture.getHeight());
+		header.putInt(texture.getDepth());
+		header.putInt(texture.getFormat().get());
+		header.putInt((texture.isCompressed() ? FLAG_COMPRESSED : 0) 
+				| (texture.getGenerateMipMaps() ? FLAG_GENERATE_MIPMAPS : 0));
+		header.putInt(sideCnt);
+		header.putInt(levelCnt);
+		long offset = align(header.capacity());
+		for (int side=0; side<sideCnt; side++) {
+			if (pixels[side].length != levelCnt) {
+				throw new IllegalArgumentException("All sides must have the same number of levels");
+			}
+			for (int level=0; level<levelCnt; level++) {
+				int size = pixels[side][level].capacity();
+				header.putLong(offset);
+				header.putInt(size);
+				header.putInt(0);
+				offset = align(offset + size);
+			}
+		}
+		header.flip();
+		
+		File tmp = new File(file.getPath()+".tmp"+Thread.currentThread().getId());
+		RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+		try {
+			raf.setLength(0);
+			FileChannel channel = raf.getChannel();
+			writeFully(channel, header, 0);
+			offset = align(header.capacity());
+			for (int side=0; side<sideCnt; side++) {
+				for (int level=0; level<levelCnt; level++) {
+					ByteBuffer data = pixels[side][level].duplicate();
+					data.clear();
+					writeFully(channel, data, offset);
+					offset = align(offset + data.capacity());
+				}
+			}
+		} finally {
+			raf.close();
+		}
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				tmp.delete();
+				throw new IOException("Failed to rename "+tmp+" to "+file);
+			}
+		}
+	}
+	
+	/**
+	 * Memory maps a cache file.
+	 * @param file the cache file
+	 * @param key the expected key or null to accept any key
+	 * @return the texture with pixels that is slices of the mapping
+	 * @throws IOException if the file could not be mapped
+	 */
+	public static Texture read(File file, byte[] key) throws IOException {
+		ByteBuffer buffer = CompressedTextureLoader.map(file).order(ByteOrder.LITTLE_ENDIAN);
+		if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			throw new RuntimeException("Not a texture cache file "+file);
+		}
+		if (key != null) {
+			for (int i=0; i<KEY_BYTES; i++) {
+				if (buffer.get(8 + i) != key[i]) {
+					throw new RuntimeException("Key mismatch in "+file);
+				}
+			}
+		}
+		int p = 8 + KEY_BYTES;
+		TextureType type = getTextureType(buffer.getInt(p));
+		int internalFormat = buffer.getInt(p + 4);
+		int width = buffer.getInt(p + 8);
+		int height = buffer.getInt(p + 12);
+		int depth = buffer.getInt(p + 16);
+		Format format = getFormat(buffer.getInt(p + 20));
+		int flags = buffer.getInt(p + 24);
+		int sideCnt = buffer.getInt(p + 28);
+		int levelCnt = buffer.getInt(p + 32);
+		if (sideCnt < 1 || levelCnt < 1 || HEADER_BYTES + (long) sideCnt * levelCnt * LEVEL_ENTRY_BYTES > buffer.capacity()) {
+			throw new RuntimeException("Invalid level table in "+file);
+		}
+		
+		ByteBuffer[][] pixels = new ByteBuffer[sideCnt][levelCnt];
+		int entry = HEADER_BYTES;
+		for (int side=0; side<sideCnt; side++) {
+			for (int level=0; level<levelCnt; level++) {
+				long offset = buffer.getLong(entry);
+				int size = buffer.getInt(entry + 8);
+				entry += LEVEL_ENTRY_BYTES;
+				if (offset < 0 || size < 0 || offset + size > buffer.capacity()) {
+					throw new RuntimeException("Level outside of file "+file);
+				}
+				ByteBuffer slice = buffer.duplicate();
+				slice.limit((int) offset + size);
+				slice.position((int) offset);
+				pixels[side][level] = slice.slice();
+			}
+		}
+		return new Texture(type, internalFormat, width, height, depth, format, pixels
+				, (flags & FLAG_GENERATE_MIPMAPS) != 0, (flags & FLAG_COMPRESSED) != 0);
+	}
+	
+	private static long align(long offset) {
+		return (offset + ALIGNMENT - 1) & ~(ALIGNMENT - 1);
+	}
+	
+	private static void writeFully(FileChannel channel, ByteBuffer data, long offset) throws IOException {
+		while (data.hasRemaining()) {
+			offset += channel.write(data, offset);
+		}
+	}
+	
+	private static TextureType getTextureType(int glType) {
+		for (TextureType type : TextureType.values()) {
+			if (type.get() == glType) {
+				return type;
+			}
+		}
+		throw new RuntimeException("Unknown texture type 0x"+Integer.toHexString(glType));
+	}
+	
+	private static Format getFormat(int glFormat) {
+		for (Format format : Format.values()) {
+			if (format.get() == glFormat) {
+				return format;
+			}
+		}
+		throw new RuntimeException("Unknown format 0x"+Integer.toHexString(glFormat));
+	}
+}
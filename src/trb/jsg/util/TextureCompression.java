@@ -0,0 +1,379 @@
+/*
+ * Copyright (c) 2008-2012 Java Scene Graph
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Java Scene Graph' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package trb.jsg.util;
+
+import static org.lwjgl.opengl.EXTTextureCompressionS3TC.*;
+import static org.lwjgl.opengl.EXTTextureSRGB.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL42.*;
+
+import java.nio.ByteBuffer;
+
+import org.lwjgl.BufferUtils;
+
+import trb.jsg.Texture;
+import trb.jsg.enums.Format;
+
+/**
+ * Block compressed texture formats and a CPU encoder for BC1 (DXT1) and BC3
+ * (DXT5).
+ * <p>
+ * All the block formats stores 4x4 texels per block. The encoder picks the 
+ * two color endpoints of a block along the principal axis of its colors and
+ * snaps each texel to the closest of the four palette colors. The alpha of 
+ * BC3 uses the minimum and maximum alpha of the block as endpoints with six 
+ * interpolated values.
+ * 
+ * @author tombr
+ */
+public class TextureCompression {
+	
+	/** ETC1, not defined by LWJGL */
+	public static final int GL_ETC1_RGB8_OES = 0x8D64;
+	
+	/** ETC2 and EAC from OpenGL 4.3, not defined by LWJGL */
+	public static final int GL_COMPRESSED_R11_EAC = 0x9270;
+	public static final int GL_COMPRESSED_SIGNED_R11_EAC = 0x9271;
+	public static final int GL_COMPRESSED_RG11_EAC = 0x9272;
+	public static final int GL_COMPRESSED_SIGNED_RG11_EAC = 0x9273;
+	public static final int GL_COMPRESSED_RGB8_ETC2 = 0x9274;
+	public static final int GL_COMPRESSED_SRGB8_ETC2 = 0x9275;
+	public static final int GL_COMPRESSED_RGB8_PUNCHTHROUGH_ALPHA1_ETC2 = 0x9276;
+	public static final int GL_COMPRESSED_SRGB8_PUNCHTHROUGH_ALPHA1_ETC2 = 0x9277;
+	public static final int GL_COMPRESSED_RGBA8_ETC2_EAC = 0x9278;
+	public static final int GL_COMPRESSED_SRGB8_ALPHA8_ETC2_EAC = 0x9279;
+	
+	/**
+	 * Gets the bytes per 4x4 block of a compressed internal format.
+	 * @param internalFormat the OpenGL internal format
+	 * @return the bytes per block or 0 if not a block compressed format
+	 */
+	public static int getBlockBytes(int internalFormat) {
+		switch (internalFormat) {
+		case GL_COMPRESSED_RGB_S3TC_DXT1_EXT:
+		case GL_COMPRESSED_RGBA_S3TC_DXT1_EXT:
+		case GL_COMPRESSED_SRGB_S3TC_DXT1_EXT:
+		case GL_COMPRESSED_SRGB_ALPHA_S3TC_DXT1_EXT:
+		case GL_COMPRESSED_RED_RGTC1:
+		case GL_COMPRESSED_SIGNED_RED_RGTC1:
+		case GL_ETC1_RGB8_OES:
+		case GL_COMPRESSED_R11_EAC:
+		case GL_COMPRESSED_SIGNED_R11_EAC:
+		case GL_COMPRESSED_RGB8_ETC2:
+		case GL_COMPRESSED_SRGB8_ETC2:
+		case GL_COMPRESSED_RGB8_PUNCHTHROUGH_ALPHA1_ETC2:
+		case GL_COMPRESSED_SRGB8_PUNCHTHROUGH_ALPHA1_ETC2:
+			return 8;
+		case GL_COMPRESSED_RGBA_S3TC_DXT3_EXT:
+		case GL_COMPRESSED_RGBA_S3TC_DXT5_EXT:
+		case GL_COMPRESSED_SRGB_ALPHA_S3TC_DXT3_EXT:
+		case GL_COMPRESSED_SRGB_ALPHA_S3TC_DXT5_EXT:
+		case GL_COMPRESSED_RED_GREEN_RGTC2:
+		case GL_COMPRESSED_SIGNED_RED_GREEN_RGTC2:
+		case GL_COMPRESSED_RGBA_BPTC_UNORM:
+		case GL_COMPRESSED_SRGB_ALPHA_BPTC_UNORM:
+		case GL_COMPRESSED_RGB_BPTC_SIGNED_FLOAT:
+		case GL_COMPRESSED_RGB_BPTC_UNSIGNED_FLOAT:
+		case GL_COMPRESSED_RG11_EAC:
+		case GL_COMPRESSED_SIGNED_RG11_EAC:
+		case GL_COMPRESSED_RGBA8_ETC2_EAC:
+		case GL_COMPRESSED_SRGB8_ALPHA8_ETC2_EAC:
+			return 16;
+		default:
+			return 0;
+		}
+	}
+	
+	/**
+	 * Checks if the internal format is block compressed.
+	 * @param internalFormat the OpenGL internal format
+	 * @return true if compressed
+	 */
+	public static boolean isCompressed(int internalFormat) {
+		return getBlockBytes(internalFormat) > 0;
+	}
+	
+	/**
+	 * Gets the size of one level of a block compressed image.
+	 * @param internalFormat the OpenGL internal format
+	 * @param width the width of the level
+	 * @param height the height of the level
+	 * @return the size in bytes
+	 */
+	public static int getLevelSize(int internalFormat, int width, int height) {
+		return ((width + 3) / 4) * ((height + 3) / 4) * getBlockBytes(internalFormat);
+	}
+	
+	/**
+	 * Compresses all levels and cube sides of an uncompressed texture. The 
+	 * texture must be RGB, BGR, RGBA or BGRA. Mipmaps can not be generated by
+	 * OpenGL for compressed textures so the levels must be provided.
+	 * @param texture the uncompressed texture
+	 * @param alpha true to use BC3 and keep the alpha, false to use BC1
+	 * @return a new compressed texture with the same state as texture
+	 */
+	public static Texture compress(Texture texture, boolean alpha) {
+		if (texture.isCompressed()) {
+			throw new IllegalArgumentException("Texture is already compressed");
+		}
+		ByteBuffer[][] src = texture.getPixels();
+		ByteBuffer[][] dst = new ByteBuffer[src.length][];
+		for (int side=0; side<src.length; side++) {
+			dst[side] = new ByteBuffer[src[side].length];
+			int w = texture.getWidth();
+			int h = texture.getHeight();
+			for (int level=0; level<src[side].length; level++) {
+				dst[side][level] = alpha ? encodeBC3(src[side][level], w, h, texture.getFormat())
+						: encodeBC1(src[side][level], w, h, texture.getFormat());
+				w = Math.max(1, w >> 1);
+				h = Math.max(1, h >> 1);
+			}
+		}
+		int internalFormat = alpha ? GL_COMPRESSED_RGBA_S3TC_DXT5_EXT : GL_COMPRESSED_RGB_S3TC_DXT1_EXT;
+		Texture compressed = new Texture(texture.getType(), internalFormat, texture.getWidth()
+				, texture.getHeight(), texture.getDepth(), texture.getFormat(), dst, false, true);
+		compressed.setMinFilter(texture.getMinFilter());
+		compressed.setMagFilter(texture.getMagFilter());
+		compressed.setMaxAnisotropy(texture.getMaxAnisotropy());
+		compressed.setWrapS(texture.getWrapS());
+		compressed.setWrapT(texture.getWrapT());
+		compressed.setWrapR(texture.getWrapR());
+		return compressed;
+	}
+	
+	/**
+	 * Encodes an image as BC1 (DXT1) without alpha.
+	 * @param pixels the image
+	 * @param width the width of the image
+	 * @param height the height of the image
+	 * @param format RGB, BGR, RGBA or BGRA
+	 * @return the blocks in a new direct buffer
+	 */
+	public static ByteBuffer encodeBC1(ByteBuffer pixels, int width, int height, Format format) {
+		return encode(pixels, width, height, format, false);
+	}
+	
+	/**
+	 * Encodes an image as BC3 (DXT5).
+	 * @param pixels the image
+	 * @param width the width of the image
+	 * @param height the height of the image
+	 * @param format RGB, BGR, RGBA or BGRA
+	 * @return the blocks in a new direct buffer
+	 */
+	public static ByteBuffer encodeBC3(ByteBuffer pixels, int width, int height, Format format) {
+		return encode(pixels, width, height, format, true);
+	}
+	
+	private static ByteBuffer encode(ByteBuffer pixels, int width, int height, Format format, boolean alpha) {
+		int bpp;
+		int rOff;
+		int bOff;
+		switch (format) {
+		case RGB: bpp = 3; rOff = 0; bOff = 2; break;
+		case BGR: bpp = 3; rOff = 2; bOff = 0; break;
+		case RGBA: bpp = 4; rOff = 0; bOff = 2; break;
+		case BGRA: bpp = 4; rOff = 2; bOff = 0; break;
+		default:
+			throw new IllegalArgumentException("Can not compress format "+format);
+		}
+		if (pixels.capacity() < width * height * bpp) {
+			throw new IllegalArgumentException("Image of "+pixels.capacity()
+					+" bytes is smaller than "+width+"x"+height+"x"+bpp);
+		}
+		
+		int blockBytes = alpha ? 16 : 8;
+		ByteBuffer dst = BufferUtils.createByteBuffer(((width + 3) / 4) * ((height + 3) / 4) * blockBytes);
+		int[] block = new int[16 * 4];
+		int[] palette = new int[4 * 3];
+		for (int by=0; by<height; by+=4) {
+			for (int bx=0; bx<width; bx+=4) {
+				// gather the block as r, g, b, a and repeat the edge texels
+				for (int i=0; i<16; i++) {
+					int x = Math.min(width - 1, bx + (i & 3));
+					int y = Math.min(height - 1, by + (i >> 2));
+					int offset = (y * width + x) * bpp;
+					block[i*4+0] = pixels.get(offset + rOff) & 0xff;
+					block[i*4+1] = pixels.get(offset + 1) & 0xff;
+					block[i*4+2] = pixels.get(offset + bOff) & 0xff;
+					block[i*4+3] = bpp == 4 ? pixels.get(offset + 3) & 0xff : 255;
+				}
+				if (alpha) {
+					encodeAlphaBlock(block, dst);
+				}
+				encodeColorBlock(block, palette, dst);
+			}
+		}
+		dst.rewind();
+		return dst;
+	}
+	
+	/**
+	 * Writes the 8 byte BC3 alpha block.
+	 */
+	private static void encodeAlphaBlock(int[] block, ByteBuffer dst) {
+		int a0 = 0;
+		int a1 = 255;
+		for (int i=0; i<16; i++) {
+			a0 = Math.max(a0, block[i*4+3]);
+			a1 = Math.min(a1, block[i*4+3]);
+		}
+		dst.put((byte) a0);
+		dst.put((byte) a1);
+		
+		// a0 > a1 selects 6 interpolated values. Index 0 is a0, 1 is a1 and
+		// index k in 2..7 is ((8-k)*a0 + (k-1)*a1) / 7.
+		long bits = 0;
+		if (a0 > a1) {
+			int range = a0 - a1;
+			for (int i=0; i<16; i++) {
+				int p = ((block[i*4+3] - a1) * 7 + range / 2) / range;
+				int index = p == 7 ? 0 : (p == 0 ? 1 : 8 - p);
+				bits |= (long) index << (3 * i);
+			}
+		}
+		for (int i=0; i<6; i++) {
+			dst.put((byte) (bits >>> (8 * i)));
+		}
+	}
+	
+	/**
+	 * Writes the 8 byte BC1 color block in four color mode.
+	 */
+	private static void encodeColorBlock(int[] block, int[] palette, ByteBuffer dst) {
+		// mean and covariance of the colors
+		float mr = 0, mg = 0, mb = 0;
+		for (int i=0; i<16; i++) {
+			mr += block[i*4+0];
+			mg += block[i*4+1];
+			mb += block[i*4+2];
+		}
+		mr /= 16;
+		mg /= 16;
+		mb /= 16;
+		float crr = 0, crg = 0, crb = 0, cgg = 0, cgb = 0, cbb = 0;
+		for (int i=0; i<16; i++) {
+			float r = block[i*4+0] - mr;
+			float g = block[i*4+1] - mg;
+			float b = block[i*4+2] - mb;
+			crr += r * r;
+			crg += r * g;
+			crb += r * b;
+			cgg += g * g;
+			cgb += g * b;
+			cbb += b * b;
+		}
+		
+		// principal axis by power iteration
+		float ar = 1, ag = 1, ab = 1;
+		for (int iter=0; iter<4; iter++) {
+			float r = crr * ar + crg * ag + crb * ab;
+			float g = crg * ar + cgg * ag + cgb * ab;
+			float b = crb * ar + cgb * ag + cbb * ab;
+			float len = Math.max(Math.abs(r), Math.max(Math.abs(g), Math.abs(b)));
+			if (len < 1e-6f) {
+				break;
+			}
+			ar = r / len;
+			ag = g / len;
+			ab = b / len;
+		}
+		
+		// endpoints at the extreme projections on the axis
+		float minT = Float.MAX_VALUE;
+		float maxT = -Float.MAX_VALUE;
+		float axisLenSq = ar * ar + ag * ag + ab * ab;
+		for (int i=0; i<16; i++) {
+			float t = ((block[i*4+0] - mr) * ar + (block[i*4+1] - mg) * ag + (block[i*4+2] - mb) * ab) / axisLenSq;
+			minT = Math.min(minT, t);
+			maxT = Math.max(maxT, t);
+		}
+		int c0 = to565(mr + ar * maxT, mg + ag * maxT, mb + ab * maxT);
+		int c1 = to565(mr + ar * minT, mg + ag * minT, mb + ab * minT);
+		if (c0 < c1) {
+			int tmp = c0;
+			c0 = c1;
+			c1 = tmp;
+		}
+		
+		int indices = 0;
+		if (c0 != c1) {
+			// palette: c0, c1, 2/3 c0 + 1/3 c1, 1/3 c0 + 2/3 c1
+			from565(c0, palette, 0);
+			from565(c1, palette, 3);
+			for (int c=0; c<3; c++) {
+				palette[6+c] = (2 * palette[c] + palette[3+c]) / 3;
+				palette[9+c] = (palette[c] + 2 * palette[3+c]) / 3;
+			}
+			for (int i=0; i<16; i++) {
+				int best = 0;
+				int bestDist = Integer.MAX_VALUE;
+				for (int p=0; p<4; p++) {
+					int dr = block[i*4+0] - palette[p*3+0];
+					int dg = block[i*4+1] - palette[p*3+1];
+					int db = block[i*4+2] - palette[p*3+2];
+					int dist = dr * dr + dg * dg + db * db;
+					if (dist < bestDist) {
+						bestDist = dist;
+						best = p;
+					}
+				}
+				indices |= best << (2 * i);
+			}
+		}
+		dst.put((byte) c0);
+		dst.put((byte) (c0 >> 8));
+		dst.put((byte) c1);
+		dst.put((byte) (c1 >> 8));
+		dst.put((byte) indices);
+		dst.put((byte) (indices >> 8));
+		dst.put((byte) (indices >> 16));
+		dst.put((byte) (indices >> 24));
+	}
+	
+	private static int to565(float r, float g, float b) {
+		int r5 = Math.round(Math.max(0, Math.min(255, r)) * 31 / 255f);
+		int g6 = Math.round(Math.max(0, Math.min(255, g)) * 63 / 255f);
+		int b5 = Math.round(Math.max(0, Math.min(255, b)) * 31 / 255f);
+		return (r5 << 11) | (g6 << 5) | b5;
+	}
+	
+	private static void from565(int c, int[] rgb, int offset) {
+		int r5 = (c >> 11) & 31;
+		int g6 = (c >> 5) & 63;
+		int b5 = c & 31;
+		rgb[offset+0] = (r5 << 3) | (r5 >> 2);
+		rgb[offset+1] = (g6 << 2) | (g6 >> 4);
+		rgb[offset+2] = (b5 << 3) | (b5 >> 2);
+	}
+}
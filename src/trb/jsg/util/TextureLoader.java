@@ -1,16 +1,480 @@
 package trb.jsg.util;
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
 import org.lwjgl.BufferUtils;
 
+import trb.jsg.Texture;
+import trb.jsg.enums.Format;
+import trb.jsg.enums.TextureType;
+
+/**
+ * Loads PNG, JPEG and TGA images into direct ByteBuffers in the format the
+ * texture is uploaded with.
+ * <p>
+ * The common BufferedImage types are read directly from their data buffer,
+ * one row at a time, so no int[] copy of the image is made. TGA is decoded
+ * by this class since ImageIO does not support it. The first row of the
+ * image data is the top row of the image.
+ * <p>
+ * Mipmaps are generated on the CPU with a 2x2 box filter, so they can be
+ * used with compressed textures and dropped by the texture residency
+ * manager. Images can be loaded on the threads of an executor.
+ *
+ * @author tombr
+ */
 public class TextureLoader {
 
+    /** Levels with fewer rows than this are never split between threads */
+    public static final int MIN_ROWS_PER_TASK = 64;
+
+    /**
+     * Gets the image data as RGBA.
+     * @param image the image
+     * @return the pixels in a new direct buffer
+     */
     public static ByteBuffer getImageData(BufferedImage image) {
+        return getImageData(image, Format.RGBA);
+    }
+
+    /**
+     * Gets the image data in the specified format.
+     * @param image the image
+     * @param format the format of the returned data
+     * @return the pixels in a new direct buffer
+     */
+    public static ByteBuffer getImageData(BufferedImage image, Format format) {
         int w = image.getWidth();
         int h = image.getHeight();
-        ByteBuffer byteBuffer = BufferUtils.createByteBuffer(w * h * 4);
-        byteBuffer.asIntBuffer().put(image.getRGB(0, 0, w, h, null, 0, w)).rewind();
-        return byteBuffer;
+        ByteBuffer dst = BufferUtils.createByteBuffer(w * h * getBytesPerPixel(format));
+        byte[] rgba = new byte[w * 4];
+        byte[] row = new byte[w * getBytesPerPixel(format)];
+        int[] argb = null;
+        DataBuffer dataBuffer = image.getRaster().getDataBuffer();
+        boolean packed = image.getRaster().getParent() == null
+                && image.getRaster().getSampleModelTranslateX() == 0
+                && image.getRaster().getSampleModelTranslateY() == 0;
+        for (int y = 0; y < h; y++) {
+            switch (packed ? image.getType() : BufferedImage.TYPE_CUSTOM) {
+                case BufferedImage.TYPE_3BYTE_BGR: {
+                    byte[] data = ((DataBufferByte) dataBuffer).getData();
+                    int src = y * w * 3;
+                    for (int x = 0, i = 0; x < w; x++, i += 4, src += 3) {
+                        rgba[i] = data[src + 2];
+                        rgba[i + 1] = data[src + 1];
+                        rgba[i + 2] = data[src];
+                        rgba[i + 3] = (byte) 255;
+                    }
+                    break;
+                }
+                case BufferedImage.TYPE_4BYTE_ABGR: {
+                    byte[] data = ((DataBufferByte) dataBuffer).getData();
+                    int src = y * w * 4;
+                    for (int x = 0, i = 0; x < w; x++, i += 4, src += 4) {
+                        rgba[i] = data[src + 3];
+                        rgba[i + 1] = data[src + 2];
+                        rgba[i + 2] = data[src + 1];
+                        rgba[i + 3] = data[src];
+                    }
+                    break;
+                }
+                case BufferedImage.TYPE_BYTE_GRAY: {
+                    byte[] data = ((DataBufferByte) dataBuffer).getData();
+                    int src = y * w;
+                    for (int x = 0, i = 0; x < w; x++, i += 4, src++) {
+                        rgba[i] = data[src];
+                        rgba[i + 1] = data[src];
+                        rgba[i + 2] = data[src];
+                        rgba[i + 3] = (byte) 255;
+                    }
+                    break;
+                }
+                case BufferedImage.TYPE_INT_RGB:
+                case BufferedImage.TYPE_INT_ARGB: {
+                    int[] data = ((DataBufferInt) dataBuffer).getData();
+                    boolean alpha = image.getType() == BufferedImage.TYPE_INT_ARGB;
+                    int src = y * w;
+                    for (int x = 0, i = 0; x < w; x++, i += 4, src++) {
+                        int c = data[src];
+                        rgba[i] = (byte) (c >> 16);
+                        rgba[i + 1] = (byte) (c >> 8);
+                        rgba[i + 2] = (byte) c;
+                        rgba[i + 3] = alpha ? (byte) (c >>> 24) : (byte) 255;
+                    }
+                    break;
+                }
+                default: {
+                    // indexed, premultiplied and custom images, one row at a time
+                    argb = image.getRGB(0, y, w, 1, argb, 0, w);
+                    for (int x = 0, i = 0; x < w; x++, i += 4) {
+                        int c = argb[x];
+                        rgba[i] = (byte) (c >> 16);
+                        rgba[i + 1] = (byte) (c >> 8);
+                        rgba[i + 2] = (byte) c;
+                        rgba[i + 3] = (byte) (c >>> 24);
+                    }
+                    break;
+                }
+            }
+            convertRow(rgba, w, format, row);
+            dst.put(row);
+        }
+        dst.rewind();
+        return dst;
+    }
+
+    /**
+     * Loads a PNG, JPEG, TGA or any other image ImageIO can read.
+     * @param file the image file
+     * @param format the format of the returned data
+     * @param size receives the width and height
+     * @return the pixels in a new direct buffer
+     * @throws IOException if the file could not be read
+     */
+    public static ByteBuffer loadImage(File file, Format format, int[] size) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+        try {
+            if (file.getName().toLowerCase().endsWith(".tga")) {
+                return loadTGA(in, format, size);
+            }
+            BufferedImage image = ImageIO.read(in);
+            if (image == null) {
+                throw new IOException("No image reader for " + file);
+            }
+            size[0] = image.getWidth();
+            size[1] = image.getHeight();
+            return getImageData(image, format);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Loads an image into a 2D texture.
+     * @param file the image file
+     * @param format the format of the texture data
+     * @param mipmaps true to generate mipmaps on the CPU
+     * @param executor generates the mipmaps in parallel, or null
+     * @return the texture
+     * @throws IOException if the file could not be read
+     */
+    public static Texture loadTexture(File file, Format format, boolean mipmaps
+            , ExecutorService executor) throws IOException {
+        int[] size = new int[2];
+        ByteBuffer pixels = loadImage(file, format, size);
+        ByteBuffer[] levels = mipmaps
+                ? generateMipmaps(pixels, size[0], size[1], format, executor)
+                : new ByteBuffer[] {pixels};
+        return new Texture(TextureType.TEXTURE_2D, getBytesPerPixel(format), size[0], size[1], 0
+                , format, new ByteBuffer[][] {levels}, false, false);
+    }
+
+    /**
+     * Loads an image into a 2D texture on a thread of the executor. The
+     * mipmaps are generated on the same thread, so many images can be loaded
+     * in parallel without the tasks waiting on each other.
+     * @param file the image file
+     * @param format the format of the texture data
+     * @param mipmaps true to generate mipmaps on the CPU
+     * @param executor runs the load
+     * @return the future texture
+     */
+    public static Future<Texture> loadTextureLater(final File file, final Format format
+            , final boolean mipmaps, ExecutorService executor) {
+        return executor.submit(new Callable<Texture>() {
+            public Texture call() throws Exception {
+                return loadTexture(file, format, mipmaps, null);
+            }
+        });
+    }
+
+    /**
+     * Generates a full mip chain with a 2x2 box filter. Odd sizes repeat the
+     * last row and column.
+     * @param pixels level 0
+     * @param width the width of level 0
+     * @param height the height of level 0
+     * @param format the format of the pixels
+     * @param executor filters the rows of large levels in parallel, or null
+     * @return all levels starting with level 0
+     */
+    public static ByteBuffer[] generateMipmaps(ByteBuffer pixels, int width, int height
+            , Format format, ExecutorService executor) {
+        final int bpp = getBytesPerPixel(format);
+        ArrayList<ByteBuffer> levels = new ArrayList<ByteBuffer>();
+        levels.add(pixels);
+        while (width > 1 || height > 1) {
+            final ByteBuffer src = levels.get(levels.size() - 1);
+            final int srcW = width;
+            final int srcH = height;
+            width = Math.max(1, width >> 1);
+            height = Math.max(1, height >> 1);
+            final int dstW = width;
+            final ByteBuffer dst = BufferUtils.createByteBuffer(width * height * bpp);
+            int taskCnt = executor == null ? 1 : Math.min(Runtime.getRuntime().availableProcessors()
+                    , height / MIN_ROWS_PER_TASK);
+            if (taskCnt <= 1) {
+                downsample(src, srcW, srcH, dst, dstW, 0, 0, dstW, height, bpp);
+            } else {
+                ArrayList<Future<Object>> futures = new ArrayList<Future<Object>>();
+                for (int i = 0; i < taskCnt; i++) {
+                    final int startY = height * i / taskCnt;
+                    final int endY = height * (i + 1) / taskCnt;
+                    futures.add(executor.submit(new Callable<Object>() {
+                        public Object call() {
+                            downsample(src, srcW, srcH, dst, dstW, 0, startY, dstW, endY, bpp);
+                            return null;
+                        }
+                    }));
+                }
+                for (Future<Object> future : futures) {
+                    get(future);
+                }
+            }
+            levels.add(dst);
+        }
+        return levels.toArray(new ByteBuffer[levels.size()]);
+    }
+
+    /**
+     * Regenerates the levels below level 0 inside a changed region of level
+     * 0. Level n+1 is filtered from level n in the part of the region that
+     * is affected by the change.
+     * @param levels the levels, level 0 is the source
+     * @param width the width of level 0
+     * @param height the height of level 0
+     * @param format the format of the pixels
+     * @param region the changed region of level 0
+     */
+    public static void generateMipmaps(ByteBuffer[] levels, int width, int height
+            , Format format, Rectangle region) {
+        int bpp = getBytesPerPixel(format);
+        int x1 = Math.max(0, region.x);
+        int y1 = Math.max(0, region.y);
+        int x2 = Math.min(width, region.x + region.width);
+        int y2 = Math.min(height, region.y + region.height);
+        for (int level = 1; level < levels.length && x1 < x2 && y1 < y2; level++) {
+            int srcW = width;
+            int srcH = height;
+            width = Math.max(1, width >> 1);
+            height = Math.max(1, height >> 1);
+            // destination texel x depends on source texels 2x and 2x+1
+            x1 = x1 >> 1;
+            y1 = y1 >> 1;
+            x2 = Math.min(width, ((x2 - 1) >> 1) + 1);
+            y2 = Math.min(height, ((y2 - 1) >> 1) + 1);
+            downsample(levels[level - 1], srcW, srcH, levels[level], width, x1, y1, x2, y2, bpp);
+        }
+    }
+
+    /**
+     * Filters the rectangle startX, startY to endX, endY of the destination
+     * level.
+     */
+    private static void downsample(ByteBuffer src, int srcW, int srcH, ByteBuffer dst
+            , int dstW, int startX, int startY, int endX, int endY, int bpp) {
+        for (int y = startY; y < endY; y++) {
+            int row0 = Math.min(srcH - 1, y * 2) * srcW;
+            int row1 = Math.min(srcH - 1, y * 2 + 1) * srcW;
+            for (int x = startX; x < endX; x++) {
+                int x0 = Math.min(srcW - 1, x * 2);
+                int x1 = Math.min(srcW - 1, x * 2 + 1);
+                for (int c = 0; c < bpp; c++) {
+                    int sum = (src.get((row0 + x0) * bpp + c) & 0xff)
+                            + (src.get((row0 + x1) * bpp + c) & 0xff)
+                            + (src.get((row1 + x0) * bpp + c) & 0xff)
+                            + (src.get((row1 + x1) * bpp + c) & 0xff);
+                    dst.put((y * dstW + x) * bpp + c, (byte) ((sum + 2) >> 2));
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes an uncompressed or run length encoded true color or grey scale
+     * TGA image.
+     * @param in the TGA data
+     * @param format the format of the returned data
+     * @param size receives the width and height
+     * @return the pixels in a new direct buffer
+     * @throws IOException if the data could not be read
+     */
+    public static ByteBuffer loadTGA(InputStream in, Format format, int[] size) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        byte[] header = new byte[18];
+        data.readFully(header);
+        int idLength = header[0] & 0xff;
+        int colorMapType = header[1] & 0xff;
+        int imageType = header[2] & 0xff;
+        int w = (header[12] & 0xff) | ((header[13] & 0xff) << 8);
+        int h = (header[14] & 0xff) | ((header[15] & 0xff) << 8);
+        int depth = header[16] & 0xff;
+        boolean topDown = (header[17] & 0x20) != 0;
+        boolean rle = imageType == 10 || imageType == 11;
+        boolean grey = imageType == 3 || imageType == 11;
+        if (colorMapType != 0 || (imageType != 2 && imageType != 3 && !rle)) {
+            throw new IOException("Unsupported TGA image type " + imageType);
+        }
+        if (grey ? depth != 8 : (depth != 24 && depth != 32)) {
+            throw new IOException("Unsupported TGA pixel depth " + depth);
+        }
+        data.skipBytes(idLength);
+        size[0] = w;
+        size[1] = h;
+
+        int srcBpp = depth / 8;
+        byte[] src = new byte[w * srcBpp];
+        byte[] rlePixel = new byte[srcBpp];
+        byte[] rgba = new byte[w * 4];
+        byte[] row = new byte[w * getBytesPerPixel(format)];
+        ByteBuffer dst = BufferUtils.createByteBuffer(row.length * h);
+        int rleRemaining = 0;
+        boolean rleRepeat = false;
+        for (int y = 0; y < h; y++) {
+            if (!rle) {
+                data.readFully(src);
+            } else {
+                // packets can span rows, so the repeated pixel is kept 
+                // outside the row
+                for (int x = 0; x < w; x++) {
+                    if (rleRemaining == 0) {
+                        int packet = data.readUnsignedByte();
+                        rleRepeat = (packet & 0x80) != 0;
+                        rleRemaining = (packet & 0x7f) + 1;
+                        if (rleRepeat) {
+                            data.readFully(rlePixel);
+                        }
+                    }
+                    if (rleRepeat) {
+                        System.arraycopy(rlePixel, 0, src, x * srcBpp, srcBpp);
+                    } else {
+                        data.readFully(src, x * srcBpp, srcBpp);
+                    }
+                    rleRemaining--;
+                }
+            }
+            for (int x = 0, i = 0, s = 0; x < w; x++, i += 4, s += srcBpp) {
+                if (grey) {
+                    rgba[i] = rgba[i + 1] = rgba[i + 2] = src[s];
+                    rgba[i + 3] = (byte) 255;
+                } else {
+                    rgba[i] = src[s + 2];
+                    rgba[i + 1] = src[s + 1];
+                    rgba[i + 2] = src[s];
+                    rgba[i + 3] = srcBpp == 4 ? src[s + 3] : (byte) 255;
+                }
+            }
+            convertRow(rgba, w, format, row);
+            dst.position((topDown ? y : h - 1 - y) * row.length);
+            dst.put(row);
+        }
+        dst.rewind();
+        return dst;
+    }
+
+    /**
+     * Gets the number of bytes per pixel of the formats the loader writes.
+     * @param format the format
+     * @return the bytes per pixel
+     */
+    public static int getBytesPerPixel(Format format) {
+        switch (format) {
+            case RGBA:
+            case BGRA:
+                return 4;
+            case RGB:
+            case BGR:
+                return 3;
+            case LUMINANCE_ALPHA:
+                return 2;
+            case LUMINANCE:
+            case ALPHA:
+            case RED:
+            case GREEN:
+            case BLUE:
+                return 1;
+            default:
+                throw new IllegalArgumentException("Unsupported format " + format);
+        }
+    }
+
+    /**
+     * Converts a row of RGBA pixels to the format.
+     */
+    private static void convertRow(byte[] rgba, int w, Format format, byte[] row) {
+        switch (format) {
+            case RGBA:
+                System.arraycopy(rgba, 0, row, 0, w * 4);
+                break;
+            case BGRA:
+                for (int x = 0, i = 0; x < w; x++, i += 4) {
+                    row[i] = rgba[i + 2];
+                    row[i + 1] = rgba[i + 1];
+                    row[i + 2] = rgba[i];
+                    row[i + 3] = rgba[i + 3];
+                }
+                break;
+            case RGB:
+            case BGR: {
+                int r = format == Format.RGB ? 0 : 2;
+                for (int x = 0, i = 0, o = 0; x < w; x++, i += 4, o += 3) {
+                    row[o + r] = rgba[i];
+                    row[o + 1] = rgba[i + 1];
+                    row[o + 2 - r] = rgba[i + 2];
+                }
+                break;
+            }
+            case LUMINANCE_ALPHA:
+                for (int x = 0, i = 0, o = 0; x < w; x++, i += 4, o += 2) {
+                    row[o] = luminance(rgba, i);
+                    row[o + 1] = rgba[i + 3];
+                }
+                break;
+            case LUMINANCE:
+                for (int x = 0, i = 0; x < w; x++, i += 4) {
+                    row[x] = luminance(rgba, i);
+                }
+                break;
+            default: {
+                int c = format == Format.ALPHA ? 3 : (format == Format.GREEN ? 1 : (format == Format.BLUE ? 2 : 0));
+                for (int x = 0, i = 0; x < w; x++, i += 4) {
+                    row[x] = rgba[i + c];
+                }
+                break;
+            }
+        }
+    }
+
+    private static byte luminance(byte[] rgba, int i) {
+        return (byte) (((rgba[i] & 0xff) * 77 + (rgba[i + 1] & 0xff) * 150 + (rgba[i + 2] & 0xff) * 29) >> 8);
+    }
+
+    private static <T> T get(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
     }
 }
@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2008-2012 Java Scene Graph
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Java Scene Graph' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package trb.jsg.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+
+import trb.jsg.enums.Format;
+
+/**
+ * A tiled mip pyramid on disk, the backing store of a VirtualTexture. Level 0
+ * is a square image of tileSize * 2^n texels and the pyramid ends with a 
+ * level that is a single tile. Every tile is stored with a border of texels 
+ * copied from its neighbours, so a tile can be filtered bilinearly on its 
+ * own.
+ * <p>
+ * Tiles are read with positional reads, so the file may be larger than what
+ * can be memory mapped and tiles can be read from several threads at once.
+ * <p>
+ * The file layout is little endian:
+ * <pre>
+ * int magic 'JSGV', int version, int format, int size, int tileSize, 
+ * int border, int levelCnt, int reserved
+ * the tiles of level 0 to levelCnt-1, row by row, each 
+ * (tileSize + 2 * border)^2 texels
+ * </pre>
+ * 
+ * @author tombr
+ */
+public class TileFile {
+	
+	public static final int MAGIC = 'J' | ('S' << 8) | ('G' << 16) | ('V' << 24);
+	public static final int VERSION = 1;
+	
+	private static final int HEADER_BYTES = 8 * 4;
+	
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final Format format;
+	private final int size;
+	private final int tileSize;
+	private final int border;
+	private final int levelCnt;
+	private final int bytesPerPixel;
+	
+	/** The file offset of the first tile of each level */
+	private final long[] levelOffsets;
+	
+	/**
+	 * Opens a tile file for reading.
+	 * @param f the file
+	 */
+	public TileFile(File f) throws IOException {
+		file = new RandomAccessFile(f, "r");
+		channel = file.getChannel();
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		if (channel.size() < HEADER_BYTES || !readFully(header, 0) 
+				|| header.getInt() != MAGIC || header.getInt() != VERSION) {
+			file.close();
+			throw new IOException("Not a tile file " + f);
+		}
+		format = getFormat(header.getInt());
+		size = header.getInt();
+		tileSize = header.getInt();
+		border = header.getInt();
+		levelCnt = header.getInt();
+		bytesPerPixel = TextureLoader.getBytesPerPixel(format);
+		levelOffsets = new long[levelCnt];
+		long offset = HEADER_BYTES;
+		for (int level=0; level<levelCnt; level++) {
+			levelOffsets[level] = offset;
+			offset += (long) getTilesAcross(level) * getTilesAcross(level) * getTileBytes();
+		}
+	}
+	
+	/**
+	 * Bakes an image into a tile file. All levels are generated in memory.
+	 * @param f the file to write
+	 * @param pixels level 0, size * size texels
+	 * @param size the width and height, tileSize times a power of two
+	 * @param format the format of the pixels
+	 * @param tileSize the texels across a tile without the border
+	 * @param border the texels copied from the neighbours on each side
+	 * @param executor filters the mipmaps in parallel, or null
+	 */
+	public static void write(File f, ByteBuffer pixels, int size, Format format
+			, int tileSize, int border, ExecutorService executor) throws IOException {
+		int tilesAcross = size / tileSize;
+		if (tileSize <= 0 || tilesAcross * tileSize != size || Integer.bitCount(tilesAcross) != 1) {
+			throw new RuntimeException("Size must be tile size times a power of two " + size + " " + tileSize);
+		}
+		int levelCnt = Integer.numberOfTrailingZeros(tilesAcross) + 1;
+		int bpp = TextureLoader.getBytesPerPixel(format);
+		int padded = tileSize + 2 * border;
+		ByteBuffer[] levels = TextureLoader.generateMipmaps(pixels, size, size, format, executor);
+		
+		RandomAccessFile out = new RandomAccessFile(f, "rw");
+		try {
+			FileChannel channel = out.getChannel();
+			channel.truncate(0);
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC).putInt(VERSION).putInt(format.get()).putInt(size);
+			header.putInt(tileSize).putInt(border).putInt(levelCnt).putInt(0);
+			header.flip();
+			long offset = writeFully(channel, header, 0);
+			
+			byte[] row = new byte[padded * bpp];
+			ByteBuffer tile = ByteBuffer.allocate(padded * padded * bpp);
+			for (int level=0; level<levelCnt; level++) {
+				ByteBuffer src = levels[level];
+				int levelSize = size >> level;
+				int tiles = levelSize / tileSize;
+				for (int ty=0; ty<tiles; ty++) {
+					for (int tx=0; tx<tiles; tx++) {
+						tile.clear();
+						for (int y=0; y<padded; y++) {
+							int srcY = clamp(ty * tileSize + y - border, levelSize);
+							for (int x=0; x<padded; x++) {
+								int srcX = clamp(tx * tileSize + x - border, levelSize);
+								int srcIdx = (srcY * levelSize + srcX) * bpp;
+								for (int i=0; i<bpp; i++) {
+									row[x * bpp + i] = src.get(srcIdx + i);
+								}
+							}
+							tile.put(row);
+						}
+						tile.flip();
+						offset = writeFully(channel, tile, offset);
+					}
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * Reads a tile including the border.
+	 * @param level the mipmap level
+	 * @param tx the column of the tile
+	 * @param ty the row of the tile
+	 * @param dst receives getTileBytes() bytes, or null to allocate
+	 * @return the flipped buffer
+	 */
+	public ByteBuffer readTile(int level, int tx, int ty, ByteBuffer dst) throws IOException {
+		int tiles = getTilesAcross(level);
+		if (tx < 0 || ty < 0 || tx >= tiles || ty >= tiles) {
+			throw new RuntimeException("No tile " + tx + ", " + ty + " at level " + level);
+		}
+		if (dst == null) {
+			dst = ByteBuffer.allocate(getTileBytes());
+		}
+		dst.clear().limit(getTileBytes());
+		long offset = levelOffsets[level] + ((long) ty * tiles + tx) * getTileBytes();
+		if (!readFully(dst, offset)) {
+			throw new IOException("Tile file is truncated");
+		}
+		return dst;
+	}
+	
+	/**
+	 * Fills the buffer from the offset and flips it.
+	 * @return false if the end of the file was reached first
+	 */
+	private boolean readFully(ByteBuffer dst, long offset) throws IOException {
+		while (dst.hasRemaining()) {
+			int n = channel.read(dst, offset);
+			if (n < 0) {
+				return false;
+			}
+			offset += n;
+		}
+		dst.flip();
+		return true;
+	}
+	
+	public void close() throws IOException {
+		file.close();
+	}
+	
+	/**
+	 * Gets the number of tiles across a level.
+	 */
+	public int getTilesAcross(int level) {
+		return Math.max(1, (size >> level) / tileSize);
+	}
+	
+	/**
+	 * Gets the size of a tile including the border.
+	 */
+	public int getTileBytes() {
+		int padded = tileSize + 2 * border;
+		return padded * padded * bytesPerPixel;
+	}
+	
+	public Format getFormat() {
+		return format;
+	}
+	
+	/**
+	 * Gets the width and height of level 0.
+	 */
+	public int getSize() {
+		return size;
+	}
+	
+	public int getTileSize() {
+		return tileSize;
+	}
+	
+	public int getBorder() {
+		return border;
+	}
+	
+	public int getLevelCount() {
+		return levelCnt;
+	}
+	
+	private static int clamp(int v, int size) {
+		return Math.min(size - 1, Math.max(0, v));
+	}
+	
+	private static long writeFully(FileChannel channel, ByteBuffer data, long offset) throws IOException {
+		while (data.hasRemaining()) {
+			offset += channel.write(data, offset);
+		}
+		return offset;
+	}
+	
+	private static Format getFormat(int glFormat) {
+		for (Format format : Format.values()) {
+			if (format.get() == glFormat) {
+				return format;
+			}
+		}
+		throw new RuntimeException("Unknown format 0x"+Integer.toHexString(glFormat));
+	}
+}
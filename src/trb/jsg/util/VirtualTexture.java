@@ -0,0 +1,685 @@
+/*
+ * Copyright (c) 2008-2012 Java Scene Graph
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Java Scene Graph' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package trb.jsg.util;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.vecmath.Point3d;
+import javax.vecmath.Point3f;
+
+import org.lwjgl.BufferUtils;
+
+import trb.jsg.BoundingSphere;
+import trb.jsg.Shape;
+import trb.jsg.Texture;
+import trb.jsg.Uniform;
+import trb.jsg.VertexData;
+import trb.jsg.View;
+import trb.jsg.enums.Format;
+import trb.jsg.enums.MagFilter;
+import trb.jsg.enums.MinFilter;
+import trb.jsg.enums.TextureType;
+import trb.jsg.enums.Wrap;
+
+/**
+ * A texture that is larger than what fits in memory. The mip pyramid is 
+ * stored as tiles in a TileFile, and only the tiles that are visible are 
+ * kept in a cache texture. A page table texture, with one texel per tile and
+ * one level per pyramid level, maps virtual texture coordinates to the cache.
+ * Tiles that are not resident map to their closest resident ancestor, and 
+ * the single tile of the last level is always resident.
+ * <p>
+ * Each frame the application reports the visible texture coordinate ranges
+ * and mip levels with addFeedback(), and calls update(). The feedback is 
+ * analysed and the tiles are read on the executor. update() copies the read
+ * tiles into the cache, evicting the least recently used tiles, and updates
+ * the page table. Only client pixels are changed, so the tile cache can be 
+ * used without a GPU. The shader samples the textures with SHADER_SOURCE.
+ * 
+ * @author tombr
+ */
+public class VirtualTexture {
+	
+	/**
+	 * GLSL that samples the virtual texture. The page table is sampled with
+	 * a bias so the hardware selects the level from the virtual texel size.
+	 * vtParams is set by createParamsUniform().
+	 */
+	public static final String SHADER_SOURCE = 
+		"uniform sampler2D vtPageTable;\n" +
+		"uniform sampler2D vtCache;\n" +
+		"// tiles across level 0, log2 of the tile size, padded tile size and tile size in cache coordinates\n" +
+		"uniform vec4 vtParams;\n" +
+		"vec4 vtSample(vec2 uv) {\n" +
+		"    vec4 entry = floor(texture2D(vtPageTable, uv, vtParams.y) * 255.0 + 0.5);\n" +
+		"    vec2 inTile = fract(uv * (vtParams.x / exp2(entry.z)));\n" +
+		"    vec2 origin = entry.xy * vtParams.z + 0.5 * (vtParams.z - vtParams.w);\n" +
+		"    return texture2D(vtCache, origin + inTile * vtParams.w);\n" +
+		"}\n";
+	
+	/** A tile that is resident or being read */
+	static class Tile {
+		final int level;
+		final int x;
+		final int y;
+		final long key;
+		int slot = -1;
+		int lastUsedFrame;
+		ByteBuffer data;
+		Exception error;
+		
+		Tile(int level, int x, int y) {
+			this.level = level;
+			this.x = x;
+			this.y = y;
+			this.key = getKey(level, x, y);
+		}
+	}
+	
+	/** A visible range reported with addFeedback() */
+	static class Request {
+		VertexData vertexData;
+		int unitIdx;
+		float pixels;
+		float u0, v0, u1, v1;
+		int level;
+	}
+	
+	private final TileFile tiles;
+	private final ExecutorService executor;
+	private final int levelCnt;
+	private final int tileSize;
+	private final int paddedSize;
+	private final int bytesPerPixel;
+	private final int slotsAcross;
+	private final int cacheSize;
+	
+	/** The physical tiles */
+	private final Texture cacheTexture;
+	
+	/** RGBA texels of cache slot x, slot y, level and 255 */
+	private final Texture pageTable;
+	
+	/** The resident tiles of each level, indexed by y * tilesAcross + x */
+	private final Tile[][] residentTiles;
+	
+	/** The resident tiles in least recently used order */
+	private final LinkedHashMap<Long, Tile> lru = new LinkedHashMap<Long, Tile>(16, 0.75f, true);
+	
+	/** The unused slots of the cache */
+	private final int[] freeSlots;
+	private int freeSlotCnt;
+	
+	/** The keys of the tiles being read */
+	private final HashSet<Long> loading = new HashSet<Long>();
+	
+	/** The tiles read by the executor */
+	private final ConcurrentLinkedQueue<Tile> loaded = new ConcurrentLinkedQueue<Tile>();
+	
+	/** Why the last read of a tile failed, by key. Cleared when it is read */
+	private final HashMap<Long, Exception> errors = new HashMap<Long, Exception>();
+	
+	/** The feedback of the current frame */
+	private ArrayList<Request> requests = new ArrayList<Request>();
+	
+	/** The feedback analysis in progress */
+	private Future<long[]> analysis;
+	
+	/** The tiles needed by the last analysed feedback, coarse levels first */
+	private long[] needed = new long[0];
+	
+	private int frameIdx = 0;
+	private int maxPendingLoads = 16;
+	private int maxUploadsPerFrame = 8;
+	private float lodBias = 0;
+	
+	private int loadCnt = 0;
+	private int evictCnt = 0;
+	
+	/**
+	 * Creates a virtual texture and reads the tile of the last level.
+	 * @param tiles the tile file
+	 * @param slotsAcross the cache holds slotsAcross^2 tiles, at most 256
+	 * @param executor analyses the feedback and reads tiles, or null to do
+	 *        it in update()
+	 */
+	public VirtualTexture(TileFile tiles, int slotsAcross, ExecutorService executor) throws IOException {
+		if (slotsAcross < 2 || slotsAcross > 256) {
+			throw new RuntimeException("Slots across must be 2 to 256 " + slotsAcross);
+		}
+		this.tiles = tiles;
+		this.executor = executor;
+		this.levelCnt = tiles.getLevelCount();
+		this.tileSize = tiles.getTileSize();
+		this.paddedSize = tileSize + 2 * tiles.getBorder();
+		this.bytesPerPixel = TextureLoader.getBytesPerPixel(tiles.getFormat());
+		this.slotsAcross = slotsAcross;
+		this.cacheSize = slotsAcross * paddedSize;
+		
+		ByteBuffer cachePixels = BufferUtils.createByteBuffer(cacheSize * cacheSize * bytesPerPixel);
+		cacheTexture = new Texture(TextureType.TEXTURE_2D, bytesPerPixel, cacheSize, cacheSize, 0
+				, tiles.getFormat(), new ByteBuffer[][] {{cachePixels}}, false, false);
+		cacheTexture.setMinFilter(MinFilter.LINEAR);
+		cacheTexture.setMagFilter(MagFilter.LINEAR);
+		cacheTexture.setWrapS(Wrap.CLAMP_TO_EDGE);
+		cacheTexture.setWrapT(Wrap.CLAMP_TO_EDGE);
+		
+		residentTiles = new Tile[levelCnt][];
+		ByteBuffer[] pageLevels = new ByteBuffer[levelCnt];
+		for (int level=0; level<levelCnt; level++) {
+			int n = tiles.getTilesAcross(level);
+			residentTiles[level] = new Tile[n * n];
+			pageLevels[level] = BufferUtils.createByteBuffer(n * n * 4);
+		}
+		int pageSize = tiles.getTilesAcross(0);
+		pageTable = new Texture(TextureType.TEXTURE_2D, 4, pageSize, pageSize, 0
+				, Format.RGBA, new ByteBuffer[][] {pageLevels}, false, false);
+		pageTable.setMinFilter(MinFilter.NEAREST_MIPMAP_NEAREST);
+		pageTable.setMagFilter(MagFilter.NEAREST);
+		pageTable.setWrapS(Wrap.CLAMP_TO_EDGE);
+		pageTable.setWrapT(Wrap.CLAMP_TO_EDGE);
+		
+		freeSlots = new int[slotsAcross * slotsAcross];
+		for (int i=0; i<freeSlots.length; i++) {
+			freeSlots[freeSlotCnt++] = freeSlots.length - 1 - i;
+		}
+		
+		// the root is never evicted, so every page table texel has a tile
+		Tile root = new Tile(levelCnt - 1, 0, 0);
+		root.data = tiles.readTile(root.level, 0, 0, null);
+		root.lastUsedFrame = Integer.MAX_VALUE;
+		makeResident(root, freeSlots[--freeSlotCnt]);
+	}
+	
+	/**
+	 * Creates the vtParams uniform used by SHADER_SOURCE.
+	 */
+	public Uniform createParamsUniform() {
+		return new Uniform("vtParams", Uniform.Type.VEC4
+				, tiles.getTilesAcross(0)
+				, (float) (Math.log(tileSize) / Math.log(2))
+				, paddedSize / (float) cacheSize
+				, tileSize / (float) cacheSize);
+	}
+	
+	/**
+	 * Reports a visible range of the texture.
+	 * @param u0 the lower texture coordinate s
+	 * @param v0 the lower texture coordinate t
+	 * @param u1 the upper texture coordinate s
+	 * @param v1 the upper texture coordinate t
+	 * @param level the finest level that is sampled
+	 */
+	public void addFeedback(float u0, float v0, float u1, float v1, int level) {
+		Request request = new Request();
+		request.u0 = u0;
+		request.v0 = v0;
+		request.u1 = u1;
+		request.v1 = v1;
+		request.level = level;
+		requests.add(request);
+	}
+	
+	/**
+	 * Reports a shape that is rendered with the virtual texture. The level is
+	 * estimated from the texture coordinate range of the shape and the 
+	 * screen size of its world bounds. The range is calculated on the 
+	 * executor, so the texture coordinates must not be changed before the 
+	 * next update().
+	 * @param shape the shape
+	 * @param unitIdx the texture coordinate set
+	 * @param view the view, with updated world planes
+	 * @param viewportHeight the height of the viewport in pixels
+	 */
+	public void addFeedback(Shape shape, int unitIdx, View view, int viewportHeight) {
+		VertexData vertexData = shape.getVertexData();
+		if (vertexData == null || vertexData.texCoords.get(unitIdx) == null) {
+			return;
+		}
+		BoundingSphere bounds = vertexData.getBoundingSphere();
+		float pixels = Float.MAX_VALUE;
+		if (bounds != null) {
+			Point3f center = shape.getModelMatrix().transformAsPoint(new Point3f(bounds.getCenter()));
+			Vec3 scale = Mat4.getScale(shape.getModelMatrix());
+			float radius = bounds.getRadius() * Math.max(scale.x, Math.max(scale.y, scale.z));
+			pixels = view.getScreenSize(new Point3d(center), radius) * viewportHeight;
+		}
+		if (pixels <= 0) {
+			return;
+		}
+		Request request = new Request();
+		request.vertexData = vertexData;
+		request.unitIdx = unitIdx;
+		request.pixels = pixels;
+		requests.add(request);
+	}
+	
+	/**
+	 * Analyses the feedback, starts reading the needed tiles and copies the
+	 * read tiles into the cache. Call once per frame after the feedback is
+	 * added. A tile that could not be read is not copied, its error is kept
+	 * for getTileError() and the read is tried again when the tile is still
+	 * needed.
+	 */
+	public void update() {
+		frameIdx++;
+		if (analysis != null && (executor == null || analysis.isDone())) {
+			needed = get(analysis);
+			analysis = null;
+		}
+		if (analysis == null && !requests.isEmpty()) {
+			final List<Request> snapshot = requests;
+			final float bias = lodBias;
+			requests = new ArrayList<Request>();
+			Callable<long[]> task = new Callable<long[]>() {
+				public long[] call() {
+					return analyse(snapshot, bias);
+				}
+			};
+			if (executor != null) {
+				analysis = executor.submit(task);
+			} else {
+				needed = analyse(snapshot, bias);
+			}
+		}
+		
+		for (int i=0; i<needed.length; i++) {
+			Tile tile = lru.get(needed[i]);
+			if (tile != null) {
+				tile.lastUsedFrame = Math.max(tile.lastUsedFrame, frameIdx);
+			} else if (!loading.contains(needed[i]) && loading.size() < maxPendingLoads) {
+				load(needed[i]);
+			}
+		}
+		
+		for (int i=0; i<maxUploadsPerFrame; i++) {
+			Tile tile = loaded.peek();
+			if (tile == null) {
+				break;
+			}
+			if (tile.error != null) {
+				loaded.poll();
+				loading.remove(tile.key);
+				errors.put(tile.key, tile.error);
+				continue;
+			}
+			int slot = allocateSlot();
+			if (slot < 0) {
+				// every resident tile is used this frame, the tile is kept
+				// for the next frame
+				break;
+			}
+			loaded.poll();
+			loading.remove(tile.key);
+			errors.remove(tile.key);
+			tile.lastUsedFrame = frameIdx;
+			makeResident(tile, slot);
+		}
+	}
+	
+	/**
+	 * Converts the feedback to the tiles that are needed. Each range adds 
+	 * its tiles and their ancestors. Ranges that need more tiles than the 
+	 * cache holds use a coarser level.
+	 * @return the keys ordered by level, coarse first, at most one cache full
+	 */
+	long[] analyse(List<Request> requests, float bias) {
+		int capacity = slotsAcross * slotsAcross;
+		HashSet<Long> seen = new HashSet<Long>();
+		ArrayList<ArrayList<Long>> levels = new ArrayList<ArrayList<Long>>();
+		for (int level=0; level<levelCnt; level++) {
+			levels.add(new ArrayList<Long>());
+		}
+		for (Request request : requests) {
+			if (request.vertexData != null && !calculateRange(request, bias)) {
+				continue;
+			}
+			int level = Math.max(0, Math.min(levelCnt - 1, request.level));
+			while (level < levelCnt - 1 && getTileCount(request, level) > capacity) {
+				level++;
+			}
+			for (; level<levelCnt; level++) {
+				int n = tiles.getTilesAcross(level);
+				int x0 = toTile(request.u0, n);
+				int x1 = toTile(request.u1, n);
+				int y0 = toTile(request.v0, n);
+				int y1 = toTile(request.v1, n);
+				for (int y=y0; y<=y1; y++) {
+					for (int x=x0; x<=x1; x++) {
+						long key = getKey(level, x, y);
+						if (seen.add(key)) {
+							levels.get(level).add(key);
+						}
+					}
+				}
+			}
+		}
+		long[] keys = new long[Math.min(seen.size(), capacity)];
+		int cnt = 0;
+		for (int level=levelCnt-1; level>=0 && cnt < keys.length; level--) {
+			for (Long key : levels.get(level)) {
+				if (cnt == keys.length) {
+					break;
+				}
+				keys[cnt++] = key;
+			}
+		}
+		return keys;
+	}
+	
+	/**
+	 * Sets the texture coordinate range and the level of a shape request.
+	 * @return false if the shape has no texture coordinates
+	 */
+	private boolean calculateRange(Request request, float bias) {
+		VertexData.TexCoordData texCoords = request.vertexData.texCoords.get(request.unitIdx);
+		if (texCoords == null || texCoords.data == null || texCoords.size < 2) {
+			return false;
+		}
+		float u0 = Float.MAX_VALUE, v0 = Float.MAX_VALUE;
+		float u1 = -Float.MAX_VALUE, v1 = -Float.MAX_VALUE;
+		for (int i=0; i+1<texCoords.data.limit(); i+=texCoords.size) {
+			float u = texCoords.data.get(i);
+			float v = texCoords.data.get(i + 1);
+			u0 = Math.min(u0, u);
+			v0 = Math.min(v0, v);
+			u1 = Math.max(u1, u);
+			v1 = Math.max(v1, v);
+		}
+		if (u0 > u1) {
+			return false;
+		}
+		request.u0 = u0;
+		request.v0 = v0;
+		request.u1 = u1;
+		request.v1 = v1;
+		float texels = Math.max(u1 - u0, v1 - v0) * tiles.getSize();
+		float texelsPerPixel = texels / Math.max(1, request.pixels);
+		request.level = (int) Math.floor(Math.log(Math.max(1, texelsPerPixel)) / Math.log(2) + bias);
+		return true;
+	}
+	
+	private int getTileCount(Request request, int level) {
+		int n = tiles.getTilesAcross(level);
+		return (toTile(request.u1, n) - toTile(request.u0, n) + 1) 
+				* (toTile(request.v1, n) - toTile(request.v0, n) + 1);
+	}
+	
+	private static int toTile(float t, int n) {
+		return Math.max(0, Math.min(n - 1, (int) Math.floor(t * n)));
+	}
+	
+	static long getKey(int level, int x, int y) {
+		return ((long) level << 48) | ((long) y << 24) | x;
+	}
+	
+	/**
+	 * Reads a tile on the executor.
+	 */
+	private void load(long key) {
+		final Tile tile = new Tile((int) (key >>> 48), (int) key & 0xffffff, (int) (key >>> 24) & 0xffffff);
+		loading.add(key);
+		loadCnt++;
+		Runnable task = new Runnable() {
+			public void run() {
+				try {
+					tile.data = tiles.readTile(tile.level, tile.x, tile.y, null);
+				} catch (IOException e) {
+					tile.error = e;
+				} catch (RuntimeException e) {
+					tile.error = e;
+				} finally {
+					loaded.add(tile);
+				}
+			}
+		};
+		if (executor != null) {
+			executor.execute(task);
+		} else {
+			task.run();
+		}
+	}
+	
+	/**
+	 * Gets a free slot or evicts the least recently used tile that is not 
+	 * used in this frame.
+	 * @return the slot or -1 if the cache is full
+	 */
+	private int allocateSlot() {
+		if (freeSlotCnt > 0) {
+			return freeSlots[--freeSlotCnt];
+		}
+		Iterator<Tile> it = lru.values().iterator();
+		while (it.hasNext()) {
+			Tile tile = it.next();
+			if (tile.lastUsedFrame < frameIdx) {
+				it.remove();
+				residentTiles[tile.level][tile.y * tiles.getTilesAcross(tile.level) + tile.x] = null;
+				updatePageTable(tile.level, tile.x, tile.y);
+				evictCnt++;
+				return tile.slot;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Copies a tile into a cache slot and points the page table at it.
+	 */
+	private void makeResident(Tile tile, int slot) {
+		tile.slot = slot;
+		int sx = (slot % slotsAcross) * paddedSize;
+		int sy = (slot / slotsAcross) * paddedSize;
+		ByteBuffer dst = cacheTexture.getPixels(0, 0);
+		int rowBytes = paddedSize * bytesPerPixel;
+		for (int y=0; y<paddedSize; y++) {
+			tile.data.limit((y + 1) * rowBytes).position(y * rowBytes);
+			dst.position(((sy + y) * cacheSize + sx) * bytesPerPixel);
+			dst.put(tile.data);
+		}
+		dst.rewind();
+		tile.data = null;
+		cacheTexture.pixelsChanged(new Rectangle(sx, sy, paddedSize, paddedSize));
+		
+		residentTiles[tile.level][tile.y * tiles.getTilesAcross(tile.level) + tile.x] = tile;
+		lru.put(tile.key, tile);
+		updatePageTable(tile.level, tile.x, tile.y);
+	}
+	
+	/**
+	 * Updates the page table texels covered by a tile on its own and the 
+	 * finer levels. Texels without a resident tile copy the texel of the 
+	 * level above.
+	 */
+	private void updatePageTable(int level, int x, int y) {
+		for (int l=level, span=1; l>=0; l--, span<<=1) {
+			int n = tiles.getTilesAcross(l);
+			ByteBuffer texels = pageTable.getPixels(0, l);
+			ByteBuffer parentTexels = l + 1 < levelCnt ? pageTable.getPixels(0, l + 1) : null;
+			int parentN = l + 1 < levelCnt ? tiles.getTilesAcross(l + 1) : 0;
+			for (int py=y*span; py<(y+1)*span; py++) {
+				for (int px=x*span; px<(x+1)*span; px++) {
+					int idx = (py * n + px) * 4;
+					Tile tile = residentTiles[l][py * n + px];
+					if (tile != null) {
+						texels.put(idx, (byte) (tile.slot % slotsAcross));
+						texels.put(idx + 1, (byte) (tile.slot / slotsAcross));
+						texels.put(idx + 2, (byte) l);
+						texels.put(idx + 3, (byte) 255);
+					} else {
+						int parentIdx = ((py >> 1) * parentN + (px >> 1)) * 4;
+						texels.put(idx, parentTexels.get(parentIdx));
+						texels.put(idx + 1, parentTexels.get(parentIdx + 1));
+						texels.put(idx + 2, parentTexels.get(parentIdx + 2));
+						texels.put(idx + 3, parentTexels.get(parentIdx + 3));
+					}
+				}
+			}
+		}
+		pageTable.pixelsChanged(new Rectangle(x << level, y << level, 1 << level, 1 << level));
+	}
+	
+	/**
+	 * Checks if a tile is in the cache.
+	 */
+	public boolean isResident(int level, int x, int y) {
+		return residentTiles[level][y * tiles.getTilesAcross(level) + x] != null;
+	}
+	
+	/**
+	 * Gets why the last read of a tile failed. The error is cleared when the
+	 * tile is read.
+	 * @return the exception or null
+	 */
+	public Exception getTileError(int level, int x, int y) {
+		return errors.get(getKey(level, x, y));
+	}
+	
+	/**
+	 * Gets the number of tiles whose last read failed.
+	 */
+	public int getTileErrorCount() {
+		return errors.size();
+	}
+	
+	/**
+	 * Looks up a texel of the page table.
+	 * @return {slot x, slot y, level} of the tile used for the texel
+	 */
+	public int[] getPageTableEntry(int level, int x, int y) {
+		int idx = (y * tiles.getTilesAcross(level) + x) * 4;
+		ByteBuffer texels = pageTable.getPixels(0, level);
+		return new int[] {texels.get(idx) & 0xff, texels.get(idx + 1) & 0xff, texels.get(idx + 2) & 0xff};
+	}
+	
+	/**
+	 * Gets the texture holding the resident tiles.
+	 */
+	public Texture getCacheTexture() {
+		return cacheTexture;
+	}
+	
+	/**
+	 * Gets the texture that maps virtual coordinates to cache coordinates.
+	 */
+	public Texture getPageTable() {
+		return pageTable;
+	}
+	
+	/**
+	 * Sets the number of tiles that can be read at the same time.
+	 */
+	public void setMaxPendingLoads(int maxPendingLoads) {
+		this.maxPendingLoads = maxPendingLoads;
+	}
+	
+	public int getMaxPendingLoads() {
+		return maxPendingLoads;
+	}
+	
+	/**
+	 * Sets the number of read tiles that are copied into the cache per 
+	 * update().
+	 */
+	public void setMaxUploadsPerFrame(int maxUploadsPerFrame) {
+		this.maxUploadsPerFrame = maxUploadsPerFrame;
+	}
+	
+	public int getMaxUploadsPerFrame() {
+		return maxUploadsPerFrame;
+	}
+	
+	/**
+	 * Sets the bias added to the level estimated for shapes. A positive bias
+	 * requests coarser tiles.
+	 */
+	public void setLodBias(float lodBias) {
+		this.lodBias = lodBias;
+	}
+	
+	public float getLodBias() {
+		return lodBias;
+	}
+	
+	/**
+	 * Gets the number of tiles in the cache.
+	 */
+	public int getResidentCount() {
+		return lru.size();
+	}
+	
+	/**
+	 * Gets the number of tiles being read.
+	 */
+	public int getPendingCount() {
+		return loading.size();
+	}
+	
+	/**
+	 * Gets the total number of tiles that has been read.
+	 */
+	public int getLoadCount() {
+		return loadCnt;
+	}
+	
+	/**
+	 * Gets the total number of tiles that has been evicted.
+	 */
+	public int getEvictCount() {
+		return evictCnt;
+	}
+	
+	private static <T> T get(Future<T> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+}
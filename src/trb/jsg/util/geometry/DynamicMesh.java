@@ -44,11 +44,9 @@ public class DynamicMesh extends VertexData {
 		
 		this.coordinates = BufferUtils.createFloatBuffer(coords.length);
 		this.normals = BufferUtils.createFloatBuffer(vertexNormals.length);
-		super.indices = BufferUtils.createIntBuffer(indices.length);
-		super.indices.put(indices).flip();
+		setIndices(indices);
 		
 		updateNormals();
-		calculateBounds();
 	}
 
 	public void updateNormals() {
@@ -99,8 +97,6 @@ public class DynamicMesh extends VertexData {
 		this.coordinates.rewind();
 		this.coordinates.put(coords).flip();
 		
-		if (nativePeer != null) {
-			nativePeer.vertexDataChanged();
-		}
+		changed();
 	}
 }
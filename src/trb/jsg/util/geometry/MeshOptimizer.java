@@ -0,0 +1,462 @@
+/*
+ * Copyright (c) 2008-2012 Java Scene Graph
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Java Scene Graph' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package trb.jsg.util.geometry;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.lwjgl.BufferUtils;
+
+import trb.jsg.Meshlets;
+import trb.jsg.VertexData;
+
+/**
+ * Reorders the triangles and vertices of indexed triangle lists so they 
+ * render faster.
+ * <ul>
+ * <li>optimizeVertexCache() orders the triangles for the post transform 
+ * vertex cache using Tipsify (Sander, Nehab and Barczak 2007).
+ * <li>optimizeOverdraw() splits the cache optimized triangles into clusters
+ * and draws the clusters that face outwards first, giving up a little cache
+ * efficiency for less overdraw.
+ * <li>optimizeVertexFetch() renumbers the vertices in the order they are 
+ * first used so vertex fetch reads memory sequentially.
+ * </ul>
+ * calculateACMR() and calculateATVR() measures the result. ACMR is the 
+ * average number of vertices transformed per triangle and ATVR is the 
+ * average number of times each vertex is transformed.
+ * 
+ * @author tombr
+ */
+public class MeshOptimizer {
+
+	/** The cache size used by optimize(). Most hardware have a cache that
+	 * is at least this large. */
+	public static final int DEFAULT_CACHE_SIZE = 16;
+	
+	/** The ACMR may get this much worse to reduce overdraw */
+	public static final float DEFAULT_OVERDRAW_THRESHOLD = 1.05f;
+	
+	/**
+	 * Runs all the optimizations on a vertex data with indexed triangles and
+	 * calls changed(). The triangles are reordered, so the meshlets are 
+	 * removed and must be built again.
+	 * @param vertexData the vertex data to optimize
+	 */
+	public static void optimize(VertexData vertexData) {
+		int[] indices = getTriangleIndices(vertexData);
+		int vertexCnt = vertexData.coordinates.limit() / 3;
+		float[] coords = new float[vertexCnt * 3];
+		FloatBuffer coordBuffer = vertexData.coordinates.duplicate();
+		coordBuffer.position(0);
+		coordBuffer.get(coords);
+		
+		indices = optimizeVertexCache(indices, vertexCnt, DEFAULT_CACHE_SIZE);
+		indices = optimizeOverdraw(indices, coords, DEFAULT_CACHE_SIZE, DEFAULT_OVERDRAW_THRESHOLD);
+		vertexData.setIndices(indices);
+		optimizeVertexFetch(vertexData);
+	}
+	
+	/**
+	 * Orders the triangles so the post transform vertex cache is used well.
+	 * The triangles around a vertex are emitted as a fan, and the next fan 
+	 * is chosen among the vertices of the last fan that will still be in the
+	 * cache when all their triangles are emitted.
+	 * @param indices the triangle indices
+	 * @param vertexCnt the number of vertices
+	 * @param cacheSize the number of vertices in the cache
+	 * @return the reordered indices
+	 */
+	public static int[] optimizeVertexCache(int[] indices, int vertexCnt, int cacheSize) {
+		int triangleCnt = indices.length / 3;
+		int[] adjacencyOffsets = new int[vertexCnt + 1];
+		int[] adjacency = buildAdjacency(indices, vertexCnt, adjacencyOffsets);
+		int[] liveTriangles = new int[vertexCnt];
+		for (int v=0; v<vertexCnt; v++) {
+			liveTriangles[v] = adjacencyOffsets[v+1] - adjacencyOffsets[v];
+		}
+		int[] cacheTime = new int[vertexCnt];
+		boolean[] emitted = new boolean[triangleCnt];
+		int[] deadEnd = new int[indices.length];
+		int deadEndCnt = 0;
+		int[] candidates = new int[indices.length];
+		int[] result = new int[indices.length];
+		int resultCnt = 0;
+		
+		int time = cacheSize + 1;
+		int cursor = 0;
+		int fanVertex = vertexCnt > 0 ? 0 : -1;
+		while (fanVertex >= 0) {
+			int candidateCnt = 0;
+			for (int a=adjacencyOffsets[fanVertex]; a<adjacencyOffsets[fanVertex+1]; a++) {
+				int triangle = adjacency[a];
+				if (emitted[triangle]) {
+					continue;
+				}
+				emitted[triangle] = true;
+				for (int c=0; c<3; c++) {
+					int v = indices[triangle * 3 + c];
+					result[resultCnt++] = v;
+					deadEnd[deadEndCnt++] = v;
+					candidates[candidateCnt++] = v;
+					liveTriangles[v]--;
+					if (time - cacheTime[v] > cacheSize) {
+						cacheTime[v] = time++;
+					}
+				}
+			}
+			
+			// pick the candidate that is oldest in the cache and stays there
+			fanVertex = -1;
+			int bestPriority = -1;
+			for (int i=0; i<candidateCnt; i++) {
+				int v = candidates[i];
+				if (liveTriangles[v] > 0) {
+					int priority = 0;
+					if (time - cacheTime[v] + 2 * liveTriangles[v] <= cacheSize) {
+						priority = time - cacheTime[v];
+					}
+					if (priority > bestPriority) {
+						bestPriority = priority;
+						fanVertex = v;
+					}
+				}
+			}
+			
+			// dead end, use a recently used vertex or the next unused vertex
+			while (fanVertex < 0 && deadEndCnt > 0) {
+				int v = deadEnd[--deadEndCnt];
+				if (liveTriangles[v] > 0) {
+					fanVertex = v;
+				}
+			}
+			while (fanVertex < 0 && cursor < vertexCnt) {
+				if (liveTriangles[cursor] > 0) {
+					fanVertex = cursor;
+				}
+				cursor++;
+			}
+		}
+		
+		return result;
+	}
+
+	/**
+	 * Reorders clusters of triangles to reduce overdraw. The cache optimized
+	 * triangles are split where the cache is restarted, and where the ACMR
+	 * of the cluster is below the ACMR of the whole mesh times the 
+	 * threshold. The clusters that face away from the center of the mesh are
+	 * drawn first since they are most likely to occlude the others.
+	 * @param indices the cache optimized triangle indices
+	 * @param coords the x, y, z coordinates of the vertices
+	 * @param cacheSize the number of vertices in the cache
+	 * @param threshold how much worse the ACMR may get, 1.05 allows 5%
+	 * @return the reordered indices
+	 */
+	public static int[] optimizeOverdraw(int[] indices, float[] coords, int cacheSize, float threshold) {
+		int triangleCnt = indices.length / 3;
+		if (triangleCnt < 2) {
+			return indices.clone();
+		}
+		
+		// hard boundaries are where all three vertices miss the cache
+		int vertexCnt = coords.length / 3;
+		int[] cacheTime = new int[vertexCnt];
+		Arrays.fill(cacheTime, Integer.MIN_VALUE / 2);
+		int time = 0;
+		boolean[] hardBoundary = new boolean[triangleCnt];
+		for (int t=0; t<triangleCnt; t++) {
+			int misses = 0;
+			for (int c=0; c<3; c++) {
+				int v = indices[t * 3 + c];
+				if (time - cacheTime[v] > cacheSize) {
+					cacheTime[v] = time++;
+					misses++;
+				}
+			}
+			hardBoundary[t] = misses == 3;
+		}
+		float targetAcmr = (time / (float) triangleCnt) * threshold;
+		
+		// split further where the cluster is good enough on its own
+		int[] clusterStarts = new int[triangleCnt + 1];
+		int clusterCnt = 0;
+		Arrays.fill(cacheTime, Integer.MIN_VALUE / 2);
+		int clusterMisses = 0;
+		int clusterStart = 0;
+		boolean newCluster = true;
+		for (int t=0; t<triangleCnt; t++) {
+			if (newCluster || hardBoundary[t]) {
+				clusterStarts[clusterCnt++] = t;
+				clusterStart = t;
+				clusterMisses = 0;
+				time += cacheSize + 1;
+			}
+			for (int c=0; c<3; c++) {
+				int v = indices[t * 3 + c];
+				if (time - cacheTime[v] > cacheSize) {
+					cacheTime[v] = time++;
+					clusterMisses++;
+				}
+			}
+			newCluster = clusterMisses <= targetAcmr * (t + 1 - clusterStart);
+		}
+		clusterStarts[clusterCnt] = triangleCnt;
+		
+		// sort clusters on how much they face outwards from the mesh center
+		float cx = 0, cy = 0, cz = 0;
+		for (int v=0; v<vertexCnt; v++) {
+			cx += coords[v * 3];
+			cy += coords[v * 3 + 1];
+			cz += coords[v * 3 + 2];
+		}
+		cx /= Math.max(1, vertexCnt);
+		cy /= Math.max(1, vertexCnt);
+		cz /= Math.max(1, vertexCnt);
+		float[] sortKeys = new float[clusterCnt];
+		for (int i=0; i<clusterCnt; i++) {
+			float px = 0, py = 0, pz = 0, nx = 0, ny = 0, nz = 0, area = 0;
+			for (int t=clusterStarts[i]; t<clusterStarts[i+1]; t++) {
+				int a = indices[t * 3] * 3;
+				int b = indices[t * 3 + 1] * 3;
+				int c = indices[t * 3 + 2] * 3;
+				float abx = coords[b] - coords[a], aby = coords[b+1] - coords[a+1], abz = coords[b+2] - coords[a+2];
+				float acx = coords[c] - coords[a], acy = coords[c+1] - coords[a+1], acz = coords[c+2] - coords[a+2];
+				float x = aby * acz - abz * acy;
+				float y = abz * acx - abx * acz;
+				float z = abx * acy - aby * acx;
+				float triangleArea = (float) Math.sqrt(x * x + y * y + z * z);
+				px += (coords[a] + coords[b] + coords[c]) * triangleArea;
+				py += (coords[a+1] + coords[b+1] + coords[c+1]) * triangleArea;
+				pz += (coords[a+2] + coords[b+2] + coords[c+2]) * triangleArea;
+				nx += x;
+				ny += y;
+				nz += z;
+				area += triangleArea;
+			}
+			float invArea = area > 0 ? 1f / (3 * area) : 0;
+			float normalLength = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+			float invNormalLength = normalLength > 0 ? 1f / normalLength : 0;
+			sortKeys[i] = ((px * invArea - cx) * nx + (py * invArea - cy) * ny + (pz * invArea - cz) * nz) * invNormalLength;
+		}
+		Integer[] order = new Integer[clusterCnt];
+		for (int i=0; i<clusterCnt; i++) {
+			order[i] = i;
+		}
+		final float[] keys = sortKeys;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Float.compare(keys[b], keys[a]);
+			}
+		});
+		
+		int[] result = new int[triangleCnt * 3];
+		int resultOff = 0;
+		for (int i=0; i<clusterCnt; i++) {
+			int cluster = order[i];
+			int start = clusterStarts[cluster] * 3;
+			int length = clusterStarts[cluster + 1] * 3 - start;
+			System.arraycopy(indices, start, result, resultOff, length);
+			resultOff += length;
+		}
+		return result;
+	}
+	
+	/**
+	 * Renumbers the vertices in the order they are first referenced by the 
+	 * indices. Unreferenced vertices are moved to the end. All float streams
+	 * and the interleaved buffer are reordered, and changed() is called. The
+	 * triangle order is unchanged, so the meshlets are kept.
+	 * @param vertexData the vertex data to reorder
+	 * @return the new index of each old vertex
+	 */
+	public static int[] optimizeVertexFetch(VertexData vertexData) {
+		int[] indices = getTriangleIndices(vertexData);
+		int vertexCnt = vertexData.coordinates.limit() / 3;
+		int[] remap = new int[vertexCnt];
+		Arrays.fill(remap, -1);
+		int nextVertex = 0;
+		for (int i=0; i<indices.length; i++) {
+			int v = indices[i];
+			if (remap[v] < 0) {
+				remap[v] = nextVertex++;
+			}
+			indices[i] = remap[v];
+		}
+		for (int v=0; v<vertexCnt; v++) {
+			if (remap[v] < 0) {
+				remap[v] = nextVertex++;
+			}
+		}
+		
+		vertexData.coordinates = remap(vertexData.coordinates, 3, remap);
+		vertexData.normals = remap(vertexData.normals, 3, remap);
+		vertexData.colors = remap(vertexData.colors, 3, remap);
+		for (int i=0; i<vertexData.texCoords.length(); i++) {
+			VertexData.TexCoordData texCoord = vertexData.texCoords.get(i);
+			if (texCoord != null) {
+				texCoord.data = remap(texCoord.data, texCoord.size, remap);
+			}
+		}
+		for (int i=0; i<vertexData.attributes.length(); i++) {
+			VertexData.AttributeData attribute = vertexData.attributes.get(i);
+			if (attribute != null) {
+				attribute.data = remap(attribute.data, attribute.size, remap);
+			}
+		}
+		if (vertexData.interleaved != null) {
+			int stride = vertexData.format.getStride();
+			ByteBuffer src = vertexData.interleaved;
+			ByteBuffer dst = BufferUtils.createByteBuffer(src.limit());
+			for (int v=0; v<vertexCnt; v++) {
+				for (int b=0; b<stride; b++) {
+					dst.put(remap[v] * stride + b, src.get(v * stride + b));
+				}
+			}
+			vertexData.interleaved = dst;
+		}
+		Meshlets meshlets = vertexData.meshlets;
+		vertexData.setIndices(indices);
+		vertexData.meshlets = meshlets;
+		vertexData.changed();
+		
+		return remap;
+	}
+	
+	/**
+	 * Calculates the average cache miss ratio, the number of vertices
+	 * transformed per triangle using a FIFO cache. 0.5 is the best possible
+	 * for a large regular grid and 3 is the worst.
+	 * @param indices the triangle indices
+	 * @param vertexCnt the number of vertices
+	 * @param cacheSize the number of vertices in the cache
+	 * @return the ACMR
+	 */
+	public static float calculateACMR(int[] indices, int vertexCnt, int cacheSize) {
+		int triangleCnt = indices.length / 3;
+		return triangleCnt == 0 ? 0 : countCacheMisses(indices, vertexCnt, cacheSize) / (float) triangleCnt;
+	}
+	
+	/**
+	 * Calculates the average transform to vertex ratio, the number of times 
+	 * each referenced vertex is transformed using a FIFO cache. 1 is the 
+	 * best possible.
+	 * @param indices the triangle indices
+	 * @param vertexCnt the number of vertices
+	 * @param cacheSize the number of vertices in the cache
+	 * @return the ATVR
+	 */
+	public static float calculateATVR(int[] indices, int vertexCnt, int cacheSize) {
+		boolean[] referenced = new boolean[vertexCnt];
+		int referencedCnt = 0;
+		for (int i=0; i<indices.length; i++) {
+			if (!referenced[indices[i]]) {
+				referenced[indices[i]] = true;
+				referencedCnt++;
+			}
+		}
+		return referencedCnt == 0 ? 0 : countCacheMisses(indices, vertexCnt, cacheSize) / (float) referencedCnt;
+	}
+	
+	/**
+	 * Gets the indices of a vertex data as an int array.
+	 * @param vertexData the vertex data
+	 * @return the triangle indices
+	 */
+	public static int[] getTriangleIndices(VertexData vertexData) {
+		if (vertexData.mode != VertexData.Mode.TRIANGLES || vertexData.indices == null) {
+			throw new RuntimeException("Only indexed triangles can be optimized");
+		}
+		int[] indices = new int[vertexData.getIndexCount()];
+		for (int i=0; i<indices.length; i++) {
+			indices[i] = vertexData.getIndex(i);
+		}
+		return indices;
+	}
+	
+	/**
+	 * Simulates a FIFO cache.
+	 * @return the number of vertices transformed
+	 */
+	private static int countCacheMisses(int[] indices, int vertexCnt, int cacheSize) {
+		int[] cacheTime = new int[vertexCnt];
+		Arrays.fill(cacheTime, -cacheSize - 1);
+		int time = 0;
+		for (int i=0; i<indices.length; i++) {
+			int v = indices[i];
+			if (time - cacheTime[v] > cacheSize) {
+				cacheTime[v] = time++;
+			}
+		}
+		return time;
+	}
+	
+	/**
+	 * Lists the triangles that use each vertex.
+	 * @param offsets receives the start of each vertex in the returned array
+	 * @return the triangles of all vertices
+	 */
+	private static int[] buildAdjacency(int[] indices, int vertexCnt, int[] offsets) {
+		for (int i=0; i<indices.length; i++) {
+			offsets[indices[i] + 1]++;
+		}
+		for (int v=0; v<vertexCnt; v++) {
+			offsets[v + 1] += offsets[v];
+		}
+		int[] fill = offsets.clone();
+		int[] adjacency = new int[indices.length];
+		for (int i=0; i<indices.length; i++) {
+			adjacency[fill[indices[i]]++] = i / 3;
+		}
+		return adjacency;
+	}
+	
+	/**
+	 * Moves the elements of a float stream to their new vertex index.
+	 */
+	private static FloatBuffer remap(FloatBuffer src, int size, int[] remap) {
+		if (src == null) {
+			return null;
+		}
+		FloatBuffer dst = BufferUtils.createFloatBuffer(src.limit());
+		int vertexCnt = Math.min(remap.length, src.limit() / size);
+		for (int v=0; v<vertexCnt; v++) {
+			for (int c=0; c<size; c++) {
+				dst.put(remap[v] * size + c, src.get(v * size + c));
+			}
+		}
+		return dst;
+	}
+}
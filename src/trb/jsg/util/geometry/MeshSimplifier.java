@@ -0,0 +1,678 @@
+/*
+ * Copyright (c) 2008-2012 Java Scene Graph
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Java Scene Graph' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package trb.jsg.util.geometry;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import org.lwjgl.BufferUtils;
+
+import trb.jsg.VertexData;
+import trb.jsg.util.RadixSort;
+
+/**
+ * Reduces the number of triangles in indexed triangle meshes using edge 
+ * collapses ordered by the quadric error metric (Garland and Heckbert 1997).
+ * Vertices are collapsed onto one of their neighbours, so no new vertices 
+ * or attributes are created and the simplified indices can use the 
+ * original vertices.
+ * <p>
+ * Vertices at the same position but with different attributes form a UV
+ * seam. Seam and border vertices may only slide along the seam or border, 
+ * and the planes perpendicular to those edges are added to the quadrics so
+ * moving them is penalized. The collapses are done in passes where each 
+ * vertex is only changed once, so the running time is close to linear.
+ * <p>
+ * Errors are relative to the largest extent of the mesh, 0.01 is 1% of 
+ * the size of the mesh.
+ * 
+ * @author tombr
+ */
+public class MeshSimplifier {
+
+	/** How much more the error of moving away from a border or seam 
+	 * counts compared to moving away from a surface */
+	public static final float BORDER_WEIGHT = 10f;
+	
+	/** Kinds of positions */
+	private static final byte MANIFOLD = 0;
+	private static final byte BORDER = 1;
+	private static final byte SEAM = 2;
+	private static final byte LOCKED = 3;
+
+	/**
+	 * Generates a chain of levels of detail. Level 0 is the vertex data 
+	 * itself and each following level is simplified from the previous level
+	 * to about reduction times as many triangles. The chain stops when the 
+	 * error would exceed maxError or the mesh can not be reduced further.
+	 * Each level only contains the vertices it uses.
+	 * @param vertexData the indexed triangle mesh
+	 * @param maxLevelCnt the maximum number of levels, including level 0
+	 * @param reduction the fraction of triangles kept in each level
+	 * @param maxError the largest allowed error relative to the mesh size
+	 * @param levelErrors receives the error of each level in object space 
+	 *        units or null. The errors of the previous levels are included.
+	 * @return the levels
+	 */
+	public static VertexData[] generateLevels(VertexData vertexData, int maxLevelCnt, float reduction, float maxError
+			, float[] levelErrors) {
+		int[] indices = MeshOptimizer.getTriangleIndices(vertexData);
+		float[] coords = new float[vertexData.coordinates.limit()];
+		FloatBuffer coordBuffer = vertexData.coordinates.duplicate();
+		coordBuffer.position(0);
+		coordBuffer.get(coords);
+		
+		VertexData[] levels = new VertexData[maxLevelCnt];
+		levels[0] = vertexData;
+		if (levelErrors != null) {
+			levelErrors[0] = 0;
+		}
+		int levelCnt = 1;
+		float[] error = new float[1];
+		float totalError = 0;
+		while (levelCnt < maxLevelCnt) {
+			int targetIndexCnt = (int) (indices.length / 3 * reduction) * 3;
+			int[] simplified = simplify(indices, coords, targetIndexCnt, maxError, false, error);
+			if (simplified.length == 0 || simplified.length > indices.length * (1 + reduction) / 2) {
+				break;
+			}
+			levels[levelCnt] = createLevel(vertexData, simplified);
+			totalError += error[0];
+			if (levelErrors != null) {
+				levelErrors[levelCnt] = totalError;
+			}
+			levelCnt++;
+			indices = simplified;
+		}
+		return Arrays.copyOf(levels, levelCnt);
+	}
+	
+	/**
+	 * Simplifies a mesh until it has targetIndexCnt indices or no collapse 
+	 * is possible without exceeding maxError.
+	 * @param indices the triangle indices
+	 * @param coords the x, y, z coordinates of the vertices
+	 * @param targetIndexCnt the wanted number of indices
+	 * @param maxError the largest allowed error relative to the mesh size
+	 * @param lockBorders true to never move border and seam vertices
+	 * @param error receives the error in object space units or null
+	 * @return the simplified indices using the same vertices
+	 */
+	public static int[] simplify(int[] indices, float[] coords, int targetIndexCnt, float maxError
+			, boolean lockBorders, float[] error) {
+		int vertexCnt = coords.length / 3;
+		
+		// scale the positions to a unit size
+		float[] lower = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+		float[] upper = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+		for (int i=0; i<indices.length; i++) {
+			for (int c=0; c<3; c++) {
+				lower[c] = Math.min(lower[c], coords[indices[i] * 3 + c]);
+				upper[c] = Math.max(upper[c], coords[indices[i] * 3 + c]);
+			}
+		}
+		float extent = Math.max(upper[0] - lower[0], Math.max(upper[1] - lower[1], upper[2] - lower[2]));
+		float scale = extent > 0 ? 1f / extent : 1f;
+		double[] p = new double[vertexCnt * 3];
+		for (int i=0; i<p.length; i++) {
+			p[i] = (coords[i] - lower[i % 3]) * scale;
+		}
+		
+		// vertices at the same position share the first vertex as position,
+		// and the vertices of a position are linked in a circular list
+		int[] position = new int[vertexCnt];
+		int[] nextWedge = new int[vertexCnt];
+		int[] wedgeCnt = new int[vertexCnt];
+		buildPositions(coords, position, nextWedge, wedgeCnt);
+		
+		double[] quadrics = new double[vertexCnt * 10];
+		double[] weights = new double[vertexCnt];
+		EdgeSet edges = new EdgeSet(indices.length);
+		EdgeSet positionEdges = new EdgeSet(indices.length);
+		buildEdges(indices, indices.length, position, edges, positionEdges);
+		byte[] kind = classify(indices, position, wedgeCnt, positionEdges, lockBorders);
+		addQuadrics(indices, position, p, edges, quadrics, weights);
+		
+		int[] current = indices.clone();
+		int indexCnt = current.length;
+		int[] remap = new int[vertexCnt];
+		int[] bestTarget = new int[vertexCnt];
+		float[] bestCost = new float[vertexCnt];
+		boolean[] locked = new boolean[vertexCnt];
+		int[] candidates = new int[vertexCnt];
+		int[] sortKeys = new int[vertexCnt];
+		int[] adjacencyOffsets = new int[vertexCnt + 1];
+		int[] wedgeMatch = new int[2];
+		double maxError2 = (double) maxError * maxError;
+		double resultError2 = 0;
+		while (indexCnt > targetIndexCnt) {
+			int[] adjacency = buildAdjacency(current, indexCnt, position, adjacencyOffsets);
+			
+			// find the cheapest collapse of each position
+			Arrays.fill(bestTarget, -1);
+			Arrays.fill(bestCost, Float.MAX_VALUE);
+			for (int i=0; i<indexCnt; i++) {
+				int a = position[current[i]];
+				int b = position[current[i - i % 3 + (i + 1) % 3]];
+				considerCollapse(a, b, kind, positionEdges, p, quadrics, weights, bestTarget, bestCost);
+				considerCollapse(b, a, kind, positionEdges, p, quadrics, weights, bestTarget, bestCost);
+			}
+			int candidateCnt = 0;
+			for (int a=0; a<vertexCnt; a++) {
+				if (bestTarget[a] >= 0 && bestCost[a] <= maxError2) {
+					sortKeys[candidateCnt] = Float.floatToIntBits(bestCost[a]);
+					candidates[candidateCnt++] = a;
+				}
+			}
+			int[] order = new RadixSort().sort(sortKeys, candidateCnt).getIndices();
+			
+			// do the cheapest collapses that do not touch each other
+			for (int v=0; v<vertexCnt; v++) {
+				remap[v] = v;
+			}
+			Arrays.fill(locked, false);
+			int trianglesToRemove = (indexCnt - targetIndexCnt) / 3;
+			int removedCnt = 0;
+			int collapseCnt = 0;
+			for (int i=0; i<candidateCnt && removedCnt < trianglesToRemove; i++) {
+				int a = candidates[order[i]];
+				int b = bestTarget[a];
+				if (locked[a] || locked[b] || !matchWedges(a, b, nextWedge, edges, wedgeMatch)) {
+					continue;
+				}
+				int degenerateCnt = countRemovedTriangles(a, b, current, position, adjacency, adjacencyOffsets, p);
+				if (degenerateCnt < 0) {
+					continue;
+				}
+				int wedge = a;
+				int wedgeIdx = 0;
+				do {
+					remap[wedge] = wedgeMatch[wedgeIdx++];
+					wedge = nextWedge[wedge];
+				} while (wedge != a);
+				for (int q=0; q<10; q++) {
+					quadrics[b * 10 + q] += quadrics[a * 10 + q];
+				}
+				weights[b] += weights[a];
+				locked[b] = true;
+				for (int adj=adjacencyOffsets[a]; adj<adjacencyOffsets[a+1]; adj++) {
+					int triangle = adjacency[adj];
+					for (int c=0; c<3; c++) {
+						locked[position[current[triangle * 3 + c]]] = true;
+					}
+				}
+				resultError2 = Math.max(resultError2, bestCost[a]);
+				removedCnt += degenerateCnt;
+				collapseCnt++;
+			}
+			if (collapseCnt == 0) {
+				break;
+			}
+			
+			// remap the indices and remove the collapsed triangles
+			int newIndexCnt = 0;
+			for (int i=0; i<indexCnt; i+=3) {
+				int v0 = remap[current[i]];
+				int v1 = remap[current[i+1]];
+				int v2 = remap[current[i+2]];
+				int p0 = position[v0];
+				int p1 = position[v1];
+				int p2 = position[v2];
+				if (p0 != p1 && p1 != p2 && p2 != p0) {
+					current[newIndexCnt++] = v0;
+					current[newIndexCnt++] = v1;
+					current[newIndexCnt++] = v2;
+				}
+			}
+			indexCnt = newIndexCnt;
+			buildEdges(current, indexCnt, position, edges, positionEdges);
+		}
+		
+		if (error != null) {
+			error[0] = (float) Math.sqrt(resultError2) / scale;
+		}
+		return Arrays.copyOf(current, indexCnt);
+	}
+	
+	/**
+	 * Finds the first vertex at the position of each vertex.
+	 */
+	private static void buildPositions(float[] coords, int[] position, int[] nextWedge, int[] wedgeCnt) {
+		int vertexCnt = position.length;
+		int capacity = Integer.highestOneBit(Math.max(1, vertexCnt) * 2 - 1) << 1;
+		int[] table = new int[capacity];
+		Arrays.fill(table, -1);
+		for (int v=0; v<vertexCnt; v++) {
+			int x = Float.floatToIntBits(coords[v * 3] == 0 ? 0 : coords[v * 3]);
+			int y = Float.floatToIntBits(coords[v * 3 + 1] == 0 ? 0 : coords[v * 3 + 1]);
+			int z = Float.floatToIntBits(coords[v * 3 + 2] == 0 ? 0 : coords[v * 3 + 2]);
+			int hash = (x * 73856093) ^ (y * 19349663) ^ (z * 83492791);
+			int slot = (hash ^ (hash >>> 16)) & (capacity - 1);
+			while (true) {
+				int other = table[slot];
+				if (other < 0) {
+					table[slot] = v;
+					position[v] = v;
+					nextWedge[v] = v;
+					wedgeCnt[v] = 1;
+					break;
+				}
+				if (coords[other * 3] == coords[v * 3] && coords[other * 3 + 1] == coords[v * 3 + 1]
+						&& coords[other * 3 + 2] == coords[v * 3 + 2]) {
+					position[v] = other;
+					nextWedge[v] = nextWedge[other];
+					nextWedge[other] = v;
+					wedgeCnt[other]++;
+					break;
+				}
+				slot = (slot + 1) & (capacity - 1);
+			}
+		}
+	}
+	
+	/**
+	 * Adds the directed edges of the triangles to the edge sets.
+	 */
+	private static void buildEdges(int[] indices, int indexCnt, int[] position, EdgeSet edges, EdgeSet positionEdges) {
+		edges.clear();
+		positionEdges.clear();
+		for (int i=0; i<indexCnt; i++) {
+			int v0 = indices[i];
+			int v1 = indices[i - i % 3 + (i + 1) % 3];
+			edges.add(v0, v1);
+			positionEdges.add(position[v0], position[v1]);
+		}
+	}
+	
+	/**
+	 * Finds the kind of each position. Positions with one vertex are 
+	 * manifold or on a border if they have two open edges. Positions with two
+	 * vertices and no open edges are on a seam. All other positions are 
+	 * locked.
+	 */
+	private static byte[] classify(int[] indices, int[] position, int[] wedgeCnt, EdgeSet positionEdges
+			, boolean lockBorders) {
+		int[] openEdgeCnt = new int[position.length];
+		for (int i=0; i<indices.length; i++) {
+			int a = position[indices[i]];
+			int b = position[indices[i - i % 3 + (i + 1) % 3]];
+			if (!positionEdges.contains(b, a)) {
+				openEdgeCnt[a]++;
+				openEdgeCnt[b]++;
+			}
+		}
+		byte[] kind = new byte[position.length];
+		for (int v=0; v<position.length; v++) {
+			if (position[v] != v) {
+				continue;
+			}
+			if (wedgeCnt[v] == 1 && openEdgeCnt[v] == 0) {
+				kind[v] = MANIFOLD;
+			} else if (wedgeCnt[v] == 1 && openEdgeCnt[v] == 2) {
+				kind[v] = lockBorders ? LOCKED : BORDER;
+			} else if (wedgeCnt[v] == 2 && openEdgeCnt[v] == 0) {
+				kind[v] = lockBorders ? LOCKED : SEAM;
+			} else {
+				kind[v] = LOCKED;
+			}
+		}
+		return kind;
+	}
+	
+	/**
+	 * Adds the plane of each triangle to the quadrics of its positions, and
+	 * the planes perpendicular to border and seam edges.
+	 */
+	private static void addQuadrics(int[] indices, int[] position, double[] p, EdgeSet edges
+			, double[] quadrics, double[] weights) {
+		for (int i=0; i<indices.length; i+=3) {
+			int a = position[indices[i]] * 3;
+			int b = position[indices[i+1]] * 3;
+			int c = position[indices[i+2]] * 3;
+			double abx = p[b] - p[a], aby = p[b+1] - p[a+1], abz = p[b+2] - p[a+2];
+			double acx = p[c] - p[a], acy = p[c+1] - p[a+1], acz = p[c+2] - p[a+2];
+			double nx = aby * acz - abz * acy;
+			double ny = abz * acx - abx * acz;
+			double nz = abx * acy - aby * acx;
+			double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+			if (length == 0) {
+				continue;
+			}
+			nx /= length;
+			ny /= length;
+			nz /= length;
+			double area = length * 0.5;
+			double d = -(nx * p[a] + ny * p[a+1] + nz * p[a+2]);
+			for (int corner=0; corner<3; corner++) {
+				int v = position[indices[i + corner]];
+				addPlane(quadrics, v, nx, ny, nz, d, area);
+				weights[v] += area;
+			}
+			
+			for (int corner=0; corner<3; corner++) {
+				int v0 = indices[i + corner];
+				int v1 = indices[i + (corner + 1) % 3];
+				if (edges.contains(v1, v0)) {
+					continue;
+				}
+				int e0 = position[v0] * 3;
+				int e1 = position[v1] * 3;
+				double ex = p[e1] - p[e0], ey = p[e1+1] - p[e0+1], ez = p[e1+2] - p[e0+2];
+				double px = ey * nz - ez * ny;
+				double py = ez * nx - ex * nz;
+				double pz = ex * ny - ey * nx;
+				double edgeLength = Math.sqrt(px * px + py * py + pz * pz);
+				if (edgeLength == 0) {
+					continue;
+				}
+				px /= edgeLength;
+				py /= edgeLength;
+				pz /= edgeLength;
+				double pd = -(px * p[e0] + py * p[e0+1] + pz * p[e0+2]);
+				double weight = edgeLength * edgeLength * BORDER_WEIGHT;
+				addPlane(quadrics, position[v0], px, py, pz, pd, weight);
+				addPlane(quadrics, position[v1], px, py, pz, pd, weight);
+			}
+		}
+	}
+	
+	/**
+	 * Adds a weighted plane to a quadric.
+	 */
+	private static void addPlane(double[] quadrics, int v, double a, double b, double c, double d, double weight) {
+		int off = v * 10;
+		quadrics[off] += weight * a * a;
+		quadrics[off+1] += weight * b * b;
+		quadrics[off+2] += weight * c * c;
+		quadrics[off+3] += weight * a * b;
+		quadrics[off+4] += weight * a * c;
+		quadrics[off+5] += weight * b * c;
+		quadrics[off+6] += weight * a * d;
+		quadrics[off+7] += weight * b * d;
+		quadrics[off+8] += weight * c * d;
+		quadrics[off+9] += weight * d * d;
+	}
+	
+	/**
+	 * Evaluates the quadric of position v at position target.
+	 * @return the weighted sum of the squared distances to the planes
+	 */
+	private static double evaluate(double[] quadrics, int v, double[] p, int target) {
+		int off = v * 10;
+		double x = p[target * 3];
+		double y = p[target * 3 + 1];
+		double z = p[target * 3 + 2];
+		double error = quadrics[off] * x * x + quadrics[off+1] * y * y + quadrics[off+2] * z * z
+				+ 2 * (quadrics[off+3] * x * y + quadrics[off+4] * x * z + quadrics[off+5] * y * z)
+				+ 2 * (quadrics[off+6] * x + quadrics[off+7] * y + quadrics[off+8] * z)
+				+ quadrics[off+9];
+		return Math.max(0, error);
+	}
+	
+	/**
+	 * Stores the collapse of a onto b if it is allowed and cheaper than the
+	 * best collapse of a so far.
+	 */
+	private static void considerCollapse(int a, int b, byte[] kind, EdgeSet positionEdges, double[] p
+			, double[] quadrics, double[] weights, int[] bestTarget, float[] bestCost) {
+		switch (kind[a]) {
+		case LOCKED:
+			return;
+		case BORDER:
+			// slide along the border
+			if (kind[b] == MANIFOLD || (positionEdges.contains(a, b) && positionEdges.contains(b, a))) {
+				return;
+			}
+			break;
+		case SEAM:
+			// slide along the seam, the edge is checked by matchWedges()
+			if (kind[b] == MANIFOLD || kind[b] == BORDER) {
+				return;
+			}
+			break;
+		}
+		float cost = (float) (evaluate(quadrics, a, p, b) / Math.max(weights[a], 1e-20));
+		if (cost < bestCost[a]) {
+			bestCost[a] = cost;
+			bestTarget[a] = b;
+		}
+	}
+	
+	/**
+	 * Finds the vertex at position b that each vertex at position a shares 
+	 * an edge with.
+	 * @param match receives the matching vertices in the order of the 
+	 *        circular list of a
+	 * @return false if a vertex has no match
+	 */
+	private static boolean matchWedges(int a, int b, int[] nextWedge, EdgeSet edges, int[] match) {
+		int wedgeA = a;
+		int idx = 0;
+		do {
+			int found = -1;
+			int wedgeB = b;
+			do {
+				if (edges.contains(wedgeA, wedgeB) || edges.contains(wedgeB, wedgeA)) {
+					found = wedgeB;
+					break;
+				}
+				wedgeB = nextWedge[wedgeB];
+			} while (wedgeB != b);
+			if (found < 0 || idx >= match.length) {
+				return false;
+			}
+			match[idx++] = found;
+			wedgeA = nextWedge[wedgeA];
+		} while (wedgeA != a);
+		return true;
+	}
+	
+	/**
+	 * Checks that moving position a to position b does not flip any 
+	 * triangle.
+	 * @return the number of triangles removed by the collapse or -1 if a 
+	 *         triangle is flipped
+	 */
+	private static int countRemovedTriangles(int a, int b, int[] indices, int[] position, int[] adjacency
+			, int[] adjacencyOffsets, double[] p) {
+		int removedCnt = 0;
+		double[] normals = new double[6];
+		for (int adj=adjacencyOffsets[a]; adj<adjacencyOffsets[a+1]; adj++) {
+			int triangle = adjacency[adj];
+			int p0 = position[indices[triangle * 3]];
+			int p1 = position[indices[triangle * 3 + 1]];
+			int p2 = position[indices[triangle * 3 + 2]];
+			if (p0 == b || p1 == b || p2 == b) {
+				removedCnt++;
+				continue;
+			}
+			for (int pass=0; pass<2; pass++) {
+				int q0 = pass == 1 && p0 == a ? b : p0;
+				int q1 = pass == 1 && p1 == a ? b : p1;
+				int q2 = pass == 1 && p2 == a ? b : p2;
+				double abx = p[q1*3] - p[q0*3], aby = p[q1*3+1] - p[q0*3+1], abz = p[q1*3+2] - p[q0*3+2];
+				double acx = p[q2*3] - p[q0*3], acy = p[q2*3+1] - p[q0*3+1], acz = p[q2*3+2] - p[q0*3+2];
+				normals[pass * 3] = aby * acz - abz * acy;
+				normals[pass * 3 + 1] = abz * acx - abx * acz;
+				normals[pass * 3 + 2] = abx * acy - aby * acx;
+			}
+			double dot = normals[0] * normals[3] + normals[1] * normals[4] + normals[2] * normals[5];
+			if (dot <= 0) {
+				return -1;
+			}
+		}
+		return removedCnt;
+	}
+	
+	/**
+	 * Lists the triangles that use each position.
+	 * @param offsets receives the start of each position in the returned 
+	 *        array
+	 * @return the triangles of all positions
+	 */
+	private static int[] buildAdjacency(int[] indices, int indexCnt, int[] position, int[] offsets) {
+		Arrays.fill(offsets, 0);
+		for (int i=0; i<indexCnt; i++) {
+			offsets[position[indices[i]] + 1]++;
+		}
+		for (int v=0; v<offsets.length - 1; v++) {
+			offsets[v + 1] += offsets[v];
+		}
+		int[] fill = offsets.clone();
+		int[] adjacency = new int[indexCnt];
+		for (int i=0; i<indexCnt; i++) {
+			adjacency[fill[position[indices[i]]]++] = i / 3;
+		}
+		return adjacency;
+	}
+	
+	/**
+	 * Creates a vertex data with the vertices used by the indices, in the 
+	 * order they are first used.
+	 */
+	private static VertexData createLevel(VertexData src, int[] indices) {
+		int vertexCnt = src.coordinates.limit() / 3;
+		int[] remap = new int[vertexCnt];
+		Arrays.fill(remap, -1);
+		int[] vertices = new int[vertexCnt];
+		int usedCnt = 0;
+		int[] levelIndices = new int[indices.length];
+		for (int i=0; i<indices.length; i++) {
+			int v = indices[i];
+			if (remap[v] < 0) {
+				remap[v] = usedCnt;
+				vertices[usedCnt++] = v;
+			}
+			levelIndices[i] = remap[v];
+		}
+		
+		VertexData level = new VertexData();
+		level.mode = src.mode;
+		level.defaultColor.set(src.defaultColor);
+		level.coordinates = copy(src.coordinates, 3, vertices, usedCnt);
+		level.normals = copy(src.normals, 3, vertices, usedCnt);
+		level.colors = copy(src.colors, 3, vertices, usedCnt);
+		for (int i=0; i<src.texCoords.length(); i++) {
+			VertexData.TexCoordData texCoord = src.texCoords.get(i);
+			if (texCoord != null) {
+				level.texCoords.set(new VertexData.TexCoordData(copy(texCoord.data, texCoord.size, vertices, usedCnt)
+						, texCoord.size), i);
+			}
+		}
+		for (int i=0; i<src.attributes.length(); i++) {
+			VertexData.AttributeData attribute = src.attributes.get(i);
+			if (attribute != null) {
+				VertexData.AttributeData levelAttribute = new VertexData.AttributeData();
+				levelAttribute.size = attribute.size;
+				levelAttribute.data = copy(attribute.data, attribute.size, vertices, usedCnt);
+				level.attributes.set(levelAttribute, i);
+			}
+		}
+		if (src.interleaved != null) {
+			int stride = src.format.getStride();
+			ByteBuffer interleaved = BufferUtils.createByteBuffer(usedCnt * stride);
+			for (int i=0; i<usedCnt; i++) {
+				for (int b=0; b<stride; b++) {
+					interleaved.put(i * stride + b, src.interleaved.get(vertices[i] * stride + b));
+				}
+			}
+			level.format = src.format;
+			level.interleaved = interleaved;
+		}
+		level.setIndices(levelIndices);
+		level.changed();
+		return level;
+	}
+	
+	/**
+	 * Copies the used vertices of a stream to a new buffer.
+	 */
+	private static FloatBuffer copy(FloatBuffer src, int size, int[] vertices, int vertexCnt) {
+		if (src == null) {
+			return null;
+		}
+		FloatBuffer dst = BufferUtils.createFloatBuffer(vertexCnt * size);
+		for (int i=0; i<vertexCnt; i++) {
+			for (int c=0; c<size; c++) {
+				dst.put(i * size + c, src.get(vertices[i] * size + c));
+			}
+		}
+		return dst;
+	}
+	
+	/**
+	 * A open addressing hash set of directed edges.
+	 */
+	private static class EdgeSet {
+		private long[] table;
+		private int mask;
+		
+		EdgeSet(int maxEdgeCnt) {
+			int capacity = Integer.highestOneBit(Math.max(1, maxEdgeCnt) * 2 - 1) << 1;
+			table = new long[capacity];
+			mask = capacity - 1;
+			clear();
+		}
+		
+		void clear() {
+			Arrays.fill(table, -1L);
+		}
+		
+		void add(int v0, int v1) {
+			long key = ((long) v0 << 32) | (v1 & 0xffffffffL);
+			int slot = slot(key);
+			while (table[slot] != -1L && table[slot] != key) {
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = key;
+		}
+		
+		boolean contains(int v0, int v1) {
+			long key = ((long) v0 << 32) | (v1 & 0xffffffffL);
+			int slot = slot(key);
+			while (table[slot] != -1L) {
+				if (table[slot] == key) {
+					return true;
+				}
+				slot = (slot + 1) & mask;
+			}
+			return false;
+		}
+		
+		private int slot(long key) {
+			long hash = key * 0x9E3779B97F4A7C15L;
+			return (int) (hash >>> 32) & mask;
+		}
+	}
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2008-2012 Java Scene Graph
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Java Scene Graph' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package trb.jsg.util.geometry;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import trb.jsg.Meshlets;
+import trb.jsg.VertexData;
+import trb.jsg.util.BoundsUtils;
+
+/**
+ * Splits indexed triangle meshes into meshlets. Meshlets are grown from a 
+ * seed triangle by adding the neighbouring triangle that shares the most 
+ * vertices with the meshlet, and then the one closest to the meshlet 
+ * center, so the meshlets become compact and have tight bounds and normal
+ * cones. The indices are reordered so each meshlet is a contiguous range.
+ * Run MeshOptimizer first to also get a good vertex cache order inside the
+ * meshlets.
+ * 
+ * @author tombr
+ */
+public class MeshletBuilder {
+
+	/** The default maximum number of triangles in a meshlet */
+	public static final int DEFAULT_MAX_TRIANGLES = 124;
+	
+	/** The default maximum number of vertices in a meshlet */
+	public static final int DEFAULT_MAX_VERTICES = 64;
+	
+	/** Cones where a triangle normal is this close to perpendicular to the
+	 * axis are too wide to cull anything */
+	private static final float MIN_CONE_DOT = 0.1f;
+
+	/**
+	 * Builds meshlets with the default limits.
+	 * @param vertexData the indexed triangle mesh
+	 * @return the meshlets, also stored in vertexData
+	 */
+	public static Meshlets build(VertexData vertexData) {
+		return build(vertexData, DEFAULT_MAX_TRIANGLES, DEFAULT_MAX_VERTICES);
+	}
+	
+	/**
+	 * Builds meshlets, reorders the indices so each meshlet is a contiguous
+	 * range, sets the meshlets on the vertex data and calls changed().
+	 * @param vertexData the indexed triangle mesh
+	 * @param maxTriangles the maximum number of triangles in a meshlet, at
+	 *        least 1
+	 * @param maxVertices the maximum number of vertices in a meshlet, at 
+	 *        least 3
+	 * @return the meshlets
+	 */
+	public static Meshlets build(VertexData vertexData, int maxTriangles, int maxVertices) {
+		if (maxTriangles < 1 || maxVertices < 3) {
+			throw new RuntimeException("A meshlet must hold at least one triangle, was " 
+					+ maxTriangles + " triangles and " + maxVertices + " vertices");
+		}
+		int[] indices = MeshOptimizer.getTriangleIndices(vertexData);
+		float[] coords = new float[vertexData.coordinates.limit()];
+		FloatBuffer coordBuffer = vertexData.coordinates.duplicate();
+		coordBuffer.position(0);
+		coordBuffer.get(coords);
+		
+		int[] meshletStarts = new int[indices.length / 3 + 1];
+		int[] ordered = new int[indices.length];
+		int meshletCnt = buildClusters(indices, coords, maxTriangles, maxVertices, meshletStarts, ordered);
+		
+		Meshlets meshlets = new Meshlets(meshletCnt);
+		float[] clusterCoords = new float[maxVertices * 3];
+		int[] vertexSlot = new int[coords.length / 3];
+		Arrays.fill(vertexSlot, -1);
+		for (int i=0; i<meshletCnt; i++) {
+			int first = meshletStarts[i] * 3;
+			int end = meshletStarts[i + 1] * 3;
+			meshlets.firstIndex[i] = first;
+			meshlets.indexCount[i] = end - first;
+			
+			// bounding sphere of the unique vertices
+			int vertexCnt = 0;
+			for (int j=first; j<end; j++) {
+				int v = ordered[j];
+				if (vertexSlot[v] < 0) {
+					vertexSlot[v] = vertexCnt;
+					System.arraycopy(coords, v * 3, clusterCoords, vertexCnt * 3, 3);
+					vertexCnt++;
+				}
+			}
+			for (int j=first; j<end; j++) {
+				vertexSlot[ordered[j]] = -1;
+			}
+			BoundsUtils.Bounds bounds = BoundsUtils.computeBounds(clusterCoords, vertexCnt, null);
+			System.arraycopy(bounds.sphere, 0, meshlets.spheres, i * 4, 4);
+			
+			computeCone(ordered, first, end, coords, meshlets.cones, i * 4);
+		}
+		
+		vertexData.setIndices(ordered);
+		vertexData.meshlets = meshlets;
+		vertexData.changed();
+		return meshlets;
+	}
+	
+	/**
+	 * Groups the triangles into clusters.
+	 * @param starts receives the first triangle of each cluster, followed by
+	 *        the number of triangles
+	 * @param result receives the indices ordered by cluster
+	 * @return the number of clusters
+	 */
+	private static int buildClusters(int[] indices, float[] coords, int maxTriangles, int maxVertices
+			, int[] starts, int[] result) {
+		int triangleCnt = indices.length / 3;
+		int vertexCnt = coords.length / 3;
+		
+		// the triangles of each vertex
+		int[] offsets = new int[vertexCnt + 1];
+		for (int i=0; i<indices.length; i++) {
+			offsets[indices[i] + 1]++;
+		}
+		for (int v=0; v<vertexCnt; v++) {
+			offsets[v + 1] += offsets[v];
+		}
+		int[] fill = offsets.clone();
+		int[] adjacency = new int[indices.length];
+		for (int i=0; i<indices.length; i++) {
+			adjacency[fill[indices[i]]++] = i / 3;
+		}
+		
+		boolean[] emitted = new boolean[triangleCnt];
+		boolean[] inCluster = new boolean[vertexCnt];
+		int[] shared = new int[triangleCnt];
+		int[] candidates = new int[triangleCnt];
+		int[] clusterVertices = new int[maxVertices];
+		int resultCnt = 0;
+		int clusterCnt = 0;
+		int seed = 0;
+		while (resultCnt < indices.length) {
+			while (emitted[seed]) {
+				seed++;
+			}
+			starts[clusterCnt++] = resultCnt / 3;
+			int clusterVertexCnt = 0;
+			int clusterTriangleCnt = 0;
+			int candidateCnt = 0;
+			float cx = 0, cy = 0, cz = 0;
+			int triangle = seed;
+			while (triangle >= 0) {
+				// add the triangle and its new vertices
+				emitted[triangle] = true;
+				clusterTriangleCnt++;
+				for (int c=0; c<3; c++) {
+					int v = indices[triangle * 3 + c];
+					result[resultCnt++] = v;
+					if (inCluster[v]) {
+						continue;
+					}
+					inCluster[v] = true;
+					clusterVertices[clusterVertexCnt++] = v;
+					cx += (coords[v * 3] - cx) / clusterVertexCnt;
+					cy += (coords[v * 3 + 1] - cy) / clusterVertexCnt;
+					cz += (coords[v * 3 + 2] - cz) / clusterVertexCnt;
+					for (int a=offsets[v]; a<offsets[v+1]; a++) {
+						int neighbour = adjacency[a];
+						if (!emitted[neighbour]) {
+							if (shared[neighbour] == 0) {
+								candidates[candidateCnt++] = neighbour;
+							}
+							shared[neighbour]++;
+						}
+					}
+				}
+				if (clusterTriangleCnt >= maxTriangles) {
+					break;
+				}
+				
+				// pick the candidate sharing the most vertices, then the closest
+				triangle = -1;
+				int bestShared = 0;
+				float bestDistance = Float.MAX_VALUE;
+				for (int i=candidateCnt-1; i>=0; i--) {
+					int candidate = candidates[i];
+					if (emitted[candidate]) {
+						candidates[i] = candidates[--candidateCnt];
+						continue;
+					}
+					if (clusterVertexCnt + 3 - shared[candidate] > maxVertices) {
+						continue;
+					}
+					float distance = 0;
+					for (int c=0; c<3; c++) {
+						int v = indices[candidate * 3 + c] * 3;
+						float dx = coords[v] - cx;
+						float dy = coords[v + 1] - cy;
+						float dz = coords[v + 2] - cz;
+						distance += dx * dx + dy * dy + dz * dz;
+					}
+					if (shared[candidate] > bestShared 
+							|| (shared[candidate] == bestShared && distance < bestDistance)) {
+						bestShared = shared[candidate];
+						bestDistance = distance;
+						triangle = candidate;
+					}
+				}
+			}
+			
+			// reset the per cluster state
+			for (int i=0; i<clusterVertexCnt; i++) {
+				inCluster[clusterVertices[i]] = false;
+			}
+			for (int i=0; i<candidateCnt; i++) {
+				shared[candidates[i]] = 0;
+			}
+		}
+		starts[clusterCnt] = triangleCnt;
+		return clusterCnt;
+	}
+	
+	/**
+	 * Computes the normal cone of the triangles in a range of indices.
+	 */
+	private static void computeCone(int[] indices, int first, int end, float[] coords, float[] cones, int off) {
+		float ax = 0, ay = 0, az = 0;
+		int triangleCnt = (end - first) / 3;
+		float[] normals = new float[triangleCnt * 3];
+		int normalCnt = 0;
+		for (int i=first; i<end; i+=3) {
+			int a = indices[i] * 3;
+			int b = indices[i+1] * 3;
+			int c = indices[i+2] * 3;
+			float abx = coords[b] - coords[a], aby = coords[b+1] - coords[a+1], abz = coords[b+2] - coords[a+2];
+			float acx = coords[c] - coords[a], acy = coords[c+1] - coords[a+1], acz = coords[c+2] - coords[a+2];
+			float nx = aby * acz - abz * acy;
+			float ny = abz * acx - abx * acz;
+			float nz = abx * acy - aby * acx;
+			float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+			if (length == 0) {
+				continue;
+			}
+			normals[normalCnt * 3] = nx / length;
+			normals[normalCnt * 3 + 1] = ny / length;
+			normals[normalCnt * 3 + 2] = nz / length;
+			ax += normals[normalCnt * 3];
+			ay += normals[normalCnt * 3 + 1];
+			az += normals[normalCnt * 3 + 2];
+			normalCnt++;
+		}
+		
+		float axisLength = (float) Math.sqrt(ax * ax + ay * ay + az * az);
+		float minDot = 1;
+		if (axisLength > 0) {
+			ax /= axisLength;
+			ay /= axisLength;
+			az /= axisLength;
+			for (int i=0; i<normalCnt; i++) {
+				float dot = normals[i * 3] * ax + normals[i * 3 + 1] * ay + normals[i * 3 + 2] * az;
+				minDot = Math.min(minDot, dot);
+			}
+		}
+		cones[off] = ax;
+		cones[off + 1] = ay;
+		cones[off + 2] = az;
+		if (axisLength == 0 || minDot <= MIN_CONE_DOT) {
+			cones[off + 3] = 1;
+		} else {
+			cones[off + 3] = (float) Math.sqrt(1 - minDot * minDot);
+		}
+	}
+}
@@ -0,0 +1,382 @@
+/*
+ * Copyright (c) 2008-2012 Java Scene Graph
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Java Scene Graph' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package trb.jsg.util.geometry;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.lwjgl.BufferUtils;
+
+import trb.jsg.VertexData;
+import trb.jsg.VertexFormat;
+
+/**
+ * Merges vertices that are equal in all streams. The vertices are hashed 
+ * into an open addressing table of vertex indices, so the running time is 
+ * linear for exact duplicates and no objects are created per vertex. Near
+ * duplicates are hashed by the grid cell of their position and found by 
+ * probing the neighbouring cells.
+ * 
+ * @author tombr
+ */
+public class VertexWelder {
+
+	/**
+	 * Merges the vertices of the vertex data that are exactly equal.
+	 * @param vertexData the vertex data to weld
+	 * @return the new index of each old vertex
+	 */
+	public static int[] weld(VertexData vertexData) {
+		return weld(vertexData, 0);
+	}
+	
+	/**
+	 * Merges the vertices of the vertex data that are equal. The unique 
+	 * vertices are kept in the order they first appear, the indices are 
+	 * remapped and changed() is called. Vertex data without indices gets 
+	 * indices. With a epsilon larger than 0, a vertex is merged with the 
+	 * first earlier vertex where every value of every stream differs by at 
+	 * most epsilon. The values of the first vertex are kept. Streams that 
+	 * are only stored in the interleaved buffer are unpacked and compared 
+	 * the same way.
+	 * @param vertexData the vertex data to weld
+	 * @param epsilon the largest difference to merge or 0 to only merge 
+	 *                exact duplicates
+	 * @return the new index of each old vertex
+	 */
+	public static int[] weld(VertexData vertexData, float epsilon) {
+		int vertexCnt = vertexData.coordinates.limit() / 3;
+		ArrayList<float[]> streams = new ArrayList<float[]>();
+		ArrayList<Integer> sizes = new ArrayList<Integer>();
+		addStream(streams, sizes, vertexData.coordinates, 3);
+		addStream(streams, sizes, vertexData.normals, 3);
+		addStream(streams, sizes, vertexData.colors, 3);
+		for (int i=0; i<vertexData.texCoords.length(); i++) {
+			VertexData.TexCoordData texCoord = vertexData.texCoords.get(i);
+			if (texCoord != null) {
+				addStream(streams, sizes, texCoord.data, texCoord.size);
+			}
+		}
+		for (int i=0; i<vertexData.attributes.length(); i++) {
+			VertexData.AttributeData attribute = vertexData.attributes.get(i);
+			if (attribute != null) {
+				addStream(streams, sizes, attribute.data, attribute.size);
+			}
+		}
+		if (vertexData.interleaved != null) {
+			addReleasedStreams(streams, sizes, vertexData, vertexCnt);
+		}
+		float[][] streamArrays = streams.toArray(new float[streams.size()][]);
+		int[] streamSizes = new int[sizes.size()];
+		for (int i=0; i<streamSizes.length; i++) {
+			streamSizes[i] = sizes.get(i);
+		}
+		
+		// find the first vertex that is equal to each vertex
+		int[] remap = new int[vertexCnt];
+		int[] uniqueVertices = new int[vertexCnt];
+		int uniqueCnt;
+		if (epsilon > 0) {
+			uniqueCnt = findNear(streamArrays, streamSizes, epsilon, vertexCnt, remap, uniqueVertices);
+		} else {
+			uniqueCnt = findExact(streamArrays, streamSizes, vertexCnt, remap, uniqueVertices);
+		}
+		
+		// remap the indices
+		int[] indices;
+		if (vertexData.indices == null) {
+			indices = remap;
+		} else {
+			indices = new int[vertexData.getIndexCount()];
+			for (int i=0; i<indices.length; i++) {
+				indices[i] = remap[vertexData.getIndex(i)];
+			}
+		}
+		
+		// compact the streams
+		vertexData.coordinates = compact(vertexData.coordinates, 3, uniqueVertices, uniqueCnt);
+		vertexData.normals = compact(vertexData.normals, 3, uniqueVertices, uniqueCnt);
+		vertexData.colors = compact(vertexData.colors, 3, uniqueVertices, uniqueCnt);
+		for (int i=0; i<vertexData.texCoords.length(); i++) {
+			VertexData.TexCoordData texCoord = vertexData.texCoords.get(i);
+			if (texCoord != null) {
+				texCoord.data = compact(texCoord.data, texCoord.size, uniqueVertices, uniqueCnt);
+			}
+		}
+		for (int i=0; i<vertexData.attributes.length(); i++) {
+			VertexData.AttributeData attribute = vertexData.attributes.get(i);
+			if (attribute != null) {
+				attribute.data = compact(attribute.data, attribute.size, uniqueVertices, uniqueCnt);
+			}
+		}
+		if (vertexData.interleaved != null) {
+			int stride = vertexData.format.getStride();
+			ByteBuffer src = vertexData.interleaved;
+			ByteBuffer dst = BufferUtils.createByteBuffer(uniqueCnt * stride);
+			for (int i=0; i<uniqueCnt; i++) {
+				int srcOff = uniqueVertices[i] * stride;
+				for (int b=0; b<stride; b++) {
+					dst.put(i * stride + b, src.get(srcOff + b));
+				}
+			}
+			vertexData.interleaved = dst;
+		}
+		vertexData.setIndices(indices);
+		vertexData.changed();
+		
+		return remap;
+	}
+	
+	/**
+	 * Finds the exact duplicates. Every value is hashed.
+	 * @return the number of unique vertices
+	 */
+	private static int findExact(float[][] streams, int[] sizes, int vertexCnt
+			, int[] remap, int[] uniqueVertices) {
+		int mask = createTableMask(vertexCnt);
+		int[] table = new int[mask + 1];
+		Arrays.fill(table, -1);
+		int uniqueCnt = 0;
+		for (int v=0; v<vertexCnt; v++) {
+			int slot = hash(streams, sizes, v) & mask;
+			while (true) {
+				int other = table[slot];
+				if (other < 0) {
+					table[slot] = v;
+					remap[v] = uniqueCnt;
+					uniqueVertices[uniqueCnt++] = v;
+					break;
+				}
+				if (equals(streams, sizes, v, other)) {
+					remap[v] = remap[other];
+					break;
+				}
+				slot = (slot + 1) & mask;
+			}
+		}
+		return uniqueCnt;
+	}
+	
+	/**
+	 * Finds the near duplicates. The unique vertices are hashed by the grid
+	 * cell of their position, with cells of epsilon size. A vertex within 
+	 * epsilon of another vertex is in the same or a neighbouring cell, so 
+	 * the 27 cells around each vertex are searched.
+	 * @return the number of unique vertices
+	 */
+	private static int findNear(float[][] streams, int[] sizes, float epsilon, int vertexCnt
+			, int[] remap, int[] uniqueVertices) {
+		float[] coords = streams[0];
+		double invEpsilon = 1.0 / epsilon;
+		int mask = createTableMask(vertexCnt);
+		int[] table = new int[mask + 1];
+		Arrays.fill(table, -1);
+		long[] cells = new long[vertexCnt * 3];
+		int uniqueCnt = 0;
+		for (int v=0; v<vertexCnt; v++) {
+			for (int c=0; c<3; c++) {
+				cells[v * 3 + c] = (long) Math.floor(coords[v * 3 + c] * invEpsilon);
+			}
+			int match = -1;
+			for (int n=0; n<27; n++) {
+				long x = cells[v * 3 + 0] + (n % 3) - 1;
+				long y = cells[v * 3 + 1] + (n / 3 % 3) - 1;
+				long z = cells[v * 3 + 2] + (n / 9) - 1;
+				for (int slot = hashCell(x, y, z) & mask; table[slot] >= 0; slot = (slot + 1) & mask) {
+					int other = table[slot];
+					if ((match < 0 || other < match) && cells[other * 3] == x 
+							&& cells[other * 3 + 1] == y && cells[other * 3 + 2] == z
+							&& isNear(streams, sizes, epsilon, v, other)) {
+						match = other;
+					}
+				}
+			}
+			if (match >= 0) {
+				remap[v] = remap[match];
+				continue;
+			}
+			int slot = hashCell(cells[v * 3], cells[v * 3 + 1], cells[v * 3 + 2]) & mask;
+			while (table[slot] >= 0) {
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = v;
+			remap[v] = uniqueCnt;
+			uniqueVertices[uniqueCnt++] = v;
+		}
+		return uniqueCnt;
+	}
+	
+	/**
+	 * Gets the mask of a power of two table that is at most half full.
+	 */
+	private static int createTableMask(int vertexCnt) {
+		return (Integer.highestOneBit(Math.max(1, vertexCnt) * 2 - 1) << 1) - 1;
+	}
+	
+	/**
+	 * Unpacks the streams that are only stored in the interleaved buffer, 
+	 * so they are compared like the float streams.
+	 */
+	private static void addReleasedStreams(ArrayList<float[]> streams, ArrayList<Integer> sizes
+			, VertexData vertexData, int vertexCnt) {
+		VertexFormat format = vertexData.format;
+		ByteBuffer bytes = vertexData.interleaved.duplicate().order(vertexData.interleaved.order());
+		for (int i=0; i<format.getElementCount(); i++) {
+			VertexFormat.Element element = format.getElement(i);
+			boolean released = false;
+			switch (element.usage) {
+			case NORMALS:
+				released = vertexData.normals == null;
+				break;
+			case COLORS:
+				released = vertexData.colors == null;
+				break;
+			case TEX_COORDS:
+				released = vertexData.texCoords.get(element.index) == null;
+				break;
+			case ATTRIBUTE:
+				released = vertexData.attributes.get(element.index) == null;
+				break;
+			}
+			if (!released) {
+				continue;
+			}
+			int size = element.type == VertexFormat.Type.INT_2_10_10_10_REV ? 4 : element.size;
+			float[] array = new float[vertexCnt * size];
+			float[] values = new float[4];
+			for (int v=0; v<vertexCnt; v++) {
+				VertexFormat.unpack(bytes, v * format.getStride() + element.offset, element, values);
+				System.arraycopy(values, 0, array, v * size, size);
+			}
+			streams.add(array);
+			sizes.add(size);
+		}
+	}
+	
+	/**
+	 * Copies a float stream to a array.
+	 */
+	private static void addStream(ArrayList<float[]> streams, ArrayList<Integer> sizes, FloatBuffer buffer, int size) {
+		if (buffer == null) {
+			return;
+		}
+		FloatBuffer src = buffer.duplicate();
+		src.position(0);
+		float[] array = new float[src.limit()];
+		src.get(array);
+		streams.add(array);
+		sizes.add(size);
+	}
+	
+	/**
+	 * Gets the value that is compared and hashed. Positive and negative 
+	 * zero are the same.
+	 */
+	private static int key(float value) {
+		return Float.floatToIntBits(value == 0 ? 0 : value);
+	}
+	
+	/**
+	 * Hashes all the values of a vertex.
+	 */
+	private static int hash(float[][] streams, int[] sizes, int vertexIdx) {
+		long hash = 0;
+		for (int streamIdx=0; streamIdx<streams.length; streamIdx++) {
+			float[] stream = streams[streamIdx];
+			int size = sizes[streamIdx];
+			for (int c=0; c<size; c++) {
+				hash = (hash + key(stream[vertexIdx * size + c])) * 0x9E3779B97F4A7C15L;
+			}
+		}
+		return (int) (hash ^ (hash >>> 32));
+	}
+	
+	/**
+	 * Hashes a grid cell.
+	 */
+	private static int hashCell(long x, long y, long z) {
+		long hash = ((x * 0x9E3779B97F4A7C15L + y) * 0x9E3779B97F4A7C15L + z) * 0x9E3779B97F4A7C15L;
+		return (int) (hash ^ (hash >>> 32));
+	}
+	
+	/**
+	 * Checks if all the values of two vertices are equal.
+	 */
+	private static boolean equals(float[][] streams, int[] sizes, int a, int b) {
+		for (int streamIdx=0; streamIdx<streams.length; streamIdx++) {
+			float[] stream = streams[streamIdx];
+			int size = sizes[streamIdx];
+			for (int c=0; c<size; c++) {
+				if (key(stream[a * size + c]) != key(stream[b * size + c])) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Checks if all the values of two vertices differ by at most epsilon.
+	 */
+	private static boolean isNear(float[][] streams, int[] sizes, float epsilon, int a, int b) {
+		for (int streamIdx=0; streamIdx<streams.length; streamIdx++) {
+			float[] stream = streams[streamIdx];
+			int size = sizes[streamIdx];
+			for (int c=0; c<size; c++) {
+				if (!(Math.abs(stream[a * size + c] - stream[b * size + c]) <= epsilon)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Copies the unique vertices of a stream to a new buffer.
+	 */
+	private static FloatBuffer compact(FloatBuffer src, int size, int[] uniqueVertices, int uniqueCnt) {
+		if (src == null) {
+			return null;
+		}
+		FloatBuffer dst = BufferUtils.createFloatBuffer(uniqueCnt * size);
+		for (int i=0; i<uniqueCnt; i++) {
+			int srcOff = uniqueVertices[i] * size;
+			for (int c=0; c<size; c++) {
+				dst.put(i * size + c, src.get(srcOff + c));
+			}
+		}
+		return dst;
+	}
+}